@@ -0,0 +1,129 @@
+package org.geosde.compute.process.vector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.geosde.compute.process.ProcessException;
+import org.geosde.compute.process.factory.DescribeParameter;
+import org.geosde.compute.process.factory.DescribeProcess;
+import org.geosde.compute.process.factory.DescribeResult;
+import org.geosde.compute.process.gs.GSProcess;
+import org.geosde.core.data.ContentFeatureCollection;
+import org.geosde.core.data.NearestFeatureSource;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Returns the k features of a collection nearest to a point.
+ * <p>
+ * Collections read from a {@link NearestFeatureSource} without any filter, such as a Cassandra
+ * layer, are searched by the source around the point. Any other collection is scanned once,
+ * keeping the k nearest features seen.
+ *
+ * @author Xiao Fei
+ *
+ */
+@DescribeProcess(title = "Nearest Features", description = "Returns the k features nearest to a point, closest first. Distances are measured in the units of the feature collection coordinate reference system.")
+public class NearestProcess implements GSProcess {
+
+	@DescribeResult(name = "result", description = "The nearest features, closest first")
+	public SimpleFeatureCollection execute(
+			@DescribeParameter(name = "features", description = "Input feature collection") SimpleFeatureCollection features,
+			@DescribeParameter(name = "point", description = "Point to search around, in the feature collection coordinate reference system") Point point,
+			@DescribeParameter(name = "k", description = "Number of features to return", min = 0, defaultValue = "1") Integer k,
+			@DescribeParameter(name = "maxDistance", description = "Distance beyond which features are ignored", min = 0) Double maxDistance)
+			throws ProcessException {
+		int count = k == null ? 1 : k;
+		double distance = maxDistance == null ? Double.POSITIVE_INFINITY : maxDistance;
+		if (count < 0) {
+			throw new ProcessException("k must not be negative: " + count);
+		}
+		try {
+			NearestFeatureSource source = nearestFeatureSource(features);
+			if (source != null) {
+				return source.getNearest(point, count, distance);
+			}
+			return scan(features, point, count, distance);
+		} catch (IOException e) {
+			throw new ProcessException("Could not search the features nearest to " + point, e);
+		}
+	}
+
+	/**
+	 * Returns the source able to search a collection around a point, null if it has to be scanned.
+	 */
+	static NearestFeatureSource nearestFeatureSource(SimpleFeatureCollection features) {
+		if (!(features instanceof ContentFeatureCollection)) {
+			return null;
+		}
+		ContentFeatureCollection collection = (ContentFeatureCollection) features;
+		if (!(collection.getFeatureSource() instanceof NearestFeatureSource)
+				|| collection.getQuery().getFilter() != null && collection.getQuery().getFilter() != Filter.INCLUDE) {
+			return null;
+		}
+		return (NearestFeatureSource) collection.getFeatureSource();
+	}
+
+	static SimpleFeatureCollection scan(SimpleFeatureCollection features, Point point, int k, double maxDistance) {
+		// farthest first, so that the k-th nearest feature is at the head
+		PriorityQueue<Neighbour> best = new PriorityQueue<>(k + 1, Collections.reverseOrder(NEAREST_FIRST));
+		if (k > 0) {
+			SimpleFeatureIterator it = features.features();
+			try {
+				while (it.hasNext()) {
+					SimpleFeature feature = it.next();
+					Geometry geometry = (Geometry) feature.getDefaultGeometry();
+					if (geometry == null) {
+						continue;
+					}
+					double distance = geometry.distance(point);
+					if (distance > maxDistance || best.size() == k && distance >= best.peek().distance) {
+						continue;
+					}
+					best.add(new Neighbour(feature, distance));
+					if (best.size() > k) {
+						best.poll();
+					}
+				}
+			} finally {
+				it.close();
+			}
+		}
+		List<Neighbour> sorted = new ArrayList<>(best);
+		Collections.sort(sorted, NEAREST_FIRST);
+		List<SimpleFeature> result = new ArrayList<>(sorted.size());
+		for (Neighbour neighbour : sorted) {
+			result.add(neighbour.feature);
+		}
+		return DataUtilities.collection(result);
+	}
+
+	static final Comparator<Neighbour> NEAREST_FIRST = new Comparator<Neighbour>() {
+		@Override
+		public int compare(Neighbour a, Neighbour b) {
+			return Double.compare(a.distance, b.distance);
+		}
+	};
+
+	static class Neighbour {
+
+		final SimpleFeature feature;
+
+		final double distance;
+
+		Neighbour(SimpleFeature feature, double distance) {
+			this.feature = feature;
+			this.distance = distance;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package org.geosde.compute.process.vector;
+
+import org.geosde.compute.process.factory.AnnotatedBeanProcessFactory;
+import org.geotools.text.Text;
+
+/**
+ * A process factory exposing the feature collection processes of this package.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class VectorProcessFactory extends AnnotatedBeanProcessFactory {
+
+	public VectorProcessFactory() {
+		super(Text.text("Vector processes"), "vec", NearestProcess.class);
+	}
+
+}
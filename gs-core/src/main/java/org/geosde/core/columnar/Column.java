@@ -0,0 +1,202 @@
+package org.geosde.core.columnar;
+
+import java.util.Arrays;
+
+/**
+ * Column of the values of an attribute in a {@link ColumnarTable}.
+ * <p>
+ * Numbers and booleans are kept in arrays of the primitive type, with the null rows in a bit set,
+ * other values in an array of objects. Values are appended by a single writer, arrays being
+ * replaced by larger copies as they fill, so readers see every row below the count the table
+ * published. The arrays are held by volatile fields: a reader that picks up a copy made after
+ * the count it took also sees the rows copied into it.
+ *
+ * @author Xiao Fei
+ *
+ */
+abstract class Column {
+
+	final Bits nulls = new Bits();
+
+	int size;
+
+	/**
+	 * Returns a column for the values of an attribute binding.
+	 */
+	static Column create(Class<?> binding) {
+		if (Integer.class.equals(binding)) {
+			return new IntColumn();
+		}
+		if (Long.class.equals(binding)) {
+			return new LongColumn();
+		}
+		if (Double.class.equals(binding)) {
+			return new DoubleColumn();
+		}
+		if (Boolean.class.equals(binding)) {
+			return new BooleanColumn();
+		}
+		return new ObjectColumn();
+	}
+
+	void add(Object value) {
+		ensureCapacity(size + 1);
+		if (value == null) {
+			nulls.set(size);
+		} else {
+			set(size, value);
+		}
+		size++;
+	}
+
+	Object get(int row) {
+		return nulls.get(row) ? null : value(row);
+	}
+
+	static int grow(int length, int required) {
+		return Math.max(required, length < 16 ? 16 : length + (length >> 1));
+	}
+
+	abstract void ensureCapacity(int capacity);
+
+	abstract void set(int row, Object value);
+
+	abstract Object value(int row);
+
+	static class IntColumn extends Column {
+
+		volatile int[] values = new int[0];
+
+		@Override
+		void ensureCapacity(int capacity) {
+			if (capacity > values.length) {
+				values = Arrays.copyOf(values, grow(values.length, capacity));
+			}
+		}
+
+		@Override
+		void set(int row, Object value) {
+			values[row] = ((Number) value).intValue();
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+	}
+
+	static class LongColumn extends Column {
+
+		volatile long[] values = new long[0];
+
+		@Override
+		void ensureCapacity(int capacity) {
+			if (capacity > values.length) {
+				values = Arrays.copyOf(values, grow(values.length, capacity));
+			}
+		}
+
+		@Override
+		void set(int row, Object value) {
+			values[row] = ((Number) value).longValue();
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+	}
+
+	static class DoubleColumn extends Column {
+
+		volatile double[] values = new double[0];
+
+		@Override
+		void ensureCapacity(int capacity) {
+			if (capacity > values.length) {
+				values = Arrays.copyOf(values, grow(values.length, capacity));
+			}
+		}
+
+		@Override
+		void set(int row, Object value) {
+			values[row] = ((Number) value).doubleValue();
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+	}
+
+	static class BooleanColumn extends Column {
+
+		final Bits values = new Bits();
+
+		@Override
+		void ensureCapacity(int capacity) {
+		}
+
+		@Override
+		void set(int row, Object value) {
+			if ((Boolean) value) {
+				values.set(row);
+			}
+		}
+
+		@Override
+		Object value(int row) {
+			return values.get(row);
+		}
+	}
+
+	/**
+	 * Bits set by a single writer and read concurrently, unlike a {@link java.util.BitSet} whose
+	 * words are replaced without any publication. Bits are only ever set, so a word updated in
+	 * place keeps the bits of the published rows whatever value a reader sees.
+	 */
+	static final class Bits {
+
+		volatile long[] words = new long[0];
+
+		void set(int index) {
+			long[] current = words;
+			int word = index >>> 6;
+			if (word >= current.length) {
+				current = Arrays.copyOf(current, grow(current.length, word + 1));
+				current[word] |= 1L << index;
+				words = current;
+			} else {
+				current[word] |= 1L << index;
+			}
+		}
+
+		boolean get(int index) {
+			long[] current = words;
+			int word = index >>> 6;
+			return word < current.length && (current[word] & (1L << index)) != 0;
+		}
+	}
+
+	static class ObjectColumn extends Column {
+
+		volatile Object[] values = new Object[0];
+
+		@Override
+		void ensureCapacity(int capacity) {
+			if (capacity > values.length) {
+				values = Arrays.copyOf(values, grow(values.length, capacity));
+			}
+		}
+
+		@Override
+		void set(int row, Object value) {
+			values[row] = value;
+		}
+
+		@Override
+		Object value(int row) {
+			return values[row];
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.geosde.core.columnar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geosde.core.data.ContentDataStore;
+import org.geosde.core.data.ContentEntry;
+import org.geosde.core.data.ContentFeatureSource;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureTypes;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.Name;
+
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Data store keeping its content in memory by column, beside the row oriented
+ * {@link org.geosde.core.memory.MemoryDataStore}.
+ * <p>
+ * The coordinates of the default geometry are packed in off-heap buffers of doubles and the other
+ * attributes in arrays of their primitive type, so a layer costs a few objects per column rather
+ * than a feature per row, and features are only materialized as they are read. A query reads the
+ * columns of the properties it requests and filters on and no other, see
+ * {@link ColumnarFeatureReader}.
+ * <p>
+ * The content is loaded through {@link #addFeatures(FeatureReader)} and the other
+ * <code>addFeatures</code> methods, its feature sources are read only. Rows are published by
+ * batches of at most {@link #BATCH_SIZE} features, readers never wait for a load to complete, and
+ * a load never holds more than a batch besides the columns.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class ColumnarDataStore extends ContentDataStore {
+
+	/**
+	 * Number of features appended and published at once by a load
+	 */
+	public final static int BATCH_SIZE = 10000;
+
+	public ColumnarDataStore() {
+		setGeometryFactory(new GeometryFactory());
+	}
+
+	@Override
+	public void createSchema(SimpleFeatureType featureType) throws IOException {
+		Name typeName = featureType.getName();
+		synchronized (entries) {
+			if (entries.containsKey(typeName)) {
+				throw new IOException(typeName + " already exists");
+			}
+			entries.put(typeName, new ColumnarEntry(this, featureType));
+		}
+	}
+
+	@Override
+	public void removeSchema(Name typeName) throws IOException {
+		synchronized (entries) {
+			if (!entries.containsKey(typeName)) {
+				throw new IOException("Type name " + typeName + " not found");
+			}
+			removeEntry(typeName);
+		}
+	}
+
+	@Override
+	public void removeSchema(String typeName) throws IOException {
+		for (Name name : entries.keySet()) {
+			if (name.getLocalPart().equals(typeName)) {
+				removeSchema(name);
+				return;
+			}
+		}
+		throw new IOException("Type name " + typeName + " not found");
+	}
+
+	/**
+	 * Adds the features of a reader, which is closed, creating the schema of the first one if
+	 * needed.
+	 */
+	public void addFeatures(FeatureReader<SimpleFeatureType, SimpleFeature> reader) throws IOException {
+		Batch batch = new Batch();
+		try {
+			while (reader.hasNext()) {
+				batch.add(reader.next());
+			}
+		} finally {
+			reader.close();
+		}
+		batch.publish();
+	}
+
+	public void addFeatures(SimpleFeatureCollection collection) throws IOException {
+		Batch batch = new Batch();
+		try (SimpleFeatureIterator iterator = collection.features()) {
+			while (iterator.hasNext()) {
+				batch.add(iterator.next());
+			}
+		}
+		batch.publish();
+	}
+
+	/**
+	 * Adds features, each batch of features of the same type being published at once.
+	 *
+	 * @throws IOException
+	 *             if the type of a feature is not the one of the entry of its name
+	 */
+	public void addFeatures(Collection<SimpleFeature> features) throws IOException {
+		Batch batch = new Batch();
+		for (SimpleFeature feature : features) {
+			batch.add(feature);
+		}
+		batch.publish();
+	}
+
+	/**
+	 * Features of the same type waiting to be published, at most {@link #BATCH_SIZE}. The entry
+	 * of each feature type instance is only resolved once. Not thread-safe.
+	 */
+	class Batch {
+
+		final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+
+		/** entries by feature type instance, see {@link ColumnarDataStore#entry(SimpleFeatureType)} */
+		final Map<SimpleFeatureType, ColumnarEntry> resolved = new IdentityHashMap<SimpleFeatureType, ColumnarEntry>();
+
+		/** type of the last feature added and its entry */
+		SimpleFeatureType type;
+
+		ColumnarEntry entry;
+
+		void add(SimpleFeature feature) throws IOException {
+			SimpleFeatureType featureType = feature.getFeatureType();
+			if (featureType != type) {
+				ColumnarEntry featureEntry = resolved.get(featureType);
+				if (featureEntry == null) {
+					featureEntry = entry(featureType);
+					resolved.put(featureType, featureEntry);
+				}
+				if (featureEntry != entry) {
+					publish();
+					entry = featureEntry;
+				}
+				type = featureType;
+			}
+			features.add(feature);
+			if (features.size() >= BATCH_SIZE) {
+				publish();
+			}
+		}
+
+		void publish() {
+			if (!features.isEmpty()) {
+				entry.table.addAll(features);
+				features.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the entry of a schema, created if needed.
+	 *
+	 * @throws IOException
+	 *             if there is an entry of the same name for another schema
+	 */
+	protected ColumnarEntry entry(SimpleFeatureType schema) throws IOException {
+		Name typeName = schema.getName();
+		synchronized (entries) {
+			ColumnarEntry entry = (ColumnarEntry) entries.get(typeName);
+			if (entry == null) {
+				entry = new ColumnarEntry(this, schema);
+				entries.put(typeName, entry);
+			} else if (entry.getSchema() != schema && !FeatureTypes.equals(entry.getSchema(), schema)) {
+				throw new IOException("Entry " + typeName + " schema " + entry.getSchema()
+						+ " incompatible with provided " + schema);
+			}
+			return entry;
+		}
+	}
+
+	@Override
+	protected List<Name> createTypeNames() {
+		List<Name> names = new ArrayList<Name>(entries.keySet());
+		Collections.sort(names, new Comparator<Name>() {
+			@Override
+			public int compare(Name n1, Name n2) {
+				return n1.toString().compareTo(n2.toString());
+			}
+		});
+		return names;
+	}
+
+	@Override
+	protected ContentFeatureSource createFeatureSource(ContentEntry entry) {
+		return new ColumnarFeatureSource(entry);
+	}
+}
@@ -0,0 +1,38 @@
+package org.geosde.core.columnar;
+
+import org.geosde.core.data.ContentEntry;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Entry of a feature type of a {@link ColumnarDataStore}, holding its {@link ColumnarTable}.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class ColumnarEntry extends ContentEntry {
+
+	final ColumnarTable table;
+
+	ColumnarEntry(ColumnarDataStore store, SimpleFeatureType schema) {
+		super(store, schema.getName());
+		this.table = new ColumnarTable(schema, store.getGeometryFactory());
+	}
+
+	public SimpleFeatureType getSchema() {
+		return table.schema;
+	}
+
+	/**
+	 * Number of features stored.
+	 */
+	public int getCount() {
+		return table.getRowCount();
+	}
+
+	/**
+	 * Off-heap bytes allocated for the geometries.
+	 */
+	public long getOffHeapSize() {
+		return table.geometry == null ? 0 : table.geometry.offHeapSize();
+	}
+}
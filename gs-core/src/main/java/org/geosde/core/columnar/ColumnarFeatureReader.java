@@ -0,0 +1,378 @@
+package org.geosde.core.columnar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.FilterAttributeExtractor;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Reads the rows of a {@link ColumnarTable} matching a query, materializing each feature when it
+ * is reached.
+ * <p>
+ * Only the columns of the requested properties and of the properties the filter refers to are
+ * read. Rows whose geometry envelope is outside the area the filter is restricted to are skipped
+ * from the packed envelopes, before any column is read. Sorting reads the sort columns for the
+ * matching rows only, then paging is applied to the sorted rows.
+ *
+ * @author Xiao Fei
+ *
+ */
+class ColumnarFeatureReader implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+	final ColumnarTable table;
+
+	final SimpleFeatureType resultType;
+
+	/**
+	 * Type of the features the filter is evaluated on, the result type when the filter refers to
+	 * no other property
+	 */
+	final SimpleFeatureType readType;
+
+	/**
+	 * Index in the schema of each attribute of the read type
+	 */
+	final int[] readIndexes;
+
+	/**
+	 * Index in the read type of each attribute of the result type, null when they are the same
+	 */
+	final int[] resultIndexes;
+
+	final Filter filter;
+
+	/**
+	 * Area the rows are restricted to, null if the filter does not restrict them
+	 */
+	final Envelope area;
+
+	final SimpleFeatureBuilder readBuilder;
+
+	final SimpleFeatureBuilder resultBuilder;
+
+	/**
+	 * Rows to visit in order when the query is sorted, null to visit the table in row order
+	 */
+	int[] order;
+
+	final boolean reverse;
+
+	/**
+	 * Rows published when the reader was opened
+	 */
+	final int rows;
+
+	/**
+	 * Position in the sorted rows, or last row visited in table order
+	 */
+	int position = -1;
+
+	int skip;
+
+	int remaining;
+
+	SimpleFeature next;
+
+	boolean closed;
+
+	ColumnarFeatureReader(ColumnarTable table, SimpleFeatureType resultType, Query query) {
+		this.table = table;
+		this.resultType = resultType;
+		this.rows = table.getRowCount();
+		Filter filter = query.getFilter() == null ? Filter.INCLUDE : query.getFilter();
+		this.filter = filter;
+		this.readType = readType(table.schema, resultType, filter);
+		this.readIndexes = new int[readType.getAttributeCount()];
+		for (int i = 0; i < readIndexes.length; i++) {
+			readIndexes[i] = table.schema.indexOf(readType.getDescriptor(i).getName());
+		}
+		if (readType == resultType) {
+			resultIndexes = null;
+		} else {
+			resultIndexes = new int[resultType.getAttributeCount()];
+			for (int i = 0; i < resultIndexes.length; i++) {
+				resultIndexes[i] = readType.indexOf(resultType.getDescriptor(i).getName());
+			}
+		}
+		this.area = area(table.schema, filter);
+		this.readBuilder = new SimpleFeatureBuilder(readType);
+		this.resultBuilder = readType == resultType ? readBuilder : new SimpleFeatureBuilder(resultType);
+		this.skip = query.getStartIndex() == null ? 0 : query.getStartIndex();
+		this.remaining = query.getMaxFeatures();
+		if (filter == Filter.EXCLUDE) {
+			remaining = 0;
+		}
+
+		boolean reverse = false;
+		List<SortBy> sorts = new ArrayList<SortBy>();
+		if (query.getSortBy() != null) {
+			for (SortBy sortBy : query.getSortBy()) {
+				if (sortBy == SortBy.NATURAL_ORDER || sortBy == SortBy.REVERSE_ORDER) {
+					if (sorts.isEmpty()) {
+						reverse = sortBy == SortBy.REVERSE_ORDER;
+					}
+				} else if (sortBy.getPropertyName() != null) {
+					sorts.add(sortBy);
+				}
+			}
+		}
+		this.reverse = reverse;
+		if (!sorts.isEmpty() && remaining > 0) {
+			order = sort(sorts);
+		}
+	}
+
+	/**
+	 * Returns the type holding the result properties and the ones a filter refers to.
+	 */
+	static SimpleFeatureType readType(SimpleFeatureType schema, SimpleFeatureType resultType, Filter filter) {
+		if (filter == Filter.INCLUDE || filter == Filter.EXCLUDE) {
+			return resultType;
+		}
+		FilterAttributeExtractor extractor = new FilterAttributeExtractor(schema);
+		filter.accept(extractor, null);
+		Set<String> names = new LinkedHashSet<String>();
+		for (AttributeDescriptor descriptor : resultType.getAttributeDescriptors()) {
+			names.add(descriptor.getLocalName());
+		}
+		if (names.containsAll(extractor.getAttributeNameSet())) {
+			return resultType;
+		}
+		names.addAll(extractor.getAttributeNameSet());
+		List<String> ordered = new ArrayList<String>();
+		for (AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+			if (names.contains(descriptor.getLocalName())) {
+				ordered.add(descriptor.getLocalName());
+			}
+		}
+		return SimpleFeatureTypeBuilder.retype(schema, ordered.toArray(new String[ordered.size()]));
+	}
+
+	/**
+	 * Returns the area a filter restricts the default geometry to, null if it does not restrict
+	 * it or refers to another geometry.
+	 */
+	static Envelope area(SimpleFeatureType schema, Filter filter) {
+		GeometryDescriptor geometry = schema.getGeometryDescriptor();
+		if (geometry == null || filter == Filter.INCLUDE || filter == Filter.EXCLUDE) {
+			return null;
+		}
+		FilterAttributeExtractor extractor = new FilterAttributeExtractor(schema);
+		filter.accept(extractor, null);
+		for (String name : extractor.getAttributeNameSet()) {
+			AttributeDescriptor descriptor = schema.getDescriptor(name);
+			if (descriptor instanceof GeometryDescriptor && descriptor != geometry) {
+				return null;
+			}
+		}
+		Envelope bounds = (Envelope) filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+		if (bounds == null || Double.isInfinite(bounds.getWidth()) || Double.isInfinite(bounds.getHeight())) {
+			return null;
+		}
+		if (bounds instanceof ReferencedEnvelope) {
+			CoordinateReferenceSystem crs = ((ReferencedEnvelope) bounds).getCoordinateReferenceSystem();
+			CoordinateReferenceSystem nativeCRS = geometry.getCoordinateReferenceSystem();
+			if (crs != null && nativeCRS != null && !CRS.equalsIgnoreMetadata(crs, nativeCRS)) {
+				return null;
+			}
+		}
+		return bounds;
+	}
+
+	/**
+	 * Returns the matching rows ordered by the sort properties, only the sort columns being read
+	 * besides the ones of the filter.
+	 */
+	int[] sort(List<SortBy> sorts) {
+		int[] matches = new int[16];
+		int count = 0;
+		for (int row = nextRow(-1); row >= 0; row = nextRow(row)) {
+			if (filter == Filter.INCLUDE || matches(row) != null) {
+				if (count == matches.length) {
+					matches = Arrays.copyOf(matches, count * 2);
+				}
+				matches[count++] = row;
+			}
+		}
+		final int[] indexes = new int[sorts.size()];
+		final boolean[] descending = new boolean[indexes.length];
+		final Object[][] keys = new Object[indexes.length][];
+		for (int i = 0; i < indexes.length; i++) {
+			String name = sorts.get(i).getPropertyName().getPropertyName();
+			indexes[i] = table.schema.indexOf(name);
+			if (indexes[i] < 0) {
+				throw new IllegalArgumentException("Cannot sort on unknown property " + name);
+			}
+			descending[i] = sorts.get(i).getSortOrder() == SortOrder.DESCENDING;
+			keys[i] = new Object[count];
+			for (int j = 0; j < count; j++) {
+				keys[i][j] = table.getAttribute(matches[j], indexes[i]);
+			}
+		}
+		Integer[] positions = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			positions[i] = i;
+		}
+		Arrays.sort(positions, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer p1, Integer p2) {
+				for (int i = 0; i < indexes.length; i++) {
+					int result = compareValues(keys[i][p1], keys[i][p2]);
+					if (result != 0) {
+						return descending[i] ? -result : result;
+					}
+				}
+				return 0;
+			}
+		});
+		int[] result = new int[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = matches[positions[i]];
+		}
+		return result;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static int compareValues(Object v1, Object v2) {
+		if (v1 == null) {
+			return v2 == null ? 0 : -1;
+		}
+		if (v2 == null) {
+			return 1;
+		}
+		if (v1 instanceof Comparable && v1.getClass().isInstance(v2)) {
+			return ((Comparable) v1).compareTo(v2);
+		}
+		return v1.toString().compareTo(v2.toString());
+	}
+
+	/**
+	 * Returns the next row, in table order, whose envelope may match the area of the filter, -1
+	 * when there is none.
+	 */
+	int nextRow(int row) {
+		if (reverse) {
+			row = row < 0 ? rows - 1 : row - 1;
+			while (row >= 0 && area != null && !table.geometry.intersects(row, area)) {
+				row--;
+			}
+			return row;
+		}
+		row++;
+		while (row < rows && area != null && !table.geometry.intersects(row, area)) {
+			row++;
+		}
+		return row < rows ? row : -1;
+	}
+
+	/**
+	 * Materializes a row with the read type.
+	 */
+	SimpleFeature read(int row) {
+		for (int i = 0; i < readIndexes.length; i++) {
+			readBuilder.add(table.getAttribute(row, readIndexes[i]));
+		}
+		return readBuilder.buildFeature(table.getId(row));
+	}
+
+	/**
+	 * Materializes a row with the read type, returns it if it matches the filter, null otherwise.
+	 */
+	SimpleFeature matches(int row) {
+		SimpleFeature feature = read(row);
+		return filter == Filter.INCLUDE || filter.evaluate(feature) ? feature : null;
+	}
+
+	SimpleFeature project(SimpleFeature feature) {
+		if (resultIndexes == null) {
+			return feature;
+		}
+		for (int i = 0; i < resultIndexes.length; i++) {
+			resultBuilder.add(feature.getAttribute(resultIndexes[i]));
+		}
+		return resultBuilder.buildFeature(feature.getID());
+	}
+
+	@Override
+	public SimpleFeatureType getFeatureType() {
+		return resultType;
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		if (next != null) {
+			return true;
+		}
+		if (closed) {
+			return false;
+		}
+		while (remaining > 0) {
+			SimpleFeature feature;
+			if (order != null) {
+				if (++position >= order.length) {
+					break;
+				}
+				// sorted rows already matched the filter
+				feature = read(order[position]);
+			} else {
+				position = nextRow(position);
+				if (position < 0) {
+					break;
+				}
+				feature = matches(position);
+			}
+			if (feature == null) {
+				continue;
+			}
+			if (skip > 0) {
+				skip--;
+				continue;
+			}
+			remaining--;
+			next = project(feature);
+			return true;
+		}
+		remaining = 0;
+		return false;
+	}
+
+	@Override
+	public SimpleFeature next() throws IOException, NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException("There are no more features");
+		}
+		SimpleFeature result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		next = null;
+		order = null;
+	}
+}
@@ -0,0 +1,158 @@
+package org.geosde.core.columnar;
+
+import java.io.IOException;
+
+import org.geosde.core.data.ContentEntry;
+import org.geosde.core.data.ContentFeatureSource;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.data.QueryCapabilities;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
+
+/**
+ * Read access to the content of a {@link ColumnarDataStore}.
+ * <p>
+ * Filtering, retyping, sorting and paging are all done by {@link ColumnarFeatureReader}, so that
+ * a query only reads the columns of the properties it requests and filters on.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class ColumnarFeatureSource extends ContentFeatureSource {
+
+	public ColumnarFeatureSource(ContentEntry entry) {
+		this(entry, Query.ALL);
+	}
+
+	public ColumnarFeatureSource(ContentEntry entry, Query query) {
+		super(entry, query);
+	}
+
+	@Override
+	public ColumnarDataStore getDataStore() {
+		return (ColumnarDataStore) super.getDataStore();
+	}
+
+	@Override
+	public ColumnarEntry getEntry() {
+		return (ColumnarEntry) super.getEntry();
+	}
+
+	@Override
+	protected boolean canFilter() {
+		return true;
+	}
+
+	@Override
+	protected boolean canRetype() {
+		return true;
+	}
+
+	@Override
+	protected boolean canSort() {
+		return true;
+	}
+
+	@Override
+	protected boolean canLimit() {
+		return true;
+	}
+
+	@Override
+	protected boolean canOffset() {
+		return true;
+	}
+
+	@Override
+	protected QueryCapabilities buildQueryCapabilities() {
+		return new QueryCapabilities() {
+			@Override
+			public boolean isOffsetSupported() {
+				return true;
+			}
+
+			@Override
+			public boolean supportsSorting(SortBy[] sortAttributes) {
+				if (sortAttributes == null) {
+					return true;
+				}
+				for (SortBy sortBy : sortAttributes) {
+					if (sortBy == SortBy.NATURAL_ORDER || sortBy == SortBy.REVERSE_ORDER) {
+						continue;
+					}
+					if (sortBy.getPropertyName() == null || getEntry().getSchema()
+							.getDescriptor(sortBy.getPropertyName().getPropertyName()) == null) {
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+
+	@Override
+	protected SimpleFeatureType buildFeatureType() {
+		return getEntry().getSchema();
+	}
+
+	@Override
+	protected ReferencedEnvelope getBoundsInternal(Query query) throws IOException {
+		ColumnarTable table = getEntry().table;
+		if (isAll(query)) {
+			return table.getBounds();
+		}
+		ReferencedEnvelope bounds = ReferencedEnvelope.create(table.schema.getCoordinateReferenceSystem());
+		GeometryDescriptor geometry = table.schema.getGeometryDescriptor();
+		if (geometry == null) {
+			return bounds;
+		}
+		Query boundsQuery = new Query(query);
+		boundsQuery.setPropertyNames(new String[] { geometry.getLocalName() });
+		try (FeatureReader<SimpleFeatureType, SimpleFeature> reader = getReaderInternal(boundsQuery)) {
+			while (reader.hasNext()) {
+				bounds.include(reader.next().getBounds());
+			}
+		}
+		return bounds;
+	}
+
+	@Override
+	protected int getCountInternal(Query query) throws IOException {
+		ColumnarTable table = getEntry().table;
+		if (query.getFilter() == null || query.getFilter() == Filter.INCLUDE) {
+			int offset = query.getStartIndex() == null ? 0 : query.getStartIndex();
+			return Math.max(0, Math.min(table.getRowCount() - offset, query.getMaxFeatures()));
+		}
+		Query countQuery = new Query(query);
+		countQuery.setPropertyNames(Query.NO_NAMES);
+		countQuery.setSortBy(null);
+		int count = 0;
+		try (FeatureReader<SimpleFeatureType, SimpleFeature> reader = getReaderInternal(countQuery)) {
+			while (reader.hasNext()) {
+				reader.next();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	static boolean isAll(Query query) {
+		return (query.getFilter() == null || query.getFilter() == Filter.INCLUDE)
+				&& (query.getStartIndex() == null || query.getStartIndex() == 0)
+				&& query.getMaxFeatures() == Query.DEFAULT_MAX;
+	}
+
+	@Override
+	protected FeatureReader<SimpleFeatureType, SimpleFeature> getReaderInternal(Query query) throws IOException {
+		SimpleFeatureType schema = getEntry().getSchema();
+		SimpleFeatureType resultType = query.getPropertyNames() == Query.ALL_NAMES ? schema
+				: SimpleFeatureTypeBuilder.retype(schema, query.getPropertyNames());
+		return new ColumnarFeatureReader(getEntry().table, resultType, query);
+	}
+}
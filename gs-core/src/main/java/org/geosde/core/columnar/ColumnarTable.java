@@ -0,0 +1,150 @@
+package org.geosde.core.columnar;
+
+import java.util.List;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Content of a feature type stored by column: the default geometry in a {@link GeometryColumn},
+ * every other attribute in a {@link Column} of its own.
+ * <p>
+ * Rows are only appended, under the lock of the table, and published at once by
+ * {@link #rowCount}, so readers never lock: a reader takes the row count when it starts and only
+ * reads the rows below it. Feature ids are not stored while they follow the
+ * <code>typeName.row</code> pattern, rows being numbered from 1.
+ *
+ * @author Xiao Fei
+ *
+ */
+final class ColumnarTable {
+
+	final SimpleFeatureType schema;
+
+	/**
+	 * Index of the default geometry in the schema, -1 if there is none
+	 */
+	final int geometryIndex;
+
+	final GeometryColumn geometry;
+
+	/**
+	 * Column of each attribute of the schema, null at the default geometry
+	 */
+	final Column[] columns;
+
+	/**
+	 * Ids of the rows, null until a row is added whose id is not the generated one
+	 */
+	volatile Column.ObjectColumn ids;
+
+	final ReferencedEnvelope bounds;
+
+	volatile int rowCount;
+
+	ColumnarTable(SimpleFeatureType schema, GeometryFactory factory) {
+		this.schema = schema;
+		GeometryDescriptor descriptor = schema.getGeometryDescriptor();
+		this.geometryIndex = descriptor == null ? -1 : schema.indexOf(descriptor.getName());
+		this.geometry = descriptor == null ? null
+				: new GeometryColumn(descriptor.getType().getBinding(), factory);
+		this.columns = new Column[schema.getAttributeCount()];
+		for (int i = 0; i < columns.length; i++) {
+			if (i != geometryIndex) {
+				columns[i] = Column.create(schema.getDescriptor(i).getType().getBinding());
+			}
+		}
+		this.bounds = ReferencedEnvelope.create(schema.getCoordinateReferenceSystem());
+	}
+
+	int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Appends features of the schema and publishes them at once.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if an attribute value cannot be converted to its binding, in which case none of
+	 *             the features is published
+	 */
+	synchronized void addAll(List<SimpleFeature> features) {
+		Object[][] rows = new Object[features.size()][];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = convert(features.get(i));
+		}
+		int row = rowCount;
+		Envelope added = new Envelope();
+		for (int i = 0; i < rows.length; i++, row++) {
+			String id = features.get(i).getID();
+			if (ids == null && !generatedId(row).equals(id)) {
+				Column.ObjectColumn generated = new Column.ObjectColumn();
+				for (int j = 0; j < row; j++) {
+					generated.add(generatedId(j));
+				}
+				ids = generated;
+			}
+			if (ids != null) {
+				ids.add(id);
+			}
+			for (int j = 0; j < columns.length; j++) {
+				if (j == geometryIndex) {
+					Geometry value = (Geometry) rows[i][j];
+					geometry.add(value);
+					if (value != null) {
+						added.expandToInclude(value.getEnvelopeInternal());
+					}
+				} else {
+					columns[j].add(rows[i][j]);
+				}
+			}
+		}
+		bounds.expandToInclude(added);
+		rowCount = row;
+	}
+
+	Object[] convert(SimpleFeature feature) {
+		Object[] result = new Object[columns.length];
+		for (int i = 0; i < result.length; i++) {
+			Object value = feature.getAttribute(i);
+			if (value != null) {
+				AttributeDescriptor descriptor = schema.getDescriptor(i);
+				Class<?> binding = descriptor.getType().getBinding();
+				result[i] = Converters.convert(value, binding);
+				if (result[i] == null) {
+					throw new IllegalArgumentException("Value " + value + " of " + descriptor.getLocalName()
+							+ " cannot be converted to " + binding.getName());
+				}
+			}
+		}
+		return result;
+	}
+
+	String generatedId(int row) {
+		return schema.getTypeName() + "." + (row + 1);
+	}
+
+	String getId(int row) {
+		Column.ObjectColumn current = ids;
+		return current == null ? generatedId(row) : (String) current.get(row);
+	}
+
+	Object getAttribute(int row, int index) {
+		return index == geometryIndex ? geometry.get(row) : columns[index].get(row);
+	}
+
+	/**
+	 * Returns a copy of the bounds of the rows.
+	 */
+	synchronized ReferencedEnvelope getBounds() {
+		return new ReferencedEnvelope(bounds);
+	}
+}
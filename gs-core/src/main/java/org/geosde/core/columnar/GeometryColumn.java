@@ -0,0 +1,272 @@
+package org.geosde.core.columnar;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Column of the default geometry of a {@link ColumnarTable}, whose coordinates are packed off-heap
+ * as x, y pairs of doubles.
+ * <p>
+ * A point column stores nothing but the pair of each row, NaN for null and empty points. Other
+ * columns also store off-heap, per row, the envelope of the geometry and where its coordinates
+ * and its structure start. The structure is a sequence of ints giving the type of each part
+ * followed by its counts: the number of coordinates of points and lines, the number of rings then
+ * the number of coordinates of each ring of polygons, the number of members of collections, which
+ * follow. Only x and y are kept.
+ * <p>
+ * Rows are tested against an envelope without decoding their geometry, see
+ * {@link #intersects(int, Envelope)}, geometries are only built by {@link #get(int)}.
+ *
+ * @author Xiao Fei
+ *
+ */
+final class GeometryColumn {
+
+	final static int NULL = 0;
+
+	final static int POINT = 1;
+
+	final static int LINESTRING = 2;
+
+	final static int POLYGON = 3;
+
+	final static int MULTIPOINT = 4;
+
+	final static int MULTILINESTRING = 5;
+
+	final static int MULTIPOLYGON = 6;
+
+	final static int COLLECTION = 7;
+
+	final static int LINEARRING = 8;
+
+	final GeometryFactory factory;
+
+	/**
+	 * Whether the column only holds points, which are stored without structure
+	 */
+	final boolean points;
+
+	final OffHeapArray coordinates = new OffHeapArray(8);
+
+	final OffHeapArray structure;
+
+	/**
+	 * Start of the coordinates of each row, in doubles
+	 */
+	final OffHeapArray coordinateStarts;
+
+	/**
+	 * Start of the structure of each row, in ints
+	 */
+	final OffHeapArray structureStarts;
+
+	/**
+	 * Envelope of each row, as min x, min y, max x, max y
+	 */
+	final OffHeapArray envelopes;
+
+	final Column.Bits nulls = new Column.Bits();
+
+	int size;
+
+	GeometryColumn(Class<?> binding, GeometryFactory factory) {
+		this.factory = factory;
+		this.points = Point.class.equals(binding);
+		if (points) {
+			structure = coordinateStarts = structureStarts = envelopes = null;
+		} else {
+			structure = new OffHeapArray(4);
+			coordinateStarts = new OffHeapArray(8);
+			structureStarts = new OffHeapArray(8);
+			envelopes = new OffHeapArray(8);
+		}
+	}
+
+	void add(Object value) {
+		Geometry geometry = (Geometry) value;
+		if (geometry == null) {
+			nulls.set(size);
+		}
+		if (points) {
+			Coordinate coordinate = geometry == null ? null : geometry.getCoordinate();
+			coordinates.addDouble(coordinate == null ? Double.NaN : coordinate.x);
+			coordinates.addDouble(coordinate == null ? Double.NaN : coordinate.y);
+		} else {
+			coordinateStarts.addLong(coordinates.size());
+			structureStarts.addLong(structure.size());
+			Envelope envelope = geometry == null ? new Envelope() : geometry.getEnvelopeInternal();
+			envelopes.addDouble(envelope.isNull() ? Double.NaN : envelope.getMinX());
+			envelopes.addDouble(envelope.isNull() ? Double.NaN : envelope.getMinY());
+			envelopes.addDouble(envelope.isNull() ? Double.NaN : envelope.getMaxX());
+			envelopes.addDouble(envelope.isNull() ? Double.NaN : envelope.getMaxY());
+			encode(geometry);
+		}
+		size++;
+	}
+
+	void encode(Geometry geometry) {
+		if (geometry == null) {
+			structure.addInt(NULL);
+		} else if (geometry instanceof Point) {
+			structure.addInt(POINT);
+			encode(((Point) geometry).getCoordinateSequence());
+		} else if (geometry instanceof LinearRing) {
+			structure.addInt(LINEARRING);
+			encode(((LineString) geometry).getCoordinateSequence());
+		} else if (geometry instanceof LineString) {
+			structure.addInt(LINESTRING);
+			encode(((LineString) geometry).getCoordinateSequence());
+		} else if (geometry instanceof Polygon) {
+			Polygon polygon = (Polygon) geometry;
+			structure.addInt(POLYGON);
+			if (polygon.isEmpty()) {
+				structure.addInt(0);
+				return;
+			}
+			structure.addInt(polygon.getNumInteriorRing() + 1);
+			encode(polygon.getExteriorRing().getCoordinateSequence());
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				encode(polygon.getInteriorRingN(i).getCoordinateSequence());
+			}
+		} else if (geometry instanceof GeometryCollection) {
+			structure.addInt(geometry instanceof MultiPoint ? MULTIPOINT
+					: geometry instanceof MultiLineString ? MULTILINESTRING
+							: geometry instanceof MultiPolygon ? MULTIPOLYGON : COLLECTION);
+			structure.addInt(geometry.getNumGeometries());
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				encode(geometry.getGeometryN(i));
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported geometry " + geometry.getGeometryType());
+		}
+	}
+
+	void encode(CoordinateSequence sequence) {
+		structure.addInt(sequence.size());
+		for (int i = 0; i < sequence.size(); i++) {
+			coordinates.addDouble(sequence.getX(i));
+			coordinates.addDouble(sequence.getY(i));
+		}
+	}
+
+	/**
+	 * Whether the envelope of the geometry of a row intersects an envelope, read from the
+	 * coordinates of points and from the row envelope of other geometries.
+	 */
+	boolean intersects(int row, Envelope envelope) {
+		if (points) {
+			double x = coordinates.getDouble(2L * row);
+			double y = coordinates.getDouble(2L * row + 1);
+			return !Double.isNaN(x) && envelope.intersects(x, y);
+		}
+		long start = 4L * row;
+		double minX = envelopes.getDouble(start);
+		if (Double.isNaN(minX)) {
+			return false;
+		}
+		return !(envelope.getMaxX() < minX || envelope.getMaxY() < envelopes.getDouble(start + 1)
+				|| envelope.getMinX() > envelopes.getDouble(start + 2)
+				|| envelope.getMinY() > envelopes.getDouble(start + 3));
+	}
+
+	Geometry get(int row) {
+		if (nulls.get(row)) {
+			return null;
+		}
+		if (points) {
+			double x = coordinates.getDouble(2L * row);
+			double y = coordinates.getDouble(2L * row + 1);
+			return Double.isNaN(x) ? factory.createPoint((Coordinate) null)
+					: factory.createPoint(new Coordinate(x, y));
+		}
+		long[] cursor = { structureStarts.getLong(row), coordinateStarts.getLong(row) };
+		return decode(cursor);
+	}
+
+	/**
+	 * Decodes the geometry at a cursor made of the structure and coordinate positions, which are
+	 * moved past it.
+	 */
+	Geometry decode(long[] cursor) {
+		int type = structure.getInt(cursor[0]++);
+		switch (type) {
+		case NULL:
+			return null;
+		case POINT: {
+			Coordinate[] coordinates = decodeCoordinates(cursor);
+			return factory.createPoint(coordinates.length == 0 ? null : coordinates[0]);
+		}
+		case LINESTRING:
+			return factory.createLineString(decodeCoordinates(cursor));
+		case LINEARRING:
+			return factory.createLinearRing(decodeCoordinates(cursor));
+		case POLYGON: {
+			int rings = structure.getInt(cursor[0]++);
+			if (rings == 0) {
+				return factory.createPolygon((LinearRing) null, null);
+			}
+			LinearRing shell = factory.createLinearRing(decodeCoordinates(cursor));
+			LinearRing[] holes = new LinearRing[rings - 1];
+			for (int i = 0; i < holes.length; i++) {
+				holes[i] = factory.createLinearRing(decodeCoordinates(cursor));
+			}
+			return factory.createPolygon(shell, holes);
+		}
+		default: {
+			Geometry[] members = new Geometry[structure.getInt(cursor[0]++)];
+			for (int i = 0; i < members.length; i++) {
+				members[i] = decode(cursor);
+			}
+			switch (type) {
+			case MULTIPOINT:
+				Point[] points = new Point[members.length];
+				System.arraycopy(members, 0, points, 0, members.length);
+				return factory.createMultiPoint(points);
+			case MULTILINESTRING:
+				LineString[] lines = new LineString[members.length];
+				System.arraycopy(members, 0, lines, 0, members.length);
+				return factory.createMultiLineString(lines);
+			case MULTIPOLYGON:
+				Polygon[] polygons = new Polygon[members.length];
+				System.arraycopy(members, 0, polygons, 0, members.length);
+				return factory.createMultiPolygon(polygons);
+			default:
+				return factory.createGeometryCollection(members);
+			}
+		}
+		}
+	}
+
+	Coordinate[] decodeCoordinates(long[] cursor) {
+		Coordinate[] result = new Coordinate[structure.getInt(cursor[0]++)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new Coordinate(coordinates.getDouble(cursor[1]), coordinates.getDouble(cursor[1] + 1));
+			cursor[1] += 2;
+		}
+		return result;
+	}
+
+	/**
+	 * Off-heap bytes allocated by the column.
+	 */
+	long offHeapSize() {
+		long result = coordinates.capacity();
+		if (!points) {
+			result += structure.capacity() + coordinateStarts.capacity() + structureStarts.capacity()
+					+ envelopes.capacity();
+		}
+		return result;
+	}
+}
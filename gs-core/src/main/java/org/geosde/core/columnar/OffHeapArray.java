@@ -0,0 +1,109 @@
+package org.geosde.core.columnar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Growable array of fixed size elements held in direct buffers, outside of the java heap.
+ * <p>
+ * The elements are appended by a single writer and read by absolute index, so readers never
+ * share a buffer position. The storage grows by chunks, which are never copied: an element does
+ * not move once written, and a reader that was handed the element count by the writer through a
+ * volatile field sees all the elements below it. The chunks are released with the array, when it
+ * is no longer reachable.
+ *
+ * @author Xiao Fei
+ *
+ */
+final class OffHeapArray {
+
+	final static int CHUNK_SHIFT = 20;
+
+	/**
+	 * Bytes per chunk, a multiple of every element size so that no element spans two chunks
+	 */
+	final static int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	final int elementSize;
+
+	final int elementsPerChunk;
+
+	volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+	/**
+	 * Number of elements written
+	 */
+	long size;
+
+	/**
+	 * @param elementSize
+	 *            4 for int elements, 8 for long and double ones
+	 */
+	OffHeapArray(int elementSize) {
+		this.elementSize = elementSize;
+		this.elementsPerChunk = CHUNK_SIZE / elementSize;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Off-heap bytes allocated.
+	 */
+	long capacity() {
+		return (long) chunks.length * CHUNK_SIZE;
+	}
+
+	void addInt(int value) {
+		long index = size;
+		chunk(index, true).putInt(offset(index), value);
+		size = index + 1;
+	}
+
+	void addLong(long value) {
+		long index = size;
+		chunk(index, true).putLong(offset(index), value);
+		size = index + 1;
+	}
+
+	void addDouble(double value) {
+		long index = size;
+		chunk(index, true).putDouble(offset(index), value);
+		size = index + 1;
+	}
+
+	int getInt(long index) {
+		return chunk(index, false).getInt(offset(index));
+	}
+
+	long getLong(long index) {
+		return chunk(index, false).getLong(offset(index));
+	}
+
+	double getDouble(long index) {
+		return chunk(index, false).getDouble(offset(index));
+	}
+
+	ByteBuffer chunk(long index, boolean grow) {
+		int chunk = (int) (index / elementsPerChunk);
+		ByteBuffer[] current = chunks;
+		if (chunk < current.length) {
+			return current[chunk];
+		}
+		if (!grow) {
+			throw new IndexOutOfBoundsException("Index " + index + " beyond " + size);
+		}
+		ByteBuffer[] grown = Arrays.copyOf(current, chunk + 1);
+		for (int i = current.length; i < grown.length; i++) {
+			grown[i] = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+		}
+		chunks = grown;
+		return grown[chunk];
+	}
+
+	int offset(long index) {
+		return (int) (index % elementsPerChunk) * elementSize;
+	}
+}
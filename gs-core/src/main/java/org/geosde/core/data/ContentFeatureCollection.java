@@ -122,6 +122,17 @@ public class ContentFeatureCollection implements SimpleFeatureCollection {
 		return featureType;
 	}
 
+	/**
+	 * Feature source the collection reads from, through {@link #getQuery()}.
+	 */
+	public ContentFeatureSource getFeatureSource() {
+		return featureSource;
+	}
+
+	public Query getQuery() {
+		return query;
+	}
+
 	// Visitors
 	public void accepts(org.opengis.feature.FeatureVisitor visitor, org.opengis.util.ProgressListener progress)
 			throws IOException {
@@ -0,0 +1,31 @@
+package org.geosde.core.data;
+
+import java.io.IOException;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * A feature source able to find the features nearest to a point without reading the whole layer,
+ * typically through its spatial index.
+ * <p>
+ * Distances are measured in the units of the feature type coordinate reference system, degrees
+ * for the lon/lat layers, as {@link com.vividsolutions.jts.geom.Geometry#distance} does.
+ */
+public interface NearestFeatureSource {
+
+	/**
+	 * Returns the k features nearest to a point, closest first.
+	 *
+	 * @param point
+	 *            the query point
+	 * @param k
+	 *            the number of features wanted, fewer are returned if the layer holds fewer
+	 *            features within maxDistance
+	 * @param maxDistance
+	 *            distance beyond which features are ignored, {@link Double#POSITIVE_INFINITY}
+	 *            for none
+	 */
+	public SimpleFeatureCollection getNearest(Point point, int k, double maxDistance) throws IOException;
+}
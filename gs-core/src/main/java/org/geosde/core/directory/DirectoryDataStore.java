@@ -130,7 +130,7 @@ public class DirectoryDataStore implements DataStore {
             if(ds != null) {
                 ds.createSchema(featureType);
                 ds.dispose();
-                cache.refreshCacheContents();
+                cache.refresh(f);
             } 
         } catch(Exception e) {
             throw (IOException) new IOException("Error creating new data store").initCause(e);
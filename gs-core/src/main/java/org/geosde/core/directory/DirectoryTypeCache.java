@@ -25,6 +25,7 @@ import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -34,7 +35,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,7 +48,12 @@ import org.geotools.util.logging.Logging;
 /**
  * <p>Handles all of the data stores that a directory data store relies onto,
  * centralizing the gathering and caching policies and code.</p>
- * <p>The class is completely thread safe</p>
+ * <p>The class is completely thread safe. Readers only lock while the contents
+ * are not known at all, before the first listing for instance: the changes of the
+ * directory are collected by the {@link DirectoryWatcher} and applied to the cache
+ * by a single thread at a time, file by file when the watcher knows which files
+ * changed, while the others keep reading the cache. Files that fail to load are
+ * handed back to the watcher and tried again on the next update.</p>
  * 
  * @author Andrea Aime - OpenGeo
  */
@@ -74,7 +80,7 @@ class DirectoryTypeCache {
     /**
      * A lock used for isolating cache updates
      */
-    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    ReentrantLock lock = new ReentrantLock();
 
     /**
      * Will create the delegate stores
@@ -109,7 +115,17 @@ class DirectoryTypeCache {
         this.directory = directory;
         this.factory = factory;
 
-        this.watcher = new ImmediateDirectoryWatcher(directory);
+        this.watcher = createWatcher(directory);
+    }
+
+    static DirectoryWatcher createWatcher(File directory) {
+        try {
+            return new WatchServiceDirectoryWatcher(directory);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.log(Level.INFO, "Cannot watch " + directory
+                    + ", checking its last modified time instead", e);
+            return new ImmediateDirectoryWatcher(directory);
+        }
     }
 
     /**
@@ -121,20 +137,32 @@ class DirectoryTypeCache {
      * @return
      */
     DataStore getDataStore(String typeName, boolean forceUpdate) throws IOException {
-        lock.readLock().lock();
-        try {
-            if(forceUpdate)
-                updateCache();
-            // TODO: check about re-creating the datastore when the cache
-            // is turned into a soft map
-            FileEntry fileEntry = ftCache.get(typeName);
+        if(forceUpdate)
+            updateCache(false);
+        FileEntry fileEntry = ftCache.get(typeName);
+        if(fileEntry == null && forceUpdate) {
+            // the type may be in an update running in another thread, wait for it
+            updateCache(true);
+            fileEntry = ftCache.get(typeName);
+        }
+        if( fileEntry == null){
+            throw new IOException("Not available: "+typeName );
+        }
+        DataStore store = fileEntry.getStore(true);
+        if(store == null && fileEntry.disposed) {
+            // the entry has been replaced or removed by a concurrent update
+            lock.lock();
+            try {
+                fileEntry = ftCache.get(typeName);
+            } finally {
+                lock.unlock();
+            }
             if( fileEntry == null){
                 throw new IOException("Not available: "+typeName );
             }
-            return fileEntry.getStore(true);
-        } finally {
-            lock.readLock().unlock();
+            store = fileEntry.getStore(true);
         }
+        return store;
     }
     
     /**
@@ -142,14 +170,8 @@ class DirectoryTypeCache {
      * @return
      */
     Set<String> getTypeNames() throws IOException {
-        lock.readLock().lock();
-        
-        try {
-            updateCache();
-            return ftCache.keySet();
-        } finally {
-            lock.readLock().unlock();
-        }
+        updateCache(false);
+        return ftCache.keySet();
     }
     
     /**
@@ -159,20 +181,14 @@ class DirectoryTypeCache {
      */
     List<DataStore> getDataStores() {
         List<DataStore> stores = new ArrayList<DataStore>();
-        lock.readLock().lock();
-        
-        try {
-            for (FileEntry entry : ftCache.values()) {
-                try {
-                    DataStore store = entry.getStore(false);
-                    if(store != null)
-                        stores.add(store);
-                } catch(Exception e) {
-                    LOGGER.log(Level.FINE, "Error occurred trying to grab a datastore", e);
-                }
+        for (FileEntry entry : new HashSet<FileEntry>(ftCache.values())) {
+            try {
+                DataStore store = entry.getStore(false);
+                if(store != null)
+                    stores.add(store);
+            } catch(Exception e) {
+                LOGGER.log(Level.FINE, "Error occurred trying to grab a datastore", e);
             }
-        } finally {
-            lock.readLock().unlock();
         }
         
         return stores;
@@ -180,29 +196,183 @@ class DirectoryTypeCache {
     
     /**
      * Checks if the feature type cache contents needs updating, does so in case.
-     * The code assumes the caller already owns a read only lock that needs upgrading
-     * in case the information is stale.
+     * The check does not lock. Unless asked to wait, the caller goes on with the
+     * current contents when another thread is already updating them, but for
+     * the whole directory to be listed again, since the contents are then not
+     * known at all, as before the first listing.
+     * 
+     * @param wait If true, waits for the update running in another thread, if any
      */
-    private void updateCache() throws IOException {
-        if(watcher.isStale()) {
-            // upgrade lock so that we have exclusive access to ftCache
-            lock.readLock().unlock();
-            lock.writeLock().lock();
-            
-            try {
-                // still stale?
-                if(watcher.isStale()) {
-                    watcher.mark();
+    private void updateCache(boolean wait) throws IOException {
+        if(wait || watcher.isRefreshNeeded()) {
+            lock.lock();
+        } else if(!watcher.isStale() || !lock.tryLock()) {
+            return;
+        }
+        try {
+            // still stale?
+            if(watcher.isStale()) {
+                Set<File> changes = watcher.takeChanges();
+                if(changes == null) {
                     refreshCacheContents();
+                } else {
+                    Map<File, Exception> failures = applyChanges(changes);
+                    if(!failures.isEmpty()) {
+                        watcher.retry(failures.keySet());
+                    }
                 }
-            } finally {
-                // downgrade lock
-                lock.readLock().lock();
-                lock.writeLock().unlock();
             }
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Updates the cache after a file has been written, without waiting for the
+     * watcher to report it.
+     */
+    void refresh(File file) throws IOException {
+        Map<File, Exception> failures;
+        lock.lock();
+        try {
+            failures = applyChanges(Collections.singleton(file));
+            if(!failures.isEmpty()) {
+                watcher.retry(failures.keySet());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Exception e : failures.values()) {
+            if(e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Could not load " + file, e);
+        }
+    }
+
+    /**
+     * Applies the changes of some files to the feature type cache, the other
+     * entries are left untouched.
+     * <p>
+     * A new file is probed for a data store, whose feature types are added. The
+     * data store of a deleted file is disposed of and its feature types removed.
+     * When a file or one of its sidecar files, that is a file with the same name
+     * but another extension, is modified, the feature types of its data store are
+     * checked again, the data store being trusted to follow the changes of its own
+     * files.
+     * </p>
+     * Each file is applied on its own, a file that fails does not prevent the
+     * others from being applied. The caller must own the update lock.
+     * 
+     * @return the files that could not be applied, with the reason
+     */
+    Map<File, Exception> applyChanges(Set<File> changes) {
+        Map<File, FileEntry> fileCache = new HashMap<File, FileEntry>();
+        Map<String, Set<File>> baseNames = new HashMap<String, Set<File>>();
+        for (FileEntry entry : ftCache.values()) {
+            fileCache.put(entry.file, entry);
+            String baseName = baseName(entry.file);
+            Set<File> owners = baseNames.get(baseName);
+            if (owners == null) {
+                owners = new HashSet<File>();
+                baseNames.put(baseName, owners);
+            }
+            owners.add(entry.file);
+        }
+
+        Set<File> files = new HashSet<File>(changes);
+        for (File file : changes) {
+            Set<File> owners = baseNames.get(baseName(file));
+            if (owners != null) {
+                files.addAll(owners);
+            }
+        }
+
+        Map<File, Exception> failures = new HashMap<File, Exception>();
+        for (File file : files) {
+            try {
+                applyChange(file, fileCache.get(file));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not apply the changes of " + file, e);
+                failures.put(file, e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Applies the changes of a file, whose current entry may be null
+     */
+    void applyChange(File file, FileEntry entry) throws IOException {
+        if (!file.exists() || file.isDirectory()) {
+            if (entry != null) {
+                removeTypes(entry, Collections.<String>emptySet());
+                entry.dispose();
+            }
+        } else if (entry != null) {
+            Set<String> typeNames = typeNames(entry);
+            removeTypes(entry, typeNames);
+            if (!addTypes(entry, typeNames)) {
+                entry.dispose();
+            }
+        } else {
+            DataStore store = factory.getDataStore(file);
+            if (store != null) {
+                entry = new FileEntry(file, store);
+                if (!addTypes(entry, typeNames(entry))) {
+                    entry.dispose();
+                }
+            }
+        }
+    }
+
+    static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), dot > 0 ? name.substring(0, dot) : name).getPath();
+    }
+
+    Set<String> typeNames(FileEntry entry) throws IOException {
+        DataStore store = entry.getStore(true);
+        if (store == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<String>(Arrays.asList(store.getTypeNames()));
+    }
+
+    /**
+     * Removes the feature types of an entry which are not in the retained ones
+     */
+    void removeTypes(FileEntry entry, Set<String> retained) {
+        for (Iterator<Map.Entry<String, FileEntry>> it = ftCache.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, FileEntry> mapping = it.next();
+            if (mapping.getValue() == entry && !retained.contains(mapping.getKey())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Maps feature types to an entry, unless they are already provided by another
+     * one. Returns true if the entry provides at least one of them.
+     */
+    boolean addTypes(FileEntry entry, Set<String> typeNames) {
+        boolean provided = false;
+        for (String typeName : new TreeSet<String>(typeNames)) {
+            FileEntry current = ftCache.get(typeName);
+            if (current == null) {
+                ftCache.put(typeName, entry);
+                provided = true;
+            } else if (current == entry) {
+                provided = true;
+            } else {
+                LOGGER.log(Level.WARNING, "Type name " + typeName
+                        + " is available from multiple datastores");
+            }
+        }
+        return provided;
+    }
+
     /**
      * Here we try to refresh the contents of the feature type cache.
      * <p>
@@ -218,6 +388,7 @@ class DirectoryTypeCache {
      * datastores already loaded. We assume a properly written datastore will be
      * able to detect changes in its own feature type list and feature type
      * schemas on its own.
+     * The caller must own the update lock.
      * 
      * @throws IOException
      */
@@ -342,6 +513,7 @@ class DirectoryTypeCache {
      * Disposes of the file cache and all the cached data stores
      */
     void dispose() {
+        watcher.dispose();
         // dispose all of the entries, they can be disposed more than
         // once so just scanning the values is ok (generally speaking we'll
         // find the same entry more than once among the values, once per
@@ -369,22 +541,29 @@ class DirectoryTypeCache {
         File file;
 
         SoftReference<DataStore> ref;
+
+        /**
+         * Set once the entry has been removed from the cache, its store is not
+         * re-created any more
+         */
+        volatile boolean disposed;
         
         public FileEntry(File file, DataStore store) {
             this.file = file;
             ref = new DataStoreSoftReference(store);
         }
         
-        DataStore getStore(boolean force) throws IOException {
+        synchronized DataStore getStore(boolean force) throws IOException {
             DataStore store = ref != null ? ref.get() : null;
-            if(store == null && force) {
+            if(store == null && force && !disposed) {
                 store = factory.getDataStore(file);
                 ref = new DataStoreSoftReference(store);
             } 
             return store;
         }
         
-        void dispose() {
+        synchronized void dispose() {
+            disposed = true;
             DataStore store = ref != null ? ref.get() : null;
             if(store != null)
                 store.dispose();
@@ -16,6 +16,9 @@
  */
 package org.geosde.core.directory;
 
+import java.io.File;
+import java.util.Set;
+
 /**
  * Implementors will provide a service that checks if directory contents are
  * changed since last refresh.
@@ -26,13 +29,32 @@ package org.geosde.core.directory;
 interface DirectoryWatcher {
 
     /**
-     * Reports if the directory last modified has changed since {@link #mark()}
+     * Reports if the directory last modified has changed since {@link #takeChanges()}
      * was last called
      */
     public boolean isStale();
 
     /**
-     * Marks the time the directory has been last checked at
+     * Returns the files created, modified or deleted since the last call and marks the
+     * directory as checked, or null if the changes are not known and the whole directory has to
+     * be listed again
+     */
+    public Set<File> takeChanges();
+
+    /**
+     * Reports if the changes are not known, that is if {@link #takeChanges()}
+     * would return null, for example before the directory is first listed
+     */
+    public boolean isRefreshNeeded();
+
+    /**
+     * Hands back files whose changes could not be applied, so that they are
+     * reported again by the next {@link #takeChanges()}
+     */
+    public void retry(Set<File> files);
+
+    /**
+     * Releases the resources used to watch the directory
      */
-    public void mark();
+    public void dispose();
 }
@@ -17,11 +17,14 @@
 package org.geosde.core.directory;
 
 import java.io.File;
+import java.util.Set;
 
 /**
  * Performs a last updated check each time isStale is called. Accurate, but will
  * incur in scalability issues under heavy multithreaded load on servers (file
- * access is typically expensive as it requires a switch to kernel space)
+ * access is typically expensive as it requires a switch to kernel space).
+ * Used when the file system cannot watch the directory, see
+ * {@link WatchServiceDirectoryWatcher}.
  * 
  * @author Andrea Aime
  * 
@@ -40,8 +43,26 @@ class ImmediateDirectoryWatcher implements DirectoryWatcher {
         return lastUpdated == null || lastUpdated < directory.lastModified();
     }
 
-    public synchronized void mark() {
+    /**
+     * Marks the time the directory has been checked at, the changes are never known.
+     */
+    public synchronized Set<File> takeChanges() {
         lastUpdated = directory.lastModified();
+        return null;
+    }
+
+    public boolean isRefreshNeeded() {
+        return isStale();
+    }
+
+    /**
+     * Forgets the last check, the whole directory is listed again.
+     */
+    public synchronized void retry(Set<File> files) {
+        lastUpdated = null;
+    }
+
+    public void dispose() {
     }
 
 }
@@ -0,0 +1,121 @@
+package org.geosde.core.directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Collects the changes of the directory from a {@link WatchService}, so that checking for them
+ * neither accesses the file system nor locks.
+ * <p>
+ * The files created, modified or deleted are reported by {@link #takeChanges()}. When the
+ * changes are not known, before the first check, after the service lost events or when the
+ * directory can no longer be watched, the whole directory has to be listed again.
+ * 
+ * @author Xiao Fei
+ *
+ */
+class WatchServiceDirectoryWatcher implements DirectoryWatcher {
+
+    final Path directory;
+
+    final WatchService service;
+
+    /**
+     * Files changed since the last call to {@link #takeChanges()}
+     */
+    final Set<File> changes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the changes are unknown, true until the directory is first listed
+     */
+    final AtomicBoolean overflow = new AtomicBoolean(true);
+
+    /**
+     * @throws IOException
+     *             if the file system of the directory cannot watch it
+     */
+    public WatchServiceDirectoryWatcher(File directory) throws IOException {
+        this.directory = directory.toPath();
+        this.service = this.directory.getFileSystem().newWatchService();
+        try {
+            this.directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            throw e;
+        }
+    }
+
+    public boolean isStale() {
+        collect();
+        return overflow.get() || !changes.isEmpty();
+    }
+
+    public Set<File> takeChanges() {
+        collect();
+        if (overflow.getAndSet(false)) {
+            changes.clear();
+            return null;
+        }
+        Set<File> result = new HashSet<File>();
+        for (Iterator<File> it = changes.iterator(); it.hasNext();) {
+            result.add(it.next());
+            it.remove();
+        }
+        return result;
+    }
+
+    public boolean isRefreshNeeded() {
+        collect();
+        return overflow.get();
+    }
+
+    public void retry(Set<File> files) {
+        changes.addAll(files);
+    }
+
+    /**
+     * Moves the events queued by the service to the pending changes.
+     */
+    void collect() {
+        try {
+            WatchKey key;
+            while ((key = service.poll()) != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow.set(true);
+                    } else {
+                        changes.add(directory.resolve((Path) event.context()).toFile());
+                    }
+                }
+                if (!key.reset()) {
+                    // the directory is no longer accessible
+                    overflow.set(true);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            overflow.set(true);
+        }
+    }
+
+    public void dispose() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            DirectoryTypeCache.LOGGER.log(Level.FINE, "Failed to close the watch service of " + directory,
+                    e);
+        }
+    }
+}
@@ -4,28 +4,40 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.Lists;
-import com.google.common.geometry.S2Cell;
 import com.google.common.geometry.S2CellId;
-import com.google.common.geometry.S2LatLng;
-import com.google.common.geometry.S2Loop;
-import com.google.common.geometry.S2Point;
-import com.google.common.geometry.S2Polygon;
 import com.google.common.geometry.S2RegionCoverer;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
 
+/**
+ * Indexes geometries by S2 cell.
+ * <p>
+ * Points are indexed by their leaf cell, other geometries by the smallest cell containing the
+ * corners of their envelope. The partition <code>cell</code> is the level {@link #QUAD_LEVEL}
+ * ancestor of that cell, or the cell itself when it is coarser, and <code>pos</code> the cell.
+ * <p>
+ * Cells are computed directly from the coordinates as primitive <code>long</code> ids, see
+ * {@link #cellId(Geometry)}; only {@link #index(Geometry)} converts them to the tokens stored in
+ * the tables. Instances are not thread-safe.
+ */
 public class S2IndexStrategy implements IndexStrategy {
 
 	String tableName;
 	public final static int QUAD_LEVEL = 10;
 	S2RegionCoverer coverer;
-	
+
+	final static double DEGREES_TO_RADIANS = Math.PI / 180;
+
+	/**
+	 * Number of bits of an id below the position, the face being stored above
+	 */
+	final static int POS_BITS = S2CellId.POS_BITS;
+
 	public S2IndexStrategy(String tableName) {
 		this.tableName = tableName;
 		this.coverer = new S2RegionCoverer();
+		coverer.setMaxCells(1);
 	}
 
 	@Override
@@ -38,73 +50,94 @@ public class S2IndexStrategy implements IndexStrategy {
 
 	@Override
 	public Map<String, Object> index(Geometry geom) {
-		Map<String, Object> index = new HashMap<>();
-		S2CellId id = null;
-		if (geom instanceof Point) {
-			Point point = (Point) geom;
-			double x = point.getX();
-			double y = point.getY();
-			id = new S2Cell(S2LatLng.fromDegrees(y, x)).id();
-		} else {
-			Envelope envelope = geom.getEnvelopeInternal();
-			StringBuilder sb = new StringBuilder();
-			sb.append(envelope.getMinY() + ":" + envelope.getMinX() + ",");
-			sb.append(envelope.getMinY() + ":" + envelope.getMaxX() + ",");
-			sb.append(envelope.getMaxY() + ":" + envelope.getMaxX() + ",");
-			sb.append(envelope.getMaxY() + ":" + envelope.getMinX() + ";");
-			S2Polygon a = makePolygon(sb.toString());
-			ArrayList<S2CellId> covering = new ArrayList<>();
-			coverer.setMaxCells(1);
-			coverer.getCovering(a, covering);
-			id = covering.get(0);
-		}
-		if (id.level() <= QUAD_LEVEL) {
-			index.put("cell", id.toToken());
-		} else {
-			index.put("cell", id.parent(QUAD_LEVEL).toToken());
-		}
-		index.put("pos", id.toToken());
-		return index;
+		return toIndex(cellId(geom));
 	}
 
 	@Override
 	public Map<String, Object> index(double x, double y) {
-		// TODO Auto-generated method stub
-		return null;
+		return toIndex(cellId(x, y));
+	}
+
+	Map<String, Object> toIndex(long id) {
+		Map<String, Object> index = new HashMap<>(4);
+		index.put("cell", toKey(partitionId(id)));
+		index.put("pos", toKey(id));
+		return index;
 	}
 
-	private S2Polygon makePolygon(String str) {
-		List<S2Loop> loops = Lists.newArrayList();
+	/**
+	 * Returns the value stored in the key columns for a cell, its token.
+	 */
+	public Object toKey(long id) {
+		return S2CellId.toToken(id);
+	}
 
-		for (String token : Splitter.on(';').omitEmptyStrings().split(str)) {
-			S2Loop loop = makeLoop(token);
-			loop.normalize();
-			loops.add(loop);
+	/**
+	 * Returns the cell a geometry is indexed by, stored in the <code>pos</code> column.
+	 */
+	public long cellId(Geometry geom) {
+		if (geom instanceof Point) {
+			Point point = (Point) geom;
+			return cellId(point.getX(), point.getY());
 		}
+		Envelope envelope = geom.getEnvelopeInternal();
+		return cellId(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+	}
 
-		return new S2Polygon(loops);
+	/**
+	 * Returns the leaf cell of a lon/lat position.
+	 */
+	public long cellId(double x, double y) {
+		return leafId(y, x);
 	}
 
-	private void parseVertices(String str, List<S2Point> vertices) {
-		if (str == null) {
-			return;
+	/**
+	 * Returns the smallest cell containing a lon/lat envelope.
+	 */
+	public long cellId(double minX, double minY, double maxX, double maxY) {
+		long id = leafId(minY, minX);
+		if (minX == maxX && minY == maxY) {
+			return id;
 		}
-
-		for (String token : Splitter.on(',').split(str)) {
-			int colon = token.indexOf(':');
-			if (colon == -1) {
-				throw new IllegalArgumentException("Illegal string:" + token + ". Should look like '35:20'");
-			}
-			double lat = Double.parseDouble(token.substring(0, colon));
-			double lng = Double.parseDouble(token.substring(colon + 1));
-			vertices.add(S2LatLng.fromDegrees(lat, lng).toPoint());
+		// corners, and the middle of the parallels which bulge out of the cell edges the most
+		double midX = (minX + maxX) / 2;
+		long diff = (id ^ leafId(minY, maxX)) | (id ^ leafId(maxY, maxX)) | (id ^ leafId(maxY, minX))
+				| (id ^ leafId(minY, midX)) | (id ^ leafId(maxY, midX));
+		int top = 63 - Long.numberOfLeadingZeros(diff);
+		if (top >= POS_BITS) {
+			// across a cube face, no cell contains the whole envelope
+			ArrayList<S2CellId> covering = new ArrayList<>();
+			coverer.getCovering(S2QueryPlanner.toRect(new Envelope(minX, maxX, minY, maxY)), covering);
+			return covering.get(0).id();
 		}
+		// the ids share the position bits above the highest differing bit
+		return parentId(id, (POS_BITS - 1 - top) / 2);
+	}
+
+	/**
+	 * Returns the partition a cell is stored in, the <code>cell</code> column.
+	 */
+	public static long partitionId(long id) {
+		return level(id) <= QUAD_LEVEL ? id : parentId(id, QUAD_LEVEL);
+	}
+
+	/**
+	 * Returns the leaf cell containing a position given in degrees.
+	 */
+	public static long leafId(double lat, double lng) {
+		double phi = lat * DEGREES_TO_RADIANS;
+		double theta = lng * DEGREES_TO_RADIANS;
+		double cosphi = Math.cos(phi);
+		return S2CellId.leafIdFromXyz(Math.cos(theta) * cosphi, Math.sin(theta) * cosphi, Math.sin(phi));
+	}
+
+	static int level(long id) {
+		return S2CellId.MAX_LEVEL - (Long.numberOfTrailingZeros(id) >> 1);
 	}
 
-	private S2Loop makeLoop(String str) {
-		List<S2Point> vertices = Lists.newArrayList();
-		parseVertices(str, vertices);
-		return new S2Loop(vertices);
+	static long parentId(long id, int level) {
+		long lsb = 1L << (2 * (S2CellId.MAX_LEVEL - level));
+		return (id & -lsb) | lsb;
 	}
 
 }
@@ -0,0 +1,32 @@
+package org.geosde.core.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes geometries like {@link S2IndexStrategy}, storing the cells as <code>bigint</code> cell
+ * ids rather than tokens.
+ * <p>
+ * Ids are smaller than tokens and cheaper to compare, and since their signed order matches the
+ * Hilbert order within a cube face, the rows of a partition can be restricted to the range of a
+ * sub-cell with a clustering range on <code>pos</code>.
+ */
+public class S2LongIndexStrategy extends S2IndexStrategy {
+
+	public S2LongIndexStrategy(String tableName) {
+		super(tableName);
+	}
+
+	@Override
+	public PrimaryKey getPrimaryKey() {
+		List<PrimaryKeyColumn> columns = new ArrayList<>();
+		columns.add(new PrimaryKeyColumn("cell", true, Long.class));
+		columns.add(new PrimaryKeyColumn("pos", false, Long.class));
+		return new PrimaryKey(tableName, columns);
+	}
+
+	@Override
+	public Object toKey(long id) {
+		return id;
+	}
+}
@@ -0,0 +1,190 @@
+package org.geosde.core.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLngRect;
+
+/**
+ * Result of planning a query with {@link S2QueryPlanner}: the covering of the query region, the
+ * partition cells that have to be read and the slices of those partitions holding the rows which
+ * may match.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class S2QueryPlan {
+
+	final S2LatLngRect region;
+
+	final S2CellUnion covering;
+
+	final List<S2CellId> partitions;
+
+	final List<Slice> slices;
+
+	S2QueryPlan(S2LatLngRect region, S2CellUnion covering, List<S2CellId> partitions, List<Slice> slices) {
+		this.region = region;
+		this.covering = covering;
+		this.partitions = Collections.unmodifiableList(partitions);
+		this.slices = Collections.unmodifiableList(slices);
+	}
+
+	/**
+	 * The query region.
+	 */
+	public S2LatLngRect getRegion() {
+		return region;
+	}
+
+	/**
+	 * Normalized covering of the query region, adjacent cells already merged into their parents.
+	 */
+	public S2CellUnion getCovering() {
+		return covering;
+	}
+
+	/**
+	 * Partition cells to read, coarser ancestor partitions first, each cell listed once.
+	 */
+	public List<S2CellId> getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * Partition cells as the tokens stored in the partition key column.
+	 */
+	public List<String> getPartitionTokens() {
+		List<String> tokens = new ArrayList<>(partitions.size());
+		for (S2CellId id : partitions) {
+			tokens.add(id.toToken());
+		}
+		return tokens;
+	}
+
+	/**
+	 * Partition cells as the ids stored in <code>bigint</code> partition key columns.
+	 */
+	public long[] getPartitionIds() {
+		long[] ids = new long[partitions.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = partitions.get(i).id();
+		}
+		return ids;
+	}
+
+	/**
+	 * Number of partition reads the query costs.
+	 */
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	/**
+	 * The reads to run, each restricted to a single partition and covering together every row of
+	 * the partitions which may match. A partition is read whole, or through one or more slices of
+	 * its <code>pos</code> clustering column.
+	 */
+	public List<Slice> getSlices() {
+		return slices;
+	}
+
+	public boolean isEmpty() {
+		return partitions.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "S2QueryPlan[" + region + ", " + covering.size() + " covering cells, " + partitions.size()
+				+ " partitions, " + slices.size() + " slices]";
+	}
+
+	/**
+	 * Read of the rows of a partition whose <code>pos</code> cell may intersect the query region.
+	 */
+	public static class Slice {
+
+		public enum Type {
+			/** every row of the partition */
+			PARTITION,
+			/** rows whose pos lies between {@link Slice#getMin()} and {@link Slice#getMax()} */
+			RANGE,
+			/** rows whose pos is one of {@link Slice#getPositions()} */
+			POSITIONS
+		}
+
+		final Type type;
+
+		final S2CellId partition;
+
+		final S2CellId min;
+
+		final S2CellId max;
+
+		final List<S2CellId> positions;
+
+		Slice(Type type, S2CellId partition, S2CellId min, S2CellId max, List<S2CellId> positions) {
+			this.type = type;
+			this.partition = partition;
+			this.min = min;
+			this.max = max;
+			this.positions = positions;
+		}
+
+		static Slice partition(S2CellId partition) {
+			return new Slice(Type.PARTITION, partition, null, null, null);
+		}
+
+		static Slice range(S2CellId partition, S2CellId min, S2CellId max) {
+			return new Slice(Type.RANGE, partition, min, max, null);
+		}
+
+		static Slice positions(S2CellId partition, List<S2CellId> positions) {
+			return new Slice(Type.POSITIONS, partition, null, null, Collections.unmodifiableList(positions));
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public S2CellId getPartition() {
+			return partition;
+		}
+
+		/**
+		 * Lowest pos of a {@link Type#RANGE} slice, inclusive.
+		 */
+		public S2CellId getMin() {
+			return min;
+		}
+
+		/**
+		 * Highest pos of a {@link Type#RANGE} slice, inclusive.
+		 */
+		public S2CellId getMax() {
+			return max;
+		}
+
+		/**
+		 * Pos values of a {@link Type#POSITIONS} slice.
+		 */
+		public List<S2CellId> getPositions() {
+			return positions;
+		}
+
+		@Override
+		public String toString() {
+			switch (type) {
+			case RANGE:
+				return partition.toToken() + "[" + min.toToken() + ".." + max.toToken() + "]";
+			case POSITIONS:
+				return partition.toToken() + positions;
+			default:
+				return partition.toToken();
+			}
+		}
+	}
+}
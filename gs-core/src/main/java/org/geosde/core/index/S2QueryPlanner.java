@@ -0,0 +1,320 @@
+package org.geosde.core.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.geosde.core.index.S2QueryPlan.Slice;
+
+import com.google.common.geometry.S2Cap;
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Region;
+import com.google.common.geometry.S2RegionCoverer;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Plans the partitions to read for a spatial query against a table indexed by
+ * {@link S2IndexStrategy}.
+ * <p>
+ * The strategy writes small geometries in the partition of their level
+ * {@link S2IndexStrategy#QUAD_LEVEL} ancestor, and geometries larger than such a cell in the
+ * partition of their own (coarser) covering cell. A query therefore has to read the partition
+ * level cells intersecting its region, plus the ancestors of those cells for layers holding large
+ * geometries. Anything else (coverings at every level, ancestors of the bbox bound) only adds
+ * reads of partitions that cannot hold a match.
+ * <p>
+ * Within a partition the rows are clustered by <code>pos</code>, the cell of the geometry, and
+ * the ids of the descendants of a cell form a contiguous range in Hilbert order. Partitions the
+ * region only partly covers are therefore read through the ranges of a finer covering of their
+ * intersection with the region, plus, for layers holding large geometries, the ancestors of the
+ * covering cells between the partition level and their own level.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class S2QueryPlanner {
+
+	public final static int DEFAULT_MAX_CELLS = 64;
+
+	/**
+	 * Default number of levels below the partition level the slices are computed at
+	 */
+	public final static int DEFAULT_SLICE_LEVELS = 6;
+
+	/**
+	 * Default number of range reads a partially covered partition is split into
+	 */
+	public final static int DEFAULT_MAX_RANGES = 4;
+
+	final int partitionLevel;
+
+	final int minAncestorLevel;
+
+	final S2RegionCoverer coverer;
+
+	final S2RegionCoverer sliceCoverer;
+
+	final int maxRanges;
+
+	public S2QueryPlanner() {
+		this(S2IndexStrategy.QUAD_LEVEL, 0, DEFAULT_MAX_CELLS);
+	}
+
+	/**
+	 * @param partitionLevel
+	 *            level of the partitions holding the small geometries
+	 * @param minAncestorLevel
+	 *            coarsest level large geometries can be written at
+	 * @param maxCells
+	 *            budget of the covering computed for the query region
+	 */
+	public S2QueryPlanner(int partitionLevel, int minAncestorLevel, int maxCells) {
+		this(partitionLevel, minAncestorLevel, maxCells, DEFAULT_SLICE_LEVELS, DEFAULT_MAX_RANGES);
+	}
+
+	/**
+	 * @param sliceLevels
+	 *            number of levels below the partition level partially covered partitions are
+	 *            sliced at
+	 * @param maxRanges
+	 *            maximum number of range reads per partially covered partition, 0 to always read
+	 *            whole partitions
+	 */
+	public S2QueryPlanner(int partitionLevel, int minAncestorLevel, int maxCells, int sliceLevels, int maxRanges) {
+		if (partitionLevel < 0 || partitionLevel > S2CellId.MAX_LEVEL) {
+			throw new IllegalArgumentException("Invalid partition level " + partitionLevel);
+		}
+		if (minAncestorLevel < 0 || minAncestorLevel > partitionLevel) {
+			throw new IllegalArgumentException("Invalid ancestor level " + minAncestorLevel);
+		}
+		this.partitionLevel = partitionLevel;
+		this.minAncestorLevel = minAncestorLevel;
+		if (sliceLevels < 1 || maxRanges < 0) {
+			throw new IllegalArgumentException("Invalid slicing " + sliceLevels + "/" + maxRanges);
+		}
+		this.coverer = new S2RegionCoverer();
+		coverer.setMaxLevel(partitionLevel);
+		coverer.setMaxCells(maxCells);
+		this.maxRanges = maxRanges;
+		this.sliceCoverer = new S2RegionCoverer();
+		sliceCoverer.setMinLevel(Math.min(S2CellId.MAX_LEVEL, partitionLevel + 1));
+		sliceCoverer.setMaxLevel(Math.min(S2CellId.MAX_LEVEL, partitionLevel + sliceLevels));
+		// each covering cell is a range of pos, the coverer picks the tightest ones for the budget
+		sliceCoverer.setMaxCells(Math.max(1, maxRanges));
+	}
+
+	public int getPartitionLevel() {
+		return partitionLevel;
+	}
+
+	/**
+	 * Converts a lon/lat envelope into an S2 region, a null or empty envelope meaning the whole
+	 * world.
+	 */
+	public static S2LatLngRect toRect(Envelope envelope) {
+		if (envelope == null || envelope.isNull()) {
+			return S2LatLngRect.full();
+		}
+		double minY = Math.max(-90, envelope.getMinY());
+		double maxY = Math.min(90, envelope.getMaxY());
+		if (envelope.getMinX() <= -180 && envelope.getMaxX() >= 180) {
+			return new S2LatLngRect(S2LatLng.fromDegrees(minY, -180), S2LatLng.fromDegrees(maxY, 180));
+		}
+		return S2LatLngRect.fromPointPair(S2LatLng.fromDegrees(minY, envelope.getMinX()),
+				S2LatLng.fromDegrees(maxY, envelope.getMaxX()));
+	}
+
+	/**
+	 * Plans a query over a lon/lat envelope, including the ancestor partitions.
+	 */
+	public S2QueryPlan plan(Envelope envelope) {
+		return plan(toRect(envelope), true);
+	}
+
+	/**
+	 * Plans a query over a lon/lat envelope.
+	 *
+	 * @param includeAncestors
+	 *            false when the layer only holds geometries smaller than a partition cell (points
+	 *            for example), in which case only partition level cells are read
+	 */
+	public S2QueryPlan plan(Envelope envelope, boolean includeAncestors) {
+		return plan(toRect(envelope), includeAncestors);
+	}
+
+	public S2QueryPlan plan(S2LatLngRect rect, boolean includeAncestors) {
+		S2CellUnion covering;
+		synchronized (coverer) {
+			covering = coverer.getCovering(rect);
+		}
+
+		// partition level cells actually intersecting the region, in Hilbert order
+		List<S2CellId> cells = new ArrayList<>();
+		List<Slice> cellSlices = new ArrayList<>();
+		for (S2CellId id : covering) {
+			collect(rect, new S2Cell(id), cells, cellSlices, includeAncestors);
+		}
+
+		List<S2CellId> partitions = new ArrayList<>();
+		List<Slice> slices = new ArrayList<>();
+		if (includeAncestors) {
+			for (int level = minAncestorLevel; level < partitionLevel; level++) {
+				S2CellId last = null;
+				for (S2CellId id : cells) {
+					// parents of cells in Hilbert order are sorted too, duplicates are adjacent
+					S2CellId parent = id.parent(level);
+					if (!parent.equals(last)) {
+						partitions.add(parent);
+						slices.add(Slice.partition(parent));
+						last = parent;
+					}
+				}
+			}
+		}
+		partitions.addAll(cells);
+		slices.addAll(cellSlices);
+		return new S2QueryPlan(rect, covering, partitions, slices);
+	}
+
+	/**
+	 * Adds the partition level descendants of a covering cell which may intersect the region, and
+	 * the slices to read them with.
+	 */
+	void collect(S2LatLngRect rect, S2Cell cell, List<S2CellId> cells, List<Slice> slices, boolean includeAncestors) {
+		S2CellId id = cell.id();
+		if (id.level() >= partitionLevel) {
+			S2CellId partition = id.parent(partitionLevel);
+			if (id.level() > partitionLevel || rect.contains(cell)) {
+				cells.add(partition);
+				slices.add(Slice.partition(partition));
+			} else if (slice(rect, cell, slices, includeAncestors)) {
+				cells.add(partition);
+			}
+			return;
+		}
+		if (rect.contains(cell)) {
+			S2CellId end = id.childEnd(partitionLevel);
+			for (S2CellId child = id.childBegin(partitionLevel); !child.equals(end); child = child.next()) {
+				cells.add(child);
+				slices.add(Slice.partition(child));
+			}
+			return;
+		}
+		S2CellId end = id.childEnd();
+		for (S2CellId childId = id.childBegin(); !childId.equals(end); childId = childId.next()) {
+			S2Cell child = new S2Cell(childId);
+			if (rect.mayIntersect(child)) {
+				collect(rect, child, cells, slices, includeAncestors);
+			}
+		}
+	}
+
+	/**
+	 * Adds the slices reading the rows of a partition the region only partly covers.
+	 *
+	 * @return false if the partition turned out not to intersect the region
+	 */
+	boolean slice(S2LatLngRect rect, S2Cell partition, List<Slice> slices, boolean includeAncestors) {
+		S2CellId id = partition.id();
+		if (maxRanges == 0) {
+			slices.add(Slice.partition(id));
+			return true;
+		}
+		ArrayList<S2CellId> covering = new ArrayList<>();
+		synchronized (sliceCoverer) {
+			sliceCoverer.getCovering(new CellRegion(partition, rect), covering);
+		}
+		if (covering.isEmpty()) {
+			// the bound of the region overlapped the partition, the region itself does not
+			return false;
+		}
+
+		// ranges of the covering cells, merging the adjacent ones
+		List<S2CellId[]> ranges = new ArrayList<>();
+		for (S2CellId cell : covering) {
+			S2CellId min = cell.rangeMin();
+			S2CellId max = cell.rangeMax();
+			S2CellId[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (last != null && !last[1].next().lessThan(min)) {
+				if (max.greaterThan(last[1])) {
+					last[1] = max;
+				}
+			} else {
+				ranges.add(new S2CellId[] { min, max });
+			}
+		}
+		// then the ranges separated by the smallest gaps, down to the budget
+		while (ranges.size() > maxRanges) {
+			int closest = 0;
+			long gap = Long.MAX_VALUE;
+			for (int i = 0; i + 1 < ranges.size(); i++) {
+				long g = ranges.get(i + 1)[0].id() - ranges.get(i)[1].id();
+				if (g < gap) {
+					gap = g;
+					closest = i;
+				}
+			}
+			ranges.get(closest)[1] = ranges.remove(closest + 1)[1];
+		}
+
+		if (ranges.size() == 1 && ranges.get(0)[0].equals(id.rangeMin()) && ranges.get(0)[1].equals(id.rangeMax())) {
+			slices.add(Slice.partition(id));
+		} else {
+			for (S2CellId[] range : ranges) {
+				slices.add(Slice.range(id, range[0], range[1]));
+			}
+		}
+
+		if (includeAncestors) {
+			// large geometries are stored at the coarser cells containing the covering cells
+			TreeSet<S2CellId> ancestors = new TreeSet<>();
+			for (S2CellId cell : covering) {
+				for (int level = partitionLevel; level < cell.level(); level++) {
+					ancestors.add(cell.parent(level));
+				}
+			}
+			slices.add(Slice.positions(id, new ArrayList<>(ancestors)));
+		}
+		return true;
+	}
+
+	/**
+	 * Intersection of a cell and a rectangle.
+	 */
+	static class CellRegion implements S2Region {
+
+		final S2Cell cell;
+
+		final S2LatLngRect rect;
+
+		CellRegion(S2Cell cell, S2LatLngRect rect) {
+			this.cell = cell;
+			this.rect = rect;
+		}
+
+		@Override
+		public S2Cap getCapBound() {
+			S2LatLngRect bound = getRectBound();
+			return bound.isEmpty() ? cell.getCapBound() : bound.getCapBound();
+		}
+
+		@Override
+		public S2LatLngRect getRectBound() {
+			return cell.getRectBound().intersection(rect);
+		}
+
+		@Override
+		public boolean contains(S2Cell other) {
+			return cell.contains(other) && rect.contains(other);
+		}
+
+		@Override
+		public boolean mayIntersect(S2Cell other) {
+			return cell.mayIntersect(other) && rect.mayIntersect(other);
+		}
+	}
+}
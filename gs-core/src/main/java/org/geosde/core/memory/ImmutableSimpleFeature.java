@@ -0,0 +1,250 @@
+package org.geosde.core.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.feature.AttributeImpl;
+import org.geotools.feature.GeometryAttributeImpl;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.geometry.BoundingBox;
+
+/**
+ * Read only view of a feature shared with the {@link MemoryDataStore}, returned instead of a copy
+ * when a query carries the {@link MemoryDataStore#READ_ONLY} hint.
+ * <p>
+ * Every method changing the feature throws {@link UnsupportedOperationException}, the user data
+ * is unmodifiable and the properties are detached read only copies. The attribute values
+ * themselves are shared: geometries and other mutable values must not be modified.
+ * 
+ * @author Xiao Fei
+ *
+ */
+public final class ImmutableSimpleFeature implements SimpleFeature {
+
+    final SimpleFeature delegate;
+
+    public ImmutableSimpleFeature(SimpleFeature delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns a read only view of a feature, the feature itself if it is one.
+     */
+    public static SimpleFeature view(SimpleFeature feature) {
+        return feature instanceof ImmutableSimpleFeature ? feature : new ImmutableSimpleFeature(feature);
+    }
+
+    static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException(
+                "Feature is read only, query without the MemoryDataStore.READ_ONLY hint to modify it");
+    }
+
+    static Property detach(Property property) {
+        if (property == null) {
+            return null;
+        }
+        if (property.getDescriptor() instanceof GeometryDescriptor) {
+            return new ReadOnlyGeometryAttribute(property.getValue(), (GeometryDescriptor) property.getDescriptor());
+        }
+        return new ReadOnlyAttribute(property.getValue(), (AttributeDescriptor) property.getDescriptor());
+    }
+
+    static Collection<Property> detach(Collection<? extends Property> properties) {
+        List<Property> result = new ArrayList<Property>(properties.size());
+        for (Property property : properties) {
+            result.add(detach(property));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public String getID() {
+        return delegate.getID();
+    }
+
+    public FeatureId getIdentifier() {
+        return delegate.getIdentifier();
+    }
+
+    public SimpleFeatureType getType() {
+        return delegate.getType();
+    }
+
+    public SimpleFeatureType getFeatureType() {
+        return delegate.getFeatureType();
+    }
+
+    public AttributeDescriptor getDescriptor() {
+        return delegate.getDescriptor();
+    }
+
+    public Name getName() {
+        return delegate.getName();
+    }
+
+    public boolean isNillable() {
+        return delegate.isNillable();
+    }
+
+    public List<Object> getAttributes() {
+        return Collections.unmodifiableList(delegate.getAttributes());
+    }
+
+    public Object getAttribute(String name) {
+        return delegate.getAttribute(name);
+    }
+
+    public Object getAttribute(Name name) {
+        return delegate.getAttribute(name);
+    }
+
+    public Object getAttribute(int index) throws IndexOutOfBoundsException {
+        return delegate.getAttribute(index);
+    }
+
+    public int getAttributeCount() {
+        return delegate.getAttributeCount();
+    }
+
+    public Object getDefaultGeometry() {
+        return delegate.getDefaultGeometry();
+    }
+
+    public GeometryAttribute getDefaultGeometryProperty() {
+        return (GeometryAttribute) detach(delegate.getDefaultGeometryProperty());
+    }
+
+    public BoundingBox getBounds() {
+        return delegate.getBounds();
+    }
+
+    public Collection<? extends Property> getValue() {
+        return detach(delegate.getValue());
+    }
+
+    public Collection<Property> getProperties() {
+        return detach(delegate.getProperties());
+    }
+
+    public Collection<Property> getProperties(Name name) {
+        return detach(delegate.getProperties(name));
+    }
+
+    public Collection<Property> getProperties(String name) {
+        return detach(delegate.getProperties(name));
+    }
+
+    public Property getProperty(Name name) {
+        return detach(delegate.getProperty(name));
+    }
+
+    public Property getProperty(String name) {
+        return detach(delegate.getProperty(name));
+    }
+
+    public Map<Object, Object> getUserData() {
+        return Collections.unmodifiableMap(delegate.getUserData());
+    }
+
+    public void validate() {
+        delegate.validate();
+    }
+
+    public void setAttributes(List<Object> values) {
+        throw readOnly();
+    }
+
+    public void setAttributes(Object[] values) {
+        throw readOnly();
+    }
+
+    public void setAttribute(String name, Object value) {
+        throw readOnly();
+    }
+
+    public void setAttribute(Name name, Object value) {
+        throw readOnly();
+    }
+
+    public void setAttribute(int index, Object value) throws IndexOutOfBoundsException {
+        throw readOnly();
+    }
+
+    public void setDefaultGeometry(Object geometry) {
+        throw readOnly();
+    }
+
+    public void setDefaultGeometryProperty(GeometryAttribute geometryAttribute) {
+        throw readOnly();
+    }
+
+    public void setValue(Collection<Property> values) {
+        throw readOnly();
+    }
+
+    public void setValue(Object newValue) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof ImmutableSimpleFeature) {
+            obj = ((ImmutableSimpleFeature) obj).delegate;
+        }
+        return delegate.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return delegate.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    /**
+     * Detached copy of an attribute of the view, which cannot be changed either.
+     */
+    static final class ReadOnlyAttribute extends AttributeImpl {
+
+        ReadOnlyAttribute(Object value, AttributeDescriptor descriptor) {
+            super(value, descriptor, null);
+        }
+
+        @Override
+        public void setValue(Object newValue) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Detached copy of a geometry attribute of the view, which cannot be changed either.
+     */
+    static final class ReadOnlyGeometryAttribute extends GeometryAttributeImpl {
+
+        ReadOnlyGeometryAttribute(Object value, GeometryDescriptor descriptor) {
+            super(value, descriptor, null);
+        }
+
+        @Override
+        public void setValue(Object newValue) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setBounds(BoundingBox bounds) {
+            throw readOnly();
+        }
+    }
+}
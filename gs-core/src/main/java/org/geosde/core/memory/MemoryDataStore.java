@@ -18,10 +18,13 @@ package org.geosde.core.memory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 import org.geosde.core.data.ContentDataStore;
@@ -33,6 +36,7 @@ import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.Hints;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.FeatureTypes;
@@ -65,6 +69,13 @@ import org.opengis.feature.type.Name;
  */
 public class MemoryDataStore extends ContentDataStore {
 
+    /**
+     * Query hint asking for read only views of the stored features instead of copies, see
+     * {@link ImmutableSimpleFeature}. For callers that do not modify the features they read,
+     * such as renderers, exporters and visitors.
+     */
+    public static final Hints.Key READ_ONLY = new Hints.Key(Boolean.class);
+
     public MemoryDataStore() {
         super();
     }
@@ -123,12 +134,14 @@ public class MemoryDataStore extends ContentDataStore {
                 throw new IllegalArgumentException("Provided  FeatureReader<SimpleFeatureType, SimpleFeature> is closed");
             }
 
-            addFeatureInternal(feature);
+            List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+            features.add(feature);
             
             while (reader.hasNext()) {
                 feature = reader.next();
-                addFeatureInternal(feature);
+                features.add(feature);
             }
+            addFeaturesInternal(features);
 
         } catch (IllegalAttributeException e) {
             throw new DataSourceException("Problem using reader", e);
@@ -154,12 +167,14 @@ public class MemoryDataStore extends ContentDataStore {
                 throw new IllegalArgumentException("Provided  FeatureReader<SimpleFeatureType, SimpleFeature> is closed");
             }
 
-            addFeatureInternal(feature);
+            List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+            features.add(feature);
 
             while (reader.hasNext()) {
                 feature = reader.next();
-                addFeatureInternal(feature);
+                features.add(feature);
             }
+            addFeaturesInternal(features);
         }
         finally {
             reader.close();
@@ -180,21 +195,23 @@ public class MemoryDataStore extends ContentDataStore {
         if ((collection == null) || collection.isEmpty()) {
             throw new IllegalArgumentException("Provided Collection is empty");
         }
-        synchronized (entries) {
-            for(Object item : collection ){
-                addFeatureInternal( (SimpleFeature) item);
-            }
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>(collection.size());
+        for(Object item : collection ){
+            features.add( (SimpleFeature) item);
         }
+        addFeaturesInternal(features);
     }
     public void addFeatures(FeatureCollection<SimpleFeatureType,SimpleFeature> collection) {
         if ((collection == null) ) {
             throw new IllegalArgumentException("Provided FeatureCollection is empty");
         }
-        synchronized (entries) {
-            try( FeatureIterator<SimpleFeature> iterator = collection.features()){
-                addFeatureInternal( iterator.next() );
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        try( FeatureIterator<SimpleFeature> iterator = collection.features()){
+            while (iterator.hasNext()) {
+                features.add( iterator.next() );
             }
         }
+        addFeaturesInternal(features);
     }
     /**
      * Configures MemoryDataStore with feature array.
@@ -207,11 +224,7 @@ public class MemoryDataStore extends ContentDataStore {
         if ((features == null) || (features.length == 0)) {
             throw new IllegalArgumentException("Provided features are empty");
         }
-        synchronized (entries) {
-            for (int i = 0; i < features.length; i++) {
-                addFeatureInternal(features[i]);
-            }
-        }
+        addFeaturesInternal(Arrays.asList(features));
     }
 
     /**
@@ -229,24 +242,57 @@ public class MemoryDataStore extends ContentDataStore {
      * @param feature Individual feature to add
      */
     public void addFeature(SimpleFeature feature) {
-        synchronized (entries) {
-            addFeatureInternal(feature);
-        }
+        addFeaturesInternal(Collections.singletonList(feature));
     }
 
-    private void addFeatureInternal(SimpleFeature feature) {
-        if (feature == null) {
-            throw new IllegalArgumentException("Provided Feature is empty");
+    /**
+     * Adds features to the entries of their types, the features of each entry being published to
+     * the readers at once.
+     */
+    private void addFeaturesInternal(List<SimpleFeature> features) {
+        Map<MemoryEntry, List<SimpleFeature>> batches = new LinkedHashMap<MemoryEntry, List<SimpleFeature>>();
+        SimpleFeatureType lastType = null;
+        List<SimpleFeature> batch = null;
+        for (SimpleFeature feature : features) {
+            if (feature == null) {
+                throw new IllegalArgumentException("Provided Feature is empty");
+            }
+            SimpleFeatureType featureType = feature.getFeatureType();
+            if (featureType != lastType) {
+                try {
+                    MemoryEntry entry = entry(featureType);
+                    batch = batches.get(entry);
+                    if (batch == null) {
+                        batch = new ArrayList<SimpleFeature>();
+                        batches.put(entry, batch);
+                    }
+                    lastType = featureType;
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINER, e.getMessage(), e);
+                    lastType = null;
+                    continue;
+                }
+            }
+            batch.add(feature);
         }
-        SimpleFeatureType featureType = feature.getFeatureType();
-        try {
-            MemoryEntry entry = entry(featureType);
-            entry.memory.put( feature.getID(),  feature );
-        } catch (IOException e) {
-            LOGGER.log(Level.FINER, e.getMessage(), e);
+        for (Map.Entry<MemoryEntry, List<SimpleFeature>> entry : batches.entrySet()) {
+            entry.getKey().putAll(entry.getValue());
         }
     }
 
+    /**
+     * Maintains a hash index of the values of an attribute of a type, used by the queries with
+     * an equality condition on it.
+     *
+     * @param typeName type name
+     * @param attribute attribute name
+     * @throws IOException If typeName cannot be found
+     * @see MemoryEntry#addAttributeIndex(String)
+     */
+    public void addAttributeIndex(String typeName, String attribute) throws IOException {
+        entry(typeName).addAttributeIndex(attribute);
+    }
+
     /**
      * Access MemoryState for typeName.
      * <p>
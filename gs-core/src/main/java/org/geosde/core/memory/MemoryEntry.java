@@ -16,8 +16,12 @@
  */
 package org.geosde.core.memory;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.geosde.core.data.ContentEntry;
 import org.opengis.feature.simple.SimpleFeature;
@@ -26,11 +30,15 @@ import org.opengis.feature.simple.SimpleFeatureType;
 /**
  * Entry used to store features (of a single FeatureType).
  * <p>
+ * Readers never lock the entry: they query the last published {@link MemoryIndex}, an immutable
+ * snapshot of the content that stays valid while writers change the entry. Writers go through
+ * {@link #put(SimpleFeature)}, {@link #putAll(Collection)}, {@link #remove(String)} and
+ * {@link #apply(Map)}, which serialize on the entry and retire the snapshot, the next one being
+ * built by the first reader that needs it. A batch of changes is therefore published at once,
+ * readers see either none or all of it.
  * <p>
- * Please be sure to synchronize on entry before access:
- * <pre><code> synchronize ( entry ){
- *     entry.memory.put( feature.getID(), feature );
- * }</code></pre>
+ * Stored features are never modified in place, an update replaces the feature, so the features
+ * of a snapshot do not change either.
  * 
  * @author Jody Garnett (Boundless)
  */
@@ -44,13 +52,26 @@ public class MemoryEntry extends ContentEntry {
     /**
      * Memory storage for features (addressed by fid).
      * <p>
-     * Please be sure to synchronize on entry before access:
+     * Please be sure to synchronize on entry before access, and to retire the snapshot after a
+     * change:
      * <pre><code> synchronize ( entry ){
      *     entry.memory.put( feature.getID(), feature );
+     *     entry.index = null;
      * }</code></pre>
      */
     Map<String, SimpleFeature> memory;
 
+    /**
+     * Attributes with a hash index, see {@link #addAttributeIndex(String)}.
+     */
+    volatile Set<String> indexedAttributes = Collections.emptySet();
+
+    /**
+     * Snapshot of the content published to the readers, null after a change until the next
+     * read.
+     */
+    volatile MemoryIndex index;
+
     /**
      * Entry to store content of the provided SimpleFeatureType.
      * 
@@ -63,11 +84,92 @@ public class MemoryEntry extends ContentEntry {
         memory = new LinkedHashMap<String, SimpleFeature>();
     }
 
+    /**
+     * Returns the snapshot of the current content, building it if the content changed since it
+     * was last read. Only that build takes the lock of the entry.
+     */
+    MemoryIndex getIndex() {
+        MemoryIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    index = result = new MemoryIndex(schema, memory.values(), indexedAttributes);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds or replaces a feature.
+     */
+    synchronized void put(SimpleFeature feature) {
+        memory.put(feature.getID(), feature);
+        index = null;
+    }
+
+    /**
+     * Adds or replaces features, publishing them at once.
+     */
+    synchronized void putAll(Collection<SimpleFeature> features) {
+        for (SimpleFeature feature : features) {
+            memory.put(feature.getID(), feature);
+        }
+        index = null;
+    }
+
+    synchronized void remove(String fid) {
+        if (memory.remove(fid) != null) {
+            index = null;
+        }
+    }
+
+    /**
+     * Applies the changes of a writer at once: the features mapped to null are removed, the other
+     * ones added or replaced.
+     */
+    synchronized void apply(Map<String, SimpleFeature> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, SimpleFeature> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                memory.remove(change.getKey());
+            } else {
+                memory.put(change.getKey(), change.getValue());
+            }
+        }
+        index = null;
+    }
+
+    /**
+     * Maintains a hash index of the values of an attribute, used by the queries with an equality
+     * condition on it. Only attributes of string, number, boolean and character types are indexed.
+     * 
+     * @param attribute attribute name
+     * @throws IllegalArgumentException if the schema has no such attribute
+     */
+    public synchronized void addAttributeIndex(String attribute) {
+        if (schema.getDescriptor(attribute) == null) {
+            throw new IllegalArgumentException("No attribute " + attribute + " in " + getTypeName());
+        }
+        Set<String> attributes = new LinkedHashSet<String>(indexedAttributes);
+        if (attributes.add(attribute)) {
+            indexedAttributes = Collections.unmodifiableSet(attributes);
+            index = null;
+        }
+    }
+
+    public Set<String> getIndexedAttributes() {
+        return indexedAttributes;
+    }
+
     protected MemoryState createContentState(ContentEntry entry) {
         return new MemoryState( (MemoryEntry) entry );
     }
     
     public String toString() {
-        return "MemoryEntry '" + getTypeName()+"': "+memory.size() + " features";
+        return "MemoryEntry '" + getTypeName()+"': "+getIndex().size() + " features";
     }
 }
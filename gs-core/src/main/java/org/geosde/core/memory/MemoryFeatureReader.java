@@ -17,15 +17,14 @@
 package org.geosde.core.memory;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.geosde.core.data.ContentState;
 import org.geotools.data.DataSourceException;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.Query;
+import org.geotools.factory.Hints;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.opengis.feature.IllegalAttributeException;
 import org.opengis.feature.simple.SimpleFeature;
@@ -33,21 +32,31 @@ import org.opengis.feature.simple.SimpleFeatureType;
 
 /**
  * Read contents from MemoryDataStore.
+ * <p>
+ * The features matching the query are selected through the {@link MemoryIndex} of the entry,
+ * filtered, sorted and paged, and only those are copied, one by one as they are read. Queries
+ * with the {@link MemoryDataStore#READ_ONLY} hint get read only views of the stored features
+ * instead of copies.
  */
 public class MemoryFeatureReader implements FeatureReader<SimpleFeatureType, SimpleFeature>{
 
     SimpleFeatureType featureType;
     Iterator<SimpleFeature> iterator;
+    boolean readOnly;
 
     public MemoryFeatureReader(ContentState state, Query query) throws IOException {
         featureType = state.getFeatureType();
         MemoryEntry entry = (MemoryEntry) state.getEntry();
-        
-        synchronized (entry) {
-            final List<SimpleFeature> internalCollection = new ArrayList<SimpleFeature>(
-                    entry.memory.values());
-            iterator = internalCollection.iterator();
-        }
+        iterator = entry.getIndex().query(query).iterator();
+        readOnly = isReadOnly(query);
+    }
+
+    /**
+     * Whether a query asks for read only features, see {@link MemoryDataStore#READ_ONLY}.
+     */
+    static boolean isReadOnly(Query query) {
+        Hints hints = query.getHints();
+        return hints != null && Boolean.TRUE.equals(hints.get(MemoryDataStore.READ_ONLY));
     }
 
     public SimpleFeatureType getFeatureType() {
@@ -61,7 +70,8 @@ public class MemoryFeatureReader implements FeatureReader<SimpleFeatureType, Sim
         }
 
         try {
-            return SimpleFeatureBuilder.copy((SimpleFeature) iterator.next());
+            SimpleFeature feature = iterator.next();
+            return readOnly ? ImmutableSimpleFeature.view(feature) : SimpleFeatureBuilder.copy(feature);
         } catch (NoSuchElementException end) {
             throw new DataSourceException("There are no more Features", end);
         }
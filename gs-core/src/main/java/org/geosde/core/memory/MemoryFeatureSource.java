@@ -17,20 +17,32 @@
 package org.geosde.core.memory;
 
 import java.io.IOException;
+import java.util.Set;
 
 import org.geosde.core.data.ContentEntry;
 import org.geosde.core.data.ContentFeatureSource;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.Query;
+import org.geotools.data.QueryCapabilities;
+import org.geotools.data.Transaction;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.FeatureVisitor;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.filter.Filter;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.filter.sort.SortBy;
 
 /**
  * Read access to feature content held in memory.
+ * <p>
+ * Filtering, sorting and paging are done against the {@link MemoryIndex} of the entry, so that
+ * id, bounding box and indexed attribute queries only visit the matching features. Within a
+ * transaction sorting and paging are left to the wrappers of {@link ContentFeatureSource}, which
+ * also have to consider the features changed by the transaction.
+ * <p>
+ * Features are copied as they are read unless the query carries the
+ * {@link MemoryDataStore#READ_ONLY} hint, and so are the features handed to visitors.
  * @author Jody Garnett (Boundless)
  */
 public class MemoryFeatureSource extends ContentFeatureSource {
@@ -61,40 +73,94 @@ public class MemoryFeatureSource extends ContentFeatureSource {
     }
 
     @Override
-    protected ReferencedEnvelope getBoundsInternal(Query query) throws IOException {
-        if (query.getFilter() == Filter.INCLUDE) { //filtering not implemented
-            FeatureReader<SimpleFeatureType, SimpleFeature> featureReader = getReaderInternal(query);
-            CoordinateReferenceSystem crs = featureReader.getFeatureType().getCoordinateReferenceSystem();
-            ReferencedEnvelope bounds = ReferencedEnvelope.create(crs);
-            try {
-                while (featureReader.hasNext()) {
-                    SimpleFeature feature = featureReader.next();
-                    bounds.include(feature.getBounds());
+    protected void addHints(Set<Hints.Key> hints) {
+        hints.add(MemoryDataStore.READ_ONLY);
+    }
+
+    @Override
+    protected boolean canFilter() {
+        return true;
+    }
+
+    @Override
+    protected boolean canSort() {
+        return isAutoCommit();
+    }
+
+    @Override
+    protected boolean canLimit() {
+        return isAutoCommit();
+    }
+
+    @Override
+    protected boolean canOffset() {
+        return isAutoCommit();
+    }
+
+    boolean isAutoCommit() {
+        return transaction == null || transaction == Transaction.AUTO_COMMIT;
+    }
+
+    /**
+     * Removes from a query what is not handled natively, see {@link #canSort()}.
+     */
+    Query nativeQuery(Query query) {
+        if (isAutoCommit()) {
+            return query;
+        }
+        Query result = new Query(query);
+        result.setSortBy(null);
+        result.setStartIndex(null);
+        result.setMaxFeatures(Query.DEFAULT_MAX);
+        return result;
+    }
+
+    @Override
+    protected QueryCapabilities buildQueryCapabilities() {
+        return new QueryCapabilities() {
+            @Override
+            public boolean isOffsetSupported() {
+                return true;
+            }
+
+            @Override
+            public boolean supportsSorting(SortBy[] sortAttributes) {
+                if (sortAttributes == null) {
+                    return true;
+                }
+                for (SortBy sortBy : sortAttributes) {
+                    if (sortBy == SortBy.NATURAL_ORDER || sortBy == SortBy.REVERSE_ORDER) {
+                        continue;
+                    }
+                    if (sortBy.getPropertyName() == null || getEntry().schema
+                            .getDescriptor(sortBy.getPropertyName().getPropertyName()) == null) {
+                        return false;
+                    }
                 }
-            } finally {
-                featureReader.close();
+                return true;
             }
-            return bounds;
+        };
+    }
+
+    @Override
+    protected ReferencedEnvelope getBoundsInternal(Query query) throws IOException {
+        MemoryEntry entry = getEntry();
+        ReferencedEnvelope bounds = ReferencedEnvelope.create(entry.schema.getCoordinateReferenceSystem());
+        for (SimpleFeature feature : entry.getIndex().query(nativeQuery(query))) {
+            bounds.include(feature.getBounds());
         }
-        return null; // feature by feature scan required to count records
+        return bounds;
     }
 
     @Override
     protected int getCountInternal(Query query) throws IOException {
-        if (query.getFilter() == Filter.INCLUDE) {
-            MemoryEntry entry = getEntry();
-            synchronized (entry) {
-                return entry.memory.size();
-            }
-        }
-        //feature by feature count required
-        return -1;
+        return getEntry().getIndex().count(nativeQuery(query));
     }
 
     @Override
     protected FeatureReader<SimpleFeatureType, SimpleFeature> getReaderInternal(
             Query query) throws IOException {
-        return new MemoryFeatureReader(getState(), query);
+        return new MemoryFeatureReader(getState(), nativeQuery(query));
     }
 
     @Override
@@ -104,6 +170,15 @@ public class MemoryFeatureSource extends ContentFeatureSource {
 
     @Override
     protected boolean handleVisitor(Query query, FeatureVisitor visitor) throws IOException {
-        return super.handleVisitor(query, visitor);
+        if (!isAutoCommit() || query.getCoordinateSystem() != null
+                || query.getCoordinateSystemReproject() != null) {
+            return super.handleVisitor(query, visitor);
+        }
+        // visitors may keep or modify the features, only share them when asked to
+        boolean readOnly = MemoryFeatureReader.isReadOnly(query);
+        for (SimpleFeature feature : getEntry().getIndex().query(joinQuery(query))) {
+            visitor.visit(readOnly ? ImmutableSimpleFeature.view(feature) : SimpleFeatureBuilder.copy(feature));
+        }
+        return true;
     }
 }
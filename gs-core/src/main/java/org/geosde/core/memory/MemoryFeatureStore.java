@@ -17,6 +17,7 @@
 package org.geosde.core.memory;
 
 import java.io.IOException;
+import java.util.Set;
 
 import org.geosde.core.data.ContentEntry;
 import org.geosde.core.data.ContentFeatureStore;
@@ -24,10 +25,13 @@ import org.geotools.data.FeatureReader;
 import org.geotools.data.FeatureWriter;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
+import org.geotools.data.QueryCapabilities;
+import org.geotools.factory.Hints;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.FeatureVisitor;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
 
 public class MemoryFeatureStore extends ContentFeatureStore {
     
@@ -42,7 +46,11 @@ public class MemoryFeatureStore extends ContentFeatureStore {
     @Override
     protected FeatureWriter<SimpleFeatureType, SimpleFeature> getWriterInternal(
             Query query, int flags) throws IOException {
-        // TODO Auto-generated method stub
+        if ((flags | WRITER_ADD) == WRITER_ADD) {
+            // appending, no need to visit the existing content
+            query = new Query(query);
+            query.setFilter(Filter.EXCLUDE);
+        }
         return new MemoryFeatureWriter(getState(), query);
     }
     
@@ -75,6 +83,37 @@ public class MemoryFeatureStore extends ContentFeatureStore {
         return delegate.buildFeatureType();
     }
 
+    @Override
+    protected QueryCapabilities buildQueryCapabilities() {
+        return delegate.buildQueryCapabilities();
+    }
+
+    @Override
+    protected void addHints(Set<Hints.Key> hints) {
+        // called by the constructor, before the delegate is set
+        hints.add(MemoryDataStore.READ_ONLY);
+    }
+
+    @Override
+    protected boolean canFilter() {
+        return delegate.canFilter();
+    }
+
+    @Override
+    protected boolean canSort() {
+        return delegate.canSort();
+    }
+
+    @Override
+    protected boolean canLimit() {
+        return delegate.canLimit();
+    }
+
+    @Override
+    protected boolean canOffset() {
+        return delegate.canOffset();
+    }
+
     @Override
     protected ReferencedEnvelope getBoundsInternal(Query query) throws IOException {
         return delegate.getBoundsInternal(query);
@@ -18,13 +18,14 @@ package org.geosde.core.memory;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import org.geotools.data.DataSourceException;
 import org.geotools.data.FeatureWriter;
 import org.geotools.data.Query;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.IllegalAttributeException;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -32,6 +33,11 @@ import org.opengis.feature.type.Name;
 
 /**
  * Update contents of MemoryDataStore. 
+ * <p>
+ * The features matching the query filter are selected through the {@link MemoryIndex} of the
+ * entry when the writer is created. Changes are collected and published to the entry at once
+ * when the writer is closed, so readers never see part of them. Modified features replace the
+ * stored ones rather than being updated in place.
  */
 public class MemoryFeatureWriter implements FeatureWriter<SimpleFeatureType, SimpleFeature>{
     MemoryState state;
@@ -42,6 +48,11 @@ public class MemoryFeatureWriter implements FeatureWriter<SimpleFeatureType, Sim
 
     SimpleFeature live = null;
     SimpleFeature current = null; // current Feature returned to user        
+
+    /**
+     * Features written by fid, null for the removed ones, published on close.
+     */
+    Map<String, SimpleFeature> changes = new LinkedHashMap<String, SimpleFeature>();
     
     public MemoryFeatureWriter(MemoryState state, Query query) throws IOException {
         this.state = state;
@@ -49,9 +60,7 @@ public class MemoryFeatureWriter implements FeatureWriter<SimpleFeatureType, Sim
         this.featureType = state.getFeatureType();
         
         MemoryEntry entry = state.getEntry();
-        synchronized (entry) {
-            iterator = entry.memory.values().iterator();
-        }
+        iterator = entry.getIndex().query(query.getFilter(), null, 0, Integer.MAX_VALUE).iterator();
     }
     
     public SimpleFeatureType getFeatureType() {
@@ -96,7 +105,7 @@ public class MemoryFeatureWriter implements FeatureWriter<SimpleFeatureType, Sim
 
         if (live != null) {
             // remove existing content
-            iterator.remove();
+            changes.put(live.getID(), null);
             live = null;
             current = null;
         } else {
@@ -121,27 +130,19 @@ public class MemoryFeatureWriter implements FeatureWriter<SimpleFeatureType, Sim
                 live = null;
                 current = null;
             } else {
-                // accept modifications
+                // accept modifications, replacing the feature that snapshots may still hold
                 //
-                try {
-                    live.setAttributes(current.getAttributes());
-                } catch (Exception e) {
+                if (!live.getID().equals(current.getID())) {
                     throw new DataSourceException("Unable to accept modifications to "
                         + live.getID() + " on " + typeName);
                 }
-    
-                ReferencedEnvelope bounds = new ReferencedEnvelope();
-                bounds.expandToInclude(new ReferencedEnvelope(live.getBounds()));
-                bounds.expandToInclude(new ReferencedEnvelope(current.getBounds()));
+                changes.put(live.getID(), current);
                 live = null;
                 current = null;
             }
         } else {
             // add new content
-            MemoryEntry entry = state.getEntry();
-            synchronized (entry) {
-                entry.memory.put(current.getID(), current);    
-            }
+            changes.put(current.getID(), current);
             current = null;
         }
     }
@@ -156,6 +157,8 @@ public class MemoryFeatureWriter implements FeatureWriter<SimpleFeatureType, Sim
     public void close(){
         if (iterator != null) {
             iterator = null;
+            state.getEntry().apply(changes);
+            changes.clear();
         }
         
         if (featureType != null) {
@@ -0,0 +1,410 @@
+package org.geosde.core.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geotools.data.Query;
+import org.geotools.filter.FilterAttributeExtractor;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.identity.Identifier;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Read-only view of the features of a {@link MemoryEntry}, in insertion order, with the indexes
+ * used to answer a query without evaluating its filter against every feature:
+ * <ul>
+ * <li>the feature ids, for {@link Id} filters</li>
+ * <li>an STR-tree over the envelopes of the default geometries, for the filters restricted to an
+ * area, built by the first such query</li>
+ * <li>a hash index of the values of each attribute registered with
+ * {@link MemoryEntry#addAttributeIndex(String)}, for equality filters, built by the first query on
+ * the attribute</li>
+ * </ul>
+ * The indexes only select candidates, the filter is still evaluated on each of them.
+ * <p>
+ * Instances are immutable snapshots shared by concurrent readers without locking, the indexes
+ * being built on demand. The entry drops its view when its content changes and builds a new one
+ * for the next query.
+ *
+ * @author Xiao Fei
+ */
+class MemoryIndex {
+
+    /**
+     * Attribute bindings whose values are compared by equals, the only ones indexed.
+     */
+    static final Set<Class<?>> HASHABLE_BINDINGS = Collections.unmodifiableSet(
+            new HashSet<Class<?>>(Arrays.<Class<?>> asList(String.class, Integer.class,
+                    Long.class, Short.class, Byte.class, Double.class, Float.class, Boolean.class,
+                    Character.class)));
+
+    final SimpleFeatureType schema;
+
+    /**
+     * Features in insertion order, addressed by ordinal.
+     */
+    final SimpleFeature[] features;
+
+    /**
+     * Ordinals by feature id, null until built.
+     */
+    volatile Map<String, Integer> ordinals;
+
+    /**
+     * Attributes with a hash index.
+     */
+    final Set<String> indexedAttributes;
+
+    /**
+     * Ordinals of the features by envelope of their default geometry, null until built.
+     */
+    volatile STRtree tree;
+
+    /**
+     * Ordinals of the features by value, by attribute.
+     */
+    final ConcurrentMap<String, Map<Object, int[]>> attributeIndexes = new ConcurrentHashMap<String, Map<Object, int[]>>();
+
+    MemoryIndex(SimpleFeatureType schema, Collection<SimpleFeature> features,
+            Set<String> indexedAttributes) {
+        this.schema = schema;
+        this.features = features.toArray(new SimpleFeature[features.size()]);
+        this.indexedAttributes = indexedAttributes;
+    }
+
+    public int size() {
+        return features.length;
+    }
+
+    Map<String, Integer> ordinals() {
+        Map<String, Integer> result = ordinals;
+        if (result == null) {
+            result = new HashMap<String, Integer>(features.length * 4 / 3 + 1);
+            for (int i = 0; i < features.length; i++) {
+                result.put(features[i].getID(), i);
+            }
+            ordinals = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the features selected by a query, see {@link #query(Filter, SortBy[], int, int)}.
+     */
+    public List<SimpleFeature> query(Query query) {
+        return query(query.getFilter(), query.getSortBy(), offset(query), limit(query));
+    }
+
+    /**
+     * Returns the number of features selected by a query.
+     */
+    public int count(Query query) {
+        if (query.getFilter() == null || query.getFilter() == Filter.INCLUDE) {
+            long count = Math.max(0, features.length - offset(query));
+            return (int) Math.min(count, limit(query));
+        }
+        return query(query.getFilter(), null, offset(query), limit(query)).size();
+    }
+
+    static int offset(Query query) {
+        return query.getStartIndex() != null ? Math.max(query.getStartIndex(), 0) : 0;
+    }
+
+    static int limit(Query query) {
+        return query.getMaxFeatures() < 0 ? Integer.MAX_VALUE : query.getMaxFeatures();
+    }
+
+    /**
+     * Returns the features matching a filter, sorted, from the offset on and at most limit of
+     * them. The features are the stored ones, not copies.
+     *
+     * @param sortBy sort order, null or empty for insertion order
+     * @param limit maximum number of features, {@link Integer#MAX_VALUE} for all
+     */
+    public List<SimpleFeature> query(Filter filter, SortBy[] sortBy, int offset, int limit) {
+        if (filter == null) {
+            filter = Filter.INCLUDE;
+        }
+        if (filter == Filter.EXCLUDE || limit <= 0) {
+            return Collections.emptyList();
+        }
+        boolean sort = sortBy != null && sortBy.length > 0
+                && !(sortBy.length == 1 && sortBy[0] == SortBy.NATURAL_ORDER);
+        // without sorting the scan stops once the page is filled
+        long end = sort ? Long.MAX_VALUE : (long) Math.max(offset, 0) + limit;
+
+        int[] candidates = candidates(filter);
+        int count = candidates == null ? features.length : candidates.length;
+        List<SimpleFeature> result = new ArrayList<SimpleFeature>(
+                (int) Math.min(count, Math.min(end, 1024)));
+        for (int i = 0; i < count && result.size() < end; i++) {
+            SimpleFeature feature = features[candidates == null ? i : candidates[i]];
+            if (filter == Filter.INCLUDE || filter.evaluate(feature)) {
+                result.add(feature);
+            }
+        }
+        if (sort) {
+            Collections.sort(result, comparator(sortBy));
+        }
+        int from = Math.min(Math.max(offset, 0), result.size());
+        int to = (int) Math.min(result.size(), (long) from + limit);
+        return from == 0 && to == result.size() ? result : result.subList(from, to);
+    }
+
+    /**
+     * Returns the ascending ordinals of the features that may match a filter, null if every
+     * feature has to be evaluated.
+     */
+    int[] candidates(Filter filter) {
+        List<Filter> conditions = filter instanceof And ? ((And) filter).getChildren()
+                : Collections.singletonList(filter);
+        int[] best = null;
+        for (Filter condition : conditions) {
+            int[] selected = null;
+            if (condition instanceof Id) {
+                selected = ids((Id) condition);
+            } else if (condition instanceof PropertyIsEqualTo) {
+                selected = equalTo((PropertyIsEqualTo) condition);
+            }
+            if (selected != null && (best == null || selected.length < best.length)) {
+                best = selected;
+            }
+        }
+        if (best == null) {
+            best = spatial(filter);
+        }
+        return best;
+    }
+
+    int[] ids(Id filter) {
+        int[] result = new int[filter.getIdentifiers().size()];
+        int count = 0;
+        Map<String, Integer> ordinals = ordinals();
+        for (Identifier identifier : filter.getIdentifiers()) {
+            Integer ordinal = ordinals.get(String.valueOf(identifier.getID()));
+            if (ordinal != null) {
+                result[count++] = ordinal;
+            }
+        }
+        Arrays.sort(result, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || result[i] != result[distinct - 1]) {
+                result[distinct++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    int[] equalTo(PropertyIsEqualTo filter) {
+        Expression property = filter.getExpression1();
+        Expression literal = filter.getExpression2();
+        if (property instanceof Literal) {
+            property = filter.getExpression2();
+            literal = filter.getExpression1();
+        }
+        if (!(property instanceof PropertyName) || !(literal instanceof Literal)) {
+            return null;
+        }
+        String name = ((PropertyName) property).getPropertyName();
+        AttributeDescriptor descriptor = schema.getDescriptor(name);
+        if (descriptor == null || !indexedAttributes.contains(descriptor.getLocalName())
+                || !HASHABLE_BINDINGS.contains(descriptor.getType().getBinding())) {
+            return null;
+        }
+        Class<?> binding = descriptor.getType().getBinding();
+        Object value = key(((Literal) literal).getValue(), binding);
+        if (value == null || (value instanceof String && !filter.isMatchingCase())) {
+            return null;
+        }
+        int[] result = attributeIndex(descriptor.getLocalName(), binding).get(value);
+        return result == null ? new int[0] : result;
+    }
+
+    Map<Object, int[]> attributeIndex(String name, Class<?> binding) {
+        Map<Object, int[]> index = attributeIndexes.get(name);
+        if (index == null) {
+            Map<Object, List<Integer>> lists = new HashMap<Object, List<Integer>>();
+            for (int i = 0; i < features.length; i++) {
+                Object value = key(features[i].getAttribute(name), binding);
+                if (value != null) {
+                    List<Integer> list = lists.get(value);
+                    if (list == null) {
+                        list = new ArrayList<Integer>(1);
+                        lists.put(value, list);
+                    }
+                    list.add(i);
+                }
+            }
+            index = new HashMap<Object, int[]>(lists.size() * 4 / 3 + 1);
+            for (Map.Entry<Object, List<Integer>> entry : lists.entrySet()) {
+                List<Integer> list = entry.getValue();
+                int[] ordinals = new int[list.size()];
+                for (int i = 0; i < ordinals.length; i++) {
+                    ordinals[i] = list.get(i);
+                }
+                index.put(entry.getKey(), ordinals);
+            }
+            Map<Object, int[]> existing = attributeIndexes.putIfAbsent(name, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Converts a value to the binding of its attribute, so that equal values have equal keys.
+     */
+    static Object key(Object value, Class<?> binding) {
+        if (value == null) {
+            return null;
+        }
+        Object key = binding.isInstance(value) ? value : Converters.convert(value, binding);
+        if (key instanceof Double && ((Double) key).doubleValue() == 0) {
+            return 0d;
+        } else if (key instanceof Float && ((Float) key).floatValue() == 0) {
+            return 0f;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the ordinals of the features whose default geometry envelope intersects the area
+     * a filter is restricted to, null if it is not restricted.
+     */
+    int[] spatial(Filter filter) {
+        GeometryDescriptor geometry = schema.getGeometryDescriptor();
+        if (geometry == null || !isOnDefaultGeometry(filter, geometry)) {
+            return null;
+        }
+        Envelope bounds = (Envelope) filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+        if (bounds == null || bounds.isNull() || Double.isInfinite(bounds.getWidth())
+                || Double.isInfinite(bounds.getHeight())) {
+            return null;
+        }
+        if (bounds instanceof ReferencedEnvelope) {
+            CoordinateReferenceSystem crs = ((ReferencedEnvelope) bounds).getCoordinateReferenceSystem();
+            CoordinateReferenceSystem nativeCRS = geometry.getCoordinateReferenceSystem();
+            if (crs != null && nativeCRS != null && !CRS.equalsIgnoreMetadata(crs, nativeCRS)) {
+                return null;
+            }
+        }
+        List<?> items = tree().query(bounds);
+        int[] result = new int[items.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (Integer) items.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Whether the geometry attributes a filter refers to are all the default one.
+     */
+    boolean isOnDefaultGeometry(Filter filter, GeometryDescriptor geometry) {
+        FilterAttributeExtractor extractor = new FilterAttributeExtractor(schema);
+        filter.accept(extractor, null);
+        for (String name : extractor.getAttributeNameSet()) {
+            AttributeDescriptor descriptor = schema.getDescriptor(name);
+            if (descriptor instanceof GeometryDescriptor && descriptor != geometry) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    STRtree tree() {
+        STRtree result = tree;
+        if (result == null) {
+            synchronized (this) {
+                result = tree;
+                if (result == null) {
+                    result = new STRtree();
+                    for (int i = 0; i < features.length; i++) {
+                        Object geometry = features[i].getDefaultGeometry();
+                        if (geometry instanceof Geometry && !((Geometry) geometry).isEmpty()) {
+                            result.insert(((Geometry) geometry).getEnvelopeInternal(), i);
+                        }
+                    }
+                    result.build();
+                    tree = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compares features by the values of the sort properties, nulls first, and by insertion order
+     * for {@link SortBy#NATURAL_ORDER} and {@link SortBy#REVERSE_ORDER}.
+     */
+    Comparator<SimpleFeature> comparator(final SortBy[] sortBy) {
+        final Map<String, Integer> ordinals = ordinals();
+        return new Comparator<SimpleFeature>() {
+            public int compare(SimpleFeature f1, SimpleFeature f2) {
+                for (SortBy sort : sortBy) {
+                    int result;
+                    if (sort == SortBy.NATURAL_ORDER || sort == SortBy.REVERSE_ORDER
+                            || sort.getPropertyName() == null) {
+                        result = ordinals.get(f1.getID()).compareTo(ordinals.get(f2.getID()));
+                    } else {
+                        result = compareValues(sort.getPropertyName().evaluate(f1),
+                                sort.getPropertyName().evaluate(f2));
+                    }
+                    if (sort.getSortOrder() == SortOrder.DESCENDING) {
+                        result = -result;
+                    }
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static int compareValues(Object v1, Object v2) {
+        if (v1 == null) {
+            return v2 == null ? 0 : -1;
+        } else if (v2 == null) {
+            return 1;
+        } else if (v1 instanceof Comparable && v1.getClass().isInstance(v2)) {
+            return ((Comparable) v1).compareTo(v2);
+        } else if (v1 instanceof Number && v2 instanceof Number) {
+            return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+        }
+        return v1.toString().compareTo(v2.toString());
+    }
+}
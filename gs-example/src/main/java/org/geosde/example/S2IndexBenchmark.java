@@ -0,0 +1,172 @@
+package org.geosde.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geosde.core.index.S2IndexStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.base.Splitter;
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2RegionCoverer;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Per feature cost of {@link S2IndexStrategy} for point and polygon ingest, against the former
+ * implementation which covered polygons by formatting and parsing back their envelope.
+ * <p>
+ * Run {@link #main(String[])}, the benchmark classes being generated by the JMH annotation
+ * processor at compile time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class S2IndexBenchmark {
+
+	final static int FEATURES = 1024;
+
+	S2IndexStrategy strategy;
+
+	Point[] points;
+
+	Geometry[] polygons;
+
+	int next;
+
+	@Setup
+	public void setup() {
+		strategy = new S2IndexStrategy("benchmark");
+		GeometryFactory factory = new GeometryFactory();
+		Random random = new Random(42);
+		points = new Point[FEATURES];
+		polygons = new Geometry[FEATURES];
+		for (int i = 0; i < FEATURES; i++) {
+			// features spread over California, building to district sized polygons
+			double x = -124 + random.nextDouble() * 10;
+			double y = 32 + random.nextDouble() * 10;
+			double size = Math.pow(10, -1 - random.nextInt(4)) * random.nextDouble();
+			points[i] = factory.createPoint(new Coordinate(x, y));
+			polygons[i] = factory.toGeometry(new Envelope(x, x + size, y, y + size));
+		}
+	}
+
+	int next() {
+		next = (next + 1) & (FEATURES - 1);
+		return next;
+	}
+
+	@Benchmark
+	public long pointCellId() {
+		return strategy.cellId(points[next()]);
+	}
+
+	@Benchmark
+	public Map<String, Object> pointIndex() {
+		return strategy.index(points[next()]);
+	}
+
+	@Benchmark
+	public Map<String, Object> pointIndexLegacy() {
+		return legacyIndex(points[next()]);
+	}
+
+	@Benchmark
+	public long polygonCellId() {
+		return strategy.cellId(polygons[next()]);
+	}
+
+	@Benchmark
+	public Map<String, Object> polygonIndex() {
+		return strategy.index(polygons[next()]);
+	}
+
+	@Benchmark
+	public Map<String, Object> polygonIndexLegacy() {
+		return legacyIndex(polygons[next()]);
+	}
+
+	@Benchmark
+	public void pointPartition(Blackhole bh) {
+		long id = strategy.cellId(points[next()]);
+		bh.consume(S2IndexStrategy.partitionId(id));
+		bh.consume(id);
+	}
+
+	//
+	// former S2IndexStrategy.index(Geometry)
+	//
+	final S2RegionCoverer coverer = new S2RegionCoverer();
+
+	Map<String, Object> legacyIndex(Geometry geom) {
+		Map<String, Object> index = new HashMap<>();
+		S2CellId id = null;
+		if (geom instanceof Point) {
+			Point point = (Point) geom;
+			id = new S2Cell(S2LatLng.fromDegrees(point.getY(), point.getX())).id();
+		} else {
+			Envelope envelope = geom.getEnvelopeInternal();
+			StringBuilder sb = new StringBuilder();
+			sb.append(envelope.getMinY() + ":" + envelope.getMinX() + ",");
+			sb.append(envelope.getMinY() + ":" + envelope.getMaxX() + ",");
+			sb.append(envelope.getMaxY() + ":" + envelope.getMaxX() + ",");
+			sb.append(envelope.getMaxY() + ":" + envelope.getMinX() + ";");
+			List<S2Loop> loops = new ArrayList<>();
+			for (String token : Splitter.on(';').omitEmptyStrings().split(sb.toString())) {
+				List<S2Point> vertices = new ArrayList<>();
+				for (String vertex : Splitter.on(',').split(token)) {
+					int colon = vertex.indexOf(':');
+					vertices.add(S2LatLng.fromDegrees(Double.parseDouble(vertex.substring(0, colon)),
+							Double.parseDouble(vertex.substring(colon + 1))).toPoint());
+				}
+				S2Loop loop = new S2Loop(vertices);
+				loop.normalize();
+				loops.add(loop);
+			}
+			ArrayList<S2CellId> covering = new ArrayList<>();
+			coverer.setMaxCells(1);
+			coverer.getCovering(new S2Polygon(loops), covering);
+			id = covering.get(0);
+		}
+		if (id.level() <= S2IndexStrategy.QUAD_LEVEL) {
+			index.put("cell", id.toToken());
+		} else {
+			index.put("cell", id.parent(S2IndexStrategy.QUAD_LEVEL).toToken());
+		}
+		index.put("pos", id.toToken());
+		return index;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder().include(S2IndexBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
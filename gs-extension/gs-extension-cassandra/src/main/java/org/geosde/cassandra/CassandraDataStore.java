@@ -5,33 +5,41 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.geosde.cassandra.object.CassandraObjectMapper;
 import org.geosde.cassandra.object.Layer;
+import org.geosde.cassandra.object.LayerCatalog;
+import org.geosde.cassandra.query.CellCache;
+import org.geosde.cassandra.query.CellQueryExecutor;
+import org.geosde.cassandra.stats.DensityPyramid;
+import org.geosde.cassandra.stats.LayerStatistics;
+import org.geosde.cassandra.util.GeometryCodec;
+import org.geosde.cassandra.util.GeometryCodecs;
+import org.geosde.cassandra.write.AsyncBatchWriter;
+import org.geosde.cassandra.write.InsertStatementCache;
 import org.geosde.core.data.ContentDataStore;
 import org.geosde.core.data.ContentEntry;
 import org.geosde.core.data.ContentFeatureSource;
+import org.geosde.core.index.IndexStrategy;
+import org.geosde.core.index.S2IndexStrategy;
+import org.geosde.core.index.S2LongIndexStrategy;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
-import org.geotools.feature.AttributeTypeBuilder;
 import org.geotools.feature.NameImpl;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.referencing.CRS;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.Name;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.KeyspaceMetadata;
-import com.datastax.driver.core.ResultSet;
-import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.Metrics;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.TableMetadata;
-import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Envelope;
 
 public class CassandraDataStore extends ContentDataStore {
 
@@ -40,11 +48,310 @@ public class CassandraDataStore extends ContentDataStore {
 	 * only
 	 */
 	public static final String CASSANDRA_READ_ONLY = "cassandra.readOnly";
+
+	/**
+	 * Boolean user data of a feature type overriding {@link #isLongCellIds()} when its schema is
+	 * created
+	 */
+	public static final String CASSANDRA_LONG_CELL_IDS = "cassandra.longCellIds";
+
+	/**
+	 * Boolean user data of a feature type overriding {@link #isDensityPyramid()} when its schema
+	 * is created
+	 */
+	public static final String CASSANDRA_DENSITY_PYRAMID = "cassandra.densityPyramid";
+
+	/**
+	 * String user data of a feature type overriding {@link #getGeometryEncoding()} when its schema
+	 * is created
+	 */
+	public static final String CASSANDRA_GEOMETRY_ENCODING = "cassandra.geometryEncoding";
+
+	/**
+	 * Envelope user data of a feature type giving the initial extent of its layer, otherwise all
+	 * zero until the layer statistics are stored, see {@link LayerCatalog#expandExtent}
+	 */
+	public static final String CASSANDRA_EXTENT = "cassandra.extent";
 	public SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHH");
 
+	/**
+	 * Builds the session of this store, null to use the shared one of {@link SessionRepository}
+	 */
+	private SessionFactory sessionFactory;
+
+	/**
+	 * Session of this store, null until first access
+	 */
+	private volatile Session session;
+
+	/**
+	 * Cell fan-out engine shared by all the readers of this store
+	 */
+	private CellQueryExecutor queryExecutor;
+
+	/**
+	 * Cell slices read, shared by all the readers of this store
+	 */
+	private CellCache cellCache;
+
+	/**
+	 * Maximum size of the rows held by the cell cache, 0 to disable it
+	 */
+	private long cellCacheSize = CellCache.DEFAULT_MAX_BYTES;
+
+	/**
+	 * Prepared insert statements shared by all the writers of this store
+	 */
+	private InsertStatementCache insertStatements;
+
+	/**
+	 * Maximum number of write requests each feature writer keeps in flight
+	 */
+	private int maxWritesInFlight = AsyncBatchWriter.DEFAULT_MAX_IN_FLIGHT;
+
+	/**
+	 * Whether new layer tables store their cells as bigint ids rather than tokens
+	 */
+	private boolean longCellIds = false;
+
+	/**
+	 * Cached layers and feature types, invalidated by schema changes
+	 */
+	private LayerCatalog catalog;
+
+	/**
+	 * Statistics tables by layer table
+	 */
+	private final ConcurrentMap<String, LayerStatistics> statistics = new ConcurrentHashMap<>();
+
+	/**
+	 * Whether new layers maintain a density pyramid
+	 */
+	private boolean densityPyramid = false;
+
+	/**
+	 * Encoding of the geometries of new layers, see {@link GeometryCodecs}
+	 */
+	private String geometryEncoding = GeometryCodecs.WKB;
+
+	/**
+	 * Owner recorded in the catalog for new layers
+	 */
+	private String owner = System.getProperty("user.name");
+
+	/**
+	 * Density pyramids by layer table
+	 */
+	private final ConcurrentMap<String, DensityPyramid> pyramids = new ConcurrentHashMap<>();
+
 	public CassandraDataStore() {
 	}
 
+	/**
+	 * Creates a store connecting its own session on first access, closed by {@link #dispose()}.
+	 */
+	public CassandraDataStore(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	/**
+	 * Returns the session of this store, connecting it on first access. Callers must not close
+	 * it.
+	 */
+	public Session getSession() {
+		Session result = session;
+		if (result == null) {
+			synchronized (this) {
+				result = session;
+				if (result == null) {
+					session = result = sessionFactory == null ? SessionRepository.getSession()
+							: sessionFactory.connect();
+				}
+			}
+		}
+		return result;
+	}
+
+	public Metadata getMetadata() {
+		return getSession().getCluster().getMetadata();
+	}
+
+	/**
+	 * Returns the driver metrics of the cluster of this store: request latencies, connections,
+	 * errors and speculative executions, null if metrics are disabled.
+	 */
+	public Metrics getMetrics() {
+		return getSession().getCluster().getMetrics();
+	}
+
+	/**
+	 * Returns the cached layer catalog, creating it and registering it for schema changes on
+	 * first access.
+	 */
+	public synchronized LayerCatalog getCatalog() {
+		if (catalog == null) {
+			catalog = new LayerCatalog(getSession());
+			catalog.register();
+		}
+		return catalog;
+	}
+
+	/**
+	 * Returns the engine used to run cell queries, creating it on first access.
+	 */
+	public synchronized CellQueryExecutor getQueryExecutor() {
+		if (queryExecutor == null) {
+			queryExecutor = new CellQueryExecutor(getSession());
+		}
+		return queryExecutor;
+	}
+
+	/**
+	 * Returns the cache of the cell slices read, creating it on first access, or null if it is
+	 * disabled.
+	 */
+	public synchronized CellCache getCellCache() {
+		if (cellCache == null && cellCacheSize > 0) {
+			cellCache = new CellCache(cellCacheSize, CellCache.DEFAULT_MAX_CELL_ROWS);
+		}
+		return cellCache;
+	}
+
+	public synchronized long getCellCacheSize() {
+		return cellCacheSize;
+	}
+
+	/**
+	 * Sets the maximum size in bytes of the rows held by the cell cache, 0 to disable it. Takes
+	 * effect on a cache not created yet.
+	 */
+	public synchronized void setCellCacheSize(long cellCacheSize) {
+		if (cellCacheSize < 0) {
+			throw new IllegalArgumentException("cellCacheSize must not be negative");
+		}
+		this.cellCacheSize = cellCacheSize;
+	}
+
+	/**
+	 * Returns the cache of prepared insert statements, creating it on first access.
+	 */
+	public synchronized InsertStatementCache getInsertStatementCache() {
+		if (insertStatements == null) {
+			insertStatements = new InsertStatementCache(getSession());
+		}
+		return insertStatements;
+	}
+
+	/**
+	 * Returns the statistics table of a layer table of this store namespace.
+	 */
+	public LayerStatistics getStatistics(String tableName) {
+		LayerStatistics result = statistics.get(tableName);
+		if (result == null) {
+			LayerStatistics created = new LayerStatistics(getSession(), getNamespaceURI(), tableName,
+					getInsertStatementCache(), getCatalog());
+			result = statistics.putIfAbsent(tableName, created);
+			if (result == null) {
+				result = created;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the density pyramid of a layer table of this store namespace, whose table may not
+	 * exist.
+	 */
+	public DensityPyramid getDensityPyramid(String tableName) {
+		DensityPyramid result = pyramids.get(tableName);
+		if (result == null) {
+			DensityPyramid created = new DensityPyramid(getQueryExecutor(), getNamespaceURI(), tableName,
+					getInsertStatementCache(), DensityPyramid.DEFAULT_LEVELS);
+			result = pyramids.putIfAbsent(tableName, created);
+			if (result == null) {
+				result = created;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Whether a type name is the density of a layer table with a pyramid.
+	 */
+	public boolean isDensityType(Name name) {
+		String local = name.getLocalPart();
+		return local.endsWith(DensityPyramid.TABLE_SUFFIX) && getDensityPyramid(
+				local.substring(0, local.length() - DensityPyramid.TABLE_SUFFIX.length())).exists();
+	}
+
+	public boolean isDensityPyramid() {
+		return densityPyramid;
+	}
+
+	public void setDensityPyramid(boolean densityPyramid) {
+		this.densityPyramid = densityPyramid;
+	}
+
+	public int getMaxWritesInFlight() {
+		return maxWritesInFlight;
+	}
+
+	public void setMaxWritesInFlight(int maxWritesInFlight) {
+		if (maxWritesInFlight < 1) {
+			throw new IllegalArgumentException("maxWritesInFlight must be positive");
+		}
+		this.maxWritesInFlight = maxWritesInFlight;
+	}
+
+	public String getGeometryEncoding() {
+		return geometryEncoding;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the encoding is unknown, see {@link GeometryCodecs#create(String)}
+	 */
+	public void setGeometryEncoding(String geometryEncoding) {
+		this.geometryEncoding = GeometryCodecs.create(geometryEncoding).getName();
+	}
+
+	/**
+	 * Returns a new codec for the geometries of a layer table, as recorded in the catalog.
+	 */
+	public GeometryCodec getGeometryCodec(String tableName) {
+		return GeometryCodecs.create(getCatalog().getGeometryEncoding(getNamespaceURI(), tableName));
+	}
+
+	public boolean isLongCellIds() {
+		return longCellIds;
+	}
+
+	public void setLongCellIds(boolean longCellIds) {
+		this.longCellIds = longCellIds;
+	}
+
+	/**
+	 * Returns the strategy matching the key columns of a layer table, cells being stored either
+	 * as tokens or as bigint ids.
+	 */
+	public IndexStrategy getIndexStrategy(String tableName) {
+		KeyspaceMetadata keyspace = getMetadata().getKeyspace(getNamespaceURI());
+		TableMetadata table = keyspace == null ? null : keyspace.getTable(tableName);
+		if (table != null && table.getColumn("cell") != null
+				&& DataType.bigint().equals(table.getColumn("cell").getType())) {
+			return new S2LongIndexStrategy(tableName);
+		}
+		return new S2IndexStrategy(tableName);
+	}
+
 	//
 	// API Implementation
 	//
@@ -60,7 +367,9 @@ public class CassandraDataStore extends ContentDataStore {
 		schema = entry.getState(Transaction.AUTO_COMMIT).getFeatureType();
 
 		Object readOnlyMarker = schema.getUserData().get(CASSANDRA_READ_ONLY);
-		if (Boolean.TRUE.equals(readOnlyMarker)) {
+		if (isDensityType(entry.getName())) {
+			return new CassandraDensityFeatureSource(entry);
+		} else if (Boolean.TRUE.equals(readOnlyMarker)) {
 			return new CassandraFeatureSource(entry, Query.ALL);
 		} else {
 			return new CassandraFeatureStore(entry);
@@ -70,21 +379,15 @@ public class CassandraDataStore extends ContentDataStore {
 
 	@Override
 	protected List<Name> createTypeNames() throws IOException {
-		Session session = SessionRepository.getSession();
 		List<Name> typeNames = new ArrayList<>();
 		String namespace = getNamespaceURI();
-		SimpleStatement statement = new SimpleStatement(
-				"SELECT workspace,category,layer_name,cdate FROM catalog.layer;");
-		ResultSet rs = session.execute(statement);
-		for (Row row : rs) {
-			String workspace_name = row.getString("workspace");
-			String layer_name = row.getString("layer_name");
-			long cdate = row.getLong("cdate");
-
-			if (namespace.equals(workspace_name))
-				typeNames.add(new NameImpl(workspace_name, layer_name + "_" + formatter.format(new Date(cdate))));
-		}
-		session.close();
+		for (Layer layer : getCatalog().getLayers(namespace)) {
+			String table = layer.getLayer_name() + "_" + formatter.format(new Date(layer.getCdate()));
+			typeNames.add(new NameImpl(namespace, table));
+			if (getDensityPyramid(table).exists()) {
+				typeNames.add(new NameImpl(namespace, table + DensityPyramid.TABLE_SUFFIX));
+			}
+		}
 		return typeNames;
 	}
 
@@ -93,7 +396,6 @@ public class CassandraDataStore extends ContentDataStore {
 		String workspace_name = getNamespaceURI();
 		String layer_name = featureType.getTypeName().replace(".", "_");
 		Date cdate = date;
-		String owner = "xiaofei";
 		String geometry_type = featureType.getGeometryDescriptor().getType().getName().getLocalPart();
 		String geometry_column = "the_geom";
 		int srid = getSRID(featureType);
@@ -101,7 +403,22 @@ public class CassandraDataStore extends ContentDataStore {
 		double miny = 0;
 		double maxx = 0;
 		double maxy = 0;
+		Object extent = featureType.getUserData().get(CASSANDRA_EXTENT);
+		if (extent instanceof Envelope && !((Envelope) extent).isNull()) {
+			minx = ((Envelope) extent).getMinX();
+			miny = ((Envelope) extent).getMinY();
+			maxx = ((Envelope) extent).getMaxX();
+			maxy = ((Envelope) extent).getMaxY();
+		}
 		String keywords = featureType.getGeometryDescriptor().getType().getName().getLocalPart();
+		Object encodingMarker = featureType.getUserData().get(CASSANDRA_GEOMETRY_ENCODING);
+		String geometry_encoding;
+		try {
+			geometry_encoding = encodingMarker == null ? geometryEncoding
+					: GeometryCodecs.create(encodingMarker.toString()).getName();
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
 
 		Layer layer = new Layer();
 		layer.setWorkspace(workspace_name);
@@ -117,15 +434,19 @@ public class CassandraDataStore extends ContentDataStore {
 		layer.setMiny(miny);
 		layer.setOwner(owner);
 		layer.setKeywords(keywords);
-		CassandraObjectMapper.addLayer(layer);
+		layer.setGeometry_encoding(geometry_encoding);
+		getCatalog().addLayer(layer);
 
-		Session session = SessionRepository.getSession();
+		Session session = getSession();
 		StringBuilder builder = new StringBuilder();
 
 		builder.append("CREATE TABLE IF NOT EXISTS " + workspace_name + "."
 				+ featureType.getName().toString().replace(".", "_") + "_" + formatter.format(cdate) + " (");
-		builder.append("cell text,");
-		builder.append("pos text,");
+		Object longCellIdsMarker = featureType.getUserData().get(CASSANDRA_LONG_CELL_IDS);
+		boolean tableLongCellIds = longCellIdsMarker == null ? longCellIds : Boolean.TRUE.equals(longCellIdsMarker);
+		String cellType = tableLongCellIds ? "bigint" : "text";
+		builder.append("cell " + cellType + ",");
+		builder.append("pos " + cellType + ",");
 		builder.append("fid text,");
 		List<AttributeDescriptor> attrDes = featureType.getAttributeDescriptors();
 		List<String> col_items = new ArrayList<>();
@@ -138,7 +459,7 @@ public class CassandraDataStore extends ContentDataStore {
 		}
 		builder.append("PRIMARY KEY (cell,pos,fid)");
 		builder.append(");");
-		System.out.println(builder.toString());
+		LOGGER.fine(builder.toString());
 		session.execute(builder.toString());
 		
 		builder = new StringBuilder();
@@ -147,9 +468,15 @@ public class CassandraDataStore extends ContentDataStore {
 		builder.append(" FROM "+workspace_name+"."+featureType.getName().toString().replace(".", "_") + "_" + formatter.format(cdate));
 		builder.append(" WHERE fid IS NOT NULL AND cell IS NOT NULL AND pos IS NOT NULL");
 		builder.append(" PRIMARY KEY ( fid, cell, pos );");
-		System.out.println(builder.toString());
+		LOGGER.fine(builder.toString());
 		session.execute(builder.toString());
-		session.close();
+		String table_name = featureType.getName().toString().replace(".", "_") + "_" + formatter.format(cdate);
+		getStatistics(table_name).createTable(tableLongCellIds);
+		Object densityPyramidMarker = featureType.getUserData().get(CASSANDRA_DENSITY_PYRAMID);
+		if (densityPyramidMarker == null ? densityPyramid : Boolean.TRUE.equals(densityPyramidMarker)) {
+			getDensityPyramid(table_name).createTable();
+		}
+		getCatalog().invalidateFeatureType(workspace_name, table_name);
 	}
 
 	@Override
@@ -159,39 +486,34 @@ public class CassandraDataStore extends ContentDataStore {
 
 	@Override
 	public SimpleFeatureType getSchema(Name name) throws IOException {
-		Session session = SessionRepository.getSession();
-		String workspace_name = getNamespaceURI();
-		String category = "basic";
-		String layername = name.getLocalPart();
-		KeyspaceMetadata keyspaceMetadata = SessionRepository.getMetadata().getKeyspace(workspace_name);
-		TableMetadata table = keyspaceMetadata.getTable(layername);
-		session.close();
-		List<ColumnMetadata> columns = table.getColumns();
-		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-		builder.setName(name);
-		AttributeTypeBuilder attrTypeBuilder = new AttributeTypeBuilder();
-		for (ColumnMetadata cm : columns) {
-			String cname = cm.getName();
-			Class binding = CassandraTypeConvertor.CA_MAP_TO_TYPE.get(cm.getType());
-			if (!cm.getName().equals("cell_id") && !cm.getName().equals("epoch") && !cm.getName().equals("pos")
-					&& !cm.getName().equals("timestamp") && !cm.getName().equals("fid")) {
-				if (Geometry.class.isAssignableFrom(binding)) {
-					attrTypeBuilder.binding(binding);
-					CoordinateReferenceSystem wsg84 = null;
-					try {
-						wsg84 = DefaultGeographicCRS.WGS84;
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-					attrTypeBuilder.setCRS(wsg84);
-					builder.add(attrTypeBuilder.buildDescriptor(cname, attrTypeBuilder.buildGeometryType()));
-				} else {
-					builder.add(attrTypeBuilder.binding(binding).nillable(false).buildDescriptor(cname));
-				}
-			}
+		if (isDensityType(name)) {
+			return CassandraDensityFeatureSource.buildFeatureType(name);
 		}
-		return builder.buildFeatureType();
+		return getCatalog().getFeatureType(getNamespaceURI(), name);
+	}
 
+	@Override
+	public void dispose() {
+		synchronized (this) {
+			if (catalog != null) {
+				catalog.unregister();
+				catalog = null;
+			}
+			if (cellCache != null) {
+				cellCache.invalidateAll();
+				cellCache = null;
+			}
+			queryExecutor = null;
+			insertStatements = null;
+			statistics.clear();
+			pyramids.clear();
+			if (session != null && sessionFactory != null) {
+				// the shared session outlives the stores using it
+				session.getCluster().close();
+			}
+			session = null;
+		}
+		super.dispose();
 	}
 
 	//
@@ -24,19 +24,29 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.geosde.cassandra.query.CellCache;
+import org.geosde.cassandra.util.GeometryCodecs;
+import org.geosde.cassandra.write.AsyncBatchWriter;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFactorySpi;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.Parameter;
 import org.geotools.util.SimpleInternationalString;
 
+import com.datastax.driver.core.ProtocolOptions;
+
 public class CassandraDataStoreFactory implements DataStoreFactorySpi {
 
 	/** parameter for database type */
 	public static final Param DBTYPE = new Param("dbtype", String.class, "Type", true, "cassandra");
 
 	/** parameter for database host */
-	public static final Param HOST = new Param("host", String.class, "Host", true, "localhost");
+	public static final Param HOST = new Param("host", String.class, "Host, or comma separated contact points", true,
+			"localhost");
+
+	/** parameter for database port */
+	public static final Param PORT = new Param("port", Integer.class, "Native protocol port", false,
+			ProtocolOptions.DEFAULT_PORT);
 
 	/** parameter for database instance */
 	public static final Param KEYSPACE = new Param("keyspace", String.class, "Instance", true);
@@ -50,6 +60,77 @@ public class CassandraDataStoreFactory implements DataStoreFactorySpi {
 			new SimpleInternationalString("password used to login"), false, null,
 			Collections.singletonMap(Parameter.IS_PASSWORD, Boolean.TRUE));
 
+	/** parameter for storing the cells of new layers as bigint ids rather than tokens */
+	public static final Param LONG_CELL_IDS = new Param("long cell ids", Boolean.class,
+			"Store the S2 cells of new layers as bigint cell ids rather than tokens", false, Boolean.FALSE);
+
+	/** parameter for the maximum number of write requests in flight per writer */
+	public static final Param MAX_WRITES_IN_FLIGHT = new Param("max writes in flight", Integer.class,
+			"Maximum number of asynchronous write requests a feature writer keeps in flight", false,
+			AsyncBatchWriter.DEFAULT_MAX_IN_FLIGHT);
+
+	/** parameter for maintaining a density pyramid of new layers */
+	public static final Param DENSITY_PYRAMID = new Param("density pyramid", Boolean.class,
+			"Maintain a pyramid of feature counts per S2 cell for new layers, exposed as <layer>_density feature types",
+			false, Boolean.FALSE);
+
+	/** parameter for the size of the cell cache shared by the readers */
+	public static final Param CELL_CACHE_SIZE = new Param("cell cache size", Integer.class,
+			"Megabytes of cell rows cached in memory for the readers, 0 to disable the cache", false,
+			(int) (CellCache.DEFAULT_MAX_BYTES >> 20));
+
+	/** parameter for the geometry encoding of new layers */
+	public static final Param GEOMETRY_ENCODING = new Param("geometry encoding", String.class,
+			"Encoding of the geometries of new layers: wkb, or twkb[:<decimal digits>] for compact delta encoded coordinates",
+			false, GeometryCodecs.WKB);
+
+	/** parameter for the local data center */
+	public static final Param LOCAL_DC = new Param("local dc", String.class,
+			"Data center whose replicas are queried, defaults to the one of the contact points", false, null);
+
+	/** parameter for the compression of the protocol frames */
+	public static final Param COMPRESSION = new Param("compression", String.class,
+			"Compression of the protocol frames: lz4, snappy or none", false, "lz4");
+
+	/** parameter for the connections to each local host */
+	public static final Param CORE_CONNECTIONS_LOCAL = new Param("core connections local", Integer.class,
+			"Connections kept open to each host of the local data center", false,
+			SessionFactory.DEFAULT_CORE_CONNECTIONS_LOCAL);
+
+	/** parameter for the maximum connections to each local host */
+	public static final Param MAX_CONNECTIONS_LOCAL = new Param("max connections local", Integer.class,
+			"Maximum connections to each host of the local data center", false,
+			SessionFactory.DEFAULT_MAX_CONNECTIONS_LOCAL);
+
+	/** parameter for the connections to each remote host */
+	public static final Param CORE_CONNECTIONS_REMOTE = new Param("core connections remote", Integer.class,
+			"Connections kept open to each host of the remote data centers", false,
+			SessionFactory.DEFAULT_CORE_CONNECTIONS_REMOTE);
+
+	/** parameter for the maximum connections to each remote host */
+	public static final Param MAX_CONNECTIONS_REMOTE = new Param("max connections remote", Integer.class,
+			"Maximum connections to each host of the remote data centers", false,
+			SessionFactory.DEFAULT_MAX_CONNECTIONS_REMOTE);
+
+	/** parameter for the requests multiplexed on a connection */
+	public static final Param MAX_REQUESTS_PER_CONNECTION = new Param("max requests per connection", Integer.class,
+			"Maximum number of requests in flight on a single connection", false,
+			SessionFactory.DEFAULT_MAX_REQUESTS_PER_CONNECTION);
+
+	/** parameter for the delay of speculative reads */
+	public static final Param SPECULATIVE_DELAY = new Param("speculative delay", Integer.class,
+			"Milliseconds before a read is also sent to another replica, 0 to disable speculative executions",
+			false, (int) SessionFactory.DEFAULT_SPECULATIVE_DELAY);
+
+	/** parameter for the number of speculative reads */
+	public static final Param SPECULATIVE_EXECUTIONS = new Param("speculative executions", Integer.class,
+			"Maximum number of replicas a read is sent to after the first one", false,
+			SessionFactory.DEFAULT_SPECULATIVE_EXECUTIONS);
+
+	/** parameter for the driver metrics */
+	public static final Param METRICS = new Param("metrics", Boolean.class,
+			"Collect the driver metrics, exposed by CassandraDataStore.getMetrics()", false, Boolean.TRUE);
+
 	/**
 	 * Public "no argument" constructor called by Factory Service Provider (SPI)
 	 * entry listed in META-INF/services/org.geotools.data.DataStoreFactorySPI
@@ -106,9 +187,25 @@ public class CassandraDataStoreFactory implements DataStoreFactorySpi {
 		// add it to the JDBCJNDIDataStoreFactory class
 		parameters.put(DBTYPE.key,DBTYPE);
 		parameters.put(HOST.key, HOST);
+		parameters.put(PORT.key, PORT);
 		parameters.put(KEYSPACE.key, KEYSPACE);
 		parameters.put(USER.key, USER);
 		parameters.put(PASSWD.key, PASSWD);
+		parameters.put(MAX_WRITES_IN_FLIGHT.key, MAX_WRITES_IN_FLIGHT);
+		parameters.put(LONG_CELL_IDS.key, LONG_CELL_IDS);
+		parameters.put(DENSITY_PYRAMID.key, DENSITY_PYRAMID);
+		parameters.put(CELL_CACHE_SIZE.key, CELL_CACHE_SIZE);
+		parameters.put(GEOMETRY_ENCODING.key, GEOMETRY_ENCODING);
+		parameters.put(LOCAL_DC.key, LOCAL_DC);
+		parameters.put(COMPRESSION.key, COMPRESSION);
+		parameters.put(CORE_CONNECTIONS_LOCAL.key, CORE_CONNECTIONS_LOCAL);
+		parameters.put(MAX_CONNECTIONS_LOCAL.key, MAX_CONNECTIONS_LOCAL);
+		parameters.put(CORE_CONNECTIONS_REMOTE.key, CORE_CONNECTIONS_REMOTE);
+		parameters.put(MAX_CONNECTIONS_REMOTE.key, MAX_CONNECTIONS_REMOTE);
+		parameters.put(MAX_REQUESTS_PER_CONNECTION.key, MAX_REQUESTS_PER_CONNECTION);
+		parameters.put(SPECULATIVE_DELAY.key, SPECULATIVE_DELAY);
+		parameters.put(SPECULATIVE_EXECUTIONS.key, SPECULATIVE_EXECUTIONS);
+		parameters.put(METRICS.key, METRICS);
 
 	}
 
@@ -118,11 +215,106 @@ public class CassandraDataStoreFactory implements DataStoreFactorySpi {
 
 	@Override
 	public DataStore createDataStore(Map<String, Serializable> params) throws IOException {
-		CassandraDataStore datastore=new CassandraDataStore();
+		CassandraDataStore datastore;
+		try {
+			datastore = new CassandraDataStore(createSessionFactory(params));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
 		datastore.setNamespaceURI(params.get(KEYSPACE.key).toString());
+		Integer maxWritesInFlight = (Integer) MAX_WRITES_IN_FLIGHT.lookUp(params);
+		if (maxWritesInFlight != null) {
+			datastore.setMaxWritesInFlight(maxWritesInFlight);
+		}
+		Boolean longCellIds = (Boolean) LONG_CELL_IDS.lookUp(params);
+		if (longCellIds != null) {
+			datastore.setLongCellIds(longCellIds);
+		}
+		Boolean densityPyramid = (Boolean) DENSITY_PYRAMID.lookUp(params);
+		if (densityPyramid != null) {
+			datastore.setDensityPyramid(densityPyramid);
+		}
+		Integer cellCacheSize = (Integer) CELL_CACHE_SIZE.lookUp(params);
+		if (cellCacheSize != null) {
+			datastore.setCellCacheSize((long) cellCacheSize << 20);
+		}
+		String user = (String) USER.lookUp(params);
+		if (user != null) {
+			datastore.setOwner(user);
+		}
+		String geometryEncoding = (String) GEOMETRY_ENCODING.lookUp(params);
+		if (geometryEncoding != null) {
+			try {
+				datastore.setGeometryEncoding(geometryEncoding);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
 		return datastore;
 	}
 
+	/**
+	 * Builds the session factory of a new store from the connection parameters, the parameters
+	 * not given keeping the {@link SessionFactory} defaults.
+	 */
+	protected SessionFactory createSessionFactory(Map<String, Serializable> params) throws IOException {
+		SessionFactory factory = new SessionFactory();
+		Object host = params.get(HOST.key);
+		if (host != null) {
+			factory.setContactPoints(host.toString());
+		}
+		Integer port = (Integer) PORT.lookUp(params);
+		if (port != null) {
+			factory.setPort(port);
+		}
+		factory.setLocalDc((String) LOCAL_DC.lookUp(params));
+		String compression = (String) COMPRESSION.lookUp(params);
+		if (compression != null) {
+			factory.setCompression(compression);
+		}
+		int[] local = connections((Integer) CORE_CONNECTIONS_LOCAL.lookUp(params),
+				(Integer) MAX_CONNECTIONS_LOCAL.lookUp(params), factory.getCoreConnectionsLocal(),
+				factory.getMaxConnectionsLocal());
+		factory.setConnectionsLocal(local[0], local[1]);
+		int[] remote = connections((Integer) CORE_CONNECTIONS_REMOTE.lookUp(params),
+				(Integer) MAX_CONNECTIONS_REMOTE.lookUp(params), factory.getCoreConnectionsRemote(),
+				factory.getMaxConnectionsRemote());
+		factory.setConnectionsRemote(remote[0], remote[1]);
+		Integer maxRequests = (Integer) MAX_REQUESTS_PER_CONNECTION.lookUp(params);
+		if (maxRequests != null) {
+			factory.setMaxRequestsPerConnection(maxRequests);
+		}
+		Integer speculativeDelay = (Integer) SPECULATIVE_DELAY.lookUp(params);
+		if (speculativeDelay != null) {
+			factory.setSpeculativeDelay(speculativeDelay);
+		}
+		Integer speculativeExecutions = (Integer) SPECULATIVE_EXECUTIONS.lookUp(params);
+		if (speculativeExecutions != null) {
+			factory.setSpeculativeExecutions(speculativeExecutions);
+		}
+		Boolean metrics = (Boolean) METRICS.lookUp(params);
+		if (metrics != null) {
+			factory.setMetrics(metrics);
+		}
+		factory.setCredentials((String) USER.lookUp(params), (String) PASSWD.lookUp(params));
+		return factory;
+	}
+
+	/**
+	 * Returns the core and maximum connections per host, the default of a missing one being
+	 * bounded by the given one.
+	 */
+	static int[] connections(Integer core, Integer max, int defaultCore, int defaultMax) {
+		if (core == null && max == null) {
+			return new int[] { defaultCore, defaultMax };
+		} else if (core == null) {
+			return new int[] { Math.min(defaultCore, max), max };
+		} else if (max == null) {
+			return new int[] { core, Math.max(core, defaultMax) };
+		}
+		return new int[] { core, max };
+	}
+
 	@Override
 	public DataStore createNewDataStore(Map<String, Serializable> params) throws IOException {
 		return new CassandraDataStore();
@@ -0,0 +1,123 @@
+package org.geosde.cassandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.geosde.cassandra.stats.DensityPyramid;
+import org.geosde.core.data.ContentEntry;
+import org.geosde.core.data.ContentFeatureSource;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.Name;
+
+import com.google.common.geometry.S2CellId;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Virtual <code>&lt;layer&gt;_density</code> feature type, one point per S2 cell of the layer
+ * {@link DensityPyramid} at the mean position of its features, with their count.
+ * <p>
+ * The level read is the coarsest one whose cells are no larger than
+ * {@link #PIXELS_PER_CELL} times the {@link Hints#GEOMETRY_DISTANCE} the renderer passes for the
+ * map resolution, or without that hint the finest one covering the bbox with at most
+ * {@link DensityPyramid#DEFAULT_MAX_CELLS} cells. A level finer than the latter is never read,
+ * whatever the resolution, see {@link DensityPyramid#read(int, Envelope, int)}. Read only.
+ */
+public class CassandraDensityFeatureSource extends ContentFeatureSource {
+
+	/**
+	 * Size of the cells read relative to the rendering resolution
+	 */
+	public final static int PIXELS_PER_CELL = 4;
+
+	final static GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	public CassandraDensityFeatureSource(ContentEntry entry) {
+		super(entry, Query.ALL);
+	}
+
+	static SimpleFeatureType buildFeatureType(Name name) {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(name);
+		builder.setCRS(DefaultGeographicCRS.WGS84);
+		builder.add("the_geom", Point.class);
+		builder.add("count", Long.class);
+		builder.add("level", Integer.class);
+		builder.add("cell", String.class);
+		return builder.buildFeatureType();
+	}
+
+	@Override
+	protected void addHints(Set<Hints.Key> hints) {
+		hints.add(Hints.GEOMETRY_DISTANCE);
+	}
+
+	@Override
+	protected SimpleFeatureType buildFeatureType() throws IOException {
+		return getDataStore().getSchema(entry.getName());
+	}
+
+	@Override
+	protected ReferencedEnvelope getBoundsInternal(Query query) throws IOException {
+		return null;
+	}
+
+	@Override
+	protected int getCountInternal(Query query) throws IOException {
+		return -1;
+	}
+
+	@Override
+	protected FeatureReader<SimpleFeatureType, SimpleFeature> getReaderInternal(Query query) throws IOException {
+		Envelope bbox = new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84);
+		if (query.getFilter() != null) {
+			Envelope bounds = (Envelope) query.getFilter().accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+			if (bounds != null) {
+				bbox = bbox.intersection(bounds);
+			}
+		}
+		DensityPyramid pyramid = getDensityPyramid();
+		Object distance = query.getHints() == null ? null : query.getHints().get(Hints.GEOMETRY_DISTANCE);
+		int level = distance instanceof Number
+				? pyramid.chooseLevel(((Number) distance).doubleValue() * PIXELS_PER_CELL)
+				: pyramid.chooseLevel(bbox, DensityPyramid.DEFAULT_MAX_CELLS);
+
+		SimpleFeatureType schema = getSchema();
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+		List<SimpleFeature> features = new ArrayList<>();
+		for (DensityPyramid.Cell cell : pyramid.read(level, bbox)) {
+			String token = new S2CellId(cell.getId()).toToken();
+			builder.set("the_geom", GEOMETRY_FACTORY.createPoint(new Coordinate(cell.getX(), cell.getY())));
+			builder.set("count", cell.getCount());
+			builder.set("level", cell.getLevel());
+			builder.set("cell", token);
+			features.add(builder.buildFeature(token));
+		}
+		return DataUtilities.reader(features);
+	}
+
+	DensityPyramid getDensityPyramid() {
+		String local = entry.getName().getLocalPart();
+		return getDataStore()
+				.getDensityPyramid(local.substring(0, local.length() - DensityPyramid.TABLE_SUFFIX.length()));
+	}
+
+	@Override
+	public CassandraDataStore getDataStore() {
+		return (CassandraDataStore) super.getDataStore();
+	}
+}
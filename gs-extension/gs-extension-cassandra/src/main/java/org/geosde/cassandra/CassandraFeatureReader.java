@@ -2,78 +2,193 @@ package org.geosde.cassandra;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.UUID;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.geosde.cassandra.object.LayerCatalog;
+import org.geosde.cassandra.query.CellCache;
+import org.geosde.cassandra.query.CellQueryExecutor;
+import org.geosde.cassandra.query.CellQueryStream;
+import org.geosde.cassandra.query.FilterToCQL;
+import org.geosde.cassandra.query.TimeSlicePlanner;
+import org.geosde.cassandra.util.GeometryCodec;
+import org.geosde.cassandra.util.GeometryCodecs;
+import org.geosde.cassandra.util.LongHashSet;
+import org.geosde.core.index.S2QueryPlan;
+import org.geosde.core.index.S2QueryPlanner;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.Query;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.filter.Filters;
-import org.geotools.filter.text.cql2.CQL;
 import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
-import org.geotools.filter.visitor.SimplifyingFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.filter.Filter;
 
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.datastax.driver.core.TableMetadata;
 import com.google.common.geometry.S2CellId;
-import com.google.common.geometry.S2Polygon;
-import com.google.common.geometry.S2RegionCoverer;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.geom.Point;
 
+/**
+ * Streams the features of a bbox query as the cell queries complete.
+ * <p>
+ * Rows are pulled from a {@link CellQueryStream}, which only buffers a bounded number of pages, so
+ * the first feature is available as soon as the first page arrives and memory use does not depend
+ * on the size of the bbox. Features seen twice are skipped by remembering a 64 bit fingerprint of
+ * each fid rather than the feature itself, and reading stops as soon as the query limit is
+ * reached.
+ * <p>
+ * The hourly time slice tables selected by the filter, see {@link TimeSlicePlanner}, are all read
+ * through the same stream, their cell queries running side by side.
+ * <p>
+ * With a {@link CellCache}, the slices it holds are served from memory, and the rows of the
+ * slices queried are gathered as they stream in and cached once each slice has been fully read.
+ * <p>
+ * Geometries are decoded by the codec recorded in the catalog for each table, WKB without a
+ * catalog.
+ * <p>
+ * The attribute conditions of the filter that have a CQL form are appended to the cell queries,
+ * see {@link FilterToCQL}, so that the rows failing them are not shipped. The other conditions
+ * are evaluated on the features, the columns they need being read along with the geometry. The
+ * cache only holds unfiltered geometries and is not used by such queries.
+ */
 public class CassandraFeatureReader implements FeatureReader<SimpleFeatureType, SimpleFeature> {
 
-	ExecutorService executorService = Executors.newFixedThreadPool(20);
+	static final Logger LOGGER = Logging.getLogger(CassandraFeatureReader.class);
+
+	static final HashFunction FID_HASH = Hashing.murmur3_128();
+
+	static final S2QueryPlanner PLANNER = new S2QueryPlanner();
+
+	static final TimeSlicePlanner TIME_PLANNER = new TimeSlicePlanner();
 
 	Query query;
 	CQLDialect dialect;
 	SimpleFeatureType sft;
 	Envelope bbox;
 	Session session;
-	LoadingCache<String, SimpleFeature> featureCache = null;
-	SimpleFeature currentFeature;
-	Iterator<SimpleFeature> itr;
+	/** keyspace of the layer tables */
+	String keyspace;
+	/** column of the layer geometries, named after the geometry attribute */
+	String geometryColumn;
+	CellQueryExecutor executor;
+	CellQueryStream stream;
+	CellCache cache;
+	/** cache clock taken before querying, see CellCache */
+	long stamp;
+	/** cached slices still to return, and the position in the first one */
+	Deque<CachedSlice> hits = new ArrayDeque<>();
+	int hitRow;
+	/** rows gathered for the cache, by statement of the slices queried */
+	Map<Statement, CellCache.Builder> misses = new IdentityHashMap<>();
+	Map<Statement, CellCache.Key> keys = new IdentityHashMap<>();
+	SimpleFeatureBuilder builder;
+	LayerCatalog catalog;
+	/** geometry codecs by table */
+	Map<String, GeometryCodec> codecs = new HashMap<>();
+	/** conditions of the filter evaluated on the features, see FilterToCQL */
+	Filter postFilter = Filter.INCLUDE;
+	/** columns read besides the key and the geometry, the ones the post filter needs */
+	List<String> attributes = new ArrayList<>();
+	/** fingerprints of the fids returned so far */
+	LongHashSet seen = new LongHashSet();
+	/** number of features still allowed by the query limit */
+	long remaining;
+	SimpleFeature nextFeature;
 
-	public CassandraFeatureReader(Session session, SimpleFeatureType sft, Query query) {
+	/**
+	 * Reads the tables of the keyspace the executor session is logged into.
+	 */
+	public CassandraFeatureReader(CellQueryExecutor executor, SimpleFeatureType sft, Query query)
+			throws IOException {
+		this(executor, null, sft, query);
+	}
+
+	/**
+	 * Reads the tables of the keyspace the executor session is logged into.
+	 *
+	 * @param cache
+	 *            cache of the slices read, null for none
+	 */
+	public CassandraFeatureReader(CellQueryExecutor executor, CellCache cache, SimpleFeatureType sft, Query query)
+			throws IOException {
+		this(executor, cache, null, executor.getSession().getLoggedKeyspace(), sft, query);
+	}
+
+	/**
+	 * @param cache
+	 *            cache of the slices read, null for none
+	 * @param catalog
+	 *            catalog giving the geometry encoding of the tables, null if they are all WKB
+	 * @param keyspace
+	 *            keyspace of the layer tables
+	 * @throws IOException
+	 *             if the cell queries cannot be planned or prepared
+	 */
+	public CassandraFeatureReader(CellQueryExecutor executor, CellCache cache, LayerCatalog catalog, String keyspace,
+			SimpleFeatureType sft, Query query) throws IOException {
 		this.sft = sft;
+		this.cache = cache;
+		this.catalog = catalog;
+		this.keyspace = keyspace;
 		this.query = query;
-		this.session = SessionRepository.getSession();
-		featureCache = CacheBuilder.newBuilder().expireAfterWrite(5L, TimeUnit.MINUTES).maximumSize(5000000L)
-				.build(new CacheLoader<String, SimpleFeature>() {
-					@Override
-					public SimpleFeature load(String key) throws Exception {
-						// TODO Auto-generated method stub
-						return null;
-					}
-				});
+		this.executor = executor;
+		this.session = executor.getSession();
+		this.geometryColumn = sft.getGeometryDescriptor().getLocalName();
+		this.builder = new SimpleFeatureBuilder(sft);
+		this.remaining = limit(query);
 		try {
 			fetch();
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) {
+			close();
+			throw new IOException("Failed to query " + sft.getTypeName(), e);
 		}
 	}
 
-	public void fetch() throws Exception {
+	/**
+	 * Returns the number of features the reader may stop after. The offset is applied on top of
+	 * this reader, so it has to provide the skipped features too. Sorted queries, which paged
+	 * queries are, see {@link org.geosde.core.data.ContentFeatureSource#getReader(Query)}, are
+	 * sorted in memory after this reader: stopping early would sort an arbitrary subset of the
+	 * features, so they are read in full and limited after sorting.
+	 */
+	static long limit(Query query) {
+		if (query.getMaxFeatures() < 0 || query.getMaxFeatures() == Integer.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		if (query.getSortBy() != null && query.getSortBy().length > 0 || query.getStartIndex() != null) {
+			return Long.MAX_VALUE;
+		}
+		return query.getMaxFeatures();
+	}
+
+	public void fetch() throws IOException {
 		bbox = new ReferencedEnvelope();
 
 		if (query.getFilter() != null) {
@@ -82,61 +197,157 @@ public class CassandraFeatureReader implements FeatureReader<SimpleFeatureType,
 				bbox = new ReferencedEnvelope();
 			}
 		}
-		StringBuilder sb = new StringBuilder();
-		sb.append(bbox.getMinY() + ":" + bbox.getMinX() + ",");
-		sb.append(bbox.getMinY() + ":" + bbox.getMaxX() + ",");
-		sb.append(bbox.getMaxY() + ":" + bbox.getMaxX() + ",");
-		sb.append(bbox.getMaxY() + ":" + bbox.getMinX() + ";");
-		String polygon = sb.toString();
-
-		S2RegionCoverer coverer = new S2RegionCoverer();
-		coverer.setMaxCells(1);
-		S2Polygon a = GeometryTestCase.makePolygon(polygon);
-		List<String> quad_ids = new ArrayList<>();
-		ArrayList<S2CellId> covering = new ArrayList<>();
-		coverer.getCovering(a, covering);
-
-		S2CellId cell = covering.get(0);
-		int level = cell.level();
-		for (int i = 1; i <= level; i++) {
-			S2CellId parent = cell.parent(i);
-			quad_ids.add(parent.toToken());
-		}
-		for (int i = level + 1; i <= 10; i++) {
-			covering.clear();
-			coverer.setMaxLevel(i);
-			coverer.setMinLevel(i);
-			coverer.getCovering(a, covering);
-			for (S2CellId id : covering) {
-				quad_ids.add(id.toToken());
+		S2QueryPlan plan = PLANNER.plan(bbox, !isPointLayer());
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Planned " + plan.getPartitionCount() + " partitions, " + plan.getSlices().size()
+					+ " slice reads for " + bbox);
+		}
+		List<String> tables = tables();
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Reading " + tables.size() + " time slices: " + tables);
+		}
+		String restriction = "";
+		List<Object> values = Collections.emptyList();
+		TableMetadata metadata = tables.isEmpty() ? null : table(tables.get(0));
+		if (metadata != null) {
+			// the time slices of a layer share its columns
+			FilterToCQL splitter = new FilterToCQL(metadata, TIME_PLANNER.getAttribute());
+			Filter[] split = splitter.split(query.getFilter());
+			if (split[0] != Filter.INCLUDE) {
+				restriction = " and " + splitter.encode(split[0]) + " allow filtering";
+				values = new ArrayList<>(splitter.getLiteralValues());
+			}
+			postFilter = split[1];
+			for (String name : DataUtilities.attributeNames(postFilter, sft)) {
+				if (!name.equals(geometryColumn) && metadata.getColumn(name) != null) {
+					attributes.add(name);
+				}
+			}
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Filter sent to Cassandra: " + split[0] + ", evaluated on the features: " + postFilter);
+			}
+		}
+		if (!restriction.isEmpty() || !attributes.isEmpty()) {
+			cache = null;
+		}
+		StringBuilder columns = new StringBuilder("cell,pos,fid,").append(geometryColumn);
+		for (String attribute : attributes) {
+			columns.append(',').append(attribute);
+		}
+		List<Statement> statements = new ArrayList<>();
+		if (cache != null) {
+			stamp = cache.stamp();
+		}
+		for (String table : tables) {
+			String select = "select " + columns + " from " + keyspace + "." + table + " where cell=?";
+			PreparedStatement partition = executor.prepare(select + restriction + ";");
+			PreparedStatement range = executor.prepare(select + " and pos>=? and pos<=?" + restriction + ";");
+			PreparedStatement positions = executor.prepare(select + " and pos in ?" + restriction + ";");
+			// cells stored as ids, see S2LongIndexStrategy, or as tokens
+			boolean longCellIds = DataType.bigint().equals(partition.getVariables().getType(0));
+			for (S2QueryPlan.Slice slice : plan.getSlices()) {
+				CellCache.Key cacheKey = null;
+				if (cache != null) {
+					cacheKey = CellCache.key(table, slice);
+					CellCache.Cell hit = cache.get(cacheKey);
+					if (hit != null) {
+						hits.add(new CachedSlice(table, hit));
+						continue;
+					}
+				}
+				Object cell = key(slice.getPartition(), longCellIds);
+				switch (slice.getType()) {
+				case RANGE:
+					statements.add(range.bind(
+							bindValues(values, cell, key(slice.getMin(), longCellIds), key(slice.getMax(), longCellIds))));
+					break;
+				case POSITIONS:
+					List<Object> keys = new ArrayList<>();
+					for (S2CellId pos : slice.getPositions()) {
+						keys.add(key(pos, longCellIds));
+					}
+					statements.add(positions.bind(bindValues(values, cell, keys)));
+					break;
+				default:
+					statements.add(partition.bind(bindValues(values, cell)));
+				}
+				if (cacheKey != null) {
+					keys.put(statements.get(statements.size() - 1), cacheKey);
+				}
 			}
+		}
+		if (cache != null && LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine(hits.size() + " slices cached, " + statements.size() + " queried");
+		}
+		stream = executor.query(statements);
+		if (cache != null) {
+			stream.setListener(new CellQueryStream.Listener() {
+				@Override
+				public void cellRead(Statement statement) {
+					CellCache.Key key = keys.remove(statement);
+					CellCache.Builder builder = misses.remove(statement);
+					if (key != null) {
+						cache.put(key, builder != null ? builder : cache.newBuilder(stamp));
+					}
+				}
+			});
+		}
+	}
 
+	/**
+	 * Returns the time slice tables to read: the ones selected by the temporal conditions of the
+	 * filter, or the slice of the feature type itself when the filter has none.
+	 */
+	List<String> tables() {
+		String typeName = sft.getTypeName();
+		String layer = typeName;
+		Date slice = null;
+		int underscore = typeName.lastIndexOf('_');
+		if (underscore > 0) {
+			slice = TimeSlicePlanner.sliceOf(typeName.substring(0, underscore), typeName);
+			if (slice != null) {
+				layer = typeName.substring(0, underscore);
+			}
 		}
-		// System.out.println(quad_ids);
-		String datetime = "";
-		ArrayList<Filter> list = Filters.children(query.getFilter());
-		for (Filter f : list) {
-			if (f.toString().contains("timestamp")) {
-				datetime = CQL.toCQL(f).split("=")[1].trim();
+		if (slice != null && TIME_PLANNER.ranges(query.getFilter()) == null) {
+			return Collections.singletonList(typeName);
+		}
+		List<String> existing = new ArrayList<>();
+		KeyspaceMetadata metadata = session.getCluster().getMetadata().getKeyspace(keyspace);
+		if (metadata != null) {
+			for (TableMetadata table : metadata.getTables()) {
+				existing.add(table.getName());
 			}
 		}
-		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHH");
-		Date date = formatter.parse(datetime);
-		String year_month = new SimpleDateFormat("yyyyMM").format(date);
-		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(sft);
-		session.execute("use usa");
-		PreparedStatement statement = session.prepare(
-				"select cell,pos,fid,the_geom from gis_osm_pois_free_1_"+datetime+" where cell=?;");
-		List<QueryProcess> tasks = new ArrayList<>();
-		int index = 0;
-		for (String quad_id : quad_ids) {
-			QueryProcess process = new QueryProcess(quad_id, session, featureCache, statement.bind(quad_id),
-					builder, bbox);
-			tasks.add(process);
-		}
-		executorService.invokeAll(tasks);
-		System.out.println(featureCache.size());
-		itr = featureCache.asMap().values().iterator();
+		return TIME_PLANNER.plan(query.getFilter(), layer, existing);
+	}
+
+	TableMetadata table(String table) {
+		KeyspaceMetadata metadata = session.getCluster().getMetadata().getKeyspace(keyspace);
+		return metadata == null ? null : metadata.getTable(table);
+	}
+
+	/**
+	 * Returns the key values of a cell query followed by the values of the filter restriction.
+	 */
+	static Object[] bindValues(List<Object> filterValues, Object... keys) {
+		Object[] values = Arrays.copyOf(keys, keys.length + filterValues.size());
+		for (int i = 0; i < filterValues.size(); i++) {
+			values[keys.length + i] = filterValues.get(i);
+		}
+		return values;
+	}
+
+	static Object key(S2CellId id, boolean longCellIds) {
+		return longCellIds ? (Object) id.id() : id.toToken();
+	}
+
+	/**
+	 * Point layers are only written in partition level cells, never in their ancestors.
+	 */
+	boolean isPointLayer() {
+		return sft.getGeometryDescriptor() != null
+				&& Point.class.isAssignableFrom(sft.getGeometryDescriptor().getType().getBinding());
 	}
 
 	@Override
@@ -146,68 +357,157 @@ public class CassandraFeatureReader implements FeatureReader<SimpleFeatureType,
 
 	@Override
 	public boolean hasNext() throws IOException {
-		return itr.hasNext();
+		if (nextFeature != null) {
+			return true;
+		}
+		if (stream == null) {
+			return false;
+		}
+		if (remaining <= 0) {
+			// limit reached, stop fetching the cells not read yet
+			close();
+			return false;
+		}
+		while (!hits.isEmpty()) {
+			CachedSlice slice = hits.peek();
+			if (hitRow == slice.cell.size()) {
+				hits.poll();
+				hitRow = 0;
+				continue;
+			}
+			int i = hitRow++;
+			SimpleFeature feature = parse(slice.table, slice.cell.getFid(i), slice.cell.getGeometry(i), null);
+			if (feature != null) {
+				nextFeature = feature;
+				remaining--;
+				return true;
+			}
+		}
+		Row row;
+		while ((row = stream.next()) != null) {
+			if (cache != null) {
+				gather(row);
+			}
+			SimpleFeature feature = parse(row);
+			if (feature != null) {
+				nextFeature = feature;
+				remaining--;
+				return true;
+			}
+		}
+		close();
+		return false;
 	}
 
 	@Override
 	public SimpleFeature next() throws IOException, IllegalArgumentException, NoSuchElementException {
-		// TODO Auto-generated method stub
-		currentFeature = itr.next();
-		return currentFeature;
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more features");
+		}
+		SimpleFeature feature = nextFeature;
+		nextFeature = null;
+		return feature;
 	}
 
-	@Override
-	public void close() throws IOException {
-		// TODO Auto-generated method stub
-
+	/**
+	 * Adds a row to the rows of its slice to be cached.
+	 */
+	void gather(Row row) {
+		Statement statement = stream.getStatement();
+		if (!keys.containsKey(statement)) {
+			return;
+		}
+		CellCache.Builder builder = misses.get(statement);
+		if (builder == null) {
+			builder = cache.newBuilder(stamp);
+			misses.put(statement, builder);
+		}
+		ByteBuffer buffer = row.getBytes(geometryColumn);
+		if (buffer != null) {
+			builder.add(row.getString("fid"), buffer);
+		}
 	}
 
-	class QueryProcess implements Callable<Integer> {
+	SimpleFeature parse(Row row) {
+		// the same feature in another time slice is another version of it
+		return parse(row.getColumnDefinitions().getTable(0), row.getString("fid"), row.getBytes(geometryColumn), row);
+	}
 
-		LoadingCache<String, SimpleFeature> queue;
-		Session session;
-		String datetime;
+	/**
+	 * Builds the feature held by a row, returns null if it falls outside the bbox, fails the post
+	 * filter or has already been returned.
+	 * <p>
+	 * Most rows of the partitions read fall outside the bbox, so the envelope of the encoded
+	 * geometry is tested before the geometry is built, and only the rows kept are decoded, straight
+	 * from the driver buffer.
+	 */
+	SimpleFeature parse(String table, String fid, ByteBuffer buffer, Row row) {
+		GeometryCodec codec = codec(table);
+		if (buffer == null || !codec.intersects(buffer, bbox)) {
+			return null;
+		}
 		Geometry geometry;
-		Statement statement;
-		ByteBuffer buffer;
-		SimpleFeatureBuilder builder;
-		WKBReader reader = new WKBReader();
-		Envelope bbox;
-		String index;
-
-		public QueryProcess(String index, Session session, LoadingCache<String, SimpleFeature> queue,
-				Statement statement, SimpleFeatureBuilder builder, Envelope bbox) {
-			this.index = index;
-			this.queue = queue;
-			this.session = session;
-			this.statement = statement;
-			this.builder = builder;
-			this.bbox = bbox;
-		}
-
-		@Override
-		public Integer call() {
-			// System.out.println(statement);
-			ResultSet rs = session.execute(statement);
-			for (Row row : rs) {
-				// System.out.println(row);
-				buffer = row.getBytes("the_geom");
-				String fid = row.getString("fid");
-				try {
-					geometry = reader.read(buffer.array());
-					if (!bbox.intersects(geometry.getEnvelopeInternal())) {
-						continue;
-					}
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
-
-				builder.set("the_geom", geometry);
-				SimpleFeature feature = builder.buildFeature(fid);
-				featureCache.put(fid, feature);
+		try {
+			geometry = codec.decode(buffer);
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Skipping row with invalid geometry", ex);
+			return null;
+		}
+		// the envelope test lets curves through, check them once decoded
+		if (!bbox.intersects(geometry.getEnvelopeInternal())) {
+			return null;
+		}
+		builder.set(geometryColumn, geometry);
+		if (row != null) {
+			for (String attribute : attributes) {
+				builder.set(attribute, row.getObject(attribute));
 			}
+		}
+		SimpleFeature feature = builder.buildFeature(fid);
+		if (postFilter != Filter.INCLUDE && !postFilter.evaluate(feature)) {
+			return null;
+		}
+		if (!seen.add(FID_HASH.newHasher().putUnencodedChars(table).putUnencodedChars(fid).hash().asLong())) {
+			return null;
+		}
+		return feature;
+	}
+
+	/**
+	 * Returns the codec of a table of the keyspace, looked up in the catalog once.
+	 */
+	GeometryCodec codec(String table) {
+		GeometryCodec codec = codecs.get(table);
+		if (codec == null) {
+			String encoding = catalog == null ? null : catalog.getGeometryEncoding(keyspace, table);
+			codec = GeometryCodecs.create(encoding);
+			codecs.put(table, codec);
+		}
+		return codec;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (stream != null) {
+			stream.close();
+			stream = null;
+		}
+		nextFeature = null;
+		hits.clear();
+		misses.clear();
+		keys.clear();
+	}
+
+	/**
+	 * Rows of a slice found in the cache.
+	 */
+	static class CachedSlice {
+		final String table;
+		final CellCache.Cell cell;
 
-			return 0;
+		CachedSlice(String table, CellCache.Cell cell) {
+			this.table = table;
+			this.cell = cell;
 		}
 	}
 
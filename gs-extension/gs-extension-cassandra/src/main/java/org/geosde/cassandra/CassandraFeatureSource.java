@@ -1,20 +1,39 @@
 package org.geosde.cassandra;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.geosde.core.data.ContentEntry;
 import org.geosde.core.data.ContentFeatureSource;
+import org.geosde.core.data.NearestFeatureSource;
+import org.geosde.cassandra.query.NearestNeighbourSearch;
+import org.geosde.cassandra.stats.CellStatistics;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.spatial.BBOX;
 
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
 
-public class CassandraFeatureSource extends ContentFeatureSource {
+public class CassandraFeatureSource extends ContentFeatureSource implements NearestFeatureSource {
 
 	Session session;
 
@@ -43,23 +62,186 @@ public class CassandraFeatureSource extends ContentFeatureSource {
 		return getDataStore().getSchema(entry.getName());
 	}
 
+	/**
+	 * Answered from the layer statistics for bbox filters, see {@link #readStatistics(Filter)}.
+	 */
 	@Override
 	protected ReferencedEnvelope getBoundsInternal(Query query) throws IOException {
-		return null;
+		CellStatistics stats = readStatistics(query.getFilter());
+		if (stats == null) {
+			return null;
+		}
+		Envelope bbox = bbox(query.getFilter());
+		Envelope bounds = bbox == null ? stats.getExtent() : stats.bounds(bbox);
+		ReferencedEnvelope result = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+		if (bounds != null) {
+			result.expandToInclude(bounds);
+		}
+		return result;
 	}
 
+	/**
+	 * Always -1, the features being counted by reading them. The layer statistics are not exact:
+	 * rows loaded twice are counted twice and rows loaded before statistics were kept are missing,
+	 * which is fine for bounds but not for counts.
+	 */
 	@Override
 	protected int getCountInternal(Query query) throws IOException {
+		return -1;
+	}
 
-		return 0;
+	/**
+	 * Reads the statistics of the cells a filter may select, for {@link Filter#INCLUDE} and filters
+	 * made of bbox tests only.
+	 *
+	 * @return the statistics, or null if the filter tests anything else or the layer has no
+	 *         statistics
+	 */
+	CellStatistics readStatistics(Filter filter) throws IOException {
+		if (!isBBoxOnly(filter)) {
+			return null;
+		}
+		return getDataStore().getStatistics(entry.getName().getLocalPart()).read(bbox(filter));
+	}
+
+	static boolean isBBoxOnly(Filter filter) {
+		if (filter == null || filter == Filter.INCLUDE || filter instanceof BBOX) {
+			return true;
+		}
+		if (filter instanceof And) {
+			for (Filter child : ((And) filter).getChildren()) {
+				if (!(child instanceof BBOX)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
 	}
 
+	/**
+	 * The envelope a bbox only filter selects, null for all the features.
+	 */
+	static Envelope bbox(Filter filter) {
+		if (filter == null || filter == Filter.INCLUDE) {
+			return null;
+		}
+		return (Envelope) filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+	}
+
+	/**
+	 * Id queries are read from the fid materialized view, see {@link CassandraFidFeatureReader},
+	 * other queries by bbox.
+	 */
 	@Override
 	protected FeatureReader<SimpleFeatureType, SimpleFeature> getReaderInternal(Query query) throws IOException {
-		CassandraFeatureReader reader = new CassandraFeatureReader(session,getSchema(),query);
+		Set<String> fids = CassandraFidFeatureReader.fids(query.getFilter());
+		String table = entry.getName().getLocalPart();
+		String view = table + CassandraFidFeatureReader.VIEW_SUFFIX;
+		if (fids != null && hasView(view)) {
+			return new CassandraFidFeatureReader(getDataStore().getQueryExecutor(),
+					getDataStore().getNamespaceURI() + "." + view, getSchema(), query, fids,
+					getDataStore().getGeometryCodec(table));
+		}
+		CassandraFeatureReader reader = new CassandraFeatureReader(getDataStore().getQueryExecutor(),
+				getDataStore().getCellCache(), getDataStore().getCatalog(), getDataStore().getNamespaceURI(), getSchema(),
+				query);
 		return reader;
 	}
 
+	boolean hasView(String view) {
+		KeyspaceMetadata keyspace = getDataStore().getMetadata().getKeyspace(getDataStore().getNamespaceURI());
+		return keyspace != null && keyspace.getMaterializedView(view) != null;
+	}
+
+	/**
+	 * Returns the metadata of the layer table, null if it does not exist.
+	 */
+	TableMetadata getTableMetadata() {
+		KeyspaceMetadata keyspace = getDataStore().getMetadata().getKeyspace(getDataStore().getNamespaceURI());
+		return keyspace == null ? null : keyspace.getTable(entry.getName().getLocalPart());
+	}
+
+	/**
+	 * Reports the split of the filters between Cassandra and the reader, see
+	 * {@link CassandraQueryCapabilities#splitFilter(Filter)}.
+	 */
+	@Override
+	public CassandraQueryCapabilities getQueryCapabilities() {
+		return new CassandraQueryCapabilities(this, super.getQueryCapabilities());
+	}
+
+	/**
+	 * The limit is applied on top of the reader, after sorting. The reader still stops fetching
+	 * cells once {@link Query#getMaxFeatures()} features have been read when the query is neither
+	 * sorted nor paged, see {@link CassandraFeatureReader#limit(Query)}.
+	 */
+	@Override
+	protected boolean canLimit() {
+		return false;
+	}
+
+	/**
+	 * Searches the cells around the point, see {@link NearestNeighbourSearch}, then reads the
+	 * attributes of the features found from the fid view, see {@link CassandraFidFeatureReader}.
+	 * Without the view, or for a feature missing from it, only the geometry is set.
+	 */
+	@Override
+	public SimpleFeatureCollection getNearest(Point point, int k, double maxDistance) throws IOException {
+		SimpleFeatureType schema = getSchema();
+		String table = entry.getName().getLocalPart();
+		NearestNeighbourSearch search = new NearestNeighbourSearch(getDataStore().getQueryExecutor(),
+				Collections.singletonList(getDataStore().getNamespaceURI() + "." + table), isPointLayer(schema));
+		search.setGeometryCodec(table, getDataStore().getGeometryCodec(table));
+		List<NearestNeighbourSearch.Neighbour> neighbours = search.search(point.getX(), point.getY(), k, maxDistance);
+		Map<String, SimpleFeature> complete = readFeatures(table, schema, neighbours);
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+		String geometryName = schema.getGeometryDescriptor().getLocalName();
+		List<SimpleFeature> features = new ArrayList<>();
+		for (NearestNeighbourSearch.Neighbour neighbour : neighbours) {
+			SimpleFeature feature = complete.get(neighbour.getFid());
+			if (feature == null) {
+				builder.set(geometryName, neighbour.getGeometry());
+				feature = builder.buildFeature(neighbour.getFid());
+			}
+			features.add(feature);
+		}
+		return DataUtilities.collection(features);
+	}
+
+	/**
+	 * Reads the features of the neighbours from the fid view, by fid, none if there is no view.
+	 */
+	Map<String, SimpleFeature> readFeatures(String table, SimpleFeatureType schema,
+			List<NearestNeighbourSearch.Neighbour> neighbours) throws IOException {
+		Map<String, SimpleFeature> result = new HashMap<>();
+		String view = table + CassandraFidFeatureReader.VIEW_SUFFIX;
+		if (neighbours.isEmpty() || !hasView(view)) {
+			return result;
+		}
+		Set<String> fids = new LinkedHashSet<>();
+		for (NearestNeighbourSearch.Neighbour neighbour : neighbours) {
+			fids.add(neighbour.getFid());
+		}
+		CassandraFidFeatureReader reader = new CassandraFidFeatureReader(getDataStore().getQueryExecutor(),
+				getDataStore().getNamespaceURI() + "." + view, schema, new Query(schema.getTypeName(), Filter.INCLUDE),
+				fids, getDataStore().getGeometryCodec(table));
+		try {
+			while (reader.hasNext()) {
+				SimpleFeature feature = reader.next();
+				result.put(feature.getID(), feature);
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	static boolean isPointLayer(SimpleFeatureType schema) {
+		return schema.getGeometryDescriptor() != null
+				&& Point.class.isAssignableFrom(schema.getGeometryDescriptor().getType().getBinding());
+	}
+
 	@Override
 	public CassandraDataStore getDataStore() {
 		return (CassandraDataStore) super.getDataStore();
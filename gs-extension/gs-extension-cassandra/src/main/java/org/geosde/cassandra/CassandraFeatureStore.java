@@ -1,13 +1,13 @@
 package org.geosde.cassandra;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Set;
 
+import org.geosde.cassandra.stats.DensityPyramid;
 import org.geosde.core.data.ContentEntry;
 import org.geosde.core.data.ContentFeatureStore;
 import org.geosde.core.data.ContentState;
+import org.geosde.core.data.NearestFeatureSource;
 import org.geosde.core.jdbc.JDBCFeatureStore;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.FeatureWriter;
@@ -15,19 +15,18 @@ import org.geotools.data.Query;
 import org.geotools.data.QueryCapabilities;
 import org.geotools.data.ResourceInfo;
 import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.factory.Hints.Key;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.Name;
 
-import com.datastax.driver.core.Session;
+import com.vividsolutions.jts.geom.Point;
 
-public class CassandraFeatureStore extends ContentFeatureStore {
+public class CassandraFeatureStore extends ContentFeatureStore implements NearestFeatureSource {
 
 	CassandraFeatureSource delegate;
-	Date date;
-	Session session = null;
 
 	public CassandraFeatureStore(ContentEntry entry) {
 		super(entry, Query.ALL);
@@ -40,22 +39,34 @@ public class CassandraFeatureStore extends ContentFeatureStore {
 			}
 		};
 		this.hints = (Set<Key>) (Set<?>) delegate.getSupportedHints();
-		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHH");
-		try {
-			date = formatter.parse("2017020100");
-		} catch (Exception e) {
-			// TODO: handle exception
-		}
 	}
 
+	/**
+	 * Returns an append only writer, see {@link CassandraInsertFeatureWriter}. Layer tables are
+	 * keyed by cell, so features can neither be modified nor removed in place.
+	 *
+	 * @throws IOException
+	 *             for an update only writer, as used to modify or remove features
+	 */
 	@Override
 	protected FeatureWriter<SimpleFeatureType, SimpleFeature> getWriterInternal(Query query, int flags)
 			throws IOException {
-		// TODO Auto-generated method stub
-		session = SessionRepository.getSession();
-		session.execute("use usa;");
-		return new CassandraInsertFeatureWriter(delegate.getSchema(), date, delegate.getName().getLocalPart(), session);
-		// return new CassandraInsertFeatureWriter(delegate.getSchema());
+		if ((flags & WRITER_ADD) == 0 && (flags & WRITER_UPDATE) != 0) {
+			throw new IOException(
+					"Features of " + getName().getLocalPart() + " cannot be modified nor removed, the layer is append only");
+		}
+		CassandraDataStore store = getDataStore();
+		String table_name = delegate.getName().getLocalPart();
+		CassandraInsertFeatureWriter writer = new CassandraInsertFeatureWriter(delegate.getSchema(),
+				store.getNamespaceURI(), table_name, store.getSession(), store.getIndexStrategy(table_name), store.getInsertStatementCache(),
+				store.getMaxWritesInFlight(), store.getGeometryCodec(table_name));
+		writer.setStatistics(store.getStatistics(table_name));
+		writer.setCellCache(store.getCellCache());
+		DensityPyramid pyramid = store.getDensityPyramid(table_name);
+		if (pyramid.exists()) {
+			writer.setDensityPyramid(pyramid);
+		}
+		return writer;
 	}
 
 	// ----------------------------------------------------------------------------------------
@@ -98,6 +109,16 @@ public class CassandraFeatureStore extends ContentFeatureStore {
 		return delegate.buildFeatureType();
 	}
 
+	@Override
+	public SimpleFeatureCollection getNearest(Point point, int k, double maxDistance) throws IOException {
+		return delegate.getNearest(point, k, maxDistance);
+	}
+
+	@Override
+	protected boolean canLimit() {
+		return delegate.canLimit();
+	}
+
 	@Override
 	public ContentEntry getEntry() {
 		return delegate.getEntry();
@@ -0,0 +1,195 @@
+package org.geosde.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geosde.cassandra.query.CellQueryExecutor;
+import org.geosde.cassandra.query.FidLookup;
+import org.geosde.cassandra.util.GeometryCodec;
+import org.geosde.cassandra.util.WKBGeometryCodec;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.Or;
+import org.opengis.filter.identity.Identifier;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Reads the features of an id query from the <code>&lt;table&gt;_view</code> materialized view
+ * keyed by fid, one single partition read per id instead of a scan of the layer.
+ * <p>
+ * The reads run side by side through a {@link FidLookup}, and features are returned in the order
+ * of the ids, each id once. The view holds every column of the table, so features are complete
+ * and the rest of the query filter is evaluated on them.
+ */
+public class CassandraFidFeatureReader implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+	static final Logger LOGGER = Logging.getLogger(CassandraFidFeatureReader.class);
+
+	public final static String VIEW_SUFFIX = "_view";
+
+	SimpleFeatureType sft;
+	Query query;
+	FidLookup lookup;
+	SimpleFeatureBuilder builder;
+	GeometryCodec codec;
+	/** number of features still allowed by the query limit */
+	long remaining;
+	SimpleFeature nextFeature;
+
+	/**
+	 * @param view
+	 *            keyspace qualified name of the view
+	 * @param fids
+	 *            the ids to read, in the order features are wanted
+	 */
+	public CassandraFidFeatureReader(CellQueryExecutor executor, String view, SimpleFeatureType sft, Query query,
+			Set<String> fids) {
+		this(executor, view, sft, query, fids, new WKBGeometryCodec());
+	}
+
+	/**
+	 * @param codec
+	 *            the codec of the table geometries, owned by this reader
+	 */
+	public CassandraFidFeatureReader(CellQueryExecutor executor, String view, SimpleFeatureType sft, Query query,
+			Set<String> fids, GeometryCodec codec) {
+		this.sft = sft;
+		this.codec = codec;
+		this.query = query;
+		this.builder = new SimpleFeatureBuilder(sft);
+		this.remaining = CassandraFeatureReader.limit(query);
+		this.lookup = executor.lookup(executor.prepare("select * from " + view + " where fid=?;"), fids);
+	}
+
+	/**
+	 * Returns the ids a filter selects, in the order they are listed, or null if it does not
+	 * restrict the features to a set of ids. Conditions other than the ids are left to the
+	 * reader.
+	 */
+	public static Set<String> fids(Filter filter) {
+		if (filter instanceof Id) {
+			Set<String> fids = new LinkedHashSet<>();
+			for (Identifier identifier : ((Id) filter).getIdentifiers()) {
+				fids.add(identifier.getID().toString());
+			}
+			return fids;
+		}
+		if (filter instanceof And) {
+			Set<String> result = null;
+			for (Filter child : ((And) filter).getChildren()) {
+				Set<String> fids = fids(child);
+				if (fids != null) {
+					if (result == null) {
+						result = fids;
+					} else {
+						result.retainAll(fids);
+					}
+				}
+			}
+			return result;
+		}
+		if (filter instanceof Or) {
+			Set<String> result = new LinkedHashSet<>();
+			for (Filter child : ((Or) filter).getChildren()) {
+				Set<String> fids = fids(child);
+				if (fids == null) {
+					return null;
+				}
+				result.addAll(fids);
+			}
+			return result;
+		}
+		return null;
+	}
+
+	@Override
+	public SimpleFeatureType getFeatureType() {
+		return sft;
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		if (nextFeature != null) {
+			return true;
+		}
+		if (lookup == null) {
+			return false;
+		}
+		if (remaining <= 0) {
+			close();
+			return false;
+		}
+		Row row;
+		while ((row = lookup.next()) != null) {
+			SimpleFeature feature = parse(row);
+			if (feature != null && (query.getFilter() == null || query.getFilter().evaluate(feature))) {
+				nextFeature = feature;
+				remaining--;
+				return true;
+			}
+		}
+		close();
+		return false;
+	}
+
+	@Override
+	public SimpleFeature next() throws IOException, IllegalArgumentException, NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more features");
+		}
+		SimpleFeature feature = nextFeature;
+		nextFeature = null;
+		return feature;
+	}
+
+	/**
+	 * Builds the feature held by a row, returns null if its geometry cannot be decoded.
+	 */
+	SimpleFeature parse(Row row) {
+		List<Object> values = new ArrayList<>(sft.getAttributeCount());
+		for (AttributeDescriptor attr : sft.getAttributeDescriptors()) {
+			String name = attr.getLocalName();
+			if (!row.getColumnDefinitions().contains(name) || row.isNull(name)) {
+				values.add(null);
+			} else if (attr instanceof GeometryDescriptor) {
+				ByteBuffer buffer = row.getBytes(name);
+				try {
+					values.add(codec.decode(buffer));
+				} catch (Exception ex) {
+					LOGGER.log(Level.WARNING, "Skipping row with invalid geometry", ex);
+					return null;
+				}
+			} else {
+				values.add(row.getObject(name));
+			}
+		}
+		return builder.buildFeature(row.getString("fid"), values.toArray());
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (lookup != null) {
+			lookup.close();
+			lookup = null;
+		}
+		nextFeature = null;
+	}
+
+}
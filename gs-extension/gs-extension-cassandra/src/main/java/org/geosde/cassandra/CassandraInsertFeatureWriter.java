@@ -1,57 +1,115 @@
 package org.geosde.cassandra;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import org.geosde.cassandra.query.CellCache;
+import org.geosde.cassandra.stats.CellStatistics;
+import org.geosde.cassandra.stats.DensityPyramid;
+import org.geosde.cassandra.stats.LayerStatistics;
+import org.geosde.cassandra.util.GeometryCodec;
+import org.geosde.cassandra.util.WKBGeometryCodec;
+import org.geosde.cassandra.write.AsyncBatchWriter;
+import org.geosde.cassandra.write.FeatureRowEncoder;
+import org.geosde.cassandra.write.InsertStatementCache;
 import org.geosde.core.index.IndexStrategy;
 import org.geosde.core.index.S2IndexStrategy;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureWriter;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.AttributeDescriptor;
-import org.opengis.feature.type.GeometryDescriptor;
 
-import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.Session;
-import com.datastax.driver.core.SimpleStatement;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.MultiLineString;
-import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.io.WKBWriter;
 
+/**
+ * Appends features to a layer table.
+ * <p>
+ * Each feature is encoded when it is written and bound to a prepared insert statement shared
+ * through the data store {@link InsertStatementCache}. Rows are then sent asynchronously as
+ * unlogged batches of a single <code>cell</code> partition, so that the token aware driver sends
+ * them straight to the replicas of the partition. {@link #close()} waits for all the rows to be
+ * written and reports the first failure.
+ * <p>
+ * When given a {@link LayerStatistics}, the writer also counts its rows per partition cell and
+ * stores those statistics once all the rows have been written, and likewise for the cells of a
+ * {@link DensityPyramid}.
+ * <p>
+ * When given the data store {@link CellCache}, the cached slices of each partition written to are
+ * invalidated as rows are added, and again once they have been written, so that readers racing
+ * the writes do not keep older rows.
+ */
 public class CassandraInsertFeatureWriter implements FeatureWriter<SimpleFeatureType, SimpleFeature> {
 
-	private final static int BATCH_SIZE = 20;
 	private SimpleFeature currentFeature;
-	private BatchStatement bs;
-	private int curBufferPos = 0;
 	private SimpleFeatureType sft = null;
 	// an array for reuse in Feature creation
 	protected Object[] emptyAtts;
 
-	protected List<SimpleFeature> featurelist;
-	IndexStrategy indexStrategy = null;
-	Date date;
-	WKBWriter writer = new WKBWriter();
+	String keyspace;
 	String table_name;
 	Session session;
+	FeatureRowEncoder encoder;
+	InsertStatementCache statements;
+	AsyncBatchWriter batchWriter;
+	LayerStatistics statistics;
+	CellStatistics cellStatistics = new CellStatistics();
+	DensityPyramid densityPyramid;
+	DensityPyramid.Accumulator density;
+	UUID writerId = UUID.randomUUID();
+	CellCache cellCache;
+
+	public CassandraInsertFeatureWriter(SimpleFeatureType sft, String keyspace, String table_name, Session session) {
+		this(sft, keyspace, table_name, session, new S2IndexStrategy(sft.getTypeName()), new InsertStatementCache(session),
+				AsyncBatchWriter.DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public CassandraInsertFeatureWriter(SimpleFeatureType sft, String keyspace, String table_name, Session session,
+			IndexStrategy indexStrategy, InsertStatementCache statements, int maxInFlight) {
+		this(sft, keyspace, table_name, session, indexStrategy, statements, maxInFlight, new WKBGeometryCodec());
+	}
 
-	public CassandraInsertFeatureWriter(SimpleFeatureType sft, Date date, String table_name, Session session) {
+	/**
+	 * @param keyspace
+	 *            the keyspace of the table, see {@link CassandraDataStore#getNamespaceURI()}
+	 * @param codec
+	 *            the codec of the table geometries, see
+	 *            {@link CassandraDataStore#getGeometryCodec(String)}
+	 */
+	public CassandraInsertFeatureWriter(SimpleFeatureType sft, String keyspace, String table_name, Session session,
+			IndexStrategy indexStrategy, InsertStatementCache statements, int maxInFlight, GeometryCodec codec) {
 		this.sft = sft;
-		indexStrategy = new S2IndexStrategy(sft.getTypeName());
-		bs = new BatchStatement();
-		featurelist = new ArrayList<>();
-		this.date = date;
+		this.keyspace = keyspace;
 		this.table_name = table_name;
 		this.session = session;
+		this.encoder = new FeatureRowEncoder(sft, indexStrategy, codec);
+		this.statements = statements;
+		this.batchWriter = new AsyncBatchWriter(session, maxInFlight);
+	}
+
+	/**
+	 * Sets the table the statistics of the rows written are stored to, null to keep none.
+	 */
+	public void setStatistics(LayerStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Sets the pyramid the density of the rows written is added to, null to keep none.
+	 */
+	public void setDensityPyramid(DensityPyramid densityPyramid) {
+		this.densityPyramid = densityPyramid;
+		this.density = densityPyramid == null ? null : densityPyramid.newAccumulator();
+	}
+
+	/**
+	 * Sets the cache whose slices are invalidated as rows are written, null for none.
+	 */
+	public void setCellCache(CellCache cellCache) {
+		this.cellCache = cellCache;
 	}
 
 	@Override
@@ -69,105 +127,73 @@ public class CassandraInsertFeatureWriter implements FeatureWriter<SimpleFeature
 		// reader has no more (no were are adding to the file)
 		// so return an empty feature
 		currentFeature = DataUtilities.template(getFeatureType(), null, emptyAtts);
-		featurelist.add(currentFeature);
 		return currentFeature;
 
 	}
 
-	@Override
-	protected Object clone() throws CloneNotSupportedException {
-		return super.clone();
-	}
-
 	@Override
 	public void write() throws IOException {
-		if (++curBufferPos >= CassandraInsertFeatureWriter.BATCH_SIZE) {
-			// buffer full => do the inserts
-			flush();
+		if (currentFeature == null) {
+			throw new IOException("No feature to write, call next() first");
 		}
-	}
-
-	public void flush() {
-		if (curBufferPos == 0) {
-			return;
+		Map<String, Object> values = encoder.encode(currentFeature);
+		Object partitionKey = FeatureRowEncoder.partitionKey(values);
+		batchWriter.add(partitionKey, statements.bind(keyspace + "." + table_name, values));
+		if (cellCache != null) {
+			cellCache.invalidate(table_name, partitionKey);
 		}
-		try {
-			Geometry geom;
-
-			for (SimpleFeature feature : featurelist) {
-				// the datastore sets as userData, grab it and update the fid
-				if (sft.getGeometryDescriptor().getType().getName().toString().equals("MultiPolygon")) {
-					geom = (MultiPolygon) feature.getDefaultGeometry();
-				} else if (sft.getGeometryDescriptor().getType().getName().toString().equals("MultiLineString")) {
-					geom = (MultiLineString) feature.getDefaultGeometry();
-				} else {
-					geom = (Point) feature.getDefaultGeometry();
-				}
-				ByteBuffer buf_geom = ByteBuffer.wrap(writer.write(geom));
-				Map<String, Object> primaryKey = indexStrategy.index(geom);
-				List<AttributeDescriptor> attrDes = sft.getAttributeDescriptors();
-				List<String> col_items = new ArrayList<>();
-				Map<String, Object> values = new HashMap<>();
-				values.put("cell", primaryKey.get("cell"));
-				values.put("pos", primaryKey.get("pos"));
-				Object fid = null;
-				for (AttributeDescriptor attr : attrDes) {
-					if(attr.getLocalName().equals("cell")||attr.getLocalName().equals("pos"))
-						continue;
-					if (attr instanceof GeometryDescriptor) {
-						String col_name = attr.getLocalName();
-						col_items.add(col_name);
-						values.put(col_name, buf_geom);
-					} else {
-						String col_name = attr.getLocalName();
-						Class type = attr.getType().getBinding();
-						col_items.add(col_name);
-						values.put(col_name, feature.getAttribute(col_name));
-						if (col_name.equals("osm_id"))
-							values.put("fid", feature.getAttribute(col_name));
-					}
-
-				}
-		
-				String params = "";
-				StringBuilder builder = new StringBuilder();
-				List<Object> list = new ArrayList<>();
-				for (String name : values.keySet()) {
-					builder.append(name + ",");
-					list.add(values.get(name));
-					params += "?,";
-				}
-				String items = builder.toString().substring(0, builder.toString().length() - 1);
-				SimpleStatement s = new SimpleStatement("INSERT INTO " + table_name + " (" + items + ") values ("
-						+ params.substring(0, params.length() - 1) + ");", list.toArray());
-				bs.add(s);
+		Geometry geometry = (Geometry) currentFeature.getDefaultGeometry();
+		cellStatistics.add(partitionKey, geometry.getEnvelopeInternal());
+		if (density != null) {
+			if (geometry instanceof Point) {
+				density.add(((Point) geometry).getX(), ((Point) geometry).getY());
+			} else {
+				Envelope envelope = geometry.getEnvelopeInternal();
+				density.add(envelope.centre().x, envelope.centre().y);
 			}
-			session.execute(bs);
-			bs.clear();
-			curBufferPos = 0;
-			featurelist.clear();
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
+		currentFeature = null;
+	}
 
+	/**
+	 * Sends the buffered rows without waiting for them to be written.
+	 */
+	public void flush() throws IOException {
+		batchWriter.flush();
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		// TODO Auto-generated method stub
-		super.finalize();
+	/**
+	 * Number of rows acknowledged by the cluster so far.
+	 */
+	public long getWrittenRows() {
+		return batchWriter.getWrittenRows();
 	}
 
 	@Override
 	public void close() throws IOException {
-		// TODO Auto-generated method stub
-
+		batchWriter.close();
+		if (cellCache != null) {
+			for (CellStatistics.Cell cell : cellStatistics.getCells()) {
+				cellCache.invalidate(table_name, cell.getKey());
+			}
+		}
+		if (statistics != null) {
+			statistics.write(writerId, cellStatistics);
+			cellStatistics = new CellStatistics();
+		}
+		if (densityPyramid != null) {
+			densityPyramid.write(writerId, density);
+			density = densityPyramid.newAccumulator();
+		}
 	}
 
+	/**
+	 * Never called, the writer holding no existing feature, see
+	 * {@link CassandraFeatureStore#getWriterInternal(org.geotools.data.Query, int)}.
+	 */
 	@Override
 	public void remove() throws IOException {
-		// TODO Auto-generated method stub
-
+		throw new IOException("Insert only writer, features cannot be removed");
 	}
 
 }
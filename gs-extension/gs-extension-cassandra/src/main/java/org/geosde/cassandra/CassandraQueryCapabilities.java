@@ -0,0 +1,60 @@
+package org.geosde.cassandra;
+
+import org.geosde.cassandra.query.FilterToCQL;
+import org.geotools.data.QueryCapabilities;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
+
+import com.datastax.driver.core.TableMetadata;
+
+/**
+ * Query capabilities of a layer table, which also report how the reader splits a filter between
+ * Cassandra and itself, see {@link #splitFilter(Filter)}.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class CassandraQueryCapabilities extends QueryCapabilities {
+
+	final CassandraFeatureSource source;
+
+	final QueryCapabilities delegate;
+
+	CassandraQueryCapabilities(CassandraFeatureSource source, QueryCapabilities delegate) {
+		this.source = source;
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Splits a filter into the conditions sent to Cassandra with the cell queries and the ones the
+	 * reader evaluates on the features, see {@link FilterToCQL#split(Filter)}. Either is
+	 * {@link Filter#INCLUDE} when there are none.
+	 */
+	public Filter[] splitFilter(Filter filter) {
+		TableMetadata table = source.getTableMetadata();
+		if (table == null) {
+			return new Filter[] { Filter.INCLUDE, filter == null ? Filter.INCLUDE : filter };
+		}
+		return new FilterToCQL(table, CassandraFeatureReader.TIME_PLANNER.getAttribute()).split(filter);
+	}
+
+	@Override
+	public boolean isOffsetSupported() {
+		return delegate.isOffsetSupported();
+	}
+
+	@Override
+	public boolean supportsSorting(SortBy[] sortAttributes) {
+		return delegate.supportsSorting(sortAttributes);
+	}
+
+	@Override
+	public boolean isReliableFIDSupported() {
+		return delegate.isReliableFIDSupported();
+	}
+
+	@Override
+	public boolean isUseProvidedFIDSupported() {
+		return delegate.isUseProvidedFIDSupported();
+	}
+}
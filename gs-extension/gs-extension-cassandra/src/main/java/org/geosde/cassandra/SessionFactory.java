@@ -0,0 +1,277 @@
+package org.geosde.cassandra;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.ProtocolOptions.Compression;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.NoSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+
+/**
+ * Builds the clusters and sessions of the data stores from the connection parameters of
+ * {@link CassandraDataStoreFactory}.
+ * <p>
+ * Requests are routed to a replica of their partition in the local data center, frames are
+ * compressed with LZ4, and the number of connections and of requests per connection are set per
+ * host distance. Idempotent statements, which the cell queries are, are sent to a second replica
+ * when the first has not answered within the speculative delay. Driver metrics are enabled by
+ * default, see {@link Cluster#getMetrics()}.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class SessionFactory {
+
+	public final static int DEFAULT_CORE_CONNECTIONS_LOCAL = 2;
+
+	public final static int DEFAULT_MAX_CONNECTIONS_LOCAL = 8;
+
+	public final static int DEFAULT_CORE_CONNECTIONS_REMOTE = 1;
+
+	public final static int DEFAULT_MAX_CONNECTIONS_REMOTE = 2;
+
+	public final static int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 1024;
+
+	public final static long DEFAULT_SPECULATIVE_DELAY = 100;
+
+	public final static int DEFAULT_SPECULATIVE_EXECUTIONS = 1;
+
+	private String[] contactPoints = { "localhost" };
+
+	private int port = ProtocolOptions.DEFAULT_PORT;
+
+	/**
+	 * Local data center, null to take the one of the contact points
+	 */
+	private String localDc;
+
+	private Compression compression = Compression.LZ4;
+
+	private int coreConnectionsLocal = DEFAULT_CORE_CONNECTIONS_LOCAL;
+
+	private int maxConnectionsLocal = DEFAULT_MAX_CONNECTIONS_LOCAL;
+
+	private int coreConnectionsRemote = DEFAULT_CORE_CONNECTIONS_REMOTE;
+
+	private int maxConnectionsRemote = DEFAULT_MAX_CONNECTIONS_REMOTE;
+
+	private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+	/**
+	 * Milliseconds before an idempotent request is sent to another replica, 0 to disable
+	 * speculative executions
+	 */
+	private long speculativeDelay = DEFAULT_SPECULATIVE_DELAY;
+
+	private int speculativeExecutions = DEFAULT_SPECULATIVE_EXECUTIONS;
+
+	private boolean metrics = true;
+
+	private String user;
+
+	private String password;
+
+	/**
+	 * Builds a new cluster from the current settings, which the caller closes.
+	 */
+	public Cluster buildCluster() {
+		PoolingOptions pooling = new PoolingOptions();
+		pooling.setConnectionsPerHost(HostDistance.LOCAL, coreConnectionsLocal, maxConnectionsLocal);
+		pooling.setConnectionsPerHost(HostDistance.REMOTE, coreConnectionsRemote, maxConnectionsRemote);
+		pooling.setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection);
+		pooling.setMaxRequestsPerConnection(HostDistance.REMOTE, maxRequestsPerConnection);
+
+		DCAwareRoundRobinPolicy.Builder dcAware = DCAwareRoundRobinPolicy.builder();
+		if (localDc != null) {
+			dcAware.withLocalDc(localDc);
+		}
+		LoadBalancingPolicy balancing = new TokenAwarePolicy(dcAware.build());
+
+		SpeculativeExecutionPolicy speculative = speculativeDelay > 0 && speculativeExecutions > 0
+				? new ConstantSpeculativeExecutionPolicy(speculativeDelay, speculativeExecutions)
+				: NoSpeculativeExecutionPolicy.INSTANCE;
+
+		Cluster.Builder builder = Cluster.builder().addContactPoints(contactPoints).withPort(port)
+				.withCompression(compression).withPoolingOptions(pooling).withLoadBalancingPolicy(balancing)
+				.withSpeculativeExecutionPolicy(speculative);
+		if (user != null) {
+			builder.withCredentials(user, password == null ? "" : password);
+		}
+		if (!metrics) {
+			builder.withoutMetrics();
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Builds a new cluster and connects a session to it. Closing the session's cluster, see
+	 * {@link Session#getCluster()}, releases both.
+	 */
+	public Session connect() {
+		Cluster cluster = buildCluster();
+		try {
+			return cluster.connect();
+		} catch (RuntimeException e) {
+			cluster.close();
+			throw e;
+		}
+	}
+
+	public String[] getContactPoints() {
+		return contactPoints.clone();
+	}
+
+	/**
+	 * @param contactPoints
+	 *            host names or addresses, or a single comma separated list of them
+	 */
+	public void setContactPoints(String... contactPoints) {
+		if (contactPoints.length == 1) {
+			contactPoints = contactPoints[0].split(",");
+		}
+		for (int i = 0; i < contactPoints.length; i++) {
+			contactPoints[i] = contactPoints[i].trim();
+		}
+		if (contactPoints.length == 0 || contactPoints[0].isEmpty()) {
+			throw new IllegalArgumentException("At least one contact point is required");
+		}
+		this.contactPoints = contactPoints;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public String getLocalDc() {
+		return localDc;
+	}
+
+	public void setLocalDc(String localDc) {
+		this.localDc = localDc == null || localDc.trim().isEmpty() ? null : localDc.trim();
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @param compression
+	 *            lz4, snappy or none
+	 * @throws IllegalArgumentException
+	 *             if the compression is unknown
+	 */
+	public void setCompression(String compression) {
+		try {
+			this.compression = Compression.valueOf(compression.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown compression " + compression);
+		}
+	}
+
+	public int getCoreConnectionsLocal() {
+		return coreConnectionsLocal;
+	}
+
+	public int getMaxConnectionsLocal() {
+		return maxConnectionsLocal;
+	}
+
+	/**
+	 * Sets the number of connections to each host of the local data center.
+	 */
+	public void setConnectionsLocal(int core, int max) {
+		checkConnections(core, max);
+		this.coreConnectionsLocal = core;
+		this.maxConnectionsLocal = max;
+	}
+
+	public int getCoreConnectionsRemote() {
+		return coreConnectionsRemote;
+	}
+
+	public int getMaxConnectionsRemote() {
+		return maxConnectionsRemote;
+	}
+
+	/**
+	 * Sets the number of connections to each host of the remote data centers.
+	 */
+	public void setConnectionsRemote(int core, int max) {
+		checkConnections(core, max);
+		this.coreConnectionsRemote = core;
+		this.maxConnectionsRemote = max;
+	}
+
+	static void checkConnections(int core, int max) {
+		if (core < 0 || max < 1 || core > max) {
+			throw new IllegalArgumentException("Invalid connections per host: core " + core + ", max " + max);
+		}
+	}
+
+	public int getMaxRequestsPerConnection() {
+		return maxRequestsPerConnection;
+	}
+
+	public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+		if (maxRequestsPerConnection < 1) {
+			throw new IllegalArgumentException("maxRequestsPerConnection must be positive");
+		}
+		this.maxRequestsPerConnection = maxRequestsPerConnection;
+	}
+
+	public long getSpeculativeDelay() {
+		return speculativeDelay;
+	}
+
+	/**
+	 * Sets the milliseconds before an idempotent request is sent to another replica, 0 to disable
+	 * speculative executions.
+	 */
+	public void setSpeculativeDelay(long speculativeDelay) {
+		if (speculativeDelay < 0) {
+			throw new IllegalArgumentException("speculativeDelay must not be negative");
+		}
+		this.speculativeDelay = speculativeDelay;
+	}
+
+	public int getSpeculativeExecutions() {
+		return speculativeExecutions;
+	}
+
+	/**
+	 * Sets the maximum number of executions started after the first one.
+	 */
+	public void setSpeculativeExecutions(int speculativeExecutions) {
+		if (speculativeExecutions < 0) {
+			throw new IllegalArgumentException("speculativeExecutions must not be negative");
+		}
+		this.speculativeExecutions = speculativeExecutions;
+	}
+
+	public boolean isMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setCredentials(String user, String password) {
+		this.user = user == null || user.isEmpty() ? null : user;
+		this.password = password;
+	}
+}
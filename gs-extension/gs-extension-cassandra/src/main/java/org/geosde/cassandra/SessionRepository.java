@@ -1,63 +1,73 @@
 package org.geosde.cassandra;
 
+import java.io.IOException;
 import java.util.PropertyResourceBundle;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.datastax.driver.core.Cluster;
-import com.datastax.driver.core.Cluster.Builder;
 import com.datastax.driver.core.Metadata;
 import com.datastax.driver.core.Session;
 
+/**
+ * Session shared by the data stores created without connection parameters, connected with the
+ * {@link SessionFactory} defaults to the hosts listed in <code>config.properties</code>. It is
+ * closed by {@link #close()} only, never by its users.
+ */
 public class SessionRepository {
-	private static Session instance = null;
-	private static Cluster cluster = null;
+	private static volatile Session instance = null;
+	private static volatile Cluster cluster = null;
 	private static Lock lock = new ReentrantLock();
 	private static PropertyResourceBundle bundle;
 
 	private SessionRepository() {
 	}
 
+	/**
+	 * Returns the shared session, connecting it on first access.
+	 *
+	 * @throws IllegalStateException
+	 *             if <code>config.properties</code> cannot be read
+	 */
 	public static Session getSession() {
-		if (null == instance) {
+		Session result = instance;
+		if (null == result) {
+			lock.lock();
 			try {
-				lock.lock();
-
-				if (null == instance) {
+				result = instance;
+				if (null == result) {
 
 					// read configuration information from "config.properties"
 					bundle = new PropertyResourceBundle(
 							SessionRepository.class.getResourceAsStream("config.properties"));
-					String[] hosts = bundle.getString("hosts").split(",");
-					Builder builder = Cluster.builder();
-					for (String host : hosts) {
-						builder = builder.addContactPoint(host);
-					}
-					cluster = builder.build();
-					instance = cluster.connect();
-
+					SessionFactory factory = new SessionFactory();
+					factory.setContactPoints(bundle.getString("hosts"));
+					result = factory.connect();
+					cluster = result.getCluster();
+					instance = result;
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to read the shared session configuration", e);
 			} finally {
 				lock.unlock();
 			}
 		}
-		return instance;
+		return result;
 	}
 
 	public static Metadata getMetadata() {
-		return cluster.getMetadata();
+		return getSession().getCluster().getMetadata();
 	}
-	
 
 	public static void close() {
-		if (null == cluster) {
+		if (null != cluster) {
 			try {
 				lock.lock();
 
-				if (null == cluster) {
+				if (null != cluster) {
 					cluster.close();
+					cluster = null;
+					instance = null;
 				}
 			} finally {
 				lock.unlock();
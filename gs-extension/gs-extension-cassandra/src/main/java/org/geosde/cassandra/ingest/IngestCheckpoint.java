@@ -0,0 +1,86 @@
+package org.geosde.cassandra.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Number of leading source features already written, kept in a file so that an interrupted
+ * ingest can resume where it stopped, followed by the id the statistics of the ingest are stored
+ * under, so that a resumed ingest keeps adding to them rather than counting its rows again.
+ * <p>
+ * The file is replaced atomically, a crash while saving leaves the previous value in place.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class IngestCheckpoint {
+
+	final File file;
+
+	public IngestCheckpoint(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the saved number of features, 0 when nothing was saved yet.
+	 */
+	public long load() throws IOException {
+		String[] content = read();
+		try {
+			return content.length == 0 ? 0 : Long.parseLong(content[0]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid checkpoint file " + file, e);
+		}
+	}
+
+	/**
+	 * Returns the saved writer id, null when nothing was saved yet or the checkpoint predates it.
+	 */
+	public UUID loadWriter() throws IOException {
+		String[] content = read();
+		try {
+			return content.length < 2 ? null : UUID.fromString(content[1]);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid checkpoint file " + file, e);
+		}
+	}
+
+	String[] read() throws IOException {
+		if (!file.exists()) {
+			return new String[0];
+		}
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+		return content.isEmpty() ? new String[0] : content.split("\\s+");
+	}
+
+	public void save(long committed) throws IOException {
+		save(committed, null);
+	}
+
+	/**
+	 * @param writer
+	 *            the id the statistics of the rows committed are stored under, may be null
+	 */
+	public void save(long committed, UUID writer) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		String content = writer == null ? Long.toString(committed) : committed + " " + writer;
+		Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Removes the checkpoint once the ingest completed.
+	 */
+	public void clear() throws IOException {
+		Files.deleteIfExists(file.toPath());
+	}
+}
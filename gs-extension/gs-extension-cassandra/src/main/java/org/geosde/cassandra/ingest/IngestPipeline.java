@@ -0,0 +1,528 @@
+package org.geosde.cassandra.ingest;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geosde.cassandra.CassandraDataStore;
+import org.geosde.cassandra.object.LayerCatalog;
+import org.geosde.cassandra.stats.CellStatistics;
+import org.geosde.cassandra.stats.LayerStatistics;
+import org.geosde.cassandra.util.GeometryCodecs;
+import org.geosde.cassandra.write.AsyncBatchWriter;
+import org.geosde.cassandra.write.FeatureRowEncoder;
+import org.geosde.cassandra.write.InsertStatementCache;
+import org.geosde.core.index.S2IndexStrategy;
+import org.geosde.core.index.S2LongIndexStrategy;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.datastax.driver.core.Session;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Bulk loads features into a layer table.
+ * <p>
+ * The load runs in three stages connected by bounded queues:
+ * <ol>
+ * <li>the calling thread reads the source and numbers the features,</li>
+ * <li>a pool of encoder threads indexes the geometries and encodes the rows,</li>
+ * <li>a writer thread binds the rows to prepared statements and hands them to an
+ * {@link AsyncBatchWriter}, which sends them grouped by partition and retries failed requests.</li>
+ * </ol>
+ * A full queue blocks the stage feeding it, so the read rate follows the write rate of the
+ * cluster. The number of leading features written is saved to the {@link IngestCheckpoint} as the
+ * load progresses; a later run over the same source skips them. Rows written after the
+ * checkpoint are written again on resume, which is harmless since inserts are idempotent.
+ * <p>
+ * If a {@link LayerStatistics} table is set, the rows of the committed prefix, the one saved to
+ * the checkpoint, are counted per partition cell and stored to it before each checkpoint and at
+ * the end of the run. The statistics are stored under a writer id saved with the checkpoint, and
+ * a resumed run starts from the ones stored under it, so rows written again on resume are not
+ * counted twice.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class IngestPipeline {
+
+	static final Logger LOGGER = Logging.getLogger(IngestPipeline.class);
+
+	public final static int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	public final static long DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+	/**
+	 * Marks the end of the features on the queues
+	 */
+	final static Item END = new Item(-1, null);
+
+	final Session session;
+
+	final String table;
+
+	final SimpleFeatureType sft;
+
+	final InsertStatementCache statements;
+
+	int encoderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	int maxInFlight = AsyncBatchWriter.DEFAULT_MAX_IN_FLIGHT;
+
+	int maxRetries = AsyncBatchWriter.DEFAULT_MAX_RETRIES;
+
+	long retryBackoff = AsyncBatchWriter.DEFAULT_RETRY_BACKOFF;
+
+	long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+	IngestCheckpoint checkpoint;
+
+	boolean longCellIds;
+
+	/**
+	 * Encoding of the table geometries, null until set or read from the catalog by {@link #run}
+	 */
+	String geometryEncoding;
+
+	LayerCatalog catalog;
+
+	LayerStatistics statistics;
+
+	/**
+	 * @param table
+	 *            the layer table, qualified by its keyspace unless it is the session one
+	 */
+	public IngestPipeline(Session session, String table, SimpleFeatureType sft) {
+		this(session, table, sft, new InsertStatementCache(session));
+	}
+
+	public IngestPipeline(Session session, String table, SimpleFeatureType sft, InsertStatementCache statements) {
+		this.session = session;
+		this.table = table;
+		this.sft = sft;
+		this.statements = statements;
+	}
+
+	/**
+	 * Loads into a layer table of the namespace of a data store, through its session and insert
+	 * statements, following the cell ids and the geometry encoding of the table and keeping its
+	 * statistics.
+	 */
+	public IngestPipeline(CassandraDataStore store, String table, SimpleFeatureType sft) {
+		this(store.getSession(), store.getNamespaceURI() + "." + table, sft, store.getInsertStatementCache());
+		this.catalog = store.getCatalog();
+		this.longCellIds = store.getIndexStrategy(table) instanceof S2LongIndexStrategy;
+		this.statistics = store.getStatistics(table);
+	}
+
+	public void setEncoderThreads(int encoderThreads) {
+		if (encoderThreads < 1) {
+			throw new IllegalArgumentException("encoderThreads must be positive");
+		}
+		this.encoderThreads = encoderThreads;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be positive");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @see AsyncBatchWriter#setRetry(int, long)
+	 */
+	public void setRetry(int maxRetries, long backoffMillis) {
+		this.maxRetries = maxRetries;
+		this.retryBackoff = backoffMillis;
+	}
+
+	/**
+	 * Sets where the progress is saved, and how many rows are written between two saves.
+	 */
+	public void setCheckpoint(IngestCheckpoint checkpoint, long interval) {
+		this.checkpoint = checkpoint;
+		this.checkpointInterval = interval;
+	}
+
+	public void setCheckpoint(IngestCheckpoint checkpoint) {
+		setCheckpoint(checkpoint, DEFAULT_CHECKPOINT_INTERVAL);
+	}
+
+	/**
+	 * Sets whether the table stores its cells as bigint ids, see {@link S2LongIndexStrategy}.
+	 */
+	public void setLongCellIds(boolean longCellIds) {
+		this.longCellIds = longCellIds;
+	}
+
+	/**
+	 * Sets the encoding of the table geometries, see {@link GeometryCodecs}. By default, the
+	 * encoding recorded in the catalog for the table is used.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the encoding is unknown
+	 */
+	public void setGeometryEncoding(String geometryEncoding) {
+		this.geometryEncoding = GeometryCodecs.create(geometryEncoding).getName();
+	}
+
+	/**
+	 * Sets the table the statistics of the rows written are stored to, null to keep none.
+	 */
+	public void setStatistics(LayerStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Loads the features, resuming after the checkpoint if there is one. The iterator is not
+	 * closed.
+	 *
+	 * @return the counters of the run
+	 * @throws IOException
+	 *             if rows could not be written; the checkpoint still records the progress made
+	 */
+	public IngestStats run(FeatureIterator<SimpleFeature> features) throws IOException {
+		final IngestStats stats = new IngestStats();
+		final long resumeAt = checkpoint == null ? 0 : checkpoint.load();
+		final SequenceTracker tracker = new SequenceTracker(resumeAt);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		UUID writerId = resumeAt > 0 ? checkpoint.loadWriter() : null;
+		CellStatistics cells = new CellStatistics();
+		if (writerId == null) {
+			writerId = UUID.randomUUID();
+		} else if (statistics != null) {
+			cells = statistics.read(writerId);
+		}
+		if (geometryEncoding == null) {
+			geometryEncoding = resolveGeometryEncoding();
+		}
+		final BlockingQueue<Item> input = new ArrayBlockingQueue<>(queueCapacity);
+		final BlockingQueue<Item> output = new ArrayBlockingQueue<>(queueCapacity);
+		if (resumeAt > 0) {
+			LOGGER.info("Resuming ingest of " + table + " after " + resumeAt + " features");
+		}
+
+		ExecutorService encoders = Executors.newFixedThreadPool(encoderThreads, new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ingest-encoder-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i = 0; i < encoderThreads; i++) {
+			encoders.execute(new Encoder(input, output, stats, failure));
+		}
+		Writer writerTask = new Writer(output, tracker, stats, failure, writerId, cells);
+		Thread writer = new Thread(writerTask, "ingest-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		try {
+			long sequence = 0;
+			while (features.hasNext() && failure.get() == null) {
+				SimpleFeature feature = features.next();
+				if (sequence < resumeAt) {
+					sequence++;
+					stats.skipped.incrementAndGet();
+					continue;
+				}
+				if (!put(input, new Item(sequence++, feature), failure)) {
+					break;
+				}
+				stats.read.incrementAndGet();
+			}
+		} catch (RuntimeException e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			for (int i = 0; i < encoderThreads; i++) {
+				if (!put(input, END, failure)) {
+					break;
+				}
+			}
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, e);
+			}
+			encoders.shutdownNow();
+		}
+
+		Throwable t = failure.get();
+		if (checkpoint != null) {
+			if (t == null) {
+				checkpoint.clear();
+			} else {
+				checkpoint.save(writerTask.saved, writerId);
+			}
+		}
+		LOGGER.info("Ingest of " + table + (t == null ? " completed: " : " failed: ") + stats);
+		if (t != null) {
+			throw new IOException("Ingest of " + table + " failed after " + writerTask.saved + " features", t);
+		}
+		return stats;
+	}
+
+	/**
+	 * Reads the geometry encoding of the table from the catalog, WKB if the table is not a layer
+	 * of the catalog.
+	 */
+	String resolveGeometryEncoding() {
+		int dot = table.indexOf('.');
+		String keyspace = dot < 0 ? session.getLoggedKeyspace() : table.substring(0, dot);
+		String encoding = null;
+		if (keyspace != null) {
+			LayerCatalog layers = catalog == null ? new LayerCatalog(session) : catalog;
+			encoding = layers.getGeometryEncoding(keyspace, table.substring(dot + 1));
+		}
+		return GeometryCodecs.create(encoding).getName();
+	}
+
+	/**
+	 * Puts an item on a queue, giving up if the pipeline failed in the meantime.
+	 */
+	static boolean put(BlockingQueue<Item> queue, Item item, AtomicReference<Throwable> failure) {
+		try {
+			while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+				if (failure.get() != null) {
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet(null, e);
+			return false;
+		}
+	}
+
+	/**
+	 * A feature travelling through the pipeline, replaced by its row once encoded.
+	 */
+	static class Item {
+
+		final long sequence;
+
+		SimpleFeature feature;
+
+		Map<String, Object> values;
+
+		/**
+		 * Partition key of the row and envelope of its geometry, kept for the statistics
+		 */
+		Object cell;
+
+		Envelope envelope;
+
+		Item(long sequence, SimpleFeature feature) {
+			this.sequence = sequence;
+			this.feature = feature;
+		}
+	}
+
+	class Encoder implements Runnable {
+
+		final BlockingQueue<Item> input;
+
+		final BlockingQueue<Item> output;
+
+		final IngestStats stats;
+
+		final AtomicReference<Throwable> failure;
+
+		final FeatureRowEncoder encoder = new FeatureRowEncoder(sft,
+				longCellIds ? new S2LongIndexStrategy(table) : new S2IndexStrategy(table),
+				GeometryCodecs.create(geometryEncoding));
+
+		Encoder(BlockingQueue<Item> input, BlockingQueue<Item> output, IngestStats stats,
+				AtomicReference<Throwable> failure) {
+			this.input = input;
+			this.output = output;
+			this.stats = stats;
+			this.failure = failure;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Item item = input.take();
+					if (item == END) {
+						put(output, END, failure);
+						return;
+					}
+					try {
+						Map<String, Object> values = encoder.encode(item.feature);
+						item.envelope = ((Geometry) item.feature.getDefaultGeometry()).getEnvelopeInternal();
+						item.cell = FeatureRowEncoder.partitionKey(values);
+						item.values = values;
+						stats.encoded.incrementAndGet();
+					} catch (RuntimeException e) {
+						stats.rejected.incrementAndGet();
+						LOGGER.log(Level.WARNING, "Skipping feature " + item.feature.getID(), e);
+					}
+					item.feature = null;
+					if (!put(output, item, failure)) {
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				// pipeline shut down
+			}
+		}
+	}
+
+	class Writer implements Runnable, AsyncBatchWriter.Listener {
+
+		final BlockingQueue<Item> output;
+
+		final SequenceTracker tracker;
+
+		final IngestStats stats;
+
+		final AtomicReference<Throwable> failure;
+
+		final UUID writerId;
+
+		/**
+		 * Rows sent and not counted yet, by sequence, tracked only if statistics are kept
+		 */
+		final TreeMap<Long, Item> pending = new TreeMap<>();
+
+		/**
+		 * Statistics of the rows of the committed prefix, only touched by the writer thread
+		 */
+		final CellStatistics cells;
+
+		/**
+		 * Committed prefix the statistics were last stored for, to be saved to the checkpoint
+		 */
+		volatile long saved;
+
+		Writer(BlockingQueue<Item> output, SequenceTracker tracker, IngestStats stats,
+				AtomicReference<Throwable> failure, UUID writerId, CellStatistics cells) {
+			this.output = output;
+			this.tracker = tracker;
+			this.stats = stats;
+			this.failure = failure;
+			this.writerId = writerId;
+			this.cells = cells;
+			this.saved = tracker.committed();
+		}
+
+		@Override
+		public void run() {
+			AsyncBatchWriter batchWriter = new AsyncBatchWriter(session, maxInFlight);
+			batchWriter.setRetry(maxRetries, retryBackoff);
+			batchWriter.setListener(this);
+			int ended = 0;
+			try {
+				while (ended < encoderThreads) {
+					Item item = output.poll(100, TimeUnit.MILLISECONDS);
+					if (item == null) {
+						if (failure.get() != null) {
+							return;
+						}
+						continue;
+					}
+					if (item == END) {
+						ended++;
+						continue;
+					}
+					if (item.values == null) {
+						// rejected by the encoder, nothing to write
+						tracker.done(item.sequence);
+					} else {
+						if (statistics != null) {
+							pending.put(item.sequence, item);
+						}
+						batchWriter.add(item.cell, statements.bind(table, item.values), item.sequence);
+						item.values = null;
+					}
+					if (tracker.committed() - saved >= checkpointInterval) {
+						long committed = saveStatistics();
+						if (checkpoint != null) {
+							checkpoint.save(committed, writerId);
+						}
+						LOGGER.info("Ingest of " + table + ": " + stats);
+					}
+				}
+			} catch (Throwable t) {
+				failure.compareAndSet(null, t);
+			} finally {
+				// wait for the rows in flight, even on failure, so that they are counted
+				try {
+					batchWriter.close();
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+				try {
+					saveStatistics();
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			}
+		}
+
+		/**
+		 * Counts the rows of the committed prefix and stores the statistics, replacing the ones
+		 * stored before under the writer id. The statistics are stored before the checkpoint is
+		 * saved.
+		 *
+		 * @return the committed prefix counted
+		 */
+		long saveStatistics() throws IOException {
+			long committed = tracker.committed();
+			while (!pending.isEmpty() && pending.firstKey() < committed) {
+				Item item = pending.pollFirstEntry().getValue();
+				cells.add(item.cell, item.envelope);
+			}
+			if (statistics != null) {
+				statistics.write(writerId, cells);
+			}
+			saved = committed;
+			return committed;
+		}
+
+		@Override
+		public void written(long[] sequences, long latencyNanos) {
+			stats.written(sequences.length, latencyNanos);
+			for (long sequence : sequences) {
+				tracker.done(sequence);
+			}
+		}
+
+		@Override
+		public void retried(int rows, int attempt, Throwable cause) {
+			stats.retries.incrementAndGet();
+			LOGGER.log(Level.FINE, "Retrying " + rows + " rows, attempt " + attempt, cause);
+		}
+	}
+}
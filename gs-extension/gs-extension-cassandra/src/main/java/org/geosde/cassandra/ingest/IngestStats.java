@@ -0,0 +1,114 @@
+package org.geosde.cassandra.ingest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of an {@link IngestPipeline} run, updated by the pipeline stages as they progress.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class IngestStats {
+
+	final long start = System.nanoTime();
+
+	final AtomicLong skipped = new AtomicLong();
+
+	final AtomicLong read = new AtomicLong();
+
+	final AtomicLong encoded = new AtomicLong();
+
+	final AtomicLong rejected = new AtomicLong();
+
+	final AtomicLong written = new AtomicLong();
+
+	final AtomicLong requests = new AtomicLong();
+
+	final AtomicLong retries = new AtomicLong();
+
+	final AtomicLong latencyNanos = new AtomicLong();
+
+	final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	void written(int rows, long latency) {
+		written.addAndGet(rows);
+		requests.incrementAndGet();
+		latencyNanos.addAndGet(latency);
+		long max;
+		while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency))
+			;
+	}
+
+	/**
+	 * Features skipped because a previous run already wrote them.
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Features read from the source and handed to the encoders.
+	 */
+	public long getRead() {
+		return read.get();
+	}
+
+	public long getEncoded() {
+		return encoded.get();
+	}
+
+	/**
+	 * Features which could not be encoded, typically for lack of a geometry.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Write requests acknowledged, each holding the rows of one partition.
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * Rows written per second since the start of the run.
+	 */
+	public double getThroughput() {
+		long elapsed = System.nanoTime() - start;
+		return elapsed == 0 ? 0 : written.get() * 1e9 / elapsed;
+	}
+
+	/**
+	 * Mean time between sending a write request and its acknowledgement, retries included.
+	 */
+	public double getMeanLatencyMillis() {
+		long count = requests.get();
+		return count == 0 ? 0 : latencyNanos.get() / 1e6 / count;
+	}
+
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"read %d, skipped %d, encoded %d, rejected %d, written %d in %d requests, %d retries, %.0f rows/s, latency mean %.1f ms max %.1f ms",
+				getRead(), getSkipped(), getEncoded(), getRejected(), getWritten(), getRequests(), getRetries(),
+				getThroughput(), getMeanLatencyMillis(), getMaxLatencyMillis());
+	}
+}
@@ -0,0 +1,54 @@
+package org.geosde.cassandra.ingest;
+
+import java.util.BitSet;
+
+/**
+ * Tracks rows completing out of order and reports how many rows from the start have all
+ * completed. Thread-safe.
+ *
+ * @author Xiao Fei
+ *
+ */
+class SequenceTracker {
+
+	/**
+	 * Completions are kept in a bit set starting at <code>base</code>, shifted once the committed
+	 * prefix moved this far past it
+	 */
+	final static int COMPACT_THRESHOLD = 1 << 20;
+
+	long base;
+
+	long committed;
+
+	BitSet done = new BitSet();
+
+	/**
+	 * @param committed
+	 *            number of rows already completed, the sequence of the first row to track
+	 */
+	SequenceTracker(long committed) {
+		this.base = committed;
+		this.committed = committed;
+	}
+
+	synchronized void done(long sequence) {
+		if (sequence < committed) {
+			return;
+		}
+		done.set((int) (sequence - base));
+		int next = done.nextClearBit((int) (committed - base));
+		committed = base + next;
+		if (next >= COMPACT_THRESHOLD) {
+			done = done.get(next, Math.max(next, done.length()));
+			base = committed;
+		}
+	}
+
+	/**
+	 * Number of rows from the start of the sequence which all completed.
+	 */
+	synchronized long committed() {
+		return committed;
+	}
+}
@@ -25,6 +25,7 @@ public class Layer {
 	private double miny;
 	private String owner;
 	private int srid;
+	private String geometry_encoding;
 	
 	public Layer() {
 		// TODO Auto-generated constructor stub
@@ -133,6 +134,18 @@ public class Layer {
 	public void setSrid(int srid) {
 		this.srid = srid;
 	}
+
+	/**
+	 * Encoding of the geometry column, see {@link org.geosde.cassandra.util.GeometryCodecs}, null
+	 * for the layers written as WKB before the encoding was recorded.
+	 */
+	public String getGeometry_encoding() {
+		return geometry_encoding;
+	}
+
+	public void setGeometry_encoding(String geometry_encoding) {
+		this.geometry_encoding = geometry_encoding;
+	}
 	
 	
 	
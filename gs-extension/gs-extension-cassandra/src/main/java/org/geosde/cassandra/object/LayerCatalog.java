@@ -0,0 +1,353 @@
+package org.geosde.cassandra.object;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geosde.cassandra.CassandraTypeConvertor;
+import org.geotools.feature.AttributeTypeBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.Name;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SchemaChangeListenerBase;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.mapping.Mapper;
+import com.datastax.driver.mapping.MappingManager;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * In-process cache of the layer catalog: the rows of <code>catalog.layer</code> grouped by
+ * workspace, and the feature types built from the layer tables.
+ * <p>
+ * Entries are loaded on first access. The catalog registers itself as a schema change listener
+ * of the cluster, and drops the feature type of a table when the driver reports the table
+ * changed or removed, and the layers when a table is added or removed. Layers added through
+ * {@link #addLayer(Layer)} invalidate the layers as well. Thread-safe.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class LayerCatalog extends SchemaChangeListenerBase {
+
+	static final Logger LOGGER = Logging.getLogger(LayerCatalog.class);
+
+	/**
+	 * Keyspace holding the catalog tables
+	 */
+	public final static String CATALOG_KEYSPACE = "catalog";
+
+	/**
+	 * Format of the creation date suffixed to the layer name in table names
+	 */
+	public final static String TABLE_DATE_FORMAT = "yyyyMMddHH";
+
+	final static String LAYER_TABLE = "layer";
+
+	final static String GEOMETRY_ENCODING_COLUMN = "geometry_encoding";
+
+	final Session session;
+
+	/**
+	 * Mapper of <code>catalog.layer</code> on the session, null until first access
+	 */
+	volatile Mapper<Layer> layerMapper;
+
+	/**
+	 * Layers by workspace, null until loaded
+	 */
+	volatile Map<String, List<Layer>> layers;
+
+	/**
+	 * Feature types by keyspace and table
+	 */
+	final ConcurrentMap<String, SimpleFeatureType> featureTypes = new ConcurrentHashMap<>();
+
+	/**
+	 * Whether the columns of <code>catalog.layer</code> have been checked, see
+	 * {@link #ensureColumns()}
+	 */
+	volatile boolean columnsChecked;
+
+	public LayerCatalog(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * Returns the mapper of <code>catalog.layer</code>, adding first the columns the mapper
+	 * expects, which it checks when it is created, see {@link #ensureColumns()}.
+	 */
+	Mapper<Layer> getLayerMapper() {
+		Mapper<Layer> result = layerMapper;
+		if (result == null) {
+			synchronized (this) {
+				result = layerMapper;
+				if (result == null) {
+					ensureColumns();
+					layerMapper = result = new MappingManager(session).mapper(Layer.class);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Starts listening to the schema changes of the cluster.
+	 */
+	public void register() {
+		session.getCluster().register(this);
+	}
+
+	public void unregister() {
+		session.getCluster().unregister(this);
+	}
+
+	/**
+	 * Returns the layers of a workspace, scanning <code>catalog.layer</code> only if the layers
+	 * are not cached.
+	 */
+	public List<Layer> getLayers(String workspace) {
+		List<Layer> result = loadLayers().get(workspace);
+		return result == null ? Collections.<Layer> emptyList() : result;
+	}
+
+	public Layer getLayer(String workspace, String category, String layerName, long cdate) {
+		for (Layer layer : getLayers(workspace)) {
+			if (layer.getCdate() == cdate && layer.getLayer_name().equals(layerName)
+					&& layer.getCategory().equals(category)) {
+				return layer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the layer stored in a table, named after the layer and its creation date.
+	 */
+	public Layer getLayerOfTable(String workspace, String table) {
+		SimpleDateFormat formatter = new SimpleDateFormat(TABLE_DATE_FORMAT);
+		for (Layer layer : getLayers(workspace)) {
+			if (table.equals(layer.getLayer_name() + "_" + formatter.format(new Date(layer.getCdate())))) {
+				return layer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the geometry encoding recorded for the layer stored in a table, null for WKB or if
+	 * the table is not a layer of the catalog.
+	 */
+	public String getGeometryEncoding(String workspace, String table) {
+		Layer layer = getLayerOfTable(workspace, table);
+		return layer == null ? null : layer.getGeometry_encoding();
+	}
+
+	/**
+	 * Expands the extent of the layer stored in a table. Layers are created with an all zero
+	 * extent, which is replaced rather than expanded.
+	 * <p>
+	 * The stored row is read again and merged under the lock of the catalog, so that concurrent
+	 * expansions through this catalog do not lose each other, and the cached layers, which other
+	 * threads may be reading, are left untouched.
+	 */
+	public void expandExtent(String workspace, String table, Envelope extent) {
+		Layer cached = getLayerOfTable(workspace, table);
+		if (cached == null || extent == null) {
+			return;
+		}
+		synchronized (this) {
+			Mapper<Layer> mapper = getLayerMapper();
+			Layer layer = mapper.get(cached.getWorkspace(), cached.getCategory(), cached.getLayer_name(),
+					cached.getCdate());
+			if (layer == null) {
+				return;
+			}
+			Envelope merged = new Envelope(extent);
+			if (layer.getMinx() != 0 || layer.getMiny() != 0 || layer.getMaxx() != 0 || layer.getMaxy() != 0) {
+				merged.expandToInclude(
+						new Envelope(layer.getMinx(), layer.getMaxx(), layer.getMiny(), layer.getMaxy()));
+			}
+			layer.setMinx(merged.getMinX());
+			layer.setMiny(merged.getMinY());
+			layer.setMaxx(merged.getMaxX());
+			layer.setMaxy(merged.getMaxY());
+			addLayer(layer);
+		}
+	}
+
+	Map<String, List<Layer>> loadLayers() {
+		Map<String, List<Layer>> loaded = layers;
+		if (loaded == null) {
+			synchronized (this) {
+				loaded = layers;
+				if (loaded == null) {
+					Map<String, List<Layer>> byWorkspace = new HashMap<>();
+					Mapper<Layer> mapper = getLayerMapper();
+					for (Layer layer : mapper.map(session.execute("SELECT * FROM catalog.layer;")).all()) {
+						List<Layer> list = byWorkspace.get(layer.getWorkspace());
+						if (list == null) {
+							list = new ArrayList<>();
+							byWorkspace.put(layer.getWorkspace(), list);
+						}
+						list.add(layer);
+					}
+					for (Map.Entry<String, List<Layer>> entry : byWorkspace.entrySet()) {
+						entry.setValue(Collections.unmodifiableList(entry.getValue()));
+					}
+					layers = loaded = byWorkspace;
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Saves a layer to <code>catalog.layer</code> and drops the cached layers.
+	 */
+	public void addLayer(Layer layer) {
+		getLayerMapper().save(layer);
+		invalidateLayers();
+	}
+
+	/**
+	 * Adds the columns introduced since <code>catalog.layer</code> was created, which the mapper
+	 * reads and writes. Rows saved before have them null.
+	 */
+	void ensureColumns() {
+		if (columnsChecked) {
+			return;
+		}
+		KeyspaceMetadata keyspace = session.getCluster().getMetadata().getKeyspace(CATALOG_KEYSPACE);
+		TableMetadata table = keyspace == null ? null : keyspace.getTable(LAYER_TABLE);
+		if (table != null && table.getColumn(GEOMETRY_ENCODING_COLUMN) == null) {
+			LOGGER.info("Adding column " + GEOMETRY_ENCODING_COLUMN + " to " + key(CATALOG_KEYSPACE, LAYER_TABLE));
+			session.execute("ALTER TABLE " + key(CATALOG_KEYSPACE, LAYER_TABLE) + " ADD " + GEOMETRY_ENCODING_COLUMN
+					+ " text;");
+		}
+		columnsChecked = true;
+	}
+
+	/**
+	 * Returns the feature type of a layer table, building it from the table metadata only if it
+	 * is not cached.
+	 *
+	 * @throws IOException
+	 *             if the table does not exist
+	 */
+	public SimpleFeatureType getFeatureType(String keyspace, Name name) throws IOException {
+		String key = key(keyspace, name.getLocalPart());
+		SimpleFeatureType featureType = featureTypes.get(key);
+		if (featureType == null || !featureType.getName().equals(name)) {
+			KeyspaceMetadata keyspaceMetadata = session.getCluster().getMetadata().getKeyspace(keyspace);
+			TableMetadata table = keyspaceMetadata == null ? null : keyspaceMetadata.getTable(name.getLocalPart());
+			if (table == null) {
+				throw new IOException("No table " + key + " for layer " + name);
+			}
+			featureType = buildFeatureType(name, table);
+			featureTypes.put(key, featureType);
+		}
+		return featureType;
+	}
+
+	public void invalidateLayers() {
+		layers = null;
+	}
+
+	public void invalidateFeatureType(String keyspace, String table) {
+		featureTypes.remove(key(keyspace, table));
+	}
+
+	/**
+	 * Drops everything cached.
+	 */
+	public void invalidate() {
+		invalidateLayers();
+		featureTypes.clear();
+	}
+
+	static String key(String keyspace, String table) {
+		return keyspace + "." + table;
+	}
+
+	static SimpleFeatureType buildFeatureType(Name name, TableMetadata table) {
+		List<ColumnMetadata> columns = table.getColumns();
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(name);
+		AttributeTypeBuilder attrTypeBuilder = new AttributeTypeBuilder();
+		for (ColumnMetadata cm : columns) {
+			String cname = cm.getName();
+			Class binding = CassandraTypeConvertor.CA_MAP_TO_TYPE.get(cm.getType());
+			if (!cm.getName().equals("cell") && !cm.getName().equals("cell_id") && !cm.getName().equals("epoch")
+					&& !cm.getName().equals("pos")
+					&& !cm.getName().equals("timestamp") && !cm.getName().equals("fid")) {
+				if (Geometry.class.isAssignableFrom(binding)) {
+					attrTypeBuilder.binding(binding);
+					attrTypeBuilder.setCRS(DefaultGeographicCRS.WGS84);
+					builder.add(attrTypeBuilder.buildDescriptor(cname, attrTypeBuilder.buildGeometryType()));
+				} else {
+					builder.add(attrTypeBuilder.binding(binding).nillable(false).buildDescriptor(cname));
+				}
+			}
+		}
+		return builder.buildFeatureType();
+	}
+
+	//
+	// Schema change events, delivered on a driver thread
+	//
+	@Override
+	public void onKeyspaceRemoved(KeyspaceMetadata keyspace) {
+		String prefix = keyspace.getName() + ".";
+		for (Iterator<String> it = featureTypes.keySet().iterator(); it.hasNext();) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+		invalidateLayers();
+	}
+
+	@Override
+	public void onTableAdded(TableMetadata table) {
+		// a new layer table comes with a new catalog row
+		invalidateLayers();
+	}
+
+	@Override
+	public void onTableRemoved(TableMetadata table) {
+		changed(table);
+		invalidateLayers();
+	}
+
+	@Override
+	public void onTableChanged(TableMetadata current, TableMetadata previous) {
+		changed(current);
+	}
+
+	void changed(TableMetadata table) {
+		String keyspace = table.getKeyspace().getName();
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Schema of " + key(keyspace, table.getName()) + " changed, dropping its feature type");
+		}
+		invalidateFeatureType(keyspace, table.getName());
+		if (CATALOG_KEYSPACE.equals(keyspace)) {
+			invalidateLayers();
+		}
+	}
+}
@@ -4,65 +4,123 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.geosde.cassandra.util.GeometryCodec;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
-import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.WKBReader;
 
+/**
+ * Pages through the rows of one partition.
+ * <p>
+ * The first page is requested by {@link #prefetch()}, which the result set calls ahead of time
+ * for the partitions it is about to read, and each call to {@link #nextPage()} requests the
+ * following page before decoding the current one, so the round trip to the cluster overlaps the
+ * decoding instead of stalling it. {@link #close()} cancels the page requested, if any.
+ */
 public class CassandraFeaturePage implements ICassandraPage<SimpleFeature> {
 
 	public final static int RESULTS_PER_PAGE = 100;
 
 	private Session session;
-	private SimpleStatement statement = null;
-	private PagingState currentState = null;
+	private Statement statement = null;
+	private int fetchSize = RESULTS_PER_PAGE;
+	private ResultSetFuture future = null;
+	/** the following page requested, null if none */
+	private ListenableFuture<ResultSet> more = null;
+	private ResultSet rs = null;
 	private SimpleFeatureBuilder builder = null;
 	private Envelope bbox = null;
-	private WKBReader reader = new WKBReader();
+	private GeometryCodec codec;
+	private String geometryColumn;
+	/** rows read so far and the bytes they held, to size the pages of the next partitions */
+	private long rows = 0;
+	private long bytes = 0;
 
-	public CassandraFeaturePage(Session session, SimpleStatement statement, SimpleFeatureType sft, Envelope bbox) {
+	public CassandraFeaturePage(Session session, SimpleStatement statement, SimpleFeatureType sft,
+			GeometryCodec codec, Envelope bbox) {
+		this(session, statement, sft, codec, bbox, RESULTS_PER_PAGE);
+	}
+
+	public CassandraFeaturePage(Session session, Statement statement, SimpleFeatureType sft, GeometryCodec codec,
+			Envelope bbox, int fetchSize) {
 		this.session = session;
 		this.statement = statement;
+		this.codec = codec;
+		this.geometryColumn = sft.getGeometryDescriptor().getLocalName();
 		this.bbox = bbox;
+		this.fetchSize = fetchSize;
 		this.builder = new SimpleFeatureBuilder(sft);
 	}
 
+	/**
+	 * Sends the query of the first page in the background, if not done already.
+	 */
+	public void prefetch() {
+		if (future == null) {
+			statement.setFetchSize(fetchSize);
+			future = session.executeAsync(statement);
+		}
+	}
+
 	@Override
 	public List<SimpleFeature> nextPage() {
-		List<SimpleFeature> features = new ArrayList<>();
-		statement.setFetchSize(RESULTS_PER_PAGE);
-		// 第一页没有分页状态
-		if (currentState != null) {
-			statement.setPagingState(currentState);
+		prefetch();
+		if (rs == null) {
+			rs = future.getUninterruptibly();
+		}
+		int available = rs.getAvailableWithoutFetching();
+		if (available == 0 && !rs.isFullyFetched()) {
+			// the page requested by the previous call has not arrived yet
+			Uninterruptibles.getUninterruptibly(rs.fetchMoreResults());
+			available = rs.getAvailableWithoutFetching();
 		}
-		ResultSet rs = session.execute(statement);
-		currentState = rs.getExecutionInfo().getPagingState();
-		int remaining = rs.getAvailableWithoutFetching();
-		for (Row row : rs) {
-			SimpleFeature feature = parse(row);
+		more = rs.isFullyFetched() ? null : rs.fetchMoreResults();
+		List<SimpleFeature> features = new ArrayList<>(available);
+		for (int i = 0; i < available; i++) {
+			SimpleFeature feature = parse(rs.one());
 			if (feature != null)
 				features.add(feature);
-			if (--remaining == 0) {
-				break;
-			}
 		}
 		return features;
 	}
 
+	/**
+	 * Cancels the request of the first page or of the following one, if still outstanding.
+	 */
+	public void close() {
+		if (rs == null && future != null) {
+			future.cancel(true);
+		}
+		if (more != null) {
+			more.cancel(true);
+			more = null;
+		}
+	}
+
 	public boolean isFullyFetched() {
-		if (currentState == null)
-			return true;
-		else
-			return false;
+		return rs != null && rs.isFullyFetched() && rs.getAvailableWithoutFetching() == 0;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * Size of the geometries and fids of the rows read so far.
+	 */
+	public long getBytes() {
+		return bytes;
 	}
 
 	@Override
@@ -70,12 +128,17 @@ public class CassandraFeaturePage implements ICassandraPage<SimpleFeature> {
 		SimpleFeature feature = null;
 		Geometry geometry = null;
 		ByteBuffer buffer;
-		buffer = row.getBytes("the_geom");
+		buffer = row.getBytes(geometryColumn);
 		String fid = row.getString("fid");
-		builder.set("the_geom", geometry);
+		rows++;
+		bytes += (buffer == null ? 0 : buffer.remaining()) + (fid == null ? 0 : fid.length());
+		if (buffer == null || !codec.intersects(buffer, bbox)) {
+			return null;
+		}
 		try {
-			geometry = reader.read(buffer.array());
+			geometry = codec.decode(buffer);
 			if (bbox.intersects(geometry.getEnvelopeInternal())) {
+				builder.set(geometryColumn, geometry);
 				feature = builder.buildFeature(fid);
 			}
 		} catch (Exception ex) {
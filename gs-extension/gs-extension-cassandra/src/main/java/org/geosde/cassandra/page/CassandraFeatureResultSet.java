@@ -1,88 +1,130 @@
 package org.geosde.cassandra.page;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-
-import org.geosde.cassandra.SessionRepository;
-import org.geotools.feature.AttributeTypeBuilder;
-import org.geotools.feature.NameImpl;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.referencing.CRS;
+
+import org.geosde.cassandra.util.GeometryCodec;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.Name;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import com.datastax.driver.core.ColumnMetadata;
-import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SimpleStatement;
-import com.datastax.driver.core.TableMetadata;
 import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
 
+/**
+ * Features of a list of partition statements, read page by page.
+ * <p>
+ * Besides the partition being read, the first pages of the next {@link #getPrefetchPartitions()}
+ * partitions are requested in the background. The page size of each partition is derived from
+ * the mean size of the rows read so far, so that a page holds about {@link #TARGET_PAGE_BYTES}.
+ * {@link #close()} cancels the requests still outstanding.
+ */
 public class CassandraFeatureResultSet implements IResultSet<SimpleFeature> {
 
-	public final static Session session = SessionRepository.getSession();
-	public final static Map<DataType, Class> CA_MAP_TO_TYPE = new HashMap<DataType, Class>() {
-		{
-			put(DataType.cint(), Integer.class);
-			put(DataType.text(), String.class);
-			put(DataType.bigint(), java.lang.Long.class);
-			put(DataType.cfloat(), java.lang.Float.class);
-			put(DataType.cdouble(), java.lang.Double.class);
-			put(DataType.timestamp(), Date.class);
-			put(DataType.uuid(), UUID.class);
-			put(DataType.blob(), Geometry.class);
-		}
-	};
+	public final static int DEFAULT_PREFETCH_PARTITIONS = 4;
+
+	public final static int TARGET_PAGE_BYTES = 256 * 1024;
+
+	public final static int MIN_PAGE_SIZE = 50;
+
+	public final static int MAX_PAGE_SIZE = 5000;
 
-	private List<SimpleFeature> features;
-	private List<SimpleStatement> statements;
-	private SimpleStatement currentStatement;
+	private Deque<SimpleFeature> features = new ArrayDeque<>();
+	private Deque<SimpleStatement> statements;
+	/** the partition being read first, followed by the ones prefetched */
+	private Deque<CassandraFeaturePage> pages = new ArrayDeque<>();
+	private int prefetchPartitions;
+	private Session session;
 	private Envelope bbox = null;
 	private SimpleFeatureType sft = null;
-	private CassandraFeaturePage page;
+	private GeometryCodec codec;
+	/** rows read from the partitions done and the bytes they held */
+	private long rows = 0;
+	private long bytes = 0;
 
-	public CassandraFeatureResultSet(List<SimpleStatement> statements, Envelope bbox) {
-		this.statements = statements;
-		this.features = new ArrayList<>();
-		this.sft = getSchema(new NameImpl("gis_osm_pois_free_1"),
-				SessionRepository.getMetadata().getKeyspace("usa").getTable("gis_osm_pois_free_1"));
+	public CassandraFeatureResultSet(Session session, SimpleFeatureType sft, GeometryCodec codec,
+			Collection<SimpleStatement> statements, Envelope bbox) {
+		this(session, sft, codec, statements, bbox, DEFAULT_PREFETCH_PARTITIONS);
+	}
+
+	/**
+	 * @param sft
+	 *            the type of the layer queried, its geometry column being read by the statements
+	 * @param codec
+	 *            the codec of the layer geometries
+	 */
+	public CassandraFeatureResultSet(Session session, SimpleFeatureType sft, GeometryCodec codec,
+			Collection<SimpleStatement> statements, Envelope bbox, int prefetchPartitions) {
+		if (prefetchPartitions < 0) {
+			throw new IllegalArgumentException("prefetchPartitions must not be negative: " + prefetchPartitions);
+		}
+		this.statements = new ArrayDeque<>(statements);
+		this.prefetchPartitions = prefetchPartitions;
+		this.session = session;
+		this.sft = sft;
+		this.codec = codec;
 		this.bbox = bbox;
-		session.execute("use usa;");
-		currentStatement = statements.remove(0);
-		page = new CassandraFeaturePage(session, currentStatement, sft, bbox);
+		prefetch();
+	}
+
+	public int getPrefetchPartitions() {
+		return prefetchPartitions;
+	}
 
+	/**
+	 * Starts the partitions following the current one, up to the prefetch depth.
+	 */
+	private void prefetch() {
+		while (pages.size() <= prefetchPartitions && !statements.isEmpty()) {
+			CassandraFeaturePage page = new CassandraFeaturePage(session, statements.removeFirst(), sft, codec,
+					bbox, pageSize());
+			page.prefetch();
+			pages.addLast(page);
+		}
+	}
+
+	/**
+	 * Number of rows per page fitting {@link #TARGET_PAGE_BYTES}, given the rows read so far.
+	 */
+	int pageSize() {
+		if (rows == 0) {
+			return CassandraFeaturePage.RESULTS_PER_PAGE;
+		}
+		long rowSize = Math.max(1, bytes / rows);
+		return (int) Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, TARGET_PAGE_BYTES / rowSize));
 	}
 
-	public void all() {
-		int count = 0;
+	/**
+	 * Reads all the remaining partitions, returns the number of features found.
+	 */
+	public long all() {
+		long count = 0;
 		List<SimpleFeature> list = fetchMoreResult();
 		while (list != null) {
 			count += list.size();
 			list = fetchMoreResult();
 		}
-		System.out.println(count);
+		return count;
 	}
 
+	/**
+	 * Returns the features of the next page, possibly none, or null once every partition has been
+	 * read.
+	 */
 	public List<SimpleFeature> fetchMoreResult() {
-		List<SimpleFeature> list = null;
-		if (!page.isFullyFetched()) {
-			list = page.nextPage();
-			return list;
-		} else if (statements.size() > 0) {
-			currentStatement = statements.remove(0);
-			page = new CassandraFeaturePage(session, currentStatement, sft, bbox);
-			list = page.nextPage();
-			return list;
-		} else {
-			return list;
+		CassandraFeaturePage page;
+		while ((page = pages.peekFirst()) != null) {
+			if (!page.isFullyFetched()) {
+				return page.nextPage();
+			}
+			pages.removeFirst();
+			rows += page.getRows();
+			bytes += page.getBytes();
+			prefetch();
 		}
+		return null;
 	}
 
 	@Override
@@ -91,10 +133,11 @@ public class CassandraFeatureResultSet implements IResultSet<SimpleFeature> {
 			return true;
 		} else {
 			do {
-				features = fetchMoreResult();
-				if (features == null) {
+				List<SimpleFeature> list = fetchMoreResult();
+				if (list == null) {
 					return false;
 				}
+				features.addAll(list);
 			} while (features.isEmpty());
 			return true;
 		}
@@ -102,35 +145,20 @@ public class CassandraFeatureResultSet implements IResultSet<SimpleFeature> {
 
 	@Override
 	public SimpleFeature next() {
-		return features.remove(0);
+		return features.removeFirst();
 	}
 
-	private SimpleFeatureType getSchema(Name name, TableMetadata table) {
-		List<ColumnMetadata> columns = table.getColumns();
-		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-		builder.setName(name);
-		AttributeTypeBuilder attrTypeBuilder = new AttributeTypeBuilder();
-		for (ColumnMetadata cm : columns) {
-			String cname = cm.getName();
-			Class binding = CA_MAP_TO_TYPE.get(cm.getType());
-			if (!cm.getName().equals("cell") && !cm.getName().equals("epoch") && !cm.getName().equals("pos")
-					&& !cm.getName().equals("timestamp") && !cm.getName().equals("fid")) {
-				if (Geometry.class.isAssignableFrom(binding)) {
-					attrTypeBuilder.binding(binding);
-					CoordinateReferenceSystem wsg84 = null;
-					try {
-						wsg84 = CRS.decode("EPSG:4326");
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-					attrTypeBuilder.setCRS(wsg84);
-					builder.add(attrTypeBuilder.buildDescriptor(cname, attrTypeBuilder.buildGeometryType()));
-				} else {
-					builder.add(attrTypeBuilder.binding(binding).nillable(false).buildDescriptor(cname));
-				}
-			}
+	/**
+	 * Cancels the pages still requested and drops the partitions not read yet.
+	 */
+	@Override
+	public void close() {
+		for (CassandraFeaturePage page : pages) {
+			page.close();
 		}
-		return builder.buildFeatureType();
+		pages.clear();
+		statements.clear();
+		features.clear();
 	}
 
 }
@@ -1,15 +1,19 @@
 package org.geosde.cassandra.page;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
 
+import org.geosde.cassandra.CassandraDataStore;
+import org.geosde.core.index.S2IndexStrategy;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.TableMetadata;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.geometry.S2CellId;
@@ -20,41 +24,54 @@ import com.google.common.geometry.S2Polygon;
 import com.google.common.geometry.S2RegionCoverer;
 import com.vividsolutions.jts.geom.Envelope;
 
+/**
+ * Queries the partitions of a layer table of a {@link CassandraDataStore} covering a bbox.
+ */
 public class CassandraStatement {
-	
+
+	private CassandraDataStore store;
+	private String table;
+	private SimpleFeatureType sft;
 	private Envelope bbox = null;
 	private List<SimpleStatement> statements;
-	private List<String> quad_ids = null;
-	
-	public CassandraStatement() {
-		// TODO Auto-generated constructor stub
+	/** whether the table stores its cells as bigint ids rather than tokens */
+	private boolean longCellIds = false;
+
+	/**
+	 * @param table
+	 *            the layer table, one of the type names of the store
+	 */
+	public CassandraStatement(CassandraDataStore store, String table) throws IOException {
+		this.store = store;
+		this.table = table;
+		this.sft = store.getSchema(table);
+		KeyspaceMetadata keyspace = store.getMetadata().getKeyspace(store.getNamespaceURI());
+		TableMetadata metadata = keyspace == null ? null : keyspace.getTable(table);
+		if (metadata != null && metadata.getColumn("cell") != null) {
+			this.longCellIds = DataType.bigint().equals(metadata.getColumn("cell").getType());
+		}
 	}
+
 	public CassandraFeatureResultSet query(double lat0,double lat1,double lon0,double lon1) {
-		
-		// String polygon =
-		// "32.90:-125.04,32.9:-113.34,42.36:-113.34,42.36:-125.04;";
 		bbox = new ReferencedEnvelope(lon0, lon1, lat0, lat1, DefaultGeographicCRS.WGS84);
 		String polygon = lat0 + ":" + lon0 + "," + lat0 + ":" + lon1 + "," + lat1 + ":" + lon1 + "," + lat1 + ":" + lon0
 				+ ";";
 		S2Polygon a = makePolygon(polygon);
 		ArrayList<S2CellId> covering = new ArrayList<>();
 		S2RegionCoverer coverer = new S2RegionCoverer();
-		coverer.setMinLevel(10);
-		coverer.setMaxLevel(10);
+		coverer.setMinLevel(S2IndexStrategy.QUAD_LEVEL);
+		coverer.setMaxLevel(S2IndexStrategy.QUAD_LEVEL);
 		coverer.getCovering(a, covering);
-		quad_ids=new ArrayList<>();
+		String geometryColumn = sft.getGeometryDescriptor().getLocalName();
+		String select = "select cell,pos,fid," + geometryColumn + " from " + store.getNamespaceURI() + "." + table
+				+ " where cell = ?;";
 		statements=new ArrayList<>();
 		for (S2CellId id : covering) {
-			quad_ids.add(id.toToken());
-			statements.add(new SimpleStatement(
-					"select cell,epoch,fid,the_geom from gis_osm_pois_free_1 where cell = ? and epoch=?;", id.toToken(),
-					"201612"));
+			statements.add(new SimpleStatement(select, longCellIds ? (Object) id.id() : id.toToken()));
 		}
-		System.out.println(quad_ids.size());
-		return new CassandraFeatureResultSet(statements,bbox);
-
+		return new CassandraFeatureResultSet(store.getSession(), sft, store.getGeometryCodec(table), statements, bbox);
 	}
-	
+
 	private S2Polygon makePolygon(String str) {
 		List<S2Loop> loops = Lists.newArrayList();
 
@@ -87,37 +104,5 @@ public class CassandraStatement {
 			vertices.add(S2LatLng.fromDegrees(lat, lng).toPoint());
 		}
 	}
-	
-	public static void main(String[] args) {
-		double lat0 = 32.00;
-		double lat1 = 35.00;
-		double lon0 = -123.00;
-		double lon1 = -118.00;
-		CassandraFeatureResultSet rs=new CassandraStatement().query(lat0, lat1, lon0, lon1);
-		
-		Set<String> set=new TreeSet<>();
-		int count=0;
-		while(rs.hasNext()){
-			SimpleFeature feature=rs.next();
-			set.add(feature.getID());
-			count++;
-		}
-		System.out.println("Set="+set.size());
-		System.out.println("RS="+count);
-		
-		/*
-		int count=0;
-		Set<String> set=new TreeSet<>();
-		while(rs.hasNext())
-		{
-			SimpleFeature feature=rs.next();
-			System.out.println(count);
-			System.out.println(feature);
-			count++;
-			break;
-		}
-		System.out.println(count);
-		System.out.println(set.size());
-		*/
-	}
+
 }
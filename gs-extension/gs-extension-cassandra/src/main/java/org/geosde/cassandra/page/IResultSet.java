@@ -4,6 +4,7 @@ public interface IResultSet<T> {
 
 	public T next();
 	public boolean hasNext();
+	public void close();
 	
 	
 }
@@ -0,0 +1,375 @@
+package org.geosde.cassandra.query;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geosde.core.index.S2QueryPlan;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.geometry.S2CellId;
+
+/**
+ * Rows of the cell slices read by the feature readers, shared by all the readers of a data store
+ * so that adjacent tiles and zoom levels reading the same partitions are served from memory.
+ * <p>
+ * Entries are keyed by table, partition and <code>pos</code> range or positions, and hold the fid
+ * and the encoded geometry of each row packed in a single array, so that the envelope test of the
+ * readers runs on them as on the driver buffers. The cache is bounded by the size of the rows it
+ * holds, and evicts the least recently used entries.
+ * <p>
+ * Writers report the partitions they write to through {@link #invalidate(String, Object)}. Every
+ * entry remembers the {@link #stamp()} taken before its rows were queried, and is dropped when
+ * read if its partition has been written since, so that a reader racing a writer never caches
+ * rows older than the write. At most {@link #MAX_WRITES} partitions are remembered: beyond, the
+ * oldest half is forgotten and every entry read before the last forgotten write is then treated
+ * as stale.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class CellCache {
+
+	public final static long DEFAULT_MAX_BYTES = 128L << 20;
+
+	/**
+	 * Slices holding more rows are not cached, they would evict many smaller ones
+	 */
+	public final static int DEFAULT_MAX_CELL_ROWS = 20000;
+
+	/**
+	 * Estimated size of an entry besides its rows
+	 */
+	final static int ENTRY_OVERHEAD = 128;
+
+	/**
+	 * Maximum number of partitions whose last write is remembered
+	 */
+	public final static int MAX_WRITES = 100000;
+
+	final Cache<Key, Cell> cache;
+
+	final int maxCellRows;
+
+	final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * Clock value of the last write to each partition, by table and partition id
+	 */
+	final ConcurrentMap<Key, Long> writes = new ConcurrentHashMap<>();
+
+	/**
+	 * Clock value of the last write forgotten, rows read before it being stale
+	 */
+	volatile long floor;
+
+	final AtomicLong staleCount = new AtomicLong();
+
+	public CellCache() {
+		this(DEFAULT_MAX_BYTES, DEFAULT_MAX_CELL_ROWS);
+	}
+
+	public CellCache(long maxBytes, int maxCellRows) {
+		this.maxCellRows = maxCellRows;
+		this.cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<Key, Cell>() {
+			@Override
+			public int weigh(Key key, Cell cell) {
+				return cell.weight();
+			}
+		}).recordStats().build();
+	}
+
+	/**
+	 * Returns the key of a slice of a table, see {@link S2QueryPlan#getSlices()}.
+	 */
+	public static Key key(String table, S2QueryPlan.Slice slice) {
+		long[] clustering;
+		switch (slice.getType()) {
+		case RANGE:
+			clustering = new long[] { slice.getMin().id(), slice.getMax().id() };
+			break;
+		case POSITIONS:
+			List<S2CellId> positions = slice.getPositions();
+			clustering = new long[positions.size()];
+			for (int i = 0; i < clustering.length; i++) {
+				clustering[i] = positions.get(i).id();
+			}
+			break;
+		default:
+			clustering = new long[0];
+		}
+		return new Key(table, slice.getPartition().id(), clustering);
+	}
+
+	/**
+	 * Returns the current clock, to be taken before querying rows that are to be cached.
+	 */
+	public long stamp() {
+		return clock.get();
+	}
+
+	/**
+	 * Returns the cached rows of a slice, or null if they are not cached or their partition has
+	 * been written since they were read.
+	 */
+	public Cell get(Key key) {
+		Cell cell = cache.getIfPresent(key);
+		if (cell != null && !isCurrent(key, cell.stamp)) {
+			cache.invalidate(key);
+			staleCount.incrementAndGet();
+			return null;
+		}
+		return cell;
+	}
+
+	/**
+	 * Caches the rows of a slice, unless its partition has been written since the stamp taken
+	 * before they were queried.
+	 */
+	public void put(Key key, Builder builder) {
+		if (builder.overflow || !isCurrent(key, builder.stamp)) {
+			return;
+		}
+		cache.put(key, builder.build());
+	}
+
+	boolean isCurrent(Key key, long stamp) {
+		if (stamp < floor) {
+			return false;
+		}
+		Long written = writes.get(key.partition());
+		return written == null || written <= stamp;
+	}
+
+	/**
+	 * Drops the cached rows of a partition of a table, to be called once rows have been written
+	 * to it.
+	 *
+	 * @param partition
+	 *            the partition key, a token or an id
+	 */
+	public void invalidate(String table, Object partition) {
+		long id = partition instanceof Long ? (Long) partition : S2CellId.fromToken(partition.toString()).id();
+		writes.put(new Key(table, id, null), clock.incrementAndGet());
+		if (writes.size() > MAX_WRITES) {
+			prune();
+		}
+	}
+
+	/**
+	 * Forgets the oldest half of the writes, raising the floor first so that no reader sees a
+	 * forgotten write as absent.
+	 */
+	synchronized void prune() {
+		if (writes.size() <= MAX_WRITES) {
+			return;
+		}
+		long[] stamps = new long[writes.size()];
+		int count = 0;
+		for (Long written : writes.values()) {
+			if (count == stamps.length) {
+				break;
+			}
+			stamps[count++] = written;
+		}
+		Arrays.sort(stamps, 0, count);
+		long cut = stamps[count / 2];
+		floor = Math.max(floor, cut);
+		for (Map.Entry<Key, Long> entry : writes.entrySet()) {
+			if (entry.getValue() <= cut) {
+				writes.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Drops every entry.
+	 */
+	public void invalidateAll() {
+		synchronized (this) {
+			floor = clock.incrementAndGet();
+			writes.clear();
+		}
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Returns a builder for the rows of a slice.
+	 *
+	 * @param stamp
+	 *            the {@link #stamp()} taken before the rows were queried
+	 */
+	public Builder newBuilder(long stamp) {
+		return new Builder(stamp, maxCellRows);
+	}
+
+	/**
+	 * Hit, miss and eviction counts, the hits including the entries then found stale.
+	 */
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	/**
+	 * Number of entries dropped because their partition had been written.
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	/**
+	 * A slice of a table, or with null clustering values a whole partition.
+	 */
+	public static class Key {
+
+		final String table;
+
+		final long partition;
+
+		final long[] clustering;
+
+		final int hash;
+
+		Key(String table, long partition, long[] clustering) {
+			this.table = table;
+			this.partition = partition;
+			this.clustering = clustering;
+			this.hash = 31 * (31 * table.hashCode() + (int) (partition ^ (partition >>> 32)))
+					+ Arrays.hashCode(clustering);
+		}
+
+		Key partition() {
+			return clustering == null ? this : new Key(table, partition, null);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return partition == other.partition && table.equals(other.table)
+					&& Arrays.equals(clustering, other.clustering);
+		}
+	}
+
+	/**
+	 * Cached rows of a slice.
+	 */
+	public static class Cell {
+
+		final long stamp;
+
+		final String[] fids;
+
+		final byte[] geometries;
+
+		/**
+		 * Start of the geometry of each row in {@link #geometries}, followed by its end
+		 */
+		final int[] offsets;
+
+		Cell(long stamp, String[] fids, byte[] geometries, int[] offsets) {
+			this.stamp = stamp;
+			this.fids = fids;
+			this.geometries = geometries;
+			this.offsets = offsets;
+		}
+
+		public int size() {
+			return fids.length;
+		}
+
+		public String getFid(int row) {
+			return fids[row];
+		}
+
+		/**
+		 * Returns the encoded geometry of a row, a read only view of the cached bytes.
+		 */
+		public ByteBuffer getGeometry(int row) {
+			return ByteBuffer.wrap(geometries, offsets[row], offsets[row + 1] - offsets[row]).slice()
+					.asReadOnlyBuffer();
+		}
+
+		int weight() {
+			long weight = ENTRY_OVERHEAD + geometries.length + 4L * offsets.length;
+			for (String fid : fids) {
+				weight += 40 + 2 * fid.length();
+			}
+			return (int) Math.min(weight, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Accumulates the rows of a slice as they are read. Not thread-safe.
+	 */
+	public static class Builder {
+
+		final long stamp;
+
+		final int maxRows;
+
+		String[] fids = new String[16];
+
+		byte[] geometries = new byte[1024];
+
+		int[] offsets = new int[17];
+
+		int rows;
+
+		boolean overflow;
+
+		Builder(long stamp, int maxRows) {
+			this.stamp = stamp;
+			this.maxRows = maxRows;
+		}
+
+		public void add(String fid, ByteBuffer geometry) {
+			if (overflow) {
+				return;
+			}
+			if (rows == maxRows) {
+				// too large to be cached, release what has been gathered
+				overflow = true;
+				fids = null;
+				geometries = null;
+				offsets = null;
+				return;
+			}
+			if (rows == fids.length) {
+				fids = Arrays.copyOf(fids, 2 * rows);
+				offsets = Arrays.copyOf(offsets, 2 * rows + 1);
+			}
+			int start = offsets[rows];
+			int length = geometry.remaining();
+			if (start + length > geometries.length) {
+				geometries = Arrays.copyOf(geometries, Math.max(2 * geometries.length, start + length));
+			}
+			geometry.duplicate().get(geometries, start, length);
+			fids[rows] = fid;
+			offsets[++rows] = start + length;
+		}
+
+		Cell build() {
+			return new Cell(stamp, Arrays.copyOf(fids, rows), Arrays.copyOf(geometries, offsets[rows]),
+					Arrays.copyOf(offsets, rows + 1));
+		}
+	}
+}
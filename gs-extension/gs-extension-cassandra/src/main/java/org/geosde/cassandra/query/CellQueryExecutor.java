@@ -0,0 +1,273 @@
+package org.geosde.cassandra.query;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Fan-out engine running one query per S2 cell through the driver's asynchronous API.
+ * <p>
+ * The number of requests in flight against a single host is capped. Requests beyond the cap are
+ * parked and sent as soon as an earlier request to the same host completes, so no thread ever
+ * blocks waiting on the cluster. A single instance is meant to be shared by all the readers of a
+ * data store.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class CellQueryExecutor {
+
+	public final static int DEFAULT_MAX_REQUESTS_PER_HOST = 64;
+
+	public final static int DEFAULT_MAX_OPEN_CELLS = 32;
+
+	/**
+	 * Limiter key used when the replicas of a statement cannot be determined.
+	 */
+	private final static Object ANY_HOST = new Object();
+
+	final Session session;
+
+	final int maxRequestsPerHost;
+
+	final ConcurrentMap<Object, HostLimiter> limiters = new ConcurrentHashMap<>();
+
+	final ConcurrentMap<String, PreparedStatement> prepared = new ConcurrentHashMap<>();
+
+	public CellQueryExecutor(Session session) {
+		this(session, DEFAULT_MAX_REQUESTS_PER_HOST);
+	}
+
+	public CellQueryExecutor(Session session, int maxRequestsPerHost) {
+		if (maxRequestsPerHost < 1) {
+			throw new IllegalArgumentException("maxRequestsPerHost must be positive: " + maxRequestsPerHost);
+		}
+		this.session = session;
+		this.maxRequestsPerHost = maxRequestsPerHost;
+	}
+
+	public Session getSession() {
+		return session;
+	}
+
+	public int getMaxRequestsPerHost() {
+		return maxRequestsPerHost;
+	}
+
+	/**
+	 * Prepares a query, or returns the statement prepared by an earlier call with the same query.
+	 */
+	public PreparedStatement prepare(String query) {
+		PreparedStatement statement = prepared.get(query);
+		if (statement == null) {
+			PreparedStatement created = session.prepare(query);
+			statement = prepared.putIfAbsent(query, created);
+			if (statement == null) {
+				statement = created;
+			}
+		}
+		return statement;
+	}
+
+	/**
+	 * Starts querying the given cell statements, keeping at most
+	 * {@link #DEFAULT_MAX_OPEN_CELLS} of them open at any time.
+	 */
+	public CellQueryStream query(List<? extends Statement> statements) {
+		return query(statements, DEFAULT_MAX_OPEN_CELLS);
+	}
+
+	/**
+	 * Starts querying the given cell statements. Rows are handed out by the returned stream in
+	 * the order pages arrive, not in the order of the statements.
+	 *
+	 * @param statements
+	 *            one statement per cell
+	 * @param maxOpenCells
+	 *            maximum number of cells whose pages are being fetched or buffered at once, this
+	 *            bounds the memory used by the stream to maxOpenCells pages
+	 */
+	public CellQueryStream query(List<? extends Statement> statements, int maxOpenCells) {
+		CellQueryStream stream = new CellQueryStream(this, statements, maxOpenCells);
+		stream.start();
+		return stream;
+	}
+
+	/**
+	 * Starts reading the partition of each key, see {@link FidLookup}, keeping at most
+	 * {@link FidLookup#DEFAULT_WINDOW} reads in flight.
+	 */
+	public FidLookup lookup(PreparedStatement statement, Collection<?> keys) {
+		return lookup(statement, keys, FidLookup.DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Starts reading the partition of each key. Rows are handed out by the returned lookup in the
+	 * order of the keys.
+	 *
+	 * @param statement
+	 *            a statement taking the key as its only variable
+	 * @param window
+	 *            maximum number of reads sent ahead of the consumer
+	 */
+	public FidLookup lookup(PreparedStatement statement, Collection<?> keys, int window) {
+		FidLookup lookup = new FidLookup(this, statement, keys, window);
+		lookup.start();
+		return lookup;
+	}
+
+	/**
+	 * Sends a request as soon as the host owning the statement has a free slot, and forwards
+	 * the outcome to the callback once the slot has been released. Statements whose idempotence
+	 * is not set are marked idempotent, cell queries and lookups being reads that the driver may
+	 * run speculatively on another replica.
+	 */
+	void submit(Statement statement, final Request request, final FutureCallback<ResultSet> callback) {
+		if (statement.isIdempotent() == null) {
+			statement.setIdempotent(true);
+		}
+		final HostLimiter limiter = limiter(statement);
+		limiter.submit(new Request() {
+			@Override
+			public ListenableFuture<ResultSet> send() {
+				ListenableFuture<ResultSet> future;
+				try {
+					future = request.send();
+				} catch (RuntimeException e) {
+					future = Futures.immediateFailedFuture(e);
+				}
+				if (future == null) {
+					return null;
+				}
+				Futures.addCallback(future, new FutureCallback<ResultSet>() {
+					@Override
+					public void onSuccess(ResultSet rs) {
+						limiter.release();
+						callback.onSuccess(rs);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						limiter.release();
+						callback.onFailure(t);
+					}
+				}, MoreExecutors.directExecutor());
+				return future;
+			}
+		});
+	}
+
+	HostLimiter limiter(Statement statement) {
+		Object key = host(statement);
+		HostLimiter limiter = limiters.get(key);
+		if (limiter == null) {
+			HostLimiter created = new HostLimiter(maxRequestsPerHost);
+			limiter = limiters.putIfAbsent(key, created);
+			if (limiter == null) {
+				limiter = created;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * Returns the first replica of the statement partition, which is where a token aware
+	 * policy sends it first.
+	 */
+	Object host(Statement statement) {
+		try {
+			String keyspace = statement.getKeyspace();
+			if (keyspace == null) {
+				keyspace = session.getLoggedKeyspace();
+			}
+			Configuration configuration = session.getCluster().getConfiguration();
+			ByteBuffer routingKey = statement.getRoutingKey(
+					configuration.getProtocolOptions().getProtocolVersion(), configuration.getCodecRegistry());
+			if (keyspace == null || routingKey == null) {
+				return ANY_HOST;
+			}
+			Set<Host> replicas = session.getCluster().getMetadata().getReplicas(keyspace, routingKey);
+			Iterator<Host> it = replicas.iterator();
+			return it.hasNext() ? it.next() : ANY_HOST;
+		} catch (RuntimeException e) {
+			return ANY_HOST;
+		}
+	}
+
+	/**
+	 * A request that can be deferred until its host has a free slot.
+	 */
+	interface Request {
+		/**
+		 * Sends the request, returns null if it has been abandoned in the meantime.
+		 */
+		ListenableFuture<ResultSet> send();
+	}
+
+	/**
+	 * Counts the requests in flight against one host and parks the ones above the limit.
+	 */
+	static class HostLimiter {
+
+		final int maxInFlight;
+
+		final Deque<Request> waiting = new ArrayDeque<>();
+
+		int inFlight;
+
+		HostLimiter(int maxInFlight) {
+			this.maxInFlight = maxInFlight;
+		}
+
+		void submit(Request request) {
+			synchronized (this) {
+				if (inFlight >= maxInFlight) {
+					waiting.add(request);
+					return;
+				}
+				inFlight++;
+			}
+			if (request.send() == null) {
+				release();
+			}
+		}
+
+		void release() {
+			while (true) {
+				Request next;
+				synchronized (this) {
+					next = waiting.poll();
+					if (next == null) {
+						inFlight--;
+						return;
+					}
+				}
+				// the slot is handed over to the next request unless it was abandoned
+				if (next.send() != null) {
+					return;
+				}
+			}
+		}
+
+		synchronized int getInFlight() {
+			return inFlight;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package org.geosde.cassandra.query;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Rows of a cell fan-out, handed out as soon as the pages holding them arrive.
+ * <p>
+ * The next page of a cell is only requested once the consumer has drained the current one, and
+ * a new cell is only started once an open one has been fully read, so a slow consumer slows the
+ * fan-out down instead of piling pages up in memory. This class is not thread-safe, it is meant
+ * to be consumed by a single reader thread.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class CellQueryStream implements Closeable {
+
+	final CellQueryExecutor executor;
+
+	final Iterator<? extends Statement> pending;
+
+	final int maxOpenCells;
+
+	/**
+	 * Pages (or failures) delivered by the driver, waiting for the consumer.
+	 */
+	final BlockingQueue<Page> arrived = new LinkedBlockingQueue<>();
+
+	/**
+	 * Cells started and not yet fully read, only touched by the consumer thread.
+	 */
+	int open;
+
+	Page current;
+
+	Listener listener;
+
+	volatile boolean closed;
+
+	CellQueryStream(CellQueryExecutor executor, List<? extends Statement> statements, int maxOpenCells) {
+		if (maxOpenCells < 1) {
+			throw new IllegalArgumentException("maxOpenCells must be positive: " + maxOpenCells);
+		}
+		this.executor = executor;
+		this.pending = statements.iterator();
+		this.maxOpenCells = maxOpenCells;
+	}
+
+	/**
+	 * Sets the listener told about the cells fully read, null for none.
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	void start() {
+		while (open < maxOpenCells && pending.hasNext()) {
+			final Statement statement = pending.next();
+			open++;
+			request(statement, new CellQueryExecutor.Request() {
+				@Override
+				public ListenableFuture<ResultSet> send() {
+					return closed ? null : executor.session.executeAsync(statement);
+				}
+			});
+		}
+	}
+
+	void request(final Statement statement, CellQueryExecutor.Request request) {
+		executor.submit(statement, request, new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet rs) {
+				if (!closed) {
+					arrived.add(new Page(statement, rs, null));
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (!closed) {
+					arrived.add(new Page(statement, null, t));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the next row, waiting for a page to arrive if none is buffered, or null once every
+	 * cell has been read.
+	 *
+	 * @throws IOException
+	 *             if one of the cell queries failed, the stream is closed in that case
+	 */
+	public Row next() throws IOException {
+		while (!closed) {
+			if (current != null) {
+				final ResultSet rs = current.rs;
+				if (rs.getAvailableWithoutFetching() > 0) {
+					return rs.one();
+				}
+				if (rs.isFullyFetched()) {
+					open--;
+					if (listener != null) {
+						listener.cellRead(current.statement);
+					}
+					start();
+				} else {
+					request(current.statement, new CellQueryExecutor.Request() {
+						@Override
+						public ListenableFuture<ResultSet> send() {
+							return closed ? null : rs.fetchMoreResults();
+						}
+					});
+				}
+				current = null;
+			}
+			if (open == 0) {
+				return null;
+			}
+			Page page;
+			try {
+				page = arrived.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new InterruptedIOException("Interrupted while waiting for cell query results");
+			}
+			if (page.failure != null) {
+				close();
+				throw new IOException("Cell query failed: " + page.statement, page.failure);
+			}
+			current = page;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the statement of the cell the last row returned by {@link #next()} belongs to.
+	 */
+	public Statement getStatement() {
+		return current == null ? null : current.statement;
+	}
+
+	/**
+	 * Number of cells started and not fully read yet.
+	 */
+	public int getOpenCells() {
+		return open;
+	}
+
+	/**
+	 * Abandons the cells not read yet. Requests already sent complete in the background and
+	 * their pages are dropped.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		current = null;
+		arrived.clear();
+	}
+
+	/**
+	 * Told by the consumer thread about each cell whose rows have all been returned.
+	 */
+	public interface Listener {
+		void cellRead(Statement statement);
+	}
+
+	static class Page {
+		final Statement statement;
+		final ResultSet rs;
+		final Throwable failure;
+
+		Page(Statement statement, ResultSet rs, Throwable failure) {
+			this.statement = statement;
+			this.rs = rs;
+			this.failure = failure;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.geosde.cassandra.query;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Single partition reads of a list of keys, typically feature ids against the
+ * <code>&lt;table&gt;_view</code> materialized view, run side by side and handed out in the order
+ * of the keys.
+ * <p>
+ * Keys are read once even if listed several times. At most a window of reads is in flight ahead
+ * of the consumer, which only waits on the read of the next key, the following ones completing in
+ * the background. This class is not thread-safe, it is meant to be consumed by a single reader
+ * thread.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class FidLookup implements Closeable {
+
+	public final static int DEFAULT_WINDOW = 128;
+
+	final CellQueryExecutor executor;
+
+	final PreparedStatement statement;
+
+	final Iterator<?> pending;
+
+	final int window;
+
+	/**
+	 * Reads sent and not consumed yet, in the order of the keys
+	 */
+	final Deque<SettableFuture<ResultSet>> inFlight = new ArrayDeque<>();
+
+	volatile boolean closed;
+
+	/**
+	 * @param statement
+	 *            a statement taking the key as its only variable
+	 */
+	FidLookup(CellQueryExecutor executor, PreparedStatement statement, Collection<?> keys, int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be positive: " + window);
+		}
+		this.executor = executor;
+		this.statement = statement;
+		this.pending = new LinkedHashSet<>(keys).iterator();
+		this.window = window;
+	}
+
+	void start() {
+		while (!closed && inFlight.size() < window && pending.hasNext()) {
+			final Statement bound = statement.bind(pending.next());
+			final SettableFuture<ResultSet> result = SettableFuture.create();
+			inFlight.add(result);
+			executor.submit(bound, new CellQueryExecutor.Request() {
+				@Override
+				public ListenableFuture<ResultSet> send() {
+					return closed ? null : executor.session.executeAsync(bound);
+				}
+			}, new FutureCallback<ResultSet>() {
+				@Override
+				public void onSuccess(ResultSet rs) {
+					result.set(rs);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					result.setException(t);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the first row of the next key having one, waiting for its read to complete, or null
+	 * once every key has been read. Keys without any row are skipped.
+	 *
+	 * @throws IOException
+	 *             if one of the reads failed, the lookup is closed in that case
+	 */
+	public Row next() throws IOException {
+		while (!closed) {
+			SettableFuture<ResultSet> next = inFlight.poll();
+			if (next == null) {
+				return null;
+			}
+			start();
+			ResultSet rs;
+			try {
+				rs = next.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new InterruptedIOException("Interrupted while waiting for feature id lookups");
+			} catch (ExecutionException e) {
+				close();
+				throw new IOException("Feature id lookup failed: " + statement.getQueryString(), e.getCause());
+			}
+			Row row = rs.one();
+			if (row != null) {
+				return row;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Abandons the keys not read yet. Reads already sent complete in the background and their rows
+	 * are dropped.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		inFlight.clear();
+	}
+}
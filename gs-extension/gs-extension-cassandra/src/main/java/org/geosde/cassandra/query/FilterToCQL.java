@@ -0,0 +1,350 @@
+package org.geosde.cassandra.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.FilterAttributeExtractor;
+import org.opengis.filter.And;
+import org.opengis.filter.BinaryComparisonOperator;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.PropertyIsBetween;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.PropertyIsGreaterThan;
+import org.opengis.filter.PropertyIsGreaterThanOrEqualTo;
+import org.opengis.filter.PropertyIsLessThan;
+import org.opengis.filter.PropertyIsLessThanOrEqualTo;
+import org.opengis.filter.PropertyIsLike;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.spatial.BBOX;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.IndexMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.TableMetadata;
+
+/**
+ * Translates the attribute conditions of a filter into a CQL restriction appended to the cell
+ * queries of a layer table, in the manner of <code>PreparedFilterToSQL</code>: values are left
+ * as bind markers and collected by {@link #getLiteralValues()}.
+ * <p>
+ * Every cell query is restricted to a single partition, so conditions on the regular columns are
+ * run with <code>ALLOW FILTERING</code>, the replica skipping the rows that fail them instead of
+ * shipping the whole slice. Supported are the comparisons and <code>BETWEEN</code> of a column
+ * with literals, and <code>LIKE</code> on the columns with an SASI index whose mode accepts the
+ * pattern. The key columns are set by the cell queries themselves, the geometry is tested by the
+ * reader, and <code>OR</code>, <code>NOT</code>, functions and case insensitive comparisons
+ * have no CQL form, these are left to the reader, see {@link #split(Filter)}.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class FilterToCQL {
+
+	final static FilterFactory FF = CommonFactoryFinder.getFilterFactory(null);
+
+	final static String SASI_INDEX = "org.apache.cassandra.index.sasi.SASIIndex";
+
+	final TableMetadata table;
+
+	/**
+	 * Attribute the time slice tables are selected on, see {@link TimeSlicePlanner}
+	 */
+	final String plannedAttribute;
+
+	final List<Object> literalValues = new ArrayList<>();
+
+	public FilterToCQL(TableMetadata table) {
+		this(table, null);
+	}
+
+	/**
+	 * @param plannedAttribute
+	 *            attribute whose conditions select the tables to read rather than their rows,
+	 *            null for none
+	 */
+	public FilterToCQL(TableMetadata table, String plannedAttribute) {
+		this.table = table;
+		this.plannedAttribute = plannedAttribute;
+	}
+
+	/**
+	 * Splits a filter into the conditions that can be sent to Cassandra and the ones the reader
+	 * has to evaluate, either being {@link Filter#INCLUDE} when there are none.
+	 * <p>
+	 * Top level <code>BBOX</code> conditions, which select the cells read, and the conditions on
+	 * the planned attribute when it is not a column of the table, which select the tables, are in
+	 * neither part.
+	 */
+	public Filter[] split(Filter filter) {
+		List<Filter> pre = new ArrayList<>();
+		List<Filter> post = new ArrayList<>();
+		if (filter != null) {
+			split(filter, pre, post);
+		}
+		return new Filter[] { combine(pre), combine(post) };
+	}
+
+	void split(Filter filter, List<Filter> pre, List<Filter> post) {
+		if (filter == Filter.INCLUDE || filter instanceof BBOX || isPlanned(filter)) {
+			return;
+		}
+		if (filter instanceof And) {
+			for (Filter child : ((And) filter).getChildren()) {
+				split(child, pre, post);
+			}
+		} else if (canEncode(filter)) {
+			pre.add(filter);
+		} else {
+			post.add(filter);
+		}
+	}
+
+	static Filter combine(List<Filter> filters) {
+		if (filters.isEmpty()) {
+			return Filter.INCLUDE;
+		}
+		return filters.size() == 1 ? filters.get(0) : FF.and(filters);
+	}
+
+	boolean isPlanned(Filter filter) {
+		if (plannedAttribute == null || table.getColumn(plannedAttribute) != null) {
+			return false;
+		}
+		FilterAttributeExtractor extractor = new FilterAttributeExtractor();
+		filter.accept(extractor, null);
+		Set<String> names = extractor.getAttributeNameSet();
+		return names.equals(Collections.singleton(plannedAttribute));
+	}
+
+	/**
+	 * Whether a filter can be translated as a whole.
+	 */
+	public boolean canEncode(Filter filter) {
+		int mark = literalValues.size();
+		try {
+			return encode(filter, new StringBuilder());
+		} finally {
+			literalValues.subList(mark, literalValues.size()).clear();
+		}
+	}
+
+	/**
+	 * Translates a filter into a CQL restriction, its values being available from
+	 * {@link #getLiteralValues()} in the order of the bind markers.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the filter cannot be translated, see {@link #canEncode(Filter)}
+	 */
+	public String encode(Filter filter) {
+		literalValues.clear();
+		StringBuilder cql = new StringBuilder();
+		if (!encode(filter, cql)) {
+			literalValues.clear();
+			throw new IllegalArgumentException("Filter cannot be translated to CQL: " + filter);
+		}
+		return cql.toString();
+	}
+
+	public List<Object> getLiteralValues() {
+		return literalValues;
+	}
+
+	boolean encode(Filter filter, StringBuilder cql) {
+		if (filter instanceof And) {
+			List<Filter> children = ((And) filter).getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				if (i > 0) {
+					cql.append(" AND ");
+				}
+				if (!encode(children.get(i), cql)) {
+					return false;
+				}
+			}
+			return !children.isEmpty();
+		}
+		if (filter instanceof BinaryComparisonOperator) {
+			return encodeComparison((BinaryComparisonOperator) filter, cql);
+		}
+		if (filter instanceof PropertyIsBetween) {
+			PropertyIsBetween between = (PropertyIsBetween) filter;
+			ColumnMetadata column = column(between.getExpression());
+			if (column == null || !encode(column, ">=", between.getLowerBoundary(), true, cql)) {
+				return false;
+			}
+			cql.append(" AND ");
+			return encode(column, "<=", between.getUpperBoundary(), true, cql);
+		}
+		if (filter instanceof PropertyIsLike) {
+			return encodeLike((PropertyIsLike) filter, cql);
+		}
+		return false;
+	}
+
+	boolean encodeComparison(BinaryComparisonOperator comparison, StringBuilder cql) {
+		String operator;
+		if (comparison instanceof PropertyIsEqualTo) {
+			operator = "=";
+		} else if (comparison instanceof PropertyIsLessThan) {
+			operator = "<";
+		} else if (comparison instanceof PropertyIsLessThanOrEqualTo) {
+			operator = "<=";
+		} else if (comparison instanceof PropertyIsGreaterThan) {
+			operator = ">";
+		} else if (comparison instanceof PropertyIsGreaterThanOrEqualTo) {
+			operator = ">=";
+		} else {
+			// not equal has no CQL form
+			return false;
+		}
+		Expression property = comparison.getExpression1();
+		Expression value = comparison.getExpression2();
+		if (property instanceof Literal && value instanceof PropertyName) {
+			property = comparison.getExpression2();
+			value = comparison.getExpression1();
+			operator = flip(operator);
+		}
+		ColumnMetadata column = column(property);
+		return column != null && encode(column, operator, value, comparison.isMatchingCase(), cql);
+	}
+
+	static String flip(String operator) {
+		switch (operator) {
+		case "<":
+			return ">";
+		case "<=":
+			return ">=";
+		case ">":
+			return "<";
+		case ">=":
+			return "<=";
+		default:
+			return operator;
+		}
+	}
+
+	boolean encode(ColumnMetadata column, String operator, Expression expression, boolean matchCase,
+			StringBuilder cql) {
+		if (!(expression instanceof Literal)) {
+			return false;
+		}
+		Object value = convert(column, (Literal) expression);
+		if (value == null || value instanceof String && !matchCase) {
+			return false;
+		}
+		cql.append(Metadata.quote(column.getName())).append(' ').append(operator).append(" ?");
+		literalValues.add(value);
+		return true;
+	}
+
+	boolean encodeLike(PropertyIsLike like, StringBuilder cql) {
+		ColumnMetadata column = column(like.getExpression());
+		IndexMetadata index = column == null ? null : sasiIndex(column);
+		if (index == null || !DataType.text().equals(column.getType()) && !DataType.varchar().equals(column.getType())) {
+			return false;
+		}
+		if (!like.isMatchingCase() && !"false".equalsIgnoreCase(index.getOption("case_sensitive"))) {
+			return false;
+		}
+		String pattern = pattern(like, index.getOption("mode"));
+		if (pattern == null) {
+			return false;
+		}
+		cql.append(Metadata.quote(column.getName())).append(" LIKE ?");
+		literalValues.add(pattern);
+		return true;
+	}
+
+	/**
+	 * Translates a like pattern into the CQL one, null if the SASI mode cannot run it: only
+	 * prefix patterns in <code>PREFIX</code> mode, prefix, suffix and contains patterns in
+	 * <code>CONTAINS</code> mode.
+	 */
+	static String pattern(PropertyIsLike like, String mode) {
+		String literal = like.getLiteral();
+		String wildCard = like.getWildCard();
+		String singleChar = like.getSingleChar();
+		String escape = like.getEscape();
+		StringBuilder text = new StringBuilder();
+		boolean leading = false;
+		boolean trailing = false;
+		for (int i = 0; i < literal.length();) {
+			if (escape != null && !escape.isEmpty() && literal.startsWith(escape, i)) {
+				i += escape.length();
+				if (i < literal.length()) {
+					text.append(literal.charAt(i++));
+				}
+			} else if (literal.startsWith(wildCard, i)) {
+				i += wildCard.length();
+				if (text.length() == 0 && !leading) {
+					leading = true;
+				} else if (i == literal.length()) {
+					trailing = true;
+				} else {
+					// wildcards inside the pattern are not supported
+					return null;
+				}
+			} else if (singleChar != null && !singleChar.isEmpty() && literal.startsWith(singleChar, i)) {
+				return null;
+			} else {
+				text.append(literal.charAt(i++));
+			}
+		}
+		if (text.indexOf("%") >= 0 || text.length() == 0) {
+			return null;
+		}
+		boolean contains = "CONTAINS".equalsIgnoreCase(mode);
+		if (leading && !contains || "SPARSE".equalsIgnoreCase(mode)) {
+			return null;
+		}
+		return (leading ? "%" : "") + text + (trailing ? "%" : "");
+	}
+
+	/**
+	 * Returns the regular column an expression names, null if it is not a property of the table
+	 * that can be restricted.
+	 */
+	ColumnMetadata column(Expression expression) {
+		if (!(expression instanceof PropertyName)) {
+			return null;
+		}
+		ColumnMetadata column = table.getColumn(((PropertyName) expression).getPropertyName());
+		if (column == null || table.getPrimaryKey().contains(column)) {
+			return null;
+		}
+		DataType type = column.getType();
+		if (type.isCollection() || type.isFrozen() || DataType.blob().equals(type)) {
+			return null;
+		}
+		return column;
+	}
+
+	IndexMetadata sasiIndex(ColumnMetadata column) {
+		for (IndexMetadata index : table.getIndexes()) {
+			if (index.isCustomIndex() && SASI_INDEX.equals(index.getIndexClassName())
+					&& column.getName().equals(index.getTarget())) {
+				return index;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Converts a literal to the java type the driver binds to a column, null if it cannot be.
+	 */
+	static Object convert(ColumnMetadata column, Literal literal) {
+		try {
+			Class<?> type = CodecRegistry.DEFAULT_INSTANCE.codecFor(column.getType()).getJavaType().getRawType();
+			return literal.evaluate(null, type);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+}
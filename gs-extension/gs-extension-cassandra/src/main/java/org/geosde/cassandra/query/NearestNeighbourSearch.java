@@ -0,0 +1,409 @@
+package org.geosde.cassandra.query;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geosde.cassandra.util.GeometryCodec;
+import org.geosde.cassandra.util.WKBGeometryCodec;
+import org.geosde.core.index.S2IndexStrategy;
+import org.geotools.util.logging.Logging;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.google.common.geometry.S1Interval;
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLngRect;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Finds the k rows of S2 indexed tables nearest to a point, see {@link S2IndexStrategy}.
+ * <p>
+ * Cells are visited best first, in the order of the minimum distance any geometry they hold may
+ * be at, starting from the six cube faces. Cells are split until the partition level, or a few
+ * levels below it for point layers whose partitions are then read by <code>pos</code> ranges, and
+ * read in rounds of a few cells run side by side. The search stops as soon as the k-th row found
+ * is closer than every cell not read yet, so that a lookup around a point reads a ring of a few
+ * cells instead of a guessed bbox. Rounds double in size while nothing is found, and whole
+ * partitions are read from then on, which bounds the number of reads and round trips when the
+ * point is far from any row. A search gives up after
+ * {@link #DEFAULT_MAX_READS} cell reads, returning the rows found so far, which are the nearest
+ * ones up to {@link #getSearchedDistance()}.
+ * <p>
+ * Rows of other geometry types are stored in the smallest cell containing them, so the ancestor
+ * partitions of the cells visited are read as well. Distances are cartesian, in degrees, as the
+ * ones computed by JTS. Instances are not thread-safe.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class NearestNeighbourSearch {
+
+	static final Logger LOGGER = Logging.getLogger(NearestNeighbourSearch.class);
+
+	/**
+	 * Levels below the partition level the cells of point layers are split into
+	 */
+	public final static int DEFAULT_RANGE_LEVELS = 2;
+
+	/**
+	 * Number of cells read by the first round
+	 */
+	public final static int DEFAULT_ROUND_CELLS = 8;
+
+	/**
+	 * Number of cells a round reads at most
+	 */
+	public final static int MAX_ROUND_CELLS = 256;
+
+	/**
+	 * Number of cell reads after which a search gives up
+	 */
+	public final static int DEFAULT_MAX_READS = 4096;
+
+	final static double RADIANS_TO_DEGREES = 180 / Math.PI;
+
+	final static GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	final CellQueryExecutor executor;
+
+	final List<String> tables;
+
+	final boolean pointLayer;
+
+	final int leafLevel;
+
+	/**
+	 * Geometry codecs by unqualified table name, WKB for the others
+	 */
+	final Map<String, GeometryCodec> codecs = new HashMap<>();
+
+	int maxReads = DEFAULT_MAX_READS;
+
+	/**
+	 * Number of cell reads issued by the last search
+	 */
+	int reads;
+
+	/**
+	 * Distance up to which the last search is exact
+	 */
+	double searchedDistance;
+
+	/**
+	 * @param tables
+	 *            the tables searched, the time slices of a layer for instance
+	 * @param pointLayer
+	 *            whether the tables only hold points, which are never stored in ancestor
+	 *            partitions
+	 */
+	public NearestNeighbourSearch(CellQueryExecutor executor, List<String> tables, boolean pointLayer) {
+		this(executor, tables, pointLayer, DEFAULT_RANGE_LEVELS);
+	}
+
+	public NearestNeighbourSearch(CellQueryExecutor executor, List<String> tables, boolean pointLayer,
+			int rangeLevels) {
+		this.executor = executor;
+		this.tables = new ArrayList<>(tables);
+		this.pointLayer = pointLayer;
+		this.leafLevel = S2IndexStrategy.QUAD_LEVEL + (pointLayer ? rangeLevels : 0);
+	}
+
+	/**
+	 * Sets the codec of the geometries of a table, owned by this search.
+	 *
+	 * @param table
+	 *            the table name, not qualified by its keyspace
+	 */
+	public void setGeometryCodec(String table, GeometryCodec codec) {
+		codecs.put(table, codec);
+	}
+
+	GeometryCodec codec(String table) {
+		GeometryCodec codec = codecs.get(table);
+		if (codec == null) {
+			codec = new WKBGeometryCodec();
+			codecs.put(table, codec);
+		}
+		return codec;
+	}
+
+	public int getMaxReads() {
+		return maxReads;
+	}
+
+	public void setMaxReads(int maxReads) {
+		this.maxReads = maxReads;
+	}
+
+	public int getReads() {
+		return reads;
+	}
+
+	/**
+	 * Returns the distance up to which the last search has read every cell: no row closer than it
+	 * is missing from the result, the rows beyond it may not be the nearest ones. Infinite if the
+	 * search has visited every cell it had to.
+	 */
+	public double getSearchedDistance() {
+		return searchedDistance;
+	}
+
+	/**
+	 * Returns the k rows nearest to a lon/lat position, closest first.
+	 */
+	public List<Neighbour> search(double x, double y, int k) throws IOException {
+		return search(x, y, k, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Returns the k rows nearest to a lon/lat position within a distance, closest first.
+	 *
+	 * @param maxDistance
+	 *            in degrees
+	 */
+	public List<Neighbour> search(double x, double y, int k, double maxDistance) throws IOException {
+		reads = 0;
+		searchedDistance = Double.POSITIVE_INFINITY;
+		if (k <= 0 || tables.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Point point = GEOMETRY_FACTORY.createPoint(new Coordinate(x, y));
+		// candidates, farthest first so that the k-th one is at the head
+		PriorityQueue<Neighbour> best = new PriorityQueue<>(k + 1, Collections.reverseOrder(NEAREST_FIRST));
+		PriorityQueue<Candidate> cells = new PriorityQueue<>(64, CLOSEST_CELL_FIRST);
+		for (int face = 0; face < 6; face++) {
+			push(cells, S2CellId.fromFacePosLevel(face, 0, 0), x, y, maxDistance);
+		}
+		List<PreparedStatement[]> statements = prepare();
+		int roundCells = DEFAULT_ROUND_CELLS;
+		int readLevel = leafLevel;
+		while (!cells.isEmpty()) {
+			if (reads >= maxReads) {
+				searchedDistance = cells.peek().distance;
+				break;
+			}
+			List<Statement> round = new ArrayList<>();
+			int roundReads = Math.min(roundCells, maxReads - reads) * tables.size();
+			while (!cells.isEmpty() && round.size() < roundReads) {
+				Candidate next = cells.peek();
+				if (best.size() == k && next.distance >= best.peek().distance) {
+					break;
+				}
+				cells.poll();
+				int level = next.id.level();
+				if (level < readLevel) {
+					for (S2CellId child = next.id.childBegin(); !child.equals(next.id.childEnd()); child = child.next()) {
+						push(cells, child, x, y, maxDistance);
+					}
+				}
+				if (level >= readLevel || !pointLayer) {
+					bind(round, statements, next.id);
+				}
+			}
+			if (round.isEmpty()) {
+				break;
+			}
+			reads += round.size() / tables.size();
+			int found = best.size();
+			read(round, point, k, maxDistance, best);
+			if (best.size() == found) {
+				// sparse area, ranges would mostly be empty
+				readLevel = S2IndexStrategy.QUAD_LEVEL;
+				roundCells = Math.min(2 * roundCells, MAX_ROUND_CELLS);
+			}
+		}
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Found " + best.size() + " neighbours of (" + x + ", " + y + ") in " + reads
+					+ " cell reads, exact up to " + searchedDistance);
+		}
+		List<Neighbour> result = new ArrayList<>(best);
+		Collections.sort(result, NEAREST_FIRST);
+		return result;
+	}
+
+	void push(PriorityQueue<Candidate> cells, S2CellId id, double x, double y, double maxDistance) {
+		double distance = minDistance(new S2Cell(id).getRectBound(), x, y);
+		if (distance <= maxDistance) {
+			cells.add(new Candidate(id, distance));
+		}
+	}
+
+	/**
+	 * Prepares the partition and range reads of each table, cells being stored as ids, see
+	 * S2LongIndexStrategy, or as tokens.
+	 */
+	List<PreparedStatement[]> prepare() {
+		List<PreparedStatement[]> statements = new ArrayList<>(tables.size());
+		for (String table : tables) {
+			String select = "select cell,pos,fid,the_geom from " + table + " where cell=?";
+			statements.add(new PreparedStatement[] { executor.prepare(select + ";"),
+					executor.prepare(select + " and pos>=? and pos<=?;") });
+		}
+		return statements;
+	}
+
+	void bind(List<Statement> round, List<PreparedStatement[]> statements, S2CellId id) {
+		for (PreparedStatement[] prepared : statements) {
+			boolean longCellIds = DataType.bigint().equals(prepared[0].getVariables().getType(0));
+			if (id.level() <= S2IndexStrategy.QUAD_LEVEL) {
+				round.add(prepared[0].bind(key(id, longCellIds)));
+			} else {
+				round.add(prepared[1].bind(key(id.parent(S2IndexStrategy.QUAD_LEVEL), longCellIds),
+						key(id.rangeMin(), longCellIds), key(id.rangeMax(), longCellIds)));
+			}
+		}
+	}
+
+	static Object key(S2CellId id, boolean longCellIds) {
+		return longCellIds ? (Object) id.id() : id.toToken();
+	}
+
+	/**
+	 * Reads the rows of a round, keeping the k nearest ones. Rows outside the square around the
+	 * point holding the k-th candidate are skipped before being decoded.
+	 */
+	void read(List<Statement> round, Point point, int k, double maxDistance, PriorityQueue<Neighbour> best)
+			throws IOException {
+		CellQueryStream stream = executor.query(round);
+		try {
+			Row row;
+			while ((row = stream.next()) != null) {
+				ByteBuffer buffer = row.getBytes("the_geom");
+				if (buffer == null) {
+					continue;
+				}
+				String table = row.getColumnDefinitions().getTable(0);
+				GeometryCodec codec = codec(table);
+				double bound = best.size() == k ? best.peek().distance : maxDistance;
+				if (!Double.isInfinite(bound) && !codec.intersects(buffer, new Envelope(point.getX() - bound,
+						point.getX() + bound, point.getY() - bound, point.getY() + bound))) {
+					continue;
+				}
+				Geometry geometry;
+				try {
+					geometry = codec.decode(buffer);
+				} catch (Exception ex) {
+					LOGGER.log(Level.WARNING, "Skipping row with invalid geometry", ex);
+					continue;
+				}
+				double distance = geometry.distance(point);
+				if (distance > bound || best.size() == k && distance >= bound) {
+					continue;
+				}
+				best.add(new Neighbour(table, row.getString("fid"), geometry, distance));
+				if (best.size() > k) {
+					best.poll();
+				}
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Returns the cartesian distance from a position to a lon/lat rectangle, in degrees.
+	 */
+	static double minDistance(S2LatLngRect rect, double x, double y) {
+		double minY = rect.lat().lo() * RADIANS_TO_DEGREES;
+		double maxY = rect.lat().hi() * RADIANS_TO_DEGREES;
+		double dy = y < minY ? minY - y : y > maxY ? y - maxY : 0;
+		S1Interval lng = rect.lng();
+		double minX = lng.lo() * RADIANS_TO_DEGREES;
+		double maxX = lng.hi() * RADIANS_TO_DEGREES;
+		double dx;
+		if (lng.isFull()) {
+			dx = 0;
+		} else if (lng.isInverted()) {
+			// across the antimeridian, the rectangle spans [minX, 180] and [-180, maxX]
+			dx = x >= minX || x <= maxX ? 0 : Math.min(minX - x, x - maxX);
+		} else {
+			dx = x < minX ? minX - x : x > maxX ? x - maxX : 0;
+		}
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	static final Comparator<Neighbour> NEAREST_FIRST = new Comparator<Neighbour>() {
+		@Override
+		public int compare(Neighbour a, Neighbour b) {
+			return Double.compare(a.distance, b.distance);
+		}
+	};
+
+	static final Comparator<Candidate> CLOSEST_CELL_FIRST = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			return Double.compare(a.distance, b.distance);
+		}
+	};
+
+	/**
+	 * A cell not visited yet and the minimum distance of the rows it may hold.
+	 */
+	static class Candidate {
+
+		final S2CellId id;
+
+		final double distance;
+
+		Candidate(S2CellId id, double distance) {
+			this.id = id;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * A row found by a search.
+	 */
+	public static class Neighbour {
+
+		final String table;
+
+		final String fid;
+
+		final Geometry geometry;
+
+		final double distance;
+
+		Neighbour(String table, String fid, Geometry geometry, double distance) {
+			this.table = table;
+			this.fid = fid;
+			this.geometry = geometry;
+			this.distance = distance;
+		}
+
+		public String getTable() {
+			return table;
+		}
+
+		public String getFid() {
+			return fid;
+		}
+
+		public Geometry getGeometry() {
+			return geometry;
+		}
+
+		/**
+		 * Distance to the query point, in degrees.
+		 */
+		public double getDistance() {
+			return distance;
+		}
+	}
+}
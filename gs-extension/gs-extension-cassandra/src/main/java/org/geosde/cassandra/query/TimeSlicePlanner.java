@@ -0,0 +1,317 @@
+package org.geosde.cassandra.query;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.util.Converters;
+import org.opengis.filter.And;
+import org.opengis.filter.BinaryComparisonOperator;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Or;
+import org.opengis.filter.PropertyIsBetween;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.PropertyIsGreaterThan;
+import org.opengis.filter.PropertyIsGreaterThanOrEqualTo;
+import org.opengis.filter.PropertyIsLessThan;
+import org.opengis.filter.PropertyIsLessThanOrEqualTo;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.temporal.After;
+import org.opengis.filter.temporal.Before;
+import org.opengis.filter.temporal.BinaryTemporalOperator;
+import org.opengis.filter.temporal.During;
+import org.opengis.filter.temporal.TEquals;
+import org.opengis.temporal.Instant;
+import org.opengis.temporal.Period;
+
+/**
+ * Selects the time slice tables a query has to read.
+ * <p>
+ * A layer is written to one table per hour, named after the layer and the hour formatted with
+ * {@link #SLICE_FORMAT}. The planner extracts the time ranges a filter selects on the time
+ * attribute, from comparisons, <code>BETWEEN</code> and the temporal operators, and keeps the
+ * tables whose hour intersects them. Conditions on other attributes are left to the reader.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class TimeSlicePlanner {
+
+	public final static String SLICE_FORMAT = "yyyyMMddHH";
+
+	public final static String DEFAULT_TIME_ATTRIBUTE = "timestamp";
+
+	final static long SLICE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	final String attribute;
+
+	public TimeSlicePlanner() {
+		this(DEFAULT_TIME_ATTRIBUTE);
+	}
+
+	public TimeSlicePlanner(String attribute) {
+		this.attribute = attribute;
+	}
+
+	public String getAttribute() {
+		return attribute;
+	}
+
+	/**
+	 * Returns the tables of a layer holding the hours a filter selects, in time order.
+	 *
+	 * @param filter
+	 *            the query filter
+	 * @param layer
+	 *            the layer name, the tables being named <code>layer_yyyyMMddHH</code>
+	 * @param tables
+	 *            the existing tables, the ones of other layers being ignored
+	 */
+	public List<String> plan(Filter filter, String layer, Collection<String> tables) {
+		List<TimeRange> ranges = ranges(filter);
+		TreeMap<Long, String> slices = new TreeMap<>();
+		for (String table : tables) {
+			Date hour = sliceOf(layer, table);
+			if (hour != null && (ranges == null || intersects(ranges, hour.getTime()))) {
+				slices.put(hour.getTime(), table);
+			}
+		}
+		return new ArrayList<>(slices.values());
+	}
+
+	/**
+	 * Returns the hour a table holds, null if it is not a time slice of the layer.
+	 */
+	public static Date sliceOf(String layer, String table) {
+		if (table.length() != layer.length() + 1 + SLICE_FORMAT.length() || !table.startsWith(layer)
+				|| table.charAt(layer.length()) != '_') {
+			return null;
+		}
+		return parseHour(table.substring(layer.length() + 1));
+	}
+
+	static boolean intersects(List<TimeRange> ranges, long hour) {
+		for (TimeRange range : ranges) {
+			if (range.start < hour + SLICE_MILLIS && range.end > hour) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the time ranges a filter selects, or null if it does not restrict time.
+	 */
+	public List<TimeRange> ranges(Filter filter) {
+		if (filter == null || filter == Filter.INCLUDE) {
+			return null;
+		}
+		if (filter == Filter.EXCLUDE) {
+			return Collections.emptyList();
+		}
+		if (filter instanceof And) {
+			List<TimeRange> result = null;
+			for (Filter child : ((And) filter).getChildren()) {
+				List<TimeRange> ranges = ranges(child);
+				if (ranges != null) {
+					result = result == null ? ranges : intersection(result, ranges);
+				}
+			}
+			return result;
+		}
+		if (filter instanceof Or) {
+			List<TimeRange> result = new ArrayList<>();
+			for (Filter child : ((Or) filter).getChildren()) {
+				List<TimeRange> ranges = ranges(child);
+				if (ranges == null) {
+					return null;
+				}
+				result.addAll(ranges);
+			}
+			return result;
+		}
+		if (filter instanceof PropertyIsBetween) {
+			PropertyIsBetween between = (PropertyIsBetween) filter;
+			Long lower = time(between.getLowerBoundary());
+			Long upper = time(between.getUpperBoundary());
+			if (!isTimeAttribute(between.getExpression()) || lower == null || upper == null) {
+				return null;
+			}
+			return range(lower, upper + 1);
+		}
+		if (filter instanceof BinaryComparisonOperator) {
+			return comparison((BinaryComparisonOperator) filter);
+		}
+		if (filter instanceof BinaryTemporalOperator) {
+			return temporal((BinaryTemporalOperator) filter);
+		}
+		return null;
+	}
+
+	List<TimeRange> comparison(BinaryComparisonOperator comparison) {
+		// property op literal, or literal op property with the comparison reversed
+		boolean reversed = !isTimeAttribute(comparison.getExpression1());
+		Long time = time(reversed ? comparison.getExpression1() : comparison.getExpression2());
+		if (time == null || !isTimeAttribute(reversed ? comparison.getExpression2() : comparison.getExpression1())) {
+			return null;
+		}
+		if (comparison instanceof PropertyIsEqualTo) {
+			return range(time, time + 1);
+		}
+		boolean greater = comparison instanceof PropertyIsGreaterThan
+				|| comparison instanceof PropertyIsGreaterThanOrEqualTo;
+		boolean less = comparison instanceof PropertyIsLessThan || comparison instanceof PropertyIsLessThanOrEqualTo;
+		boolean inclusive = comparison instanceof PropertyIsGreaterThanOrEqualTo
+				|| comparison instanceof PropertyIsLessThanOrEqualTo;
+		if (!greater && !less) {
+			return null;
+		}
+		if (greater != reversed) {
+			return range(inclusive ? time : time + 1, Long.MAX_VALUE);
+		}
+		return range(Long.MIN_VALUE, inclusive ? time + 1 : time);
+	}
+
+	List<TimeRange> temporal(BinaryTemporalOperator operator) {
+		if (!isTimeAttribute(operator.getExpression1())) {
+			return null;
+		}
+		Object value = literal(operator.getExpression2());
+		Long begin = null;
+		Long end = null;
+		if (value instanceof Period) {
+			begin = time(((Period) value).getBeginning());
+			end = time(((Period) value).getEnding());
+		} else {
+			begin = end = time(value);
+		}
+		if (begin == null || end == null) {
+			return null;
+		}
+		if (operator instanceof During) {
+			return range(begin + 1, end);
+		}
+		if (operator instanceof TEquals) {
+			return range(begin, end + 1);
+		}
+		if (operator instanceof After) {
+			return range(end + 1, Long.MAX_VALUE);
+		}
+		if (operator instanceof Before) {
+			return range(Long.MIN_VALUE, begin);
+		}
+		return null;
+	}
+
+	boolean isTimeAttribute(Expression expression) {
+		return expression instanceof PropertyName && attribute.equals(((PropertyName) expression).getPropertyName());
+	}
+
+	static Object literal(Expression expression) {
+		return expression instanceof Literal ? ((Literal) expression).getValue() : null;
+	}
+
+	static Long time(Expression expression) {
+		return time(literal(expression));
+	}
+
+	/**
+	 * Converts a literal to milliseconds: dates, instants, and hours written as in the table
+	 * names, the format used by the time attribute.
+	 */
+	static Long time(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Date) {
+			return ((Date) value).getTime();
+		}
+		if (value instanceof Instant) {
+			Date date = ((Instant) value).getPosition().getDate();
+			return date == null ? null : date.getTime();
+		}
+		String text = value.toString().trim();
+		if (text.length() > 1 && text.charAt(0) == '\'' && text.charAt(text.length() - 1) == '\'') {
+			text = text.substring(1, text.length() - 1);
+		}
+		Date hour = parseHour(text);
+		if (hour != null) {
+			return hour.getTime();
+		}
+		Date date = Converters.convert(text, Date.class);
+		return date == null ? null : date.getTime();
+	}
+
+	static Date parseHour(String text) {
+		if (text.length() != SLICE_FORMAT.length()) {
+			return null;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (!Character.isDigit(text.charAt(i))) {
+				return null;
+			}
+		}
+		SimpleDateFormat formatter = new SimpleDateFormat(SLICE_FORMAT);
+		formatter.setLenient(false);
+		try {
+			return formatter.parse(text);
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+
+	static List<TimeRange> range(long start, long end) {
+		return start < end ? Collections.singletonList(new TimeRange(start, end))
+				: Collections.<TimeRange> emptyList();
+	}
+
+	static List<TimeRange> intersection(List<TimeRange> a, List<TimeRange> b) {
+		List<TimeRange> result = new ArrayList<>();
+		for (TimeRange r : a) {
+			for (TimeRange s : b) {
+				long start = Math.max(r.start, s.start);
+				long end = Math.min(r.end, s.end);
+				if (start < end) {
+					result.add(new TimeRange(start, end));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Milliseconds from <code>start</code> included to <code>end</code> excluded.
+	 */
+	public static class TimeRange {
+
+		final long start;
+
+		final long end;
+
+		public TimeRange(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + start + ", " + end + ")";
+		}
+	}
+}
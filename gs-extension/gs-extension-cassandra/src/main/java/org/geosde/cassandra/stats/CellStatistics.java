@@ -0,0 +1,130 @@
+package org.geosde.cassandra.stats;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Number of rows and extent of their geometries per partition cell, either accumulated by a
+ * writer or read back from a {@link LayerStatistics} table. Not thread-safe.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class CellStatistics {
+
+	final Map<Object, Cell> cells = new LinkedHashMap<>();
+
+	final Envelope extent = new Envelope();
+
+	long count;
+
+	/**
+	 * Accounts for a row of a partition cell.
+	 *
+	 * @param cell
+	 *            the partition key, a token or an id
+	 * @param envelope
+	 *            the envelope of the row geometry
+	 */
+	public void add(Object cell, Envelope envelope) {
+		add(cell, 1, envelope);
+	}
+
+	/**
+	 * Accounts for a number of rows of a partition cell.
+	 */
+	public void add(Object cell, long rows, Envelope envelope) {
+		Cell stats = cells.get(cell);
+		if (stats == null) {
+			stats = new Cell(cell);
+			cells.put(cell, stats);
+		}
+		stats.count += rows;
+		stats.extent.expandToInclude(envelope);
+		count += rows;
+		extent.expandToInclude(envelope);
+	}
+
+	public boolean isEmpty() {
+		return cells.isEmpty();
+	}
+
+	public Collection<Cell> getCells() {
+		return cells.values();
+	}
+
+	/**
+	 * Total number of rows.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Extent of all the rows, null if there are none.
+	 */
+	public Envelope getExtent() {
+		return extent.isNull() ? null : new Envelope(extent);
+	}
+
+	/**
+	 * Counts the rows intersecting an envelope.
+	 *
+	 * @return the count, or -1 if a cell holding rows both inside and outside the envelope does
+	 *         not allow to tell it from the statistics
+	 */
+	public long count(Envelope bbox) {
+		long result = 0;
+		for (Cell cell : cells.values()) {
+			if (bbox.contains(cell.extent)) {
+				result += cell.count;
+			} else if (bbox.intersects(cell.extent)) {
+				return -1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns an envelope containing the rows intersecting an envelope, the extent of the cells
+	 * clipped to it, or null if no row intersects it.
+	 */
+	public Envelope bounds(Envelope bbox) {
+		Envelope result = new Envelope();
+		for (Cell cell : cells.values()) {
+			result.expandToInclude(bbox.intersection(cell.extent));
+		}
+		return result.isNull() ? null : result;
+	}
+
+	/**
+	 * Rows of a partition cell.
+	 */
+	public static class Cell {
+
+		final Object key;
+
+		long count;
+
+		final Envelope extent = new Envelope();
+
+		Cell(Object key) {
+			this.key = key;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public Envelope getExtent() {
+			return extent;
+		}
+	}
+}
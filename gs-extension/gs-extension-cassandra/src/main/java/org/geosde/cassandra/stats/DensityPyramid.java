@@ -0,0 +1,341 @@
+package org.geosde.cassandra.stats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.geosde.cassandra.query.CellQueryExecutor;
+import org.geosde.cassandra.query.CellQueryStream;
+import org.geosde.cassandra.write.AsyncBatchWriter;
+import org.geosde.cassandra.write.InsertStatementCache;
+import org.geosde.core.index.S2IndexStrategy;
+import org.geosde.core.index.S2QueryPlanner;
+
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2Projections;
+import com.google.common.geometry.S2RegionCoverer;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Pre-aggregated density of a layer: the number of rows and their mean position per S2 cell, at
+ * a few levels, so that low zoom maps read one row per cell instead of every feature.
+ * <p>
+ * The pyramid is stored in a <code>&lt;table&gt;_density</code> table partitioned by level and
+ * zone, the ancestor {@link #ZONE_DEPTH} levels above the cell, so that a query reads the few
+ * zones covering its bbox. Like {@link LayerStatistics}, each writer stores its own rows, which
+ * readers add up.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class DensityPyramid {
+
+	public final static String TABLE_SUFFIX = "_density";
+
+	/**
+	 * Levels aggregated, from about 600 km to 2 km cells
+	 */
+	public final static int[] DEFAULT_LEVELS = { 4, 6, 8, 10, 12 };
+
+	/**
+	 * Number of levels between a cell and the zone partitioning it
+	 */
+	public final static int ZONE_DEPTH = 6;
+
+	/**
+	 * Default number of cells a query reads at most when no rendering resolution is given
+	 */
+	public final static int DEFAULT_MAX_CELLS = 4096;
+
+	final static double RADIANS_TO_DEGREES = 180 / Math.PI;
+
+	final Session session;
+
+	final String keyspace;
+
+	final String layerTable;
+
+	/**
+	 * Keyspace qualified name of the pyramid table
+	 */
+	final String table;
+
+	final InsertStatementCache statements;
+
+	final int[] levels;
+
+	final CellQueryExecutor executor;
+
+	public DensityPyramid(Session session, String keyspace, String layerTable, InsertStatementCache statements) {
+		this(session, keyspace, layerTable, statements, DEFAULT_LEVELS);
+	}
+
+	public DensityPyramid(Session session, String keyspace, String layerTable, InsertStatementCache statements,
+			int[] levels) {
+		this(new CellQueryExecutor(session), keyspace, layerTable, statements, levels);
+	}
+
+	/**
+	 * @param executor
+	 *            the engine the zones are read through, usually the data store one, see
+	 *            {@link org.geosde.cassandra.CassandraDataStore#getQueryExecutor()}
+	 */
+	public DensityPyramid(CellQueryExecutor executor, String keyspace, String layerTable,
+			InsertStatementCache statements, int[] levels) {
+		this.executor = executor;
+		this.session = executor.getSession();
+		this.keyspace = keyspace;
+		this.layerTable = layerTable;
+		this.table = keyspace + "." + layerTable + TABLE_SUFFIX;
+		this.statements = statements;
+		this.levels = levels.clone();
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public int[] getLevels() {
+		return levels.clone();
+	}
+
+	public void createTable() {
+		session.execute("CREATE TABLE IF NOT EXISTS " + table
+				+ " (level int, zone bigint, cell bigint, writer uuid, row_count bigint, sum_x double, sum_y double,"
+				+ " PRIMARY KEY ((level, zone), cell, writer));");
+	}
+
+	public boolean exists() {
+		KeyspaceMetadata metadata = session.getCluster().getMetadata().getKeyspace(keyspace);
+		return metadata != null && metadata.getTable(layerTable + TABLE_SUFFIX) != null;
+	}
+
+	public Accumulator newAccumulator() {
+		return new Accumulator(levels);
+	}
+
+	static int zoneLevel(int level) {
+		return Math.max(0, level - ZONE_DEPTH);
+	}
+
+	/**
+	 * Stores the cells counted by a writer, replacing the ones it stored before.
+	 */
+	public void write(UUID writer, Accumulator accumulator) throws IOException {
+		if (accumulator.isEmpty()) {
+			return;
+		}
+		AsyncBatchWriter batchWriter = new AsyncBatchWriter(session);
+		try {
+			for (int i = 0; i < levels.length; i++) {
+				int zoneLevel = zoneLevel(levels[i]);
+				for (Cell cell : accumulator.cells[i].values()) {
+					long zone = new S2CellId(cell.id).parent(zoneLevel).id();
+					Map<String, Object> values = new LinkedHashMap<>();
+					values.put("level", levels[i]);
+					values.put("zone", zone);
+					values.put("cell", cell.id);
+					values.put("writer", writer);
+					values.put("row_count", cell.count);
+					values.put("sum_x", cell.sumX);
+					values.put("sum_y", cell.sumY);
+					batchWriter.add(levels[i] + ":" + zone, statements.bind(table, values));
+				}
+			}
+		} finally {
+			batchWriter.close();
+		}
+	}
+
+	/**
+	 * Returns the coarsest level whose cells are no larger than a distance, typically the size of
+	 * a few pixels of the map, or the finest level if they are all larger.
+	 *
+	 * @param distance
+	 *            in degrees
+	 */
+	public int chooseLevel(double distance) {
+		for (int level : levels) {
+			if (edgeDegrees(level) <= distance) {
+				return level;
+			}
+		}
+		return levels[levels.length - 1];
+	}
+
+	/**
+	 * Returns the finest level covering a bbox with at most about <code>maxCells</code> cells, or
+	 * the coarsest level if they all need more.
+	 */
+	public int chooseLevel(Envelope bbox, int maxCells) {
+		int chosen = levels[0];
+		for (int level : levels) {
+			double edge = edgeDegrees(level);
+			double cells = Math.ceil(bbox.getWidth() / edge + 1) * Math.ceil(bbox.getHeight() / edge + 1);
+			if (cells > maxCells) {
+				break;
+			}
+			chosen = level;
+		}
+		return chosen;
+	}
+
+	static double edgeDegrees(int level) {
+		return S2Projections.AVG_EDGE.getValue(level) * RADIANS_TO_DEGREES;
+	}
+
+	/**
+	 * Reads the cells of a level whose mean position falls in a bbox, at most about
+	 * {@link #DEFAULT_MAX_CELLS}, see {@link #read(int, Envelope, int)}.
+	 */
+	public List<Cell> read(int level, Envelope bbox) throws IOException {
+		return read(level, bbox, DEFAULT_MAX_CELLS);
+	}
+
+	/**
+	 * Reads the cells of a level whose mean position falls in a bbox, through the
+	 * {@link CellQueryExecutor} which bounds the reads in flight per host. The level is replaced by
+	 * a coarser one if the bbox holds more than about <code>maxCells</code> cells of it, see
+	 * {@link #chooseLevel(Envelope, int)}, so the cells returned tell their level.
+	 */
+	public List<Cell> read(int level, Envelope bbox, int maxCells) throws IOException {
+		level = Math.min(level, chooseLevel(bbox, maxCells));
+		S2RegionCoverer coverer = new S2RegionCoverer();
+		coverer.setMinLevel(zoneLevel(level));
+		coverer.setMaxLevel(zoneLevel(level));
+		coverer.setMaxCells(maxCells);
+		ArrayList<S2CellId> zones = new ArrayList<>();
+		coverer.getCovering(S2QueryPlanner.toRect(bbox), zones);
+		Map<Long, Cell> cells = new LinkedHashMap<>();
+		CellQueryStream stream = null;
+		try {
+			PreparedStatement statement = executor.prepare(
+					"SELECT cell, row_count, sum_x, sum_y FROM " + table + " WHERE level=? AND zone=?;");
+			List<Statement> statements = new ArrayList<>(zones.size());
+			for (S2CellId zone : zones) {
+				statements.add(statement.bind(level, zone.id()));
+			}
+			stream = executor.query(statements);
+			Row row;
+			while ((row = stream.next()) != null) {
+				long id = row.getLong("cell");
+				Cell cell = cells.get(id);
+				if (cell == null) {
+					cell = new Cell(id);
+					cells.put(id, cell);
+				}
+				cell.count += row.getLong("row_count");
+				cell.sumX += row.getDouble("sum_x");
+				cell.sumY += row.getDouble("sum_y");
+			}
+		} catch (DriverException e) {
+			throw new IOException("Could not read the density of " + layerTable, e);
+		} finally {
+			if (stream != null) {
+				stream.close();
+			}
+		}
+		List<Cell> result = new ArrayList<>(cells.size());
+		for (Cell cell : cells.values()) {
+			if (bbox.contains(cell.getX(), cell.getY())) {
+				result.add(cell);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Rows of a cell and the sum of their positions.
+	 */
+	public static class Cell {
+
+		final long id;
+
+		long count;
+
+		double sumX;
+
+		double sumY;
+
+		Cell(long id) {
+			this.id = id;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public int getLevel() {
+			return new S2CellId(id).level();
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Mean longitude of the rows.
+		 */
+		public double getX() {
+			return sumX / count;
+		}
+
+		/**
+		 * Mean latitude of the rows.
+		 */
+		public double getY() {
+			return sumY / count;
+		}
+	}
+
+	/**
+	 * Counts the rows of a writer per cell at every level of the pyramid. Not thread-safe.
+	 */
+	public static class Accumulator {
+
+		final int[] levels;
+
+		final Map<Long, Cell>[] cells;
+
+		@SuppressWarnings("unchecked")
+		Accumulator(int[] levels) {
+			this.levels = levels;
+			this.cells = new Map[levels.length];
+			for (int i = 0; i < levels.length; i++) {
+				cells[i] = new HashMap<>();
+			}
+		}
+
+		/**
+		 * Accounts for a row positioned at a lon/lat.
+		 */
+		public void add(double x, double y) {
+			S2CellId leaf = new S2CellId(S2IndexStrategy.leafId(y, x));
+			for (int i = 0; i < levels.length; i++) {
+				long id = leaf.parent(levels[i]).id();
+				Cell cell = cells[i].get(id);
+				if (cell == null) {
+					cell = new Cell(id);
+					cells[i].put(id, cell);
+				}
+				cell.count++;
+				cell.sumX += x;
+				cell.sumY += y;
+			}
+		}
+
+		public boolean isEmpty() {
+			return cells.length == 0 || cells[0].isEmpty();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package org.geosde.cassandra.stats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.geosde.cassandra.object.LayerCatalog;
+import org.geosde.cassandra.write.AsyncBatchWriter;
+import org.geosde.cassandra.write.InsertStatementCache;
+import org.geosde.core.index.S2QueryPlan;
+import org.geosde.core.index.S2QueryPlanner;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.geometry.S2CellId;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Statistics table of a layer table, holding the number of rows and the extent of each partition
+ * cell, so that counts and bounds are answered without reading any feature row.
+ * <p>
+ * Each writer stores its own row per cell, keyed by a random writer id, and readers add up the
+ * rows of a cell. Writers therefore never read nor lock anything, and writing the same statistics
+ * again is harmless. Rows written twice, for example by two loads of the same features, are
+ * counted twice.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class LayerStatistics {
+
+	public final static String TABLE_SUFFIX = "_stats";
+
+	/**
+	 * Above this number of partitions, the whole statistics table is scanned rather than read
+	 * partition by partition
+	 */
+	public final static int MAX_PARTITION_READS = 256;
+
+	static final S2QueryPlanner PLANNER = new S2QueryPlanner();
+
+	final Session session;
+
+	final String keyspace;
+
+	final String layerTable;
+
+	/**
+	 * Keyspace qualified name of the statistics table
+	 */
+	final String table;
+
+	final InsertStatementCache statements;
+
+	final LayerCatalog catalog;
+
+	volatile PreparedStatement selectCells;
+
+	/**
+	 * @param catalog
+	 *            catalog whose layer extent is expanded as rows are written, may be null
+	 */
+	public LayerStatistics(Session session, String keyspace, String layerTable, InsertStatementCache statements,
+			LayerCatalog catalog) {
+		this.session = session;
+		this.keyspace = keyspace;
+		this.layerTable = layerTable;
+		this.table = keyspace + "." + layerTable + TABLE_SUFFIX;
+		this.statements = statements;
+		this.catalog = catalog;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public void createTable(boolean longCellIds) {
+		session.execute("CREATE TABLE IF NOT EXISTS " + table + " (cell " + (longCellIds ? "bigint" : "text")
+				+ ", writer uuid, row_count bigint, minx double, miny double, maxx double, maxy double,"
+				+ " PRIMARY KEY (cell, writer));");
+	}
+
+	public boolean exists() {
+		KeyspaceMetadata metadata = session.getCluster().getMetadata().getKeyspace(keyspace);
+		return metadata != null && metadata.getTable(layerTable + TABLE_SUFFIX) != null;
+	}
+
+	/**
+	 * Stores the statistics of the rows written by a writer, replacing the ones it stored before,
+	 * and expands the layer extent in the catalog. The table is created if the layer predates it.
+	 */
+	public void write(UUID writer, CellStatistics stats) throws IOException {
+		if (stats.isEmpty()) {
+			return;
+		}
+		if (!exists()) {
+			createTable(stats.getCells().iterator().next().getKey() instanceof Long);
+		}
+		AsyncBatchWriter batchWriter = new AsyncBatchWriter(session);
+		try {
+			for (CellStatistics.Cell cell : stats.getCells()) {
+				Envelope extent = cell.getExtent();
+				Map<String, Object> values = new LinkedHashMap<>();
+				values.put("cell", cell.getKey());
+				values.put("writer", writer);
+				values.put("row_count", cell.getCount());
+				values.put("minx", extent.getMinX());
+				values.put("miny", extent.getMinY());
+				values.put("maxx", extent.getMaxX());
+				values.put("maxy", extent.getMaxY());
+				batchWriter.add(cell.getKey(), statements.bind(table, values));
+			}
+		} finally {
+			batchWriter.close();
+		}
+		if (catalog != null) {
+			catalog.expandExtent(keyspace, layerTable, stats.getExtent());
+		}
+	}
+
+	/**
+	 * Reads the statistics of the cells a query envelope may touch, or of all the cells if the
+	 * envelope is null.
+	 *
+	 * @return the statistics, or null if the layer has no statistics, its table not existing or
+	 *         holding no row, for example for rows loaded before statistics were kept
+	 */
+	public CellStatistics read(Envelope bbox) throws IOException {
+		if (!exists()) {
+			return null;
+		}
+		String select = "SELECT cell, row_count, minx, miny, maxx, maxy FROM " + table;
+		ResultSet rs;
+		try {
+			S2QueryPlan plan = bbox == null ? null : PLANNER.plan(bbox, true);
+			if (plan == null || plan.getPartitionCount() > MAX_PARTITION_READS) {
+				rs = session.execute(select + ";");
+			} else {
+				PreparedStatement statement = selectCells;
+				if (statement == null) {
+					selectCells = statement = session.prepare(select + " WHERE cell IN ?;");
+				}
+				boolean longCellIds = DataType.bigint().equals(statement.getVariables().getType(0).getTypeArguments().get(0));
+				List<Object> keys = new ArrayList<>();
+				for (S2CellId id : plan.getPartitions()) {
+					keys.add(longCellIds ? (Object) id.id() : id.toToken());
+				}
+				rs = session.execute(statement.bind(keys));
+			}
+		} catch (DriverException e) {
+			throw new IOException("Could not read the statistics of " + layerTable, e);
+		}
+		CellStatistics stats = new CellStatistics();
+		for (Row row : rs) {
+			stats.add(row.getObject("cell"), row.getLong("row_count"), new Envelope(row.getDouble("minx"),
+					row.getDouble("maxx"), row.getDouble("miny"), row.getDouble("maxy")));
+		}
+		if (stats.isEmpty() && isEmpty()) {
+			return null;
+		}
+		return stats;
+	}
+
+	/**
+	 * Reads the statistics stored by a writer, empty if it stored none.
+	 */
+	public CellStatistics read(UUID writer) throws IOException {
+		CellStatistics stats = new CellStatistics();
+		if (!exists()) {
+			return stats;
+		}
+		ResultSet rs;
+		try {
+			rs = session.execute("SELECT cell, row_count, minx, miny, maxx, maxy FROM " + table
+					+ " WHERE writer=? ALLOW FILTERING;", writer);
+		} catch (DriverException e) {
+			throw new IOException("Could not read the statistics of " + layerTable, e);
+		}
+		for (Row row : rs) {
+			stats.add(row.getObject("cell"), row.getLong("row_count"), new Envelope(row.getDouble("minx"),
+					row.getDouble("maxx"), row.getDouble("miny"), row.getDouble("maxy")));
+		}
+		return stats;
+	}
+
+	/**
+	 * Whether no writer stored any statistics yet, in which case no cell can be told empty.
+	 */
+	boolean isEmpty() throws IOException {
+		try {
+			return session.execute("SELECT cell FROM " + table + " LIMIT 1;").one() == null;
+		} catch (DriverException e) {
+			throw new IOException("Could not read the statistics of " + layerTable, e);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.geosde.cassandra.util;
+
+import java.nio.ByteBuffer;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+
+/**
+ * Binary encoding of the geometry column of a layer table. The encoding of each layer is
+ * recorded in its <code>catalog.layer</code> row, see {@link GeometryCodecs}.
+ * <p>
+ * Implementations keep buffers between calls and are not thread-safe, each reader and writer
+ * should create its own instance.
+ *
+ * @author Xiao Fei
+ *
+ */
+public interface GeometryCodec {
+
+	/**
+	 * Name of the encoding as recorded in the catalog, see {@link GeometryCodecs#create(String)}.
+	 */
+	public String getName();
+
+	/**
+	 * Encodes a geometry.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the geometry cannot be represented in this encoding
+	 */
+	public ByteBuffer encode(Geometry geometry);
+
+	/**
+	 * Decodes the geometry held by the remaining bytes of a buffer, without moving its position.
+	 *
+	 * @throws ParseException
+	 *             if the bytes are ill-formed
+	 */
+	public Geometry decode(ByteBuffer buffer) throws ParseException;
+
+	/**
+	 * Tests whether an encoded geometry may intersect an envelope without decoding it, leaving the
+	 * buffer untouched. Ill-formed input is reported as intersecting so that the caller decodes
+	 * it.
+	 *
+	 * @return false if the geometry certainly does not intersect the envelope
+	 */
+	public boolean intersects(ByteBuffer buffer, Envelope envelope);
+}
@@ -0,0 +1,53 @@
+package org.geosde.cassandra.util;
+
+/**
+ * Creates the geometry codecs from the encoding names recorded in the
+ * <code>geometry_encoding</code> column of <code>catalog.layer</code>:
+ * <ul>
+ * <li><code>wkb</code>, or no encoding for the layers created before the column existed, see
+ * {@link WKBGeometryCodec}</li>
+ * <li><code>twkb</code> with {@link TWKBGeometryCodec#DEFAULT_PRECISION} decimal digits, or
+ * <code>twkb:&lt;digits&gt;</code>, see {@link TWKBGeometryCodec}</li>
+ * </ul>
+ *
+ * @author Xiao Fei
+ *
+ */
+public class GeometryCodecs {
+
+	public final static String WKB = "wkb";
+
+	public final static String TWKB = "twkb";
+
+	private GeometryCodecs() {
+	}
+
+	/**
+	 * Returns a new codec for an encoding name.
+	 *
+	 * @param encoding
+	 *            the encoding, null or empty for WKB
+	 * @throws IllegalArgumentException
+	 *             if the encoding is unknown
+	 */
+	public static GeometryCodec create(String encoding) {
+		if (encoding == null || encoding.trim().isEmpty()) {
+			return new WKBGeometryCodec();
+		}
+		String name = encoding.trim().toLowerCase();
+		if (name.equals(WKB)) {
+			return new WKBGeometryCodec();
+		}
+		if (name.equals(TWKB)) {
+			return new TWKBGeometryCodec();
+		}
+		if (name.startsWith(TWKB + ":")) {
+			try {
+				return new TWKBGeometryCodec(Integer.parseInt(name.substring(TWKB.length() + 1)));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid TWKB precision in geometry encoding " + encoding);
+			}
+		}
+		throw new IllegalArgumentException("Unknown geometry encoding " + encoding);
+	}
+}
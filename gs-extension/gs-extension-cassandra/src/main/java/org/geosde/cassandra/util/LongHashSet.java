@@ -0,0 +1,124 @@
+package org.geosde.cassandra.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive longs.
+ * <p>
+ * Uses 8 bytes per slot and no per entry object, which makes it suitable to remember millions of
+ * keys (for example fid fingerprints) where a {@code HashSet<String>} would cost an order of
+ * magnitude more heap. Not thread-safe.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class LongHashSet {
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	/** Marks a free slot, the key 0 itself is tracked by {@link #hasZero} */
+	private static final long FREE = 0L;
+
+	private long[] keys;
+
+	private int mask;
+
+	private int size;
+
+	private int resizeAt;
+
+	private boolean hasZero;
+
+	public LongHashSet() {
+		this(64);
+	}
+
+	public LongHashSet(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * Adds a key to the set.
+	 *
+	 * @return true if the key was not already present
+	 */
+	public boolean add(long key) {
+		if (key == FREE) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+		int slot = slot(key);
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		if (++size >= resizeAt) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	public boolean contains(long key) {
+		if (key == FREE) {
+			return hasZero;
+		}
+		int slot = slot(key);
+		while (keys[slot] != FREE) {
+			if (keys[slot] == key) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, FREE);
+		hasZero = false;
+		size = 0;
+	}
+
+	private int slot(long key) {
+		// murmur3 finalizer, spreads clustered keys across the table
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private void rehash(int capacity) {
+		long[] old = keys;
+		allocate(capacity);
+		for (long key : old) {
+			if (key != FREE) {
+				int slot = slot(key);
+				while (keys[slot] != FREE) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+			}
+		}
+	}
+}
@@ -0,0 +1,498 @@
+package org.geosde.cassandra.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.geotools.geometry.jts.CurvedGeometry;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+
+/**
+ * The Tiny WKB encoding: coordinates are scaled to integers by a number of decimal digits, and
+ * each one is written as the zig-zag varint of its difference with the previous one, so that the
+ * dense vertices of lines and polygons take 2 to 4 bytes rather than the 16 bytes of WKB.
+ * <p>
+ * Every geometry but points is written with its bounding box ahead of its coordinates, which
+ * {@link #intersects(ByteBuffer, Envelope)} and {@link #getEnvelope(ByteBuffer)} read without
+ * decoding the rest. The encoding is lossy: coordinates are rounded to the precision, 7 digits
+ * being about a centimetre in degrees. Only 2D linear geometries are written, curves are
+ * rejected, and the Z and M ordinates of the input are dropped, as by the 2D WKB writer.
+ *
+ * @see <a href="https://github.com/TWKB/Specification/blob/master/twkb.md">TWKB specification</a>
+ * @author Xiao Fei
+ *
+ */
+public class TWKBGeometryCodec implements GeometryCodec {
+
+	public final static int DEFAULT_PRECISION = 7;
+
+	final static int POINT = 1;
+
+	final static int LINESTRING = 2;
+
+	final static int POLYGON = 3;
+
+	final static int MULTIPOINT = 4;
+
+	final static int MULTILINESTRING = 5;
+
+	final static int MULTIPOLYGON = 6;
+
+	final static int COLLECTION = 7;
+
+	//
+	// metadata header flags
+	//
+	final static int BBOX = 0x01;
+
+	final static int SIZE = 0x02;
+
+	final static int ID_LIST = 0x04;
+
+	final static int EXTENDED_DIMENSIONS = 0x08;
+
+	final static int EMPTY = 0x10;
+
+	final int precision;
+
+	final double scale;
+
+	final GeometryFactory factory;
+
+	/** encoder output and the previous coordinate written */
+	byte[] out = new byte[256];
+	int length;
+	long lastX, lastY;
+
+	/** decoder input, the read offset and the previous coordinate read */
+	ByteBuffer in;
+	int offset;
+	long x, y;
+
+	/** bounds read by the envelope tests: minx, miny, maxx, maxy */
+	final double[] bounds = new double[4];
+
+	public TWKBGeometryCodec() {
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param precision
+	 *            number of decimal digits kept, between -8 and 7, negative values rounding to
+	 *            tens, hundreds...
+	 */
+	public TWKBGeometryCodec(int precision) {
+		this(precision, new GeometryFactory());
+	}
+
+	public TWKBGeometryCodec(int precision, GeometryFactory factory) {
+		if (precision < -8 || precision > 7) {
+			throw new IllegalArgumentException("TWKB precision must be between -8 and 7: " + precision);
+		}
+		this.precision = precision;
+		this.scale = Math.pow(10, precision);
+		this.factory = factory;
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	@Override
+	public String getName() {
+		return GeometryCodecs.TWKB + ":" + precision;
+	}
+
+	//
+	// Encoding
+	//
+	@Override
+	public ByteBuffer encode(Geometry geometry) {
+		length = 0;
+		write(geometry);
+		return ByteBuffer.wrap(Arrays.copyOf(out, length));
+	}
+
+	void write(Geometry geometry) {
+		int type = type(geometry);
+		writeByte(type | (int) (zigzag(precision) << 4));
+		if (geometry.isEmpty()) {
+			writeByte(EMPTY);
+			return;
+		}
+		// the bbox of a point is the point itself
+		if (type == POINT) {
+			writeByte(0);
+		} else {
+			writeByte(BBOX);
+			Envelope envelope = geometry.getEnvelopeInternal();
+			long minX = scale(envelope.getMinX());
+			long minY = scale(envelope.getMinY());
+			writeSigned(minX);
+			writeSigned(scale(envelope.getMaxX()) - minX);
+			writeSigned(minY);
+			writeSigned(scale(envelope.getMaxY()) - minY);
+		}
+		lastX = lastY = 0;
+		switch (type) {
+		case POINT:
+			writeCoordinates(((Point) geometry).getCoordinateSequence(), false);
+			break;
+		case LINESTRING:
+			writeCoordinates(((LineString) geometry).getCoordinateSequence(), true);
+			break;
+		case POLYGON:
+			writeRings((Polygon) geometry);
+			break;
+		default:
+			int parts = geometry.getNumGeometries();
+			writeUnsigned(parts);
+			for (int i = 0; i < parts; i++) {
+				Geometry part = geometry.getGeometryN(i);
+				switch (type) {
+				case MULTIPOINT:
+					if (part.isEmpty()) {
+						throw new IllegalArgumentException("Empty points of a multipoint cannot be encoded as TWKB");
+					}
+					writeCoordinates(((Point) part).getCoordinateSequence(), false);
+					break;
+				case MULTILINESTRING:
+					writeCoordinates(((LineString) part).getCoordinateSequence(), true);
+					break;
+				case MULTIPOLYGON:
+					writeRings((Polygon) part);
+					break;
+				default:
+					write(part);
+				}
+			}
+		}
+	}
+
+	static int type(Geometry geometry) {
+		if (geometry instanceof CurvedGeometry) {
+			throw new IllegalArgumentException("Curved geometries cannot be encoded as TWKB: " + geometry.getGeometryType());
+		}
+		if (geometry instanceof Point) {
+			return POINT;
+		} else if (geometry instanceof LineString) {
+			return LINESTRING;
+		} else if (geometry instanceof Polygon) {
+			return POLYGON;
+		} else if (geometry instanceof MultiPoint) {
+			return MULTIPOINT;
+		} else if (geometry instanceof MultiLineString) {
+			return MULTILINESTRING;
+		} else if (geometry instanceof MultiPolygon) {
+			return MULTIPOLYGON;
+		} else if (geometry instanceof GeometryCollection) {
+			return COLLECTION;
+		}
+		throw new IllegalArgumentException("Geometry type cannot be encoded as TWKB: " + geometry.getGeometryType());
+	}
+
+	void writeRings(Polygon polygon) {
+		if (polygon.isEmpty()) {
+			writeUnsigned(0);
+			return;
+		}
+		writeUnsigned(1 + polygon.getNumInteriorRing());
+		writeCoordinates(polygon.getExteriorRing().getCoordinateSequence(), true);
+		for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+			writeCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence(), true);
+		}
+	}
+
+	void writeCoordinates(CoordinateSequence sequence, boolean count) {
+		int size = sequence.size();
+		if (count) {
+			writeUnsigned(size);
+		}
+		for (int i = 0; i < size; i++) {
+			long x = scale(sequence.getX(i));
+			long y = scale(sequence.getY(i));
+			writeSigned(x - lastX);
+			writeSigned(y - lastY);
+			lastX = x;
+			lastY = y;
+		}
+	}
+
+	long scale(double value) {
+		return Math.round(value * scale);
+	}
+
+	void writeSigned(long value) {
+		writeUnsigned(zigzag(value));
+	}
+
+	void writeUnsigned(long value) {
+		ensure(10);
+		while ((value & ~0x7fL) != 0) {
+			out[length++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out[length++] = (byte) value;
+	}
+
+	void writeByte(int value) {
+		ensure(1);
+		out[length++] = (byte) value;
+	}
+
+	void ensure(int bytes) {
+		if (length + bytes > out.length) {
+			out = Arrays.copyOf(out, Math.max(2 * out.length, length + bytes));
+		}
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	//
+	// Decoding
+	//
+	@Override
+	public Geometry decode(ByteBuffer buffer) throws ParseException {
+		in = buffer;
+		offset = buffer.position();
+		try {
+			return read();
+		} catch (IndexOutOfBoundsException e) {
+			throw new ParseException("Unexpected end of TWKB");
+		} finally {
+			in = null;
+		}
+	}
+
+	Geometry read() throws ParseException {
+		int header = in.get(offset++) & 0xff;
+		int type = header & 0x0f;
+		double scale = Math.pow(10, unzigzag(header >>> 4));
+		int metadata = in.get(offset++) & 0xff;
+		if ((metadata & EXTENDED_DIMENSIONS) != 0) {
+			throw new ParseException("TWKB with Z or M ordinates is not supported");
+		}
+		if ((metadata & SIZE) != 0) {
+			readUnsigned();
+		}
+		if ((metadata & BBOX) != 0) {
+			for (int i = 0; i < 4; i++) {
+				readUnsigned();
+			}
+		}
+		if ((metadata & EMPTY) != 0) {
+			return empty(type);
+		}
+		x = y = 0;
+		switch (type) {
+		case POINT:
+			return factory.createPoint(readCoordinates(1, scale)[0]);
+		case LINESTRING:
+			return factory.createLineString(readCoordinates(readCount(), scale));
+		case POLYGON:
+			return readPolygon(scale);
+		case MULTIPOINT:
+		case MULTILINESTRING:
+		case MULTIPOLYGON:
+		case COLLECTION:
+			int parts = readCount();
+			if ((metadata & ID_LIST) != 0) {
+				for (int i = 0; i < parts; i++) {
+					readUnsigned();
+				}
+			}
+			switch (type) {
+			case MULTIPOINT:
+				return factory.createMultiPoint(readCoordinates(parts, scale));
+			case MULTILINESTRING:
+				LineString[] lines = new LineString[parts];
+				for (int i = 0; i < parts; i++) {
+					lines[i] = factory.createLineString(readCoordinates(readCount(), scale));
+				}
+				return factory.createMultiLineString(lines);
+			case MULTIPOLYGON:
+				Polygon[] polygons = new Polygon[parts];
+				for (int i = 0; i < parts; i++) {
+					polygons[i] = readPolygon(scale);
+				}
+				return factory.createMultiPolygon(polygons);
+			default:
+				Geometry[] geometries = new Geometry[parts];
+				for (int i = 0; i < parts; i++) {
+					geometries[i] = read();
+				}
+				return factory.createGeometryCollection(geometries);
+			}
+		default:
+			throw new ParseException("Invalid TWKB geometry type " + type);
+		}
+	}
+
+	Geometry empty(int type) throws ParseException {
+		switch (type) {
+		case POINT:
+			return factory.createPoint((Coordinate) null);
+		case LINESTRING:
+			return factory.createLineString((Coordinate[]) null);
+		case POLYGON:
+			return factory.createPolygon((LinearRing) null, null);
+		case MULTIPOINT:
+			return factory.createMultiPoint((Point[]) null);
+		case MULTILINESTRING:
+			return factory.createMultiLineString(null);
+		case MULTIPOLYGON:
+			return factory.createMultiPolygon(null);
+		case COLLECTION:
+			return factory.createGeometryCollection(null);
+		default:
+			throw new ParseException("Invalid TWKB geometry type " + type);
+		}
+	}
+
+	Polygon readPolygon(double scale) throws ParseException {
+		int rings = readCount();
+		if (rings == 0) {
+			return factory.createPolygon((LinearRing) null, null);
+		}
+		LinearRing shell = factory.createLinearRing(readCoordinates(readCount(), scale));
+		LinearRing[] holes = new LinearRing[rings - 1];
+		for (int i = 0; i < holes.length; i++) {
+			holes[i] = factory.createLinearRing(readCoordinates(readCount(), scale));
+		}
+		return factory.createPolygon(shell, holes);
+	}
+
+	Coordinate[] readCoordinates(int size, double scale) {
+		Coordinate[] coordinates = new Coordinate[size];
+		for (int i = 0; i < size; i++) {
+			x += readSigned();
+			y += readSigned();
+			coordinates[i] = new Coordinate(x / scale, y / scale);
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Reads a number of points, rings or parts, each of which takes at least a byte.
+	 */
+	int readCount() throws ParseException {
+		long count = readUnsigned();
+		if (count > in.limit() - offset) {
+			throw new ParseException("Invalid TWKB count " + count);
+		}
+		return (int) count;
+	}
+
+	long readSigned() {
+		return unzigzag(readUnsigned());
+	}
+
+	long readUnsigned() {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = in.get(offset++);
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	//
+	// Envelope
+	//
+	@Override
+	public boolean intersects(ByteBuffer buffer, Envelope envelope) {
+		switch (readBounds(buffer)) {
+		case 0:
+			return false;
+		case 1:
+			return bounds[0] <= envelope.getMaxX() && bounds[2] >= envelope.getMinX()
+					&& bounds[1] <= envelope.getMaxY() && bounds[3] >= envelope.getMinY();
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the envelope of an encoded geometry read from its header, without decoding it,
+	 * leaving the buffer untouched.
+	 *
+	 * @return the envelope, empty for empty geometries, or null if the header holds no bounding
+	 *         box
+	 */
+	public Envelope getEnvelope(ByteBuffer buffer) {
+		switch (readBounds(buffer)) {
+		case 0:
+			return new Envelope();
+		case 1:
+			return new Envelope(bounds[0], bounds[2], bounds[1], bounds[3]);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the bounding box of a geometry, or the point itself, into {@link #bounds}.
+	 *
+	 * @return 1 if the bounds have been read, 0 if the geometry is empty, -1 if they are unknown
+	 */
+	int readBounds(ByteBuffer buffer) {
+		in = buffer;
+		offset = buffer.position();
+		try {
+			int header = in.get(offset++) & 0xff;
+			double scale = Math.pow(10, unzigzag(header >>> 4));
+			int metadata = in.get(offset++) & 0xff;
+			if ((metadata & EMPTY) != 0) {
+				return 0;
+			}
+			if ((metadata & EXTENDED_DIMENSIONS) != 0) {
+				return -1;
+			}
+			if ((metadata & SIZE) != 0) {
+				readUnsigned();
+			}
+			if ((metadata & BBOX) != 0) {
+				long minX = readSigned();
+				long maxX = minX + readSigned();
+				long minY = readSigned();
+				long maxY = minY + readSigned();
+				bounds[0] = minX / scale;
+				bounds[1] = minY / scale;
+				bounds[2] = maxX / scale;
+				bounds[3] = maxY / scale;
+				return 1;
+			}
+			if ((header & 0x0f) == POINT) {
+				bounds[0] = bounds[2] = readSigned() / scale;
+				bounds[1] = bounds[3] = readSigned() / scale;
+				return 1;
+			}
+			return -1;
+		} catch (IndexOutOfBoundsException e) {
+			return -1;
+		} finally {
+			in = null;
+		}
+	}
+}
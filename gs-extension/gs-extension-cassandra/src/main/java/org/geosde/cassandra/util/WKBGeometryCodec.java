@@ -0,0 +1,42 @@
+package org.geosde.cassandra.util;
+
+import java.nio.ByteBuffer;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * The 2D WKB encoding written by the layers created before the encoding was recorded in the
+ * catalog, 16 bytes per coordinate.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class WKBGeometryCodec implements GeometryCodec {
+
+	final WKBWriter writer = new WKBWriter();
+
+	final WKBReader reader = new WKBReader();
+
+	@Override
+	public String getName() {
+		return GeometryCodecs.WKB;
+	}
+
+	@Override
+	public ByteBuffer encode(Geometry geometry) {
+		return ByteBuffer.wrap(writer.write(geometry));
+	}
+
+	@Override
+	public Geometry decode(ByteBuffer buffer) throws ParseException {
+		return reader.read(buffer);
+	}
+
+	@Override
+	public boolean intersects(ByteBuffer buffer, Envelope envelope) {
+		return WKBReader.intersects(buffer, envelope);
+	}
+}
@@ -38,6 +38,8 @@
 package org.geosde.cassandra.util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,6 +52,7 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.CoordinateSequenceFactory;
 import com.vividsolutions.jts.geom.CoordinateSequences;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -166,6 +169,135 @@ public class WKBReader {
         }
     }
 
+    /**
+     * Reads a single {@link Geometry} in WKB format from the remaining bytes of a buffer, without
+     * copying them nor moving the buffer position.
+     *
+     * @param buffer the buffer to read from
+     * @return the geometry read
+     * @throws ParseException if the WKB is ill-formed
+     */
+    public Geometry read(ByteBuffer buffer) throws ParseException {
+        try {
+            return read(new ByteBufferInStream(buffer.duplicate()));
+        } catch (IOException ex) {
+            throw new RuntimeException("Unexpected IOException caught: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Tests whether a geometry in WKB format may intersect an envelope, by scanning its
+     * coordinates without building it. Points are tested directly against the envelope, other
+     * geometries by their bounds. Curved geometries, whose bounds are not given by their control
+     * points, and ill-formed input are reported as intersecting so that the caller decodes them.
+     * Empty geometries never intersect.
+     *
+     * @param buffer the buffer holding the WKB in its remaining bytes, left untouched
+     * @param envelope the envelope to test
+     * @return false if the geometry certainly does not intersect the envelope
+     */
+    public static boolean intersects(ByteBuffer buffer, Envelope envelope) {
+        double[] bounds = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        try {
+            if (scan(buffer, buffer.position(), bounds) < 0) {
+                return true;
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            return true;
+        }
+        return bounds[0] <= envelope.getMaxX() && bounds[2] >= envelope.getMinX()
+                && bounds[1] <= envelope.getMaxY() && bounds[3] >= envelope.getMinY();
+    }
+
+    /**
+     * Expands <code>bounds</code> (minx, miny, maxx, maxy) by the coordinates of the geometry
+     * starting at <code>offset</code>.
+     *
+     * @return the offset following the geometry, or -1 if its bounds cannot be computed from its
+     *         coordinates
+     */
+    private static int scan(ByteBuffer buffer, int offset, double[] bounds) {
+        boolean swap = (buffer.get(offset) == WKBConstants.wkbNDR) != (buffer.order() == ByteOrder.LITTLE_ENDIAN);
+        int typeInt = getInt(buffer, offset + 1, swap);
+        int dimension = (typeInt & 0x80000000) != 0 ? 3 : 2;
+        offset += (typeInt & 0x20000000) != 0 ? 9 : 5;
+        switch (typeInt & 0xff) {
+        case WKBConstants.wkbPoint:
+            return scanCoordinates(buffer, offset, 1, dimension, swap, bounds);
+        case WKBConstants.wkbLineString:
+            return scanCoordinates(buffer, offset + 4, getInt(buffer, offset, swap), dimension, swap, bounds);
+        case WKBConstants.wkbPolygon:
+            int numRings = getInt(buffer, offset, swap);
+            offset += 4;
+            for (int i = 0; i < numRings; i++) {
+                offset = scanCoordinates(buffer, offset + 4, getInt(buffer, offset, swap), dimension, swap, bounds);
+            }
+            return offset;
+        case WKBConstants.wkbMultiPoint:
+        case WKBConstants.wkbMultiLineString:
+        case WKBConstants.wkbMultiPolygon:
+        case WKBConstants.wkbGeometryCollection:
+            int numGeoms = getInt(buffer, offset, swap);
+            offset += 4;
+            for (int i = 0; i < numGeoms && offset >= 0; i++) {
+                offset = scan(buffer, offset, bounds);
+            }
+            return offset;
+        default:
+            return -1;
+        }
+    }
+
+    private static int scanCoordinates(ByteBuffer buffer, int offset, int size, int dimension, boolean swap,
+            double[] bounds) {
+        for (int i = 0; i < size; i++) {
+            double x = getDouble(buffer, offset, swap);
+            double y = getDouble(buffer, offset + 8, swap);
+            // empty points are written with NaN ordinates, which the comparisons leave out
+            if (x < bounds[0])
+                bounds[0] = x;
+            if (y < bounds[1])
+                bounds[1] = y;
+            if (x > bounds[2])
+                bounds[2] = x;
+            if (y > bounds[3])
+                bounds[3] = y;
+            offset += 8 * dimension;
+        }
+        return offset;
+    }
+
+    private static int getInt(ByteBuffer buffer, int offset, boolean swap) {
+        int value = buffer.getInt(offset);
+        return swap ? Integer.reverseBytes(value) : value;
+    }
+
+    private static double getDouble(ByteBuffer buffer, int offset, boolean swap) {
+        long bits = buffer.getLong(offset);
+        return Double.longBitsToDouble(swap ? Long.reverseBytes(bits) : bits);
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInStream implements InStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void read(byte[] buf) throws IOException {
+            if (buffer.remaining() < buf.length) {
+                throw new IOException("Unexpected end of WKB");
+            }
+            buffer.get(buf);
+        }
+    }
+
     /**
      * Reads a {@link Geometry} in binary WKB format from an {@link InStream}.
      *
@@ -0,0 +1,379 @@
+package org.geosde.cassandra.write;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Sends insert statements asynchronously, grouped by partition.
+ * <p>
+ * Rows of the same partition are sent together as an <code>UNLOGGED</code> batch, which
+ * Cassandra applies as a single mutation on the replicas of that partition without going through
+ * the batch log. Rows are kept pending until their partition has {@link #maxBatchRows} rows or
+ * {@link #maxPendingRows} rows are pending overall, and at most {@link #maxInFlight} requests are
+ * outstanding at any time: {@link #add(Object, Statement)} blocks when the window is full, which
+ * throttles the producer to the speed of the cluster.
+ * <p>
+ * Requests failing with a timeout or an unavailable replica are sent again after an exponential
+ * backoff, up to {@link #maxRetries} times, which is safe since inserts are idempotent. A
+ * request gives its slot of the window back while it waits for its retry, so that requests
+ * failing repeatedly do not starve the others, and takes a slot again before being sent. Other
+ * failures are reported by the next call to {@link #add(Object, Statement)}, {@link #flush()} or
+ * {@link #close()}. This class is not thread-safe.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class AsyncBatchWriter implements Closeable {
+
+	public final static int DEFAULT_MAX_IN_FLIGHT = 128;
+
+	public final static int DEFAULT_MAX_BATCH_ROWS = 50;
+
+	public final static int DEFAULT_MAX_PENDING_ROWS = 2000;
+
+	public final static int DEFAULT_MAX_RETRIES = 5;
+
+	public final static long DEFAULT_RETRY_BACKOFF = 100;
+
+	public final static long MAX_RETRY_BACKOFF = 10000;
+
+	/**
+	 * Notified from driver threads as requests complete.
+	 */
+	public interface Listener {
+
+		/**
+		 * Rows were written, <code>sequences</code> holding the sequence numbers they were added
+		 * with and <code>latencyNanos</code> the time from the first send to the acknowledgement.
+		 */
+		void written(long[] sequences, long latencyNanos);
+
+		/**
+		 * A request of <code>rows</code> rows failed and is going to be sent again.
+		 */
+		void retried(int rows, int attempt, Throwable cause);
+	}
+
+	final Session session;
+
+	final int maxInFlight;
+
+	final int maxBatchRows;
+
+	final int maxPendingRows;
+
+	final Semaphore window;
+
+	final Map<Object, Group> pending = new LinkedHashMap<>();
+
+	int pendingRows;
+
+	int maxRetries = DEFAULT_MAX_RETRIES;
+
+	long retryBackoff = DEFAULT_RETRY_BACKOFF;
+
+	Listener listener;
+
+	ScheduledExecutorService retryScheduler;
+
+	final AtomicLong writtenRows = new AtomicLong();
+
+	/**
+	 * Requests waiting to be sent again, which hold no permit of the window
+	 */
+	final AtomicInteger retrying = new AtomicInteger();
+
+	final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	public AsyncBatchWriter(Session session) {
+		this(session, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public AsyncBatchWriter(Session session, int maxInFlight) {
+		this(session, maxInFlight, DEFAULT_MAX_BATCH_ROWS, DEFAULT_MAX_PENDING_ROWS);
+	}
+
+	public AsyncBatchWriter(Session session, int maxInFlight, int maxBatchRows, int maxPendingRows) {
+		if (maxInFlight < 1 || maxBatchRows < 1 || maxPendingRows < 1) {
+			throw new IllegalArgumentException("Window and batch sizes must be positive");
+		}
+		this.session = session;
+		this.maxInFlight = maxInFlight;
+		this.maxBatchRows = maxBatchRows;
+		this.maxPendingRows = maxPendingRows;
+		this.window = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Sets how failed requests are retried, a request timing out or finding no replica available
+	 * being sent again at most <code>maxRetries</code> times, after <code>backoffMillis</code>
+	 * doubling on each attempt, see {@link #isRetryable(Throwable)}.
+	 */
+	public void setRetry(int maxRetries, long backoffMillis) {
+		if (maxRetries < 0 || backoffMillis < 0) {
+			throw new IllegalArgumentException("Retry settings must not be negative");
+		}
+		this.maxRetries = maxRetries;
+		this.retryBackoff = backoffMillis;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Queues the insert of a row of the given partition.
+	 */
+	public void add(Object partitionKey, Statement statement) throws IOException {
+		add(partitionKey, statement, -1);
+	}
+
+	/**
+	 * Queues the insert of a row of the given partition, the sequence number being handed back to
+	 * the {@link Listener} once the row is written.
+	 */
+	public void add(Object partitionKey, Statement statement, long sequence) throws IOException {
+		checkFailure();
+		Group group = pending.get(partitionKey);
+		if (group == null) {
+			group = new Group();
+			pending.put(partitionKey, group);
+		}
+		group.add(statement, sequence);
+		pendingRows++;
+		if (group.statements.size() >= maxBatchRows) {
+			pending.remove(partitionKey);
+			send(group);
+		} else if (pendingRows >= maxPendingRows) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends all the pending rows, without waiting for them to be written.
+	 */
+	public void flush() throws IOException {
+		checkFailure();
+		List<Group> groups = new ArrayList<>(pending.values());
+		pending.clear();
+		for (Group group : groups) {
+			send(group);
+		}
+	}
+
+	/**
+	 * Sends the pending rows and waits until every row sent so far has been written.
+	 */
+	public void await() throws IOException {
+		flush();
+		try {
+			while (true) {
+				window.acquire(maxInFlight);
+				// a retry counts itself before giving its permit back
+				boolean idle = retrying.get() == 0;
+				window.release(maxInFlight);
+				if (idle || failure.get() != null) {
+					break;
+				}
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for writes to complete");
+		}
+		checkFailure();
+	}
+
+	void send(Group group) throws IOException {
+		pendingRows -= group.statements.size();
+		Statement statement;
+		if (group.statements.size() == 1) {
+			statement = group.statements.get(0);
+		} else {
+			BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+			batch.addAll(group.statements);
+			statement = batch;
+		}
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the write window");
+		}
+		execute(statement, group, 0, System.nanoTime());
+	}
+
+	/**
+	 * Sends a request holding a permit of the window, the permit being released once the request
+	 * succeeded or failed. A failed request to be retried is counted in {@link #retrying} until
+	 * it holds a permit again.
+	 */
+	void execute(final Statement statement, final Group group, final int attempt, final long start) {
+		ListenableFuture<ResultSet> future;
+		try {
+			future = session.executeAsync(statement);
+		} catch (RuntimeException e) {
+			future = Futures.immediateFailedFuture(e);
+		}
+		Futures.addCallback(future, new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet result) {
+				try {
+					writtenRows.addAndGet(group.statements.size());
+					if (listener != null) {
+						listener.written(group.sequences(), System.nanoTime() - start);
+					}
+				} finally {
+					window.release();
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (attempt < maxRetries && isRetryable(t) && failure.get() == null) {
+					retrying.incrementAndGet();
+					window.release();
+					retry(statement, group, attempt + 1, start);
+					if (listener != null) {
+						listener.retried(group.statements.size(), attempt + 1, t);
+					}
+				} else {
+					failure.compareAndSet(null, t);
+					window.release();
+				}
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 * Whether a request failed for a transient reason and may succeed if sent again: a client or
+	 * write timeout, or too few replicas or hosts available.
+	 */
+	static boolean isRetryable(Throwable t) {
+		return t instanceof OperationTimedOutException || t instanceof WriteTimeoutException
+				|| t instanceof UnavailableException || t instanceof NoHostAvailableException;
+	}
+
+	/**
+	 * Sends a failed request again after the backoff of its attempt, once it holds a permit of
+	 * the window again.
+	 */
+	void retry(final Statement statement, final Group group, final int attempt, final long start) {
+		long delay = Math.min(MAX_RETRY_BACKOFF, retryBackoff << Math.min(attempt - 1, 20));
+		try {
+			retryScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						window.acquire();
+					} catch (InterruptedException e) {
+						failure.compareAndSet(null, e);
+						retrying.decrementAndGet();
+						return;
+					}
+					retrying.decrementAndGet();
+					execute(statement, group, attempt, start);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the writer has been closed
+			failure.compareAndSet(null, e);
+			retrying.decrementAndGet();
+		}
+	}
+
+	synchronized ScheduledExecutorService retryScheduler() {
+		if (retryScheduler == null) {
+			retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "cassandra-write-retry");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return retryScheduler;
+	}
+
+	void checkFailure() throws IOException {
+		Throwable t = failure.get();
+		if (t != null) {
+			throw new IOException("Failed to write features", t);
+		}
+	}
+
+	/**
+	 * Number of rows acknowledged by the cluster so far.
+	 */
+	public long getWrittenRows() {
+		return writtenRows.get();
+	}
+
+	public int getPendingRows() {
+		return pendingRows;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			await();
+		} finally {
+			synchronized (this) {
+				if (retryScheduler != null) {
+					retryScheduler.shutdownNow();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rows of a partition sent in the same request.
+	 */
+	static class Group {
+
+		final List<Statement> statements = new ArrayList<>();
+
+		long[] sequences = new long[8];
+
+		void add(Statement statement, long sequence) {
+			if (statements.size() == sequences.length) {
+				sequences = Arrays.copyOf(sequences, sequences.length * 2);
+			}
+			sequences[statements.size()] = sequence;
+			statements.add(statement);
+		}
+
+		long[] sequences() {
+			return Arrays.copyOf(sequences, statements.size());
+		}
+	}
+}
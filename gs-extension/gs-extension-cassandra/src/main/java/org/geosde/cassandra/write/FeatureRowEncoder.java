@@ -0,0 +1,115 @@
+package org.geosde.cassandra.write;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geosde.cassandra.util.GeometryCodec;
+import org.geosde.cassandra.util.WKBGeometryCodec;
+import org.geosde.core.index.IndexStrategy;
+import org.geosde.core.index.S2IndexStrategy;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Turns features into the column values of a layer table row: the <code>cell</code> and
+ * <code>pos</code> index keys, the <code>fid</code> and the attributes, the geometry encoded by the
+ * {@link GeometryCodec} of the layer, WKB by default.
+ * <p>
+ * Null attributes are left out of the row so that they are not written as tombstones. This
+ * class is not thread-safe, each thread should create its own instance.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class FeatureRowEncoder {
+
+	public final static String CELL = "cell";
+
+	public final static String POS = "pos";
+
+	public final static String FID = "fid";
+
+	/**
+	 * Attribute holding the feature id in the OSM extracts, used instead of the feature id when
+	 * present
+	 */
+	public final static String OSM_ID = "osm_id";
+
+	final SimpleFeatureType sft;
+
+	final IndexStrategy indexStrategy;
+
+	final GeometryCodec codec;
+
+	public FeatureRowEncoder(SimpleFeatureType sft) {
+		this(sft, new S2IndexStrategy(sft.getTypeName()));
+	}
+
+	public FeatureRowEncoder(SimpleFeatureType sft, IndexStrategy indexStrategy) {
+		this(sft, indexStrategy, new WKBGeometryCodec());
+	}
+
+	/**
+	 * @param codec
+	 *            the codec of the layer geometries, owned by this encoder
+	 */
+	public FeatureRowEncoder(SimpleFeatureType sft, IndexStrategy indexStrategy, GeometryCodec codec) {
+		this.sft = sft;
+		this.indexStrategy = indexStrategy;
+		this.codec = codec;
+	}
+
+	public SimpleFeatureType getFeatureType() {
+		return sft;
+	}
+
+	/**
+	 * Returns the column values of the feature, in the attribute order of the feature type
+	 * after the primary key columns.
+	 */
+	public Map<String, Object> encode(SimpleFeature feature) {
+		Map<String, Object> values = new LinkedHashMap<>();
+		Geometry geom = (Geometry) feature.getDefaultGeometry();
+		if (indexStrategy instanceof S2IndexStrategy) {
+			S2IndexStrategy s2 = (S2IndexStrategy) indexStrategy;
+			long id = s2.cellId(geom);
+			values.put(CELL, s2.toKey(S2IndexStrategy.partitionId(id)));
+			values.put(POS, s2.toKey(id));
+		} else {
+			Map<String, Object> primaryKey = indexStrategy.index(geom);
+			values.put(CELL, primaryKey.get(CELL));
+			values.put(POS, primaryKey.get(POS));
+		}
+		values.put(FID, feature.getID());
+		for (AttributeDescriptor attr : sft.getAttributeDescriptors()) {
+			String col_name = attr.getLocalName();
+			if (col_name.equals(CELL) || col_name.equals(POS)) {
+				continue;
+			}
+			Object value = feature.getAttribute(col_name);
+			if (value == null) {
+				continue;
+			}
+			if (attr instanceof GeometryDescriptor) {
+				values.put(col_name, codec.encode((Geometry) value));
+			} else {
+				values.put(col_name, value);
+				if (col_name.equals(OSM_ID)) {
+					values.put(FID, value);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Partition key of an encoded row.
+	 */
+	public static Object partitionKey(Map<String, Object> values) {
+		return values.get(CELL);
+	}
+}
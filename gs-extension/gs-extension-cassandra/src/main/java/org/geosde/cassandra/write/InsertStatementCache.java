@@ -0,0 +1,82 @@
+package org.geosde.cassandra.write;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+
+/**
+ * Prepared <code>INSERT</code> statements, one per table and set of columns.
+ * <p>
+ * Rows only list their non null columns, so the same table usually ends up with a handful of
+ * statements. Bound statements carry their routing key, which lets a token aware load balancing
+ * policy send each write straight to a replica of its partition. Thread-safe.
+ *
+ * @author Xiao Fei
+ *
+ */
+public class InsertStatementCache {
+
+	final Session session;
+
+	final ConcurrentMap<String, PreparedStatement> statements = new ConcurrentHashMap<>();
+
+	public InsertStatementCache(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * Returns the statement inserting the given columns, in the given order, preparing it on
+	 * first use.
+	 */
+	public PreparedStatement get(String table, Collection<String> columns) {
+		StringBuilder key = new StringBuilder(table).append('(');
+		for (String column : columns) {
+			key.append(column).append(',');
+		}
+		String cacheKey = key.toString();
+		PreparedStatement statement = statements.get(cacheKey);
+		if (statement == null) {
+			StringBuilder params = new StringBuilder();
+			for (int i = 0; i < columns.size(); i++) {
+				params.append(i == 0 ? "?" : ",?");
+			}
+			String items = cacheKey.substring(table.length() + 1, cacheKey.length() - 1);
+			PreparedStatement prepared = session
+					.prepare("INSERT INTO " + table + " (" + items + ") values (" + params + ");");
+			statement = statements.putIfAbsent(cacheKey, prepared);
+			if (statement == null) {
+				statement = prepared;
+			}
+		}
+		return statement;
+	}
+
+	/**
+	 * Binds a row to the statement inserting its columns.
+	 */
+	public BoundStatement bind(String table, Map<String, Object> values) {
+		return get(table, values.keySet()).bind(values.values().toArray());
+	}
+
+	/**
+	 * Drops the statements of a table, for example after its schema changed.
+	 */
+	public void invalidate(String table) {
+		String prefix = table + "(";
+		for (Iterator<String> it = statements.keySet().iterator(); it.hasNext();) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	public int size() {
+		return statements.size();
+	}
+}
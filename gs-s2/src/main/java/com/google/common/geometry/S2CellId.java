@@ -16,7 +16,6 @@
 package com.google.common.geometry;
 
 import java.util.List;
-import java.util.Locale;
 
 /**
  * An S2CellId is a 64-bit unsigned integer that uniquely identifies a cell in
@@ -159,6 +158,52 @@ public final strictfp class S2CellId implements Comparable<S2CellId> {
     return fromPoint(ll.toPoint());
   }
 
+  /**
+   * Return the id of the leaf cell containing the point (x, y, z) (a direction
+   * vector, not necessarily unit length). Same result as
+   * fromPoint(new S2Point(x, y, z)).id(), without allocating.
+   */
+  public static long leafIdFromXyz(double x, double y, double z) {
+    double ax = Math.abs(x);
+    double ay = Math.abs(y);
+    double az = Math.abs(z);
+    int face = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+    if ((face == 0 ? x : face == 1 ? y : z) < 0) {
+      face += 3;
+    }
+    double pu;
+    double pv;
+    switch (face) {
+      case 0:
+        pu = y / x;
+        pv = z / x;
+        break;
+      case 1:
+        pu = -x / y;
+        pv = z / y;
+        break;
+      case 2:
+        pu = -x / z;
+        pv = -y / z;
+        break;
+      case 3:
+        pu = z / x;
+        pv = y / x;
+        break;
+      case 4:
+        pu = z / y;
+        pv = -x / y;
+        break;
+      default:
+        pu = -y / z;
+        pv = -x / z;
+        break;
+    }
+    int i = stToIJ(S2Projections.uvToST(pu));
+    int j = stToIJ(S2Projections.uvToST(pv));
+    return idFromFaceIJ(face, i, j);
+  }
+
   public S2Point toPoint() {
     return S2Point.normalize(toPointRaw());
   }
@@ -478,25 +523,28 @@ public final strictfp class S2CellId implements Comparable<S2CellId> {
    * @return the encoded cell id
    */
   public String toToken() {
+    return toToken(id);
+  }
+
+  /**
+   * Encodes a cell id as a token, see {@link #toToken()}.
+   */
+  public static String toToken(long id) {
     if (id == 0) {
       return "X";
     }
 
-    String hex = Long.toHexString(id).toLowerCase(Locale.ENGLISH);
-    StringBuilder sb = new StringBuilder(16);
-    for (int i = hex.length(); i < 16; i++) {
-      sb.append('0');
+    // hex digits of the id, most significant first, trailing zeros dropped
+    int len = 16 - (Long.numberOfTrailingZeros(id) >> 2);
+    char[] chars = new char[len];
+    for (int k = 0; k < len; k++) {
+      chars[k] = HEX_DIGITS[(int) (id >>> (60 - 4 * k)) & 0xf];
     }
-    sb.append(hex);
-    for (int len = 16; len > 0; len--) {
-      if (sb.charAt(len - 1) != '0') {
-        return sb.substring(0, len);
-      }
-    }
-
-    throw new RuntimeException("Shouldn't make it here");
+    return new String(chars);
   }
 
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
   /**
    * Returns true if (current * 10) + digit is a number too large to be
    * represented by an unsigned long.  This is useful for detecting overflow
@@ -689,6 +737,14 @@ public final strictfp class S2CellId implements Comparable<S2CellId> {
    * j-coordinates (see s2.h).
    */
   public static S2CellId fromFaceIJ(int face, int i, int j) {
+    return new S2CellId(idFromFaceIJ(face, i, j));
+  }
+
+  /**
+   * Return the id of a leaf cell given its cube face (range 0..5) and i- and
+   * j-coordinates, without allocating.
+   */
+  public static long idFromFaceIJ(int face, int i, int j) {
     // Optimization notes:
     // - Non-overlapping bit fields can be combined with either "+" or "|".
     // Generally "+" seems to produce better code, but not always.
@@ -699,7 +755,8 @@ public final strictfp class S2CellId implements Comparable<S2CellId> {
     // rather than local variables helps the compiler to do a better job
     // of register allocation as well. Note that the two 32-bits halves
     // get shifted one bit to the left when they are combined.
-    long n[] = {0, face << (POS_BITS - 33)};
+    long n0 = 0;
+    long n1 = face << (POS_BITS - 33);
 
     // Alternating faces have opposite Hilbert curve orientations; this
     // is necessary in order for all faces to have a right-handed
@@ -711,23 +768,21 @@ public final strictfp class S2CellId implements Comparable<S2CellId> {
     // "iiiijjjjoo" to a 10-bit value of the form "ppppppppoo", where the
     // letters [ijpo] denote bits of "i", "j", Hilbert curve position, and
     // Hilbert curve orientation respectively.
-
+    final int mask = (1 << LOOKUP_BITS) - 1;
     for (int k = 7; k >= 0; --k) {
-      bits = getBits(n, i, j, k, bits);
+      bits += (((i >> (k * LOOKUP_BITS)) & mask) << (LOOKUP_BITS + 2));
+      bits += (((j >> (k * LOOKUP_BITS)) & mask) << 2);
+      bits = LOOKUP_POS[bits];
+      long pos = (((long) bits) >> 2) << ((k & 3) * 2 * LOOKUP_BITS);
+      if (k >= 4) {
+        n1 |= pos;
+      } else {
+        n0 |= pos;
+      }
+      bits &= (SWAP_MASK | INVERT_MASK);
     }
 
-    S2CellId s = new S2CellId((((n[1] << 32) + n[0]) << 1) + 1);
-    return s;
-  }
-
-  private static int getBits(long[] n, int i, int j, int k, int bits) {
-    final int mask = (1 << LOOKUP_BITS) - 1;
-    bits += (((i >> (k * LOOKUP_BITS)) & mask) << (LOOKUP_BITS + 2));
-    bits += (((j >> (k * LOOKUP_BITS)) & mask) << 2);
-    bits = LOOKUP_POS[bits];
-    n[k >> 2] |= ((((long) bits) >> 2) << ((k & 3) * 2 * LOOKUP_BITS));
-    bits &= (SWAP_MASK | INVERT_MASK);
-    return bits;
+    return (((n1 << 32) + n0) << 1) + 1;
   }
 
 